@@ -0,0 +1,305 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.LazyList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.profile.provider.AbstractRequestURIMappedProfileHandler;
+import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
+import edu.internet2.middleware.shibboleth.idp.profile.saml2.SLOProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerImpl;
+import edu.internet2.middleware.shibboleth.idp.slo.BulkLogoutService;
+import edu.internet2.middleware.shibboleth.idp.slo.BulkLogoutService.Criterion;
+import edu.internet2.middleware.shibboleth.idp.slo.BulkLogoutService.RevocationResult;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
+import edu.internet2.middleware.shibboleth.idp.util.IPRange;
+
+/**
+ * A Servlet for administratively revoking all the sessions of a principal, of an SP or of an authentication method.
+ * 
+ * A POST request with exactly one of the <code>principal</code>, <code>service</code> or <code>authnMethod</code>
+ * parameters revokes the matching sessions and queues the back-channel logout of their participants, see
+ * {@link BulkLogoutService}. If the queue of logouts fills up, the response has status 503 and reports the number of
+ * sessions deferred; the request may be repeated later. A GET request prints the state of the service. Only clients
+ * from the allowed IP ranges are served. Revocation requires sessions kept by the IdP, it is not available with
+ * client-side sessions.
+ */
+public class BulkLogoutServlet extends HttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 2981474036117361457L;
+
+    /** Name of the init parameter listing the CIDR blocks allowed to use the servlet. */
+    private static final String IP_PARAM_NAME = "AllowedIPs";
+
+    /** Name of the init parameter giving the maximum number of logouts waiting to be issued. */
+    private static final String QUEUE_CAPACITY_PARAM_NAME = "queueCapacity";
+
+    /** Name of the init parameter giving the maximum number of logouts issued per second. */
+    private static final String RATE_PARAM_NAME = "maxLogoutsPerSecond";
+
+    /** Name of the init parameter giving the number of sessions destroyed per batch. */
+    private static final String BATCH_SIZE_PARAM_NAME = "batchSize";
+
+    /** Default maximum number of logouts waiting to be issued. */
+    private static final int DEFAULT_QUEUE_CAPACITY = 100000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BulkLogoutServlet.class);
+
+    /** CIDR blocks allowed to use the servlet. */
+    private LazyList<IPRange> allowedIPs;
+
+    /** Session manager used by the IdP. */
+    private SessionManager<Session> sessionManager;
+
+    /** Profile handler manager used by the IdP. */
+    private IdPProfileHandlerManager profileHandlerManager;
+
+    /** Maximum number of logouts waiting to be issued. */
+    private int queueCapacity;
+
+    /** Maximum number of logouts issued per second, 0 for the service's default. */
+    private int maxLogoutsPerSecond;
+
+    /** Number of sessions destroyed per batch, 0 for the service's default. */
+    private int batchSize;
+
+    /** Service revoking sessions, null until the first request. */
+    private BulkLogoutService bulkLogoutService;
+
+    /** {@inheritDoc} */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        allowedIPs = new LazyList<IPRange>();
+
+        String cidrBlocks = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(IP_PARAM_NAME));
+        if (cidrBlocks != null) {
+            for (String cidrBlock : cidrBlocks.split(" ")) {
+                allowedIPs.add(IPRange.parseCIDRBlock(cidrBlock));
+            }
+        }
+
+        queueCapacity = getIntParameter(config, QUEUE_CAPACITY_PARAM_NAME, DEFAULT_QUEUE_CAPACITY);
+        maxLogoutsPerSecond = getIntParameter(config, RATE_PARAM_NAME, 0);
+        batchSize = getIntParameter(config, BATCH_SIZE_PARAM_NAME, 0);
+
+        sessionManager = HttpServletHelper.getSessionManager(config.getServletContext());
+        profileHandlerManager = HttpServletHelper.getProfileHandlerManager(config.getServletContext());
+    }
+
+    /** {@inheritDoc} */
+    public void destroy() {
+        synchronized (this) {
+            if (bulkLogoutService != null) {
+                bulkLogoutService.destroy();
+                bulkLogoutService = null;
+            }
+        }
+        super.destroy();
+    }
+
+    /** {@inheritDoc} */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        if (!isAuthenticated(request)) {
+            response.sendError(HttpStatus.SC_UNAUTHORIZED);
+            return;
+        }
+
+        BulkLogoutService service = getBulkLogoutService();
+        if (service == null) {
+            response.sendError(HttpStatus.SC_NOT_IMPLEMENTED);
+            return;
+        }
+
+        response.setContentType("text/plain");
+        PrintWriter output = response.getWriter();
+        output.println("### Bulk Logout Information");
+        output.println("revoked_sessions: " + service.getRevokedCount());
+        output.println("pending_logouts: " + service.getPendingCount());
+        output.println("dispatched_logouts: " + service.getDispatchedCount());
+        output.println("max_logouts_per_second: " + service.getMaxLogoutsPerSecond());
+        output.flush();
+    }
+
+    /** {@inheritDoc} */
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        if (!isAuthenticated(request)) {
+            response.sendError(HttpStatus.SC_UNAUTHORIZED);
+            return;
+        }
+
+        BulkLogoutService service = getBulkLogoutService();
+        if (service == null) {
+            response.sendError(HttpStatus.SC_NOT_IMPLEMENTED);
+            return;
+        }
+
+        String principal = DatatypeHelper.safeTrimOrNullString(request.getParameter("principal"));
+        String entityID = DatatypeHelper.safeTrimOrNullString(request.getParameter("service"));
+        String authnMethod = DatatypeHelper.safeTrimOrNullString(request.getParameter("authnMethod"));
+
+        Criterion criterion;
+        String key;
+        if (principal != null && entityID == null && authnMethod == null) {
+            criterion = Criterion.PRINCIPAL;
+            key = principal;
+        } else if (principal == null && entityID != null && authnMethod == null) {
+            criterion = Criterion.SERVICE;
+            key = entityID;
+        } else if (principal == null && entityID == null && authnMethod != null) {
+            criterion = Criterion.AUTHENTICATION_METHOD;
+            key = authnMethod;
+        } else {
+            response.sendError(HttpStatus.SC_BAD_REQUEST,
+                    "Exactly one of principal, service or authnMethod must be given");
+            return;
+        }
+
+        log.info("Client '{}' requested revocation of sessions by {} '{}'", new Object[] {request.getRemoteAddr(),
+                criterion, key});
+        RevocationResult result = service.revoke(criterion, key);
+
+        if (result.getDeferredCount() > 0) {
+            response.setStatus(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }
+        response.setContentType("text/plain");
+        PrintWriter output = response.getWriter();
+        output.println("revoked_sessions: " + result.getRevokedCount());
+        output.println("deferred_sessions: " + result.getDeferredCount());
+        output.flush();
+    }
+
+    /**
+     * Checks whether the client is authenticated.
+     * 
+     * @param request client request
+     * 
+     * @return true if the client is authenticated, false if not
+     */
+    protected boolean isAuthenticated(HttpServletRequest request) throws ServletException {
+        log.debug("Attempting to authenticate client '{}'", request.getRemoteAddr());
+        try {
+            InetAddress clientAddress = InetAddress.getByName(request.getRemoteAddr());
+
+            for (IPRange range : allowedIPs) {
+                if (range.contains(clientAddress)) {
+                    return true;
+                }
+            }
+
+            return false;
+        } catch (UnknownHostException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Gets the service revoking sessions, creating it on first use. The back-channel logouts are issued by the first
+     * SAML 2 SLO profile handler found, which is looked up on every request since the profile handlers may have been
+     * reloaded.
+     * 
+     * @return the service, or null if the IdP does not keep sessions or has no SAML 2 SLO profile handler
+     */
+    protected synchronized BulkLogoutService getBulkLogoutService() {
+        if (!(sessionManager instanceof SessionManagerImpl)) {
+            log.warn("Bulk logout requires sessions kept by the IdP");
+            return null;
+        }
+
+        SLOProfileHandler sloHandler = null;
+        if (profileHandlerManager != null) {
+            for (AbstractRequestURIMappedProfileHandler handler : profileHandlerManager.getProfileHandlers()
+                    .values()) {
+                if (handler instanceof SLOProfileHandler) {
+                    sloHandler = (SLOProfileHandler) handler;
+                    break;
+                }
+            }
+        }
+        if (sloHandler == null) {
+            log.warn("Bulk logout requires a SAML 2 SLO profile handler");
+            return null;
+        }
+
+        if (bulkLogoutService != null) {
+            if (bulkLogoutService.getProfileHandler() != sloHandler) {
+                log.debug("SAML 2 SLO profile handler was reloaded, issuing bulk logouts with the new one");
+                bulkLogoutService.setProfileHandler(sloHandler);
+            }
+            return bulkLogoutService;
+        }
+
+        bulkLogoutService = new BulkLogoutService((SessionManagerImpl) sessionManager, sloHandler, queueCapacity);
+        if (maxLogoutsPerSecond > 0) {
+            bulkLogoutService.setMaxLogoutsPerSecond(maxLogoutsPerSecond);
+        }
+        if (batchSize > 0) {
+            bulkLogoutService.setBatchSize(batchSize);
+        }
+        return bulkLogoutService;
+    }
+
+    /**
+     * Gets the value of an integer init parameter, which must be greater than 0 if given.
+     * 
+     * @param config the Servlet configuration
+     * @param name name of the parameter
+     * @param defaultValue value if the parameter is not given
+     * 
+     * @return value of the parameter
+     * 
+     * @throws ServletException thrown if the parameter is not an integer greater than 0
+     */
+    private int getIntParameter(ServletConfig config, String name, int defaultValue) throws ServletException {
+        String value = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(name));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue > 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ServletException("Init parameter " + name + " must be an integer greater than 0, not '" + value
+                + "'");
+    }
+}
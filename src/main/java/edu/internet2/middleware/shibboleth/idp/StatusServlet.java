@@ -21,6 +21,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -34,6 +38,7 @@ import org.joda.time.Duration;
 import org.joda.time.chrono.ISOChronology;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.opensaml.util.storage.StorageService;
 import org.opensaml.xml.security.x509.X509Credential;
 import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.DatatypeHelper;
@@ -43,8 +48,21 @@ import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.shibboleth.common.attribute.resolver.AttributeResolutionException;
 import edu.internet2.middleware.shibboleth.common.attribute.resolver.AttributeResolver;
+import edu.internet2.middleware.shibboleth.common.profile.provider.AbstractRequestURIMappedProfileHandler;
 import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
 import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfigurationManager;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.JAASLoginExecutor;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.LoginFailureThrottle;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.UsernamePasswordLoginGuard;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.UsernamePasswordLoginServlet;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.VerifiedCredentialCache;
+import edu.internet2.middleware.shibboleth.idp.profile.AbstractSAMLProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponseStageStatistics;
+import edu.internet2.middleware.shibboleth.idp.profile.saml2.SLOProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.slo.LogoutRetryQueue;
+import edu.internet2.middleware.shibboleth.idp.storage.ExpiryIndexedStorageService;
+import edu.internet2.middleware.shibboleth.idp.util.HttpClientPool;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 import edu.internet2.middleware.shibboleth.idp.util.IPRange;
 
@@ -72,6 +90,12 @@ public class StatusServlet extends HttpServlet {
     /** Relying party configuration manager used by the IdP. */
     private RelyingPartyConfigurationManager rpConfigManager;
 
+    /** Storage service used by the IdP. */
+    private StorageService<?, ?> storageService;
+
+    /** Profile handler manager used by the IdP. */
+    private IdPProfileHandlerManager profileHandlerManager;
+
     /** {@inheritDoc} */
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -89,6 +113,8 @@ public class StatusServlet extends HttpServlet {
         startTime = new DateTime(ISOChronology.getInstanceUTC());
         attributeResolver = HttpServletHelper.getAttributeResolver(config.getServletContext());
         rpConfigManager = HttpServletHelper.getRelyingPartyConfirmationManager(config.getServletContext());
+        storageService = HttpServletHelper.getStorageService(config.getServletContext());
+        profileHandlerManager = HttpServletHelper.getProfileHandlerManager(config.getServletContext());
     }
 
     /** {@inheritDoc} */
@@ -105,6 +131,15 @@ public class StatusServlet extends HttpServlet {
         output.println();
         printIdPInformation(output);
         output.println();
+        if (storageService instanceof ExpiryIndexedStorageService) {
+            printStorageServiceInformation(output, (ExpiryIndexedStorageService<?, ?>) storageService);
+            output.println();
+        }
+        printLoginExecutorsInformation(output);
+        printLoginGuardsInformation(output);
+        printResponseStagesInformation(output);
+        printHttpClientPoolsInformation(output);
+        printLogoutRetryQueuesInformation(output);
         printRelyingPartyConfigurationsInformation(output, request.getParameter("relyingParty"));
 
         output.flush();
@@ -178,6 +213,212 @@ public class StatusServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Prints out information about the storage service. This includes the number of entries in each partition and the
+     * statistics of the expiration sweeps.
+     * 
+     * @param out output writer to which information will be written
+     * @param storage the storage service
+     */
+    protected void printStorageServiceInformation(PrintWriter out, ExpiryIndexedStorageService<?, ?> storage) {
+        out.println("### Storage Service Information");
+        Iterator<String> partitions = storage.getPartitions();
+        String partition;
+        while (partitions.hasNext()) {
+            partition = partitions.next();
+            out.println("partition_entries: " + partition + " " + storage.getEntryCount(partition));
+        }
+        out.println("sweep_count: " + storage.getSweepCount());
+        if (storage.getLastSweepInstant() != null) {
+            out.println("last_sweep_time: " + storage.getLastSweepInstant().toString(dateFormat));
+        }
+        out.println("last_sweep_duration: " + storage.getLastSweepDuration() + "ms");
+        out.println("last_sweep_reclaimed_entries: " + storage.getLastSweepReclaimed());
+        out.println("total_reclaimed_entries: " + storage.getTotalReclaimed());
+    }
+
+    /**
+     * Prints out information about the executors running JAAS logins, each followed by an empty line. This includes
+     * the number of queued and running logins, the outcome of past logins and the time they spent queued and running.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printLoginExecutorsInformation(PrintWriter out) {
+        String prefix = UsernamePasswordLoginServlet.LOGIN_EXECUTOR_ATTRIBUTE + ".";
+        Enumeration<?> attributeNames = getServletContext().getAttributeNames();
+        String attributeName;
+        Object attribute;
+        JAASLoginExecutor executor;
+        while (attributeNames.hasMoreElements()) {
+            attributeName = (String) attributeNames.nextElement();
+            attribute = getServletContext().getAttribute(attributeName);
+            if (!attributeName.startsWith(prefix) || !(attribute instanceof JAASLoginExecutor)) {
+                continue;
+            }
+
+            executor = (JAASLoginExecutor) attribute;
+            out.println("### JAAS Login Information");
+            out.println("login_servlet: " + attributeName.substring(prefix.length()));
+            out.println("login_threads: " + executor.getThreadCount());
+            out.println("login_timeout: " + executor.getLoginTimeout() + "ms");
+            out.println("active_logins: " + executor.getActiveCount());
+            out.println("queued_logins: " + executor.getQueueDepth());
+            out.println("successful_logins: " + executor.getSuccessCount());
+            out.println("failed_logins: " + executor.getFailureCount());
+            out.println("rejected_logins: " + executor.getRejectedCount());
+            out.println("timed_out_logins: " + executor.getTimeoutCount());
+            out.println("total_queue_wait: " + executor.getTotalQueueWait() + "ms");
+            out.println("total_login_time: " + executor.getTotalLoginTime() + "ms");
+            out.println();
+        }
+    }
+
+    /**
+     * Prints out information about the guards of username/password logins, each followed by an empty line. This
+     * includes the use of their verified credential cache and the number of logins they throttled.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printLoginGuardsInformation(PrintWriter out) {
+        Enumeration<?> attributeNames = getServletContext().getAttributeNames();
+        String attributeName;
+        Object attribute;
+        VerifiedCredentialCache cache;
+        LoginFailureThrottle throttle;
+        while (attributeNames.hasMoreElements()) {
+            attributeName = (String) attributeNames.nextElement();
+            attribute = getServletContext().getAttribute(attributeName);
+            if (!(attribute instanceof UsernamePasswordLoginGuard)) {
+                continue;
+            }
+
+            out.println("### Username/Password Login Guard Information");
+            out.println("login_guard: " + attributeName);
+            cache = ((UsernamePasswordLoginGuard) attribute).getCredentialCache();
+            if (cache != null) {
+                out.println("cached_credentials: " + cache.getSize());
+                out.println("credential_cache_hits: " + cache.getHitCount());
+                out.println("credential_cache_misses: " + cache.getMissCount());
+                out.println("credential_cache_invalidations: " + cache.getInvalidationCount());
+            }
+            throttle = ((UsernamePasswordLoginGuard) attribute).getFailureThrottle();
+            if (throttle != null) {
+                out.println("throttled_logins: " + throttle.getThrottledCount());
+                out.println("tracked_failed_usernames: " + throttle.getTrackedUsernameCount());
+                out.println("tracked_failed_addresses: " + throttle.getTrackedAddressCount());
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Prints out, for each SAML profile handler that produced responses, the number and duration of the stages of the
+     * production of its responses, each followed by an empty line.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printResponseStagesInformation(PrintWriter out) {
+        if (profileHandlerManager == null) {
+            return;
+        }
+
+        ResponseStageStatistics statistics;
+        String stageName;
+        for (Map.Entry<String, AbstractRequestURIMappedProfileHandler> handler : profileHandlerManager
+                .getProfileHandlers().entrySet()) {
+            if (!(handler.getValue() instanceof AbstractSAMLProfileHandler)) {
+                continue;
+            }
+            statistics = ((AbstractSAMLProfileHandler) handler.getValue()).getResponseStageStatistics();
+            if (statistics.getCount(ResponseStageStatistics.Stage.BUILD) == 0
+                    && statistics.getCount(ResponseStageStatistics.Stage.ENCODE) == 0) {
+                continue;
+            }
+
+            out.println("### SAML Response Stage Information");
+            out.println("profile_handler: " + handler.getKey());
+            for (ResponseStageStatistics.Stage stage : ResponseStageStatistics.Stage.values()) {
+                stageName = stage.name().toLowerCase();
+                out.println(stageName + "_count: " + statistics.getCount(stage));
+                out.println(stageName + "_total_time: " + statistics.getTotalTime(stage) + "ms");
+                out.println(stageName + "_max_time: " + statistics.getMaxTime(stage) + "ms");
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Prints the utilization of the HTTP connection pools back-channel logout requests are issued over. A pool shared
+     * by several handlers is printed once.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printHttpClientPoolsInformation(PrintWriter out) {
+        if (profileHandlerManager == null) {
+            return;
+        }
+
+        Map<HttpClientPool, Boolean> printed = new IdentityHashMap<HttpClientPool, Boolean>();
+        HttpClientPool pool;
+        for (Map.Entry<String, AbstractRequestURIMappedProfileHandler> handler : profileHandlerManager
+                .getProfileHandlers().entrySet()) {
+            if (!(handler.getValue() instanceof SLOProfileHandler)) {
+                continue;
+            }
+            pool = ((SLOProfileHandler) handler.getValue()).getHttpClientPool();
+            if (printed.put(pool, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            out.println("### Back-Channel HTTP Connection Pool Information");
+            out.println("profile_handler: " + handler.getKey());
+            out.println("max_connections_per_host: " + pool.getMaxConnectionsPerHost());
+            out.println("max_total_connections: " + pool.getMaxTotalConnections());
+            out.println("pooled_connections: " + pool.getConnectionsInPool());
+            out.println("leased_connections: " + pool.getLeasedConnections());
+            out.println("leases: " + pool.getLeaseCount());
+            out.println("pool_timeouts: " + pool.getPoolTimeoutCount());
+            out.println("connects: " + pool.getConnectCount());
+            out.println("tls_handshakes: " + pool.getHandshakeCount());
+            out.println("tls_resumed_handshakes: " + pool.getResumedHandshakeCount());
+            out.println();
+        }
+    }
+
+    /**
+     * Prints the state of the queues failed back-channel logouts are retried from. A queue shared by several handlers
+     * is printed once.
+     * 
+     * @param out output writer to which information will be written
+     */
+    protected void printLogoutRetryQueuesInformation(PrintWriter out) {
+        if (profileHandlerManager == null) {
+            return;
+        }
+
+        Map<LogoutRetryQueue, Boolean> printed = new IdentityHashMap<LogoutRetryQueue, Boolean>();
+        LogoutRetryQueue queue;
+        for (Map.Entry<String, AbstractRequestURIMappedProfileHandler> handler : profileHandlerManager
+                .getProfileHandlers().entrySet()) {
+            if (!(handler.getValue() instanceof SLOProfileHandler)) {
+                continue;
+            }
+            queue = ((SLOProfileHandler) handler.getValue()).getLogoutRetryQueue();
+            if (queue == null || printed.put(queue, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            out.println("### Logout Retry Queue Information");
+            out.println("profile_handler: " + handler.getKey());
+            out.println("pending_logouts: " + queue.getPendingCount());
+            out.println("open_circuits: " + queue.getOpenCircuitCount());
+            out.println("delivered_logouts: " + queue.getDeliveredCount());
+            out.println("failed_attempts: " + queue.getFailedAttemptCount());
+            out.println("dropped_logouts: " + queue.getDroppedCount());
+            out.println();
+        }
+    }
+
     /**
      * Prints information about relying party configurations. If the given relying party is null then the configuration
      * for all relying parties is printed. If the relying party ID is not null then the relying party configurations for
@@ -18,8 +18,6 @@
 package edu.internet2.middleware.shibboleth.idp.authn;
 
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -44,19 +42,21 @@ import javax.servlet.http.HttpServletResponse;
 import org.joda.time.DateTime;
 import org.opensaml.saml2.core.AuthnContext;
 import org.opensaml.util.storage.StorageService;
-import org.opensaml.ws.transport.http.HTTPTransportUtils;
-import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.PreviousSessionLoginHandler;
 import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
 import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
 import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.SessionCookieCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AbstractSessionManager;
 import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ClientSessionManager;
 import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
@@ -75,6 +75,12 @@ public class AuthenticationEngine extends HttpServlet {
      */
     public static final String RETAIN_PRIVATE_CREDENTIALS = "retainSubjectsPrivateCredentials";
 
+    /**
+     * Name of the Servlet config init parameter that indicates whether profile handlers may complete requests based on
+     * an existing IdP session themselves, without passing through the authentication engine.
+     */
+    public static final String IN_PROCESS_PREVIOUS_SESSION = "inProcessPreviousSession";
+
     /** Name of the Servlet config init parameter that holds the partition name for login contexts. */
     public static final String LOGIN_CONTEXT_PARTITION_NAME_INIT_PARAM_NAME = "loginContextPartitionName";
 
@@ -99,6 +105,9 @@ public class AuthenticationEngine extends HttpServlet {
     /** Storage service used to store {@link LoginContext}s while authentication is in progress. */
     private static StorageService<String, LoginContextEntry> storageService;
 
+    /** Engine used by profile handlers to complete requests based on an existing IdP session, null if disabled. */
+    private static AuthenticationEngine inProcessEngine;
+
     /** Whether the public credentials of a {@link Subject} are retained after authentication. */
     private boolean retainSubjectsPublicCredentials;
 
@@ -132,6 +141,41 @@ public class AuthenticationEngine extends HttpServlet {
         handlerManager = HttpServletHelper.getProfileHandlerManager(context);
         sessionManager = HttpServletHelper.getSessionManager(context);
         storageService = (StorageService<String, LoginContextEntry>) HttpServletHelper.getStorageService(context);
+
+        String inProcess = DatatypeHelper.safeTrimOrNullString(config.getInitParameter(IN_PROCESS_PREVIOUS_SESSION));
+        if (inProcess == null || Boolean.parseBoolean(inProcess)) {
+            inProcessEngine = this;
+        } else {
+            inProcessEngine = null;
+        }
+    }
+
+    /**
+     * Authenticates the user of a new login context with their existing IdP session, within the current request. This
+     * applies the same login handler selection as the authentication engine and succeeds only if the previous session
+     * login handler is selected, in which case the session is updated just as if the user had passed through the
+     * engine. Otherwise nothing is done and the profile handler must send the user to the engine as usual.
+     * 
+     * @param loginContext the login context, not yet bound to the request
+     * @param httpRequest current HTTP request
+     * @param httpResponse current HTTP response
+     * 
+     * @return true if the authentication was completed, successfully or not, and the profile handler may respond to
+     *         the relying party, false if the user must be sent to the authentication engine
+     */
+    public static boolean authenticateWithPreviousSession(LoginContext loginContext, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
+        AuthenticationEngine engine = inProcessEngine;
+        if (engine == null || loginContext.isForceAuthRequired()) {
+            return false;
+        }
+
+        Session idpSession = (Session) httpRequest.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE);
+        if (idpSession == null || idpSession.getPrincipalName() == null) {
+            return false;
+        }
+
+        return engine.completeWithPreviousSession(idpSession, loginContext, httpRequest, httpResponse);
     }
 
     /**
@@ -172,6 +216,8 @@ public class AuthenticationEngine extends HttpServlet {
             return;
         }
 
+        HttpServletHelper.updateLoginContext(loginContext, storageService, context, httpRequest, httpResponse);
+
         String profileUrl = HttpServletHelper.getContextRelativeUrl(httpRequest, loginContext.getProfileHandlerURL())
                 .buildURL();
         LOG.debug("Redirecting user to profile handler at {}", profileUrl);
@@ -244,20 +290,10 @@ public class AuthenticationEngine extends HttpServlet {
                 LOG.debug("Existing IdP session available for principal {}", idpSession.getPrincipalName());
             }
 
-            Map<String, LoginHandler> possibleLoginHandlers = determinePossibleLoginHandlers(idpSession, loginContext);
-
-            // Filter out possible candidate login handlers by forced and passive authentication requirements
-            if (loginContext.isForceAuthRequired()) {
-                filterByForceAuthentication(idpSession, loginContext, possibleLoginHandlers);
-            }
-
-            if (loginContext.isPassiveAuthRequired()) {
-                filterByPassiveAuthentication(idpSession, loginContext, possibleLoginHandlers);
-            }
-
-            LoginHandler loginHandler = selectLoginHandler(possibleLoginHandlers, loginContext, idpSession);
+            LoginHandler loginHandler = selectLoginHandler(loginContext, idpSession);
             loginContext.setAuthenticationAttempted();
             loginContext.setAuthenticationEngineURL(HttpHelper.getRequestUriWithoutContext(httpRequest));
+            HttpServletHelper.updateLoginContext(loginContext, storageService, context, httpRequest, httpResponse);
 
             loginHandler.login(httpRequest, httpResponse);
         } catch (AuthenticationException e) {
@@ -266,6 +302,73 @@ public class AuthenticationEngine extends HttpServlet {
         }
     }
 
+    /**
+     * Selects a login handler for a login context and, if the previous session login handler is selected, completes
+     * the authentication as that handler would, without leaving the current request.
+     * 
+     * @param idpSession current IdP session
+     * @param loginContext current login context
+     * @param httpRequest current HTTP request
+     * @param httpResponse current HTTP response
+     * 
+     * @return true if the authentication was completed, false if another login handler is needed
+     */
+    protected boolean completeWithPreviousSession(Session idpSession, LoginContext loginContext,
+            HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        LoginHandler previousSessionHandler = handlerManager.getLoginHandlerIndex().getLoginHandlers().get(
+                AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+        if (previousSessionHandler == null) {
+            return false;
+        }
+
+        LoginHandler loginHandler;
+        try {
+            loginHandler = selectLoginHandler(loginContext, idpSession);
+        } catch (AuthenticationException e) {
+            // leave reporting the failure to the authentication engine
+            return false;
+        }
+
+        // only the stock handler is known to need nothing but the session and to return straight to the engine
+        if (loginHandler != previousSessionHandler || loginHandler.getClass() != PreviousSessionLoginHandler.class) {
+            return false;
+        }
+
+        if (((PreviousSessionLoginHandler) loginHandler).reportPreviousSessionAuthnMethod()) {
+            List<String> requestedMethods = loginContext.getRequestedAuthenticationMethods();
+            if (!requestedMethods.isEmpty() && !requestedMethods.contains(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX)) {
+                return false;
+            }
+            httpRequest.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+        }
+
+        LOG.debug("Authenticating user {} with previous session within the profile handler request",
+                idpSession.getPrincipalName());
+        httpRequest.setAttribute(LoginHandler.PRINCIPAL_NAME_KEY, idpSession.getPrincipalName());
+        loginContext.setAuthenticationAttempted();
+        processAuthenticationResult(loginContext, httpRequest, httpResponse);
+        return true;
+    }
+
+    /**
+     * Selects the login handler for the request from the configured login handlers, filtered by the requested
+     * authentication methods, the user's existing session and the forced and passive authentication requirements.
+     * 
+     * @param loginContext current login context
+     * @param idpSession current user's session, or null if they don't have one
+     * 
+     * @return the login handler to use for this request
+     * 
+     * @throws AuthenticationException thrown if no login handler meets the given requirements
+     */
+    protected LoginHandler selectLoginHandler(LoginContext loginContext, Session idpSession)
+            throws AuthenticationException {
+        LoginHandler loginHandler = handlerManager.getLoginHandlerIndex().selectLoginHandler(loginContext,
+                idpSession);
+        LOG.debug("Authenticating user with login handler of type {}", loginHandler.getClass().getName());
+        return loginHandler;
+    }
+
     /**
      * Determines which configured login handlers will support the requested authentication methods.
      * 
@@ -275,6 +378,8 @@ public class AuthenticationEngine extends HttpServlet {
      * @return login methods that may be used to authenticate the user
      * 
      * @throws AuthenticationException thrown if no login handler meets the given requirements
+     * 
+     * @deprecated login handlers are selected by the {@link LoginHandlerIndex} of the profile handler manager
      */
     protected Map<String, LoginHandler> determinePossibleLoginHandlers(Session idpSession, LoginContext loginContext)
             throws AuthenticationException {
@@ -321,6 +426,8 @@ public class AuthenticationEngine extends HttpServlet {
      * @param supportedLoginHandlers login handlers supported by the authentication engine for this request, never null
      * @param idpSession current IdP session, may be null if no session currently exists
      * @param loginContext current login context, never null
+     * 
+     * @deprecated login handlers are selected by the {@link LoginHandlerIndex} of the profile handler manager
      */
     protected void filterPreviousSessionLoginHandler(Map<String, LoginHandler> supportedLoginHandlers,
             Session idpSession, LoginContext loginContext) {
@@ -379,6 +486,8 @@ public class AuthenticationEngine extends HttpServlet {
      * @param loginHandlers login handlers to filter
      * 
      * @throws ForceAuthenticationException thrown if no handlers remain after filtering
+     * 
+     * @deprecated login handlers are selected by the {@link LoginHandlerIndex} of the profile handler manager
      */
     protected void filterByForceAuthentication(Session idpSession, LoginContext loginContext,
             Map<String, LoginHandler> loginHandlers) throws ForceAuthenticationException {
@@ -421,6 +530,8 @@ public class AuthenticationEngine extends HttpServlet {
      * @param loginHandlers login handlers to filter
      * 
      * @throws PassiveAuthenticationException thrown if no handlers remain after filtering
+     * 
+     * @deprecated login handlers are selected by the {@link LoginHandlerIndex} of the profile handler manager
      */
     protected void filterByPassiveAuthentication(Session idpSession, LoginContext loginContext,
             Map<String, LoginHandler> loginHandlers) throws PassiveAuthenticationException {
@@ -458,6 +569,8 @@ public class AuthenticationEngine extends HttpServlet {
      * @return the login handler to use for this request
      * 
      * @throws AuthenticationException thrown if no handler can be used for this request
+     * 
+     * @deprecated login handlers are selected by the {@link LoginHandlerIndex} of the profile handler manager
      */
     protected LoginHandler selectLoginHandler(Map<String, LoginHandler> possibleLoginHandlers,
             LoginContext loginContext, Session idpSession) throws AuthenticationException {
@@ -512,7 +625,20 @@ public class AuthenticationEngine extends HttpServlet {
     protected void completeAuthentication(LoginContext loginContext, HttpServletRequest httpRequest,
             HttpServletResponse httpResponse) {
         LOG.debug("Completing user authentication process");
+        processAuthenticationResult(loginContext, httpRequest, httpResponse);
+        returnToProfileHandler(httpRequest, httpResponse);
+    }
 
+    /**
+     * Records the result of a login handler in the login context and, if the user was authenticated, in their
+     * Shibboleth session, creating it if needed.
+     * 
+     * @param loginContext current login context
+     * @param httpRequest current HTTP request, carrying the login handler's result
+     * @param httpResponse current HTTP response
+     */
+    protected void processAuthenticationResult(LoginContext loginContext, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
         Session idpSession = (Session) httpRequest.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE);
 
         try {
@@ -536,7 +662,6 @@ public class AuthenticationEngine extends HttpServlet {
             // Check to make sure the login handler did the right thing
             validateSuccessfulAuthentication(loginContext, httpRequest, actualAuthnMethod);
             if(loginContext.getAuthenticationFailure() != null){
-                returnToProfileHandler(httpRequest, httpResponse);
                 return;
             }
 
@@ -564,8 +689,6 @@ public class AuthenticationEngine extends HttpServlet {
             loginContext.setPrincipalAuthenticated(false);
             loginContext.setAuthenticationFailure(e);
         }
-
-        returnToProfileHandler(httpRequest, httpResponse);
     }
 
     /**
@@ -730,6 +853,8 @@ public class AuthenticationEngine extends HttpServlet {
         ServiceInformation serviceInfo = new ServiceInformationImpl(loginContext.getRelyingPartyId(), new DateTime(),
                 authnMethodInfo);
         idpSession.getServicesInformation().put(serviceInfo.getEntityID(), serviceInfo);
+
+        AbstractSessionManager.writeBack(sessionManager, idpSession);
     }
 
     /**
@@ -788,30 +913,21 @@ public class AuthenticationEngine extends HttpServlet {
     protected void addSessionCookie(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
             Session userSession) {
         httpRequest.setAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE, userSession);
+        if (sessionManager instanceof ClientSessionManager) {
+            // the IdP session filter writes the client-side session, once complete, before the response is committed
+            return;
+        }
 
-        byte[] remoteAddress = httpRequest.getRemoteAddr().getBytes();
-        byte[] sessionId = userSession.getSessionID().getBytes();
-
-        String signature = null;
-        try {
-            MessageDigest digester = MessageDigest.getInstance("SHA");
-            digester.update(userSession.getSessionSecret());
-            digester.update(remoteAddress);
-            digester.update(sessionId);
-            signature = Base64.encodeBytes(digester.digest());
-        } catch (GeneralSecurityException e) {
-            LOG.error("Unable to compute signature over session cookie material", e);
+        String cookieValue = SessionCookieCodec.encode(httpRequest.getRemoteAddr(), userSession.getSessionID(),
+                userSession.getSessionSecret());
+        if (cookieValue == null) {
+            return;
         }
 
         LOG.debug("Adding IdP session cookie to HTTP response");
-        StringBuilder cookieValue = new StringBuilder();
-        cookieValue.append(Base64.encodeBytes(remoteAddress, Base64.DONT_BREAK_LINES)).append("|");
-        cookieValue.append(Base64.encodeBytes(sessionId, Base64.DONT_BREAK_LINES)).append("|");
-        cookieValue.append(signature);
-
         String cookieDomain = HttpServletHelper.getCookieDomain(context);
 
-        Cookie sessionCookie = new Cookie(IDP_SESSION_COOKIE_NAME, HTTPTransportUtils.urlEncode(cookieValue.toString()));
+        Cookie sessionCookie = new Cookie(IDP_SESSION_COOKIE_NAME, cookieValue);
         sessionCookie.setVersion(1);
         if (cookieDomain != null) {
             sessionCookie.setDomain(cookieDomain);
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.AbstractExpiringObject;
+
+/**
+ * Storage service entry recording that a login context token has been used. The entry only needs to live as long as
+ * the token could still be accepted.
+ */
+public class ConsumedLoginContextEntry extends AbstractExpiringObject {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -6208914316350471153L;
+
+    /** Nonce of the consumed token. */
+    private String nonce;
+
+    /**
+     * Constructor.
+     * 
+     * @param tokenNonce nonce of the consumed token
+     * @param lifetime lifetime, in milliseconds, of the entry
+     */
+    public ConsumedLoginContextEntry(String tokenNonce, long lifetime) {
+        super(new DateTime().plus(lifetime));
+        nonce = tokenNonce;
+    }
+
+    /**
+     * Gets the nonce of the consumed token.
+     * 
+     * @return nonce of the consumed token
+     */
+    public String getNonce() {
+        return nonce;
+    }
+}
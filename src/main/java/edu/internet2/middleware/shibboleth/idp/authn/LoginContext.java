@@ -245,6 +245,15 @@ public class LoginContext implements Serializable {
         return propsMap.get(key);
     }
 
+    /**
+     * Gets the optional property objects.
+     * 
+     * @return the properties Map
+     */
+    synchronized Map<String, Serializable> getProperties() {
+        return propsMap;
+    }
+
     /**
      * Gets the entity ID of the relying party.
      * 
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/**
+ * Codec of {@link LoginContext}s. Also provides the encoding of the properties common to all login contexts, which the
+ * codecs of its subclasses write after their own.
+ */
+public class LoginContextCodec implements BinaryCodec<LoginContext> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** Flag set if forced authentication is required. */
+    private static final int FORCE_AUTHN = 0x01;
+
+    /** Flag set if passive authentication is required. */
+    private static final int PASSIVE_AUTHN = 0x02;
+
+    /** Flag set if authentication has been attempted. */
+    private static final int AUTHN_ATTEMPTED = 0x04;
+
+    /** Flag set if the principal has been authenticated. */
+    private static final int PRINCIPAL_AUTHENTICATED = 0x08;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(LoginContext value, BinaryOutput out) throws IOException {
+        encodeLoginContext(value, out);
+    }
+
+    /** {@inheritDoc} */
+    public LoginContext decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported login context encoding version " + version);
+        }
+
+        LoginContext loginContext = new LoginContext();
+        decodeLoginContext(loginContext, in);
+        return loginContext;
+    }
+
+    /**
+     * Encodes the properties common to all login contexts.
+     * 
+     * @param value the login context
+     * @param out output to which the properties are written
+     * 
+     * @throws IOException thrown if one of the properties can not be encoded
+     */
+    static void encodeLoginContext(LoginContext value, BinaryOutput out) throws IOException {
+        int flags = 0;
+        if (value.isForceAuthRequired()) {
+            flags |= FORCE_AUTHN;
+        }
+        if (value.isPassiveAuthRequired()) {
+            flags |= PASSIVE_AUTHN;
+        }
+        if (value.getAuthenticationAttempted()) {
+            flags |= AUTHN_ATTEMPTED;
+        }
+        if (value.isPrincipalAuthenticated()) {
+            flags |= PRINCIPAL_AUTHENTICATED;
+        }
+        out.writeByte(flags);
+
+        out.writeInternedString(value.getRelyingPartyId());
+        out.writeInternedString(value.getProfileHandlerURL());
+        out.writeInternedString(value.getAuthenticationEngineURL());
+        out.writeInternedString(value.getAttemptedAuthnMethod());
+        out.writeInternedString(value.getDefaultAuthenticationMethod());
+        out.writeString(value.getSessionID());
+
+        List<String> requestedMethods = value.getRequestedAuthenticationMethods();
+        out.writeVarInt(requestedMethods.size());
+        for (String method : requestedMethods) {
+            out.writeInternedString(method);
+        }
+
+        AuthenticationMethodInformation methodInformation = value.getAuthenticationMethodInformation();
+        out.writeBoolean(methodInformation != null);
+        if (methodInformation != null) {
+            AuthenticationMethodInformationCodec.encode(methodInformation, null, out);
+        }
+
+        out.writeObject(value.getAuthenticationFailure());
+
+        Map<String, Serializable> properties = new HashMap<String, Serializable>(value.getProperties());
+        out.writeVarInt(properties.size());
+        for (Map.Entry<String, Serializable> property : properties.entrySet()) {
+            out.writeString(property.getKey());
+            out.writeObject(property.getValue());
+        }
+    }
+
+    /**
+     * Decodes the properties common to all login contexts.
+     * 
+     * @param value the login context whose properties are set
+     * @param in input from which the properties are read
+     * 
+     * @throws IOException thrown if the properties are malformed
+     */
+    static void decodeLoginContext(LoginContext value, BinaryInput in) throws IOException {
+        int flags = in.readByte();
+        value.setForceAuthRequired((flags & FORCE_AUTHN) != 0);
+        value.setPassiveAuthRequired((flags & PASSIVE_AUTHN) != 0);
+        if ((flags & AUTHN_ATTEMPTED) != 0) {
+            value.setAuthenticationAttempted();
+        }
+        value.setPrincipalAuthenticated((flags & PRINCIPAL_AUTHENTICATED) != 0);
+
+        value.setRelyingParty(in.readInternedString());
+        value.setProfileHandlerURL(in.readInternedString());
+        value.setAuthenticationEngineURL(in.readInternedString());
+        value.setAttemptedAuthnMethod(in.readInternedString());
+        value.setDefaultAuthenticationMethod(in.readInternedString());
+        value.setSessionID(in.readString());
+
+        List<String> requestedMethods = value.getRequestedAuthenticationMethods();
+        requestedMethods.clear();
+        int methodCount = in.readCount();
+        for (int i = 0; i < methodCount; i++) {
+            requestedMethods.add(in.readInternedString());
+        }
+
+        if (in.readBoolean()) {
+            value.setAuthenticationMethodInformation(AuthenticationMethodInformationCodec.decode(in, null));
+        }
+
+        Object failure = in.readObject();
+        if (failure != null && !(failure instanceof AuthenticationException)) {
+            throw new StreamCorruptedException("Login context failure is not an AuthenticationException");
+        }
+        value.setAuthenticationFailure((AuthenticationException) failure);
+
+        int propertyCount = in.readCount();
+        String key;
+        Object property;
+        for (int i = 0; i < propertyCount; i++) {
+            key = in.readString();
+            property = in.readObject();
+            if (key == null || !(property instanceof Serializable)) {
+                throw new StreamCorruptedException("Malformed login context property");
+            }
+            value.setProperty(key, (Serializable) property);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/** Codec of {@link LoginContextEntry}s. */
+public class LoginContextEntryCodec implements BinaryCodec<LoginContextEntry> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(LoginContextEntry value, BinaryOutput out) throws IOException {
+        out.writeVarLong(value.getExpirationTime().getMillis());
+        out.writeObject(value.getLoginContext());
+    }
+
+    /** {@inheritDoc} */
+    public LoginContextEntry decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported login context entry encoding version " + version);
+        }
+
+        long expiration = in.readVarLong();
+        Object loginContext = in.readObject();
+        if (!(loginContext instanceof LoginContext)) {
+            throw new StreamCorruptedException("Login context entry does not hold a login context");
+        }
+        return new LoginContextEntry((LoginContext) loginContext, expiration - System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.ssl.util.Hex;
+import org.opensaml.util.storage.StorageService;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.DefaultBinaryCodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.util.PerThreadRandomSource;
+
+/**
+ * Codec of self-contained login context tokens, which carry a {@link LoginContext} in the login context cookie instead
+ * of a key to the context in a storage service, so that a login needs no server-side state.
+ *
+ * The login context is encoded with the binary storage codecs, compressed, encrypted with AES-CBC and authenticated
+ * with HMAC-SHA256 (encrypt-then-MAC). Keys are derived from a single, Base64 encoded, secret which must be shared by
+ * all IdP nodes. Each token carries the expiration instant and a random nonce of the login it belongs to, along with
+ * the address of the client which started the login; all are kept when the token is re-issued for a changed login
+ * context. A token is only accepted from the client address it was issued to.
+ *
+ * A token is consumed when its login context is unbound at the end of the login, after which its nonce is recorded in
+ * a storage service until the token expires, so that a token can not be replayed to complete a login again. That only
+ * holds across IdP nodes if they share the storage service. With node-local storage a consumed token may still be
+ * replayed on another node, from the same client address, until it expires; the default lifetime of a token is kept
+ * short to bound that window.
+ */
+public class LoginContextTokenCodec {
+
+    /** Version of the token format. */
+    public static final byte TOKEN_VERSION = 2;
+
+    /** Prefix of token values, which tells them apart from storage service keys. */
+    public static final String TOKEN_PREFIX = "_";
+
+    /** Default lifetime, in milliseconds, of a login context token: {@value} . */
+    public static final long DEFAULT_LIFETIME = 600000;
+
+    /** Default storage service partition holding the nonces of consumed tokens. */
+    public static final String DEFAULT_NONCE_PARTITION = "consumedLoginContext";
+
+    /** Size, in bytes, of the AES initialization vector. */
+    private static final int IV_SIZE = 16;
+
+    /** Size, in bytes, of the HMAC-SHA256 tag. */
+    private static final int MAC_SIZE = 32;
+
+    /** Size, in bytes, of a nonce. */
+    private static final int NONCE_SIZE = 16;
+
+    /** Largest accepted size, in bytes, of a decompressed token. */
+    private static final int MAX_TOKEN_SIZE = 65536;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LoginContextTokenCodec.class);
+
+    /** Storage service holding the nonces of consumed tokens. */
+    private StorageService<String, ConsumedLoginContextEntry> nonceStorage;
+
+    /** Partition in which the nonces of consumed tokens are stored. */
+    private String noncePartition;
+
+    /** Lifetime, in milliseconds, of a login context. */
+    private long lifetime;
+
+    /** Largest size, in characters, of a token value; larger login contexts are kept in the storage service. */
+    private int maxTokenLength;
+
+    /** Registry of the codecs used to encode login contexts. */
+    private BinaryCodecRegistry codecRegistry;
+
+    /** Source of initialization vectors and nonces. */
+    private PerThreadRandomSource randomSource;
+
+    /** Key used to encrypt tokens. */
+    private SecretKeySpec encryptionKey;
+
+    /** Key used to authenticate encrypted tokens. */
+    private SecretKeySpec macKey;
+
+    /**
+     * Constructor.
+     * 
+     * @param storageService service used to store the nonces of consumed tokens
+     * @param tokenKey Base64 encoded secret, at least 16 bytes long, from which token keys are derived
+     */
+    public LoginContextTokenCodec(StorageService<String, ConsumedLoginContextEntry> storageService, String tokenKey) {
+        if (storageService == null) {
+            throw new IllegalArgumentException("Nonce storage service may not be null");
+        }
+        nonceStorage = storageService;
+        noncePartition = DEFAULT_NONCE_PARTITION;
+        lifetime = DEFAULT_LIFETIME;
+        maxTokenLength = 3800;
+        codecRegistry = new DefaultBinaryCodecRegistry();
+        randomSource = new PerThreadRandomSource();
+
+        byte[] secret = null;
+        if (!DatatypeHelper.isEmpty(tokenKey)) {
+            secret = Base64.decode(DatatypeHelper.safeTrim(tokenKey));
+        }
+        if (secret == null || secret.length < 16) {
+            throw new IllegalArgumentException("Token key must be a Base64 encoded value of at least 16 bytes");
+        }
+
+        try {
+            // derived with different labels than the session cookie keys, so that the same secret may be used for both
+            MessageDigest digester = MessageDigest.getInstance("SHA-256");
+            digester.update(secret);
+            digester.update((byte) 3);
+            encryptionKey = new SecretKeySpec(digester.digest(), 0, 16, "AES");
+            digester.update(secret);
+            digester.update((byte) 4);
+            macKey = new SecretKeySpec(digester.digest(), "HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Unable to derive token keys", e);
+        }
+    }
+
+    /**
+     * Gets the partition in which the nonces of consumed tokens are stored.
+     * 
+     * @return partition in which the nonces of consumed tokens are stored
+     */
+    public String getNoncePartition() {
+        return noncePartition;
+    }
+
+    /**
+     * Sets the partition in which the nonces of consumed tokens are stored.
+     * 
+     * @param partition partition in which the nonces of consumed tokens are stored
+     */
+    public void setNoncePartition(String partition) {
+        noncePartition = partition;
+    }
+
+    /**
+     * Gets the lifetime of a login context.
+     * 
+     * @return lifetime, in milliseconds, of a login context
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Sets the lifetime of a login context. This is also the time during which a consumed token may be replayed on an
+     * IdP node which does not share the storage service of the node that consumed it.
+     * 
+     * @param contextLifetime lifetime, in milliseconds, of a login context
+     */
+    public void setLifetime(long contextLifetime) {
+        if (contextLifetime <= 0) {
+            throw new IllegalArgumentException("Login context lifetime must be greater than 0");
+        }
+        lifetime = contextLifetime;
+    }
+
+    /**
+     * Gets the largest size of a token value. Login contexts whose token would be larger, typically because of a large
+     * authentication request, are kept in the storage service instead.
+     * 
+     * @return largest size, in characters, of a token value
+     */
+    public int getMaxTokenLength() {
+        return maxTokenLength;
+    }
+
+    /**
+     * Sets the largest size of a token value.
+     * 
+     * @param length largest size, in characters, of a token value
+     */
+    public void setMaxTokenLength(int length) {
+        maxTokenLength = length;
+    }
+
+    /**
+     * Gets the registry of the codecs used to encode login contexts.
+     * 
+     * @return registry of the codecs used to encode login contexts
+     */
+    public BinaryCodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry of the codecs used to encode login contexts.
+     * 
+     * @param registry registry of the codecs used to encode login contexts
+     */
+    public void setCodecRegistry(BinaryCodecRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("Codec registry may not be null");
+        }
+        codecRegistry = registry;
+    }
+
+    /**
+     * Sets the source of initialization vectors and nonces.
+     * 
+     * @param source source of initialization vectors and nonces
+     */
+    public void setRandomSource(PerThreadRandomSource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Random source may not be null");
+        }
+        randomSource = source;
+    }
+
+    /**
+     * Creates the token of a new login.
+     * 
+     * @param loginContext the login context of the login
+     * @param clientAddress address of the client which started the login
+     * 
+     * @return the token
+     */
+    public Token newToken(LoginContext loginContext, String clientAddress) {
+        if (clientAddress == null) {
+            throw new IllegalArgumentException("Client address may not be null");
+        }
+        return new Token(Hex.encode(randomSource.nextBytes(NONCE_SIZE)), System.currentTimeMillis() + lifetime,
+                clientAddress, loginContext);
+    }
+
+    /**
+     * Checks whether a login context cookie value is a token rather than a storage service key.
+     * 
+     * @param value the cookie value
+     * 
+     * @return true if the value is a token
+     */
+    public boolean isToken(String value) {
+        return value != null && value.startsWith(TOKEN_PREFIX);
+    }
+
+    /**
+     * Encodes, compresses, encrypts and authenticates a token, with the current state of its login context.
+     * 
+     * @param token the token
+     * 
+     * @return the token value or null if the token is too large or could not be encrypted
+     */
+    public String encode(Token token) {
+        try {
+            BinaryOutput plainText = new BinaryOutput(codecRegistry);
+            plainText.writeString(token.getNonce());
+            plainText.writeVarLong(token.getExpiration());
+            plainText.writeString(token.getClientAddress());
+            plainText.writeObject(token.getLoginContext());
+            byte[] compressed = deflate(plainText.toByteArray());
+
+            byte[] iv = randomSource.nextBytes(IV_SIZE);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            int cipherTextSize = cipher.getOutputSize(compressed.length);
+
+            byte[] value = new byte[1 + IV_SIZE + cipherTextSize + MAC_SIZE];
+            value[0] = TOKEN_VERSION;
+            System.arraycopy(iv, 0, value, 1, IV_SIZE);
+            cipherTextSize = cipher.doFinal(compressed, 0, compressed.length, value, 1 + IV_SIZE);
+
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(value, 0, 1 + IV_SIZE + cipherTextSize);
+            mac.doFinal(value, 1 + IV_SIZE + cipherTextSize);
+
+            String tokenValue = TOKEN_PREFIX
+                    + HTTPTransportUtils.urlEncode(Base64.encodeBytes(value, Base64.DONT_BREAK_LINES));
+            if (tokenValue.length() > maxTokenLength) {
+                log.debug("Login context token of {} characters exceeds the maximum of {}", tokenValue.length(),
+                        maxTokenLength);
+                return null;
+            }
+            return tokenValue;
+        } catch (IOException e) {
+            log.error("Unable to encode login context", e);
+        } catch (GeneralSecurityException e) {
+            log.error("Unable to encrypt login context token", e);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a token value. The token is only returned if it is authentic, was issued to the given client address, has
+     * not expired and has not been consumed.
+     * 
+     * @param tokenValue the token value
+     * @param clientAddress address of the client which presented the token
+     * 
+     * @return the token or null
+     */
+    public Token decode(String tokenValue, String clientAddress) {
+        if (!isToken(tokenValue)) {
+            return null;
+        }
+
+        byte[] value = Base64.decode(HTTPTransportUtils.urlDecode(tokenValue.substring(TOKEN_PREFIX.length())));
+        if (value == null || value.length < 1 + IV_SIZE + 16 + MAC_SIZE || value[0] != TOKEN_VERSION) {
+            log.warn("Login context token has an improperly formated value");
+            return null;
+        }
+
+        try {
+            int macOffset = value.length - MAC_SIZE;
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(value, 0, macOffset);
+            byte[] expectedMac = mac.doFinal();
+            byte[] tokenMac = new byte[MAC_SIZE];
+            System.arraycopy(value, macOffset, tokenMac, 0, MAC_SIZE);
+            if (!MessageDigest.isEqual(expectedMac, tokenMac)) {
+                log.error("Login context token has been tampered with, its signature no longer matches expected value");
+                return null;
+            }
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(value, 1, IV_SIZE));
+            byte[] plainText = inflate(cipher.doFinal(value, 1 + IV_SIZE, macOffset - 1 - IV_SIZE));
+
+            BinaryInput in = new BinaryInput(codecRegistry, plainText, 0, plainText.length);
+            String nonce = in.readString();
+            long expiration = in.readVarLong();
+            String issuedAddress = in.readString();
+            Object loginContext = in.readObject();
+            if (nonce == null || issuedAddress == null || !(loginContext instanceof LoginContext)) {
+                log.warn("Login context token does not hold a login context");
+                return null;
+            }
+            if (expiration <= System.currentTimeMillis()) {
+                log.debug("Login context token has expired");
+                return null;
+            }
+            if (!issuedAddress.equals(clientAddress)) {
+                log.warn("Login context token {} was issued to client {} but presented by client {}",
+                        new Object[] { nonce, issuedAddress, clientAddress, });
+                return null;
+            }
+            if (isConsumed(nonce)) {
+                log.warn("Login context token {} has already been used", nonce);
+                return null;
+            }
+            return new Token(nonce, expiration, issuedAddress, (LoginContext) loginContext);
+        } catch (GeneralSecurityException e) {
+            log.error("Unable to decrypt login context token", e);
+        } catch (DataFormatException e) {
+            log.error("Unable to decompress login context token", e);
+        } catch (IOException e) {
+            log.error("Unable to read login context token", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Consumes a token, so that it can not be used again.
+     * 
+     * @param token the token
+     * 
+     * @return true if the token was consumed, false if it had already been consumed
+     */
+    public boolean consume(Token token) {
+        long remaining = token.getExpiration() - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        ConsumedLoginContextEntry entry = new ConsumedLoginContextEntry(token.getNonce(), remaining);
+        ConsumedLoginContextEntry previous = nonceStorage.put(noncePartition, token.getNonce(), entry);
+        return previous == null || previous.isExpired();
+    }
+
+    /**
+     * Checks whether the token with the given nonce has been consumed.
+     * 
+     * @param nonce nonce of the token
+     * 
+     * @return true if the token has been consumed
+     */
+    private boolean isConsumed(String nonce) {
+        ConsumedLoginContextEntry entry = nonceStorage.get(noncePartition, nonce);
+        return entry != null && !entry.isExpired();
+    }
+
+    /**
+     * Compresses data.
+     * 
+     * @param data data to compress
+     * 
+     * @return the compressed data
+     */
+    private byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses data, refusing data which would decompress to more than {@value #MAX_TOKEN_SIZE} bytes.
+     * 
+     * @param data data to decompress
+     * 
+     * @return the decompressed data
+     * 
+     * @throws DataFormatException thrown if the data is not valid compressed data or is too large
+     */
+    private byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[512];
+            int read;
+            while (!inflater.finished()) {
+                read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // raw inflate may need one byte beyond the input to detect the end of the data
+                    break;
+                }
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_TOKEN_SIZE) {
+                    throw new DataFormatException("Decompressed token exceeds " + MAX_TOKEN_SIZE + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** A login context along with the nonce, expiration instant and client address of the login it belongs to. */
+    public static class Token {
+
+        /** Nonce of the login. */
+        private final String nonce;
+
+        /** Expiration instant, in milliseconds since the epoch, of the login. */
+        private final long expiration;
+
+        /** Address of the client which started the login. */
+        private final String clientAddress;
+
+        /** The login context. */
+        private final LoginContext loginContext;
+
+        /**
+         * Constructor.
+         * 
+         * @param loginNonce nonce of the login
+         * @param loginExpiration expiration instant, in milliseconds since the epoch, of the login
+         * @param address address of the client which started the login
+         * @param context the login context
+         */
+        public Token(String loginNonce, long loginExpiration, String address, LoginContext context) {
+            nonce = loginNonce;
+            expiration = loginExpiration;
+            clientAddress = address;
+            loginContext = context;
+        }
+
+        /**
+         * Gets the nonce of the login.
+         * 
+         * @return nonce of the login
+         */
+        public String getNonce() {
+            return nonce;
+        }
+
+        /**
+         * Gets the expiration instant of the login.
+         * 
+         * @return expiration instant, in milliseconds since the epoch, of the login
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Gets the address of the client which started the login.
+         * 
+         * @return address of the client which started the login
+         */
+        public String getClientAddress() {
+            return clientAddress;
+        }
+
+        /**
+         * Gets the login context.
+         * 
+         * @return the login context
+         */
+        public LoginContext getLoginContext() {
+            return loginContext;
+        }
+    }
+}
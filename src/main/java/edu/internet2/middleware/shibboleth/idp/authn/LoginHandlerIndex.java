@@ -0,0 +1,265 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.opensaml.saml2.core.AuthnContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/**
+ * Immutable index of the configured {@link LoginHandler}s that selects the login handler for a login context.
+ *
+ * Each configured authentication method is given a bit, in configuration order, and the properties of the login
+ * handlers are precomputed as bit masks, so that the filtering by requested methods, existing session, forced and
+ * passive authentication is done by masking rather than by copying and pruning a map of login handlers. Selection is
+ * deterministic: when no previous session or default method applies, the first configured method that remains is
+ * used.
+ */
+public class LoginHandlerIndex {
+
+    /** Largest number of authentication methods that may be indexed. */
+    public static final int MAX_METHODS = 64;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LoginHandlerIndex.class);
+
+    /** Login handlers, by authentication method, in configuration order. */
+    private final Map<String, LoginHandler> loginHandlers;
+
+    /** Bit of each authentication method. */
+    private final Map<String, Integer> methodBits;
+
+    /** Authentication methods, indexed by bit. */
+    private final String[] methods;
+
+    /** Login handlers, indexed by bit. */
+    private final LoginHandler[] handlers;
+
+    /** Bits of all the methods of the login handler of each method, indexed by bit. */
+    private final long[] handlerMasks;
+
+    /** Bits of all methods. */
+    private final long allMask;
+
+    /** Bits of the methods whose login handler supports passive authentication. */
+    private final long passiveMask;
+
+    /** Bits of the methods whose login handler supports forced authentication. */
+    private final long forceMask;
+
+    /** Bit of the previous session method, or 0 if there is no previous session login handler. */
+    private final long previousSessionBit;
+
+    /**
+     * Constructor.
+     *
+     * @param configuredHandlers login handlers by authentication method, iterated in configuration order
+     */
+    public LoginHandlerIndex(Map<String, LoginHandler> configuredHandlers) {
+        if (configuredHandlers.size() > MAX_METHODS) {
+            throw new IllegalArgumentException("At most " + MAX_METHODS + " authentication methods may be configured");
+        }
+
+        loginHandlers = Collections.unmodifiableMap(new LinkedHashMap<String, LoginHandler>(configuredHandlers));
+        methodBits = new HashMap<String, Integer>();
+        methods = new String[loginHandlers.size()];
+        handlers = new LoginHandler[loginHandlers.size()];
+
+        int bit = 0;
+        for (Entry<String, LoginHandler> entry : loginHandlers.entrySet()) {
+            methodBits.put(entry.getKey(), bit);
+            methods[bit] = entry.getKey();
+            handlers[bit] = entry.getValue();
+            bit++;
+        }
+
+        handlerMasks = new long[methods.length];
+        long all = 0;
+        long passive = 0;
+        long force = 0;
+        for (bit = 0; bit < methods.length; bit++) {
+            all |= 1L << bit;
+            if (handlers[bit].supportsPassive()) {
+                passive |= 1L << bit;
+            }
+            if (handlers[bit].supportsForceAuthentication()) {
+                force |= 1L << bit;
+            }
+            handlerMasks[bit] = getMask(handlers[bit].getSupportedAuthenticationMethods());
+        }
+        allMask = all;
+        passiveMask = passive;
+        forceMask = force;
+        previousSessionBit = getBit(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+    }
+
+    /**
+     * Gets the indexed login handlers.
+     *
+     * @return unmodifiable map of login handlers, by authentication method, in configuration order
+     */
+    public Map<String, LoginHandler> getLoginHandlers() {
+        return loginHandlers;
+    }
+
+    /**
+     * Selects the login handler to use for a login context. If the previous session login handler is selected because
+     * one of the session's active authentication methods is acceptable, that method is recorded in the login context.
+     * Otherwise the method the handler was selected for is recorded as the attempted method.
+     *
+     * Expired authentication methods are removed from the session.
+     *
+     * @param loginContext current login context
+     * @param idpSession current IdP session, may be null
+     *
+     * @return the login handler to use
+     *
+     * @throws AuthenticationException thrown if no login handler provides a requested authentication method
+     * @throws ForceAuthenticationException thrown if forced authentication is required but no login handler remains to
+     *             perform it
+     * @throws PassiveAuthenticationException thrown if passive authentication is required but no login handler remains
+     *             to perform it
+     */
+    public LoginHandler selectLoginHandler(LoginContext loginContext, Session idpSession)
+            throws AuthenticationException {
+        List<String> requestedMethods = loginContext.getRequestedAuthenticationMethods();
+        boolean anyMethod = requestedMethods == null || requestedMethods.isEmpty();
+
+        long candidates = allMask;
+        if (!anyMethod) {
+            candidates = previousSessionBit | getMask(requestedMethods);
+        }
+
+        // the previous session may be used if an active method of the session, if any, is acceptable
+        long activeMask = 0;
+        boolean previousSession = false;
+        if (idpSession != null) {
+            AuthenticationMethodInformation info;
+            Iterator<AuthenticationMethodInformation> methodItr =
+                    idpSession.getAuthenticationMethods().values().iterator();
+            while (methodItr.hasNext()) {
+                info = methodItr.next();
+                if (info.isExpired()) {
+                    methodItr.remove();
+                    continue;
+                }
+                activeMask |= getBit(info.getAuthenticationMethod());
+                if (anyMethod || requestedMethods.contains(info.getAuthenticationMethod())) {
+                    previousSession = true;
+                }
+            }
+        }
+        if (!previousSession) {
+            candidates &= ~previousSessionBit;
+        }
+
+        if (candidates == 0) {
+            log.warn("No authentication method, requested by the service provider, is supported");
+            throw new AuthenticationException(
+                    "No authentication method, requested by the service provider, is supported");
+        }
+
+        if (loginContext.isForceAuthRequired()) {
+            candidates &= ~previousSessionBit;
+            // remove every method of the login handlers of active methods that can not force re-authentication
+            long pending = activeMask & ~forceMask;
+            int bit;
+            while ((pending &= candidates) != 0) {
+                bit = Long.numberOfTrailingZeros(pending);
+                candidates &= ~handlerMasks[bit];
+                pending &= pending - 1;
+            }
+            if (candidates == 0) {
+                log.info("Force authentication requested but no login handlers available to support it");
+                throw new ForceAuthenticationException();
+            }
+        }
+
+        if (loginContext.isPassiveAuthRequired()) {
+            if (idpSession == null) {
+                candidates &= ~previousSessionBit;
+            }
+            candidates &= passiveMask;
+            if (candidates == 0) {
+                log.warn("Passive authentication required but no login handlers available to support it");
+                throw new PassiveAuthenticationException();
+            }
+        }
+
+        if (idpSession != null && (candidates & previousSessionBit) != 0) {
+            for (AuthenticationMethodInformation authnMethod : idpSession.getAuthenticationMethods().values()) {
+                if (!authnMethod.isExpired()
+                        && (anyMethod || requestedMethods.contains(authnMethod.getAuthenticationMethod()))) {
+                    log.debug("Basing previous session authentication on active authentication method {}",
+                            authnMethod.getAuthenticationMethod());
+                    loginContext.setAttemptedAuthnMethod(authnMethod.getAuthenticationMethod());
+                    loginContext.setAuthenticationMethodInformation(authnMethod);
+                    return handlers[Long.numberOfTrailingZeros(previousSessionBit)];
+                }
+            }
+        }
+
+        int selected;
+        long defaultBit = getBit(loginContext.getDefaultAuthenticationMethod());
+        if ((candidates & defaultBit) != 0) {
+            selected = Long.numberOfTrailingZeros(defaultBit);
+        } else {
+            selected = Long.numberOfTrailingZeros(candidates);
+        }
+        loginContext.setAttemptedAuthnMethod(methods[selected]);
+        return handlers[selected];
+    }
+
+    /**
+     * Gets the bit of an authentication method.
+     *
+     * @param method the authentication method, may be null
+     *
+     * @return the bit of the method, or 0 if it has no login handler
+     */
+    private long getBit(String method) {
+        Integer bit = method == null ? null : methodBits.get(method);
+        return bit == null ? 0 : 1L << bit;
+    }
+
+    /**
+     * Gets the bits of authentication methods.
+     *
+     * @param authnMethods the authentication methods
+     *
+     * @return the bits of the methods that have a login handler
+     */
+    private long getMask(List<String> authnMethods) {
+        long mask = 0;
+        for (int i = 0; i < authnMethods.size(); i++) {
+            mask |= getBit(authnMethods.get(i));
+        }
+        return mask;
+    }
+}
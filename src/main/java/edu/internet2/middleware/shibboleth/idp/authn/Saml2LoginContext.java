@@ -17,6 +17,8 @@
 
 package edu.internet2.middleware.shibboleth.idp.authn;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -72,7 +74,8 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
      * @param state relay state from incoming authentication request
      * @param request SAML 2.0 Authentication Request
      * 
-     * @throws MarshallingException thrown if the given request can not be marshalled and serialized into a string
+     * @throws MarshallingException not thrown, as the request is only serialized once its serialized form is needed;
+     *             kept so that existing callers still compile
      */
     public Saml2LoginContext(String relyingParty, String state, AuthnRequest request) throws MarshallingException {
         super();
@@ -84,13 +87,39 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
         setRelyingParty(relyingParty);
         relayState = state;
         authnRequest = request;
-        serialAuthnRequest = serializeRequest(request);
 
         setForceAuthRequired(request.isForceAuthn());
         setPassiveAuthRequired(request.isPassive());
         getRequestedAuthenticationMethods().addAll(extractRequestedAuthenticationMethods(request));
     }
 
+    /**
+     * Creates a new instance of Saml2LoginContext from the serialized form of its authentication request, used when a
+     * stored login context is decoded. All other properties are set by the caller.
+     * 
+     * @param state relay state from incoming authentication request
+     * @param serializedRequest serialized SAML 2.0 Authentication Request
+     */
+    Saml2LoginContext(String state, String serializedRequest) {
+        super();
+        relayState = state;
+        serialAuthnRequest = serializedRequest;
+    }
+
+    /**
+     * Creates a new instance of Saml2LoginContext from its authentication request object, used when a stored login
+     * context is decoded. The serialized form of the request is only created if it is asked for. All other properties
+     * are set by the caller.
+     * 
+     * @param state relay state from incoming authentication request
+     * @param request SAML 2.0 Authentication Request
+     */
+    Saml2LoginContext(String state, AuthnRequest request) {
+        super();
+        relayState = state;
+        authnRequest = request;
+    }
+
     /**
      * Gets the authentication request object.
      * 
@@ -121,10 +150,27 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
      * 
      * @throws UnmarshallingException thrown if the serialized form on the authentication request can be unmarshalled
      */
-    public String getAuthenticationRequest() throws UnmarshallingException {
+    public synchronized String getAuthenticationRequest() throws UnmarshallingException {
+        if (serialAuthnRequest == null) {
+            try {
+                serialAuthnRequest = serializeRequest(authnRequest);
+            } catch (MarshallingException e) {
+                throw new UnmarshallingException("Unable to serialize authentication request", e);
+            }
+        }
+
         return serialAuthnRequest;
     }
 
+    /**
+     * Gets the authentication request object if it is available without unmarshalling its serialized form.
+     * 
+     * @return the authentication request object, or null if only its serialized form is available
+     */
+    synchronized AuthnRequest getAvailableAuthenticationRequest() {
+        return authnRequest;
+    }
+
     /**
      * Gets the relay state from the originating authentication request.
      * 
@@ -169,6 +215,22 @@ public class Saml2LoginContext extends LoginContext implements Serializable {
         return writer.toString();
     }
 
+    /**
+     * Makes sure the serialized form of the authentication request exists before this context is serialized.
+     * 
+     * @param out stream to which this context is serialized
+     * 
+     * @throws IOException thrown if the authentication request can not be serialized
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        try {
+            getAuthenticationRequest();
+        } catch (UnmarshallingException e) {
+            throw new IOException("Unable to serialize authentication request: " + e.getMessage());
+        }
+        out.defaultWriteObject();
+    }
+
     /**
      * Extracts the authentication methods requested within the request.
      * 
@@ -0,0 +1,441 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
+import org.opensaml.saml2.core.AuthnContextDeclRef;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.NameIDPolicy;
+import org.opensaml.saml2.core.NameIDType;
+import org.opensaml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.schema.XSBooleanValue;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/**
+ * Codec of {@link Saml2LoginContext}s.
+ *
+ * The authentication request is written as just the fields the SSO profile handler uses (ID, issuer, assertion consumer
+ * service, name ID policy, requested authentication context, ForceAuthn and IsPassive, subject name ID) and is rebuilt
+ * from them when decoded, so it is never parsed again. A request with content that can not be written this way, such
+ * as extensions, scoping or conditions, is written in its serialized form instead and is only parsed again if it is
+ * asked for. Version 1 encodings, which always held the serialized form, are still decoded.
+ */
+public class Saml2LoginContextCodec implements BinaryCodec<Saml2LoginContext> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 2;
+
+    /** Version of the encoding holding the serialized authentication request only. */
+    private static final int SERIALIZED_REQUEST_VERSION = 1;
+
+    /** Marker of an authentication request written in its serialized form. */
+    private static final int SERIALIZED_REQUEST = 0;
+
+    /** Marker of an authentication request written as its fields. */
+    private static final int REQUEST_FIELDS = 1;
+
+    /** Comparison types of requested authentication contexts, indexed by their code. */
+    private static final AuthnContextComparisonTypeEnumeration[] COMPARISONS = {null,
+            AuthnContextComparisonTypeEnumeration.EXACT, AuthnContextComparisonTypeEnumeration.MINIMUM,
+            AuthnContextComparisonTypeEnumeration.MAXIMUM, AuthnContextComparisonTypeEnumeration.BETTER,};
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(Saml2LoginContext value, BinaryOutput out) throws IOException {
+        out.writeString(value.getRelayState());
+        out.writeBoolean(value.isUnsolicited());
+
+        AuthnRequest request = value.getAvailableAuthenticationRequest();
+        if (request != null && isEncodable(request)) {
+            out.writeByte(REQUEST_FIELDS);
+            encodeRequest(request, out);
+        } else {
+            out.writeByte(SERIALIZED_REQUEST);
+            try {
+                out.writeString(value.getAuthenticationRequest());
+            } catch (UnmarshallingException e) {
+                throw new IOException("Unable to get the serialized authentication request: " + e.getMessage());
+            }
+        }
+
+        LoginContextCodec.encodeLoginContext(value, out);
+    }
+
+    /** {@inheritDoc} */
+    public Saml2LoginContext decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION && version != SERIALIZED_REQUEST_VERSION) {
+            throw new StreamCorruptedException("Unsupported SAML 2 login context encoding version " + version);
+        }
+
+        String relayState = in.readString();
+        Saml2LoginContext loginContext;
+        if (version == SERIALIZED_REQUEST_VERSION) {
+            loginContext = new Saml2LoginContext(relayState, readSerializedRequest(in));
+            loginContext.setUnsolicited(in.readBoolean());
+        } else {
+            boolean unsolicited = in.readBoolean();
+            switch (in.readByte()) {
+                case SERIALIZED_REQUEST:
+                    loginContext = new Saml2LoginContext(relayState, readSerializedRequest(in));
+                    break;
+                case REQUEST_FIELDS:
+                    loginContext = new Saml2LoginContext(relayState, decodeRequest(in));
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown authentication request marker");
+            }
+            loginContext.setUnsolicited(unsolicited);
+        }
+
+        LoginContextCodec.decodeLoginContext(loginContext, in);
+        return loginContext;
+    }
+
+    /**
+     * Reads a serialized authentication request.
+     *
+     * @param in input from which the request is read
+     *
+     * @return the serialized request
+     *
+     * @throws IOException thrown if the request is missing or malformed
+     */
+    private String readSerializedRequest(BinaryInput in) throws IOException {
+        String serializedRequest = in.readString();
+        if (serializedRequest == null) {
+            throw new StreamCorruptedException("SAML 2 login context has no authentication request");
+        }
+        return serializedRequest;
+    }
+
+    /**
+     * Checks whether an authentication request holds only content that is written by
+     * {@link #encodeRequest(AuthnRequest, BinaryOutput)}.
+     *
+     * @param request the authentication request
+     *
+     * @return true if the request can be written as its fields
+     */
+    private boolean isEncodable(AuthnRequest request) {
+        if (request.getExtensions() != null || request.getScoping() != null || request.getConditions() != null) {
+            return false;
+        }
+
+        Subject subject = request.getSubject();
+        if (subject != null
+                && (subject.getBaseID() != null || subject.getEncryptedID() != null || !subject
+                        .getSubjectConfirmations().isEmpty())) {
+            return false;
+        }
+
+        RequestedAuthnContext authnContext = request.getRequestedAuthnContext();
+        return authnContext == null || comparisonCode(authnContext.getComparison()) >= 0;
+    }
+
+    /**
+     * Writes the fields of an authentication request.
+     *
+     * @param request the authentication request
+     * @param out output to which the request is written
+     *
+     * @throws IOException thrown if the request can not be written
+     */
+    private void encodeRequest(AuthnRequest request, BinaryOutput out) throws IOException {
+        out.writeString(request.getID());
+        out.writeInternedString(request.getVersion() == null ? null : request.getVersion().toString());
+        out.writeVarLong(request.getIssueInstant() == null ? -1 : request.getIssueInstant().getMillis());
+        out.writeString(request.getDestination());
+        out.writeInternedString(request.getConsent());
+        out.writeString(request.getProviderName());
+        encodeNameIDType(request.getIssuer(), out);
+
+        out.writeString(request.getAssertionConsumerServiceURL());
+        encodeIndex(request.getAssertionConsumerServiceIndex(), out);
+        out.writeInternedString(request.getProtocolBinding());
+        encodeIndex(request.getAttributeConsumingServiceIndex(), out);
+        encodeBoolean(request.isForceAuthnXSBoolean(), out);
+        encodeBoolean(request.isPassiveXSBoolean(), out);
+
+        NameIDPolicy nameIDPolicy = request.getNameIDPolicy();
+        out.writeBoolean(nameIDPolicy != null);
+        if (nameIDPolicy != null) {
+            out.writeInternedString(nameIDPolicy.getFormat());
+            out.writeInternedString(nameIDPolicy.getSPNameQualifier());
+            encodeBoolean(nameIDPolicy.getAllowCreateXSBoolean(), out);
+        }
+
+        RequestedAuthnContext authnContext = request.getRequestedAuthnContext();
+        out.writeBoolean(authnContext != null);
+        if (authnContext != null) {
+            out.writeByte(comparisonCode(authnContext.getComparison()));
+            List<AuthnContextClassRef> classRefs = authnContext.getAuthnContextClassRefs();
+            out.writeVarInt(classRefs.size());
+            for (AuthnContextClassRef classRef : classRefs) {
+                out.writeInternedString(classRef.getAuthnContextClassRef());
+            }
+            List<AuthnContextDeclRef> declRefs = authnContext.getAuthnContextDeclRefs();
+            out.writeVarInt(declRefs.size());
+            for (AuthnContextDeclRef declRef : declRefs) {
+                out.writeInternedString(declRef.getAuthnContextDeclRef());
+            }
+        }
+
+        Subject subject = request.getSubject();
+        out.writeBoolean(subject != null);
+        if (subject != null) {
+            encodeNameIDType(subject.getNameID(), out);
+        }
+    }
+
+    /**
+     * Rebuilds an authentication request from the fields written by {@link #encodeRequest(AuthnRequest, BinaryOutput)}.
+     *
+     * @param in input from which the request is read
+     *
+     * @return the authentication request
+     *
+     * @throws IOException thrown if the request is malformed
+     */
+    private AuthnRequest decodeRequest(BinaryInput in) throws IOException {
+        AuthnRequest request = this.<AuthnRequest> buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID(in.readString());
+        String version = in.readInternedString();
+        if (version != null) {
+            request.setVersion(SAMLVersion.valueOf(version));
+        }
+        long issueInstant = in.readVarLong();
+        if (issueInstant != -1) {
+            request.setIssueInstant(new DateTime(issueInstant));
+        }
+        request.setDestination(in.readString());
+        request.setConsent(in.readInternedString());
+        request.setProviderName(in.readString());
+        request.setIssuer(this.<Issuer> decodeNameIDType(Issuer.DEFAULT_ELEMENT_NAME, in));
+
+        request.setAssertionConsumerServiceURL(in.readString());
+        request.setAssertionConsumerServiceIndex(decodeIndex(in));
+        request.setProtocolBinding(in.readInternedString());
+        request.setAttributeConsumingServiceIndex(decodeIndex(in));
+        request.setForceAuthn(decodeBoolean(in));
+        request.setIsPassive(decodeBoolean(in));
+
+        if (in.readBoolean()) {
+            NameIDPolicy nameIDPolicy = this.<NameIDPolicy> buildObject(NameIDPolicy.DEFAULT_ELEMENT_NAME);
+            nameIDPolicy.setFormat(in.readInternedString());
+            nameIDPolicy.setSPNameQualifier(in.readInternedString());
+            nameIDPolicy.setAllowCreate(decodeBoolean(in));
+            request.setNameIDPolicy(nameIDPolicy);
+        }
+
+        if (in.readBoolean()) {
+            RequestedAuthnContext authnContext =
+                    this.<RequestedAuthnContext> buildObject(RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
+            int comparison = in.readByte();
+            if (comparison >= COMPARISONS.length) {
+                throw new StreamCorruptedException("Unknown authentication context comparison " + comparison);
+            }
+            authnContext.setComparison(COMPARISONS[comparison]);
+
+            int count = in.readCount();
+            AuthnContextClassRef classRef;
+            for (int i = 0; i < count; i++) {
+                classRef = this.<AuthnContextClassRef> buildObject(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+                classRef.setAuthnContextClassRef(in.readInternedString());
+                authnContext.getAuthnContextClassRefs().add(classRef);
+            }
+            count = in.readCount();
+            AuthnContextDeclRef declRef;
+            for (int i = 0; i < count; i++) {
+                declRef = this.<AuthnContextDeclRef> buildObject(AuthnContextDeclRef.DEFAULT_ELEMENT_NAME);
+                declRef.setAuthnContextDeclRef(in.readInternedString());
+                authnContext.getAuthnContextDeclRefs().add(declRef);
+            }
+            request.setRequestedAuthnContext(authnContext);
+        }
+
+        if (in.readBoolean()) {
+            Subject subject = this.<Subject> buildObject(Subject.DEFAULT_ELEMENT_NAME);
+            subject.setNameID(this.<NameID> decodeNameIDType(NameID.DEFAULT_ELEMENT_NAME, in));
+            request.setSubject(subject);
+        }
+
+        return request;
+    }
+
+    /**
+     * Writes an issuer or name identifier.
+     *
+     * @param name the issuer or name identifier, may be null
+     * @param out output to which the name is written
+     *
+     * @throws IOException thrown if the name can not be written
+     */
+    private void encodeNameIDType(NameIDType name, BinaryOutput out) throws IOException {
+        out.writeBoolean(name != null);
+        if (name != null) {
+            out.writeString(name.getValue());
+            out.writeInternedString(name.getFormat());
+            out.writeInternedString(name.getNameQualifier());
+            out.writeInternedString(name.getSPNameQualifier());
+            out.writeString(name.getSPProvidedID());
+        }
+    }
+
+    /**
+     * Reads an issuer or name identifier.
+     *
+     * @param <T> type of the name
+     * @param elementName element name of the name
+     * @param in input from which the name is read
+     *
+     * @return the issuer or name identifier, may be null
+     *
+     * @throws IOException thrown if the name is malformed
+     */
+    private <T extends NameIDType> T decodeNameIDType(QName elementName, BinaryInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        T name = this.<T> buildObject(elementName);
+        name.setValue(in.readString());
+        name.setFormat(in.readInternedString());
+        name.setNameQualifier(in.readInternedString());
+        name.setSPNameQualifier(in.readInternedString());
+        name.setSPProvidedID(in.readString());
+        return name;
+    }
+
+    /**
+     * Writes an optional index.
+     *
+     * @param index the index, may be null
+     * @param out output to which the index is written
+     *
+     * @throws IOException thrown if the index can not be written
+     */
+    private void encodeIndex(Integer index, BinaryOutput out) throws IOException {
+        out.writeVarInt(index == null ? 0 : index + 1);
+    }
+
+    /**
+     * Reads an optional index.
+     *
+     * @param in input from which the index is read
+     *
+     * @return the index, may be null
+     *
+     * @throws IOException thrown if the index is malformed
+     */
+    private Integer decodeIndex(BinaryInput in) throws IOException {
+        int index = in.readVarInt() - 1;
+        if (index < -1) {
+            throw new StreamCorruptedException("Malformed index");
+        }
+        return index == -1 ? null : Integer.valueOf(index);
+    }
+
+    /**
+     * Writes an optional schema boolean, keeping whether it was numeric.
+     *
+     * @param value the boolean, may be null
+     * @param out output to which the boolean is written
+     *
+     * @throws IOException thrown if the boolean can not be written
+     */
+    private void encodeBoolean(XSBooleanValue value, BinaryOutput out) throws IOException {
+        if (value == null || value.getValue() == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte((value.getValue() ? 1 : 2) + (value.isNumeric() ? 2 : 0));
+        }
+    }
+
+    /**
+     * Reads an optional schema boolean.
+     *
+     * @param in input from which the boolean is read
+     *
+     * @return the boolean, may be null
+     *
+     * @throws IOException thrown if the boolean is malformed
+     */
+    private XSBooleanValue decodeBoolean(BinaryInput in) throws IOException {
+        int code = in.readByte();
+        if (code == 0) {
+            return null;
+        }
+        if (code > 4) {
+            throw new StreamCorruptedException("Malformed boolean " + code);
+        }
+        return new XSBooleanValue(code % 2 == 1, code > 2);
+    }
+
+    /**
+     * Gets the code of a comparison type of a requested authentication context.
+     *
+     * @param comparison the comparison type, may be null
+     *
+     * @return the code of the comparison type, or -1 if it is unknown
+     */
+    private int comparisonCode(AuthnContextComparisonTypeEnumeration comparison) {
+        for (int i = 0; i < COMPARISONS.length; i++) {
+            if (COMPARISONS[i] == comparison) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds a SAML object.
+     *
+     * @param <T> type of the object
+     * @param elementName element name of the object
+     *
+     * @return the object
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends XMLObject> T buildObject(QName elementName) {
+        XMLObjectBuilder<T> builder = Configuration.getBuilderFactory().getBuilder(elementName);
+        return builder.buildObject(elementName);
+    }
+}
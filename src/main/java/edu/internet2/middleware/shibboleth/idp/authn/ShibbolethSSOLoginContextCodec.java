@@ -0,0 +1,58 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/** Codec of {@link ShibbolethSSOLoginContext}s. */
+public class ShibbolethSSOLoginContextCodec implements BinaryCodec<ShibbolethSSOLoginContext> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(ShibbolethSSOLoginContext value, BinaryOutput out) throws IOException {
+        out.writeInternedString(value.getSpAssertionConsumerService());
+        out.writeString(value.getSpTarget());
+        LoginContextCodec.encodeLoginContext(value, out);
+    }
+
+    /** {@inheritDoc} */
+    public ShibbolethSSOLoginContext decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported Shibboleth SSO login context encoding version "
+                    + version);
+        }
+
+        ShibbolethSSOLoginContext loginContext = new ShibbolethSSOLoginContext();
+        loginContext.setSpAssertionConsumerService(in.readInternedString());
+        loginContext.setSpTarget(in.readString());
+        LoginContextCodec.decodeLoginContext(loginContext, in);
+        return loginContext;
+    }
+}
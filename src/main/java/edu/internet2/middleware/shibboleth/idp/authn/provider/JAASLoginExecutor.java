@@ -0,0 +1,320 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs JAAS logins on a bounded pool of threads.
+ *
+ * A slow JAAS login module, typically a directory or KDC that stops answering, otherwise ties up one container thread
+ * per login attempt until the container has no thread left for any request. Logins are instead queued for a fixed
+ * number of login threads; the requesting thread waits for its login no longer than the login timeout, and an attempt
+ * is rejected at once when the queue is full. The number of logins in progress, and therefore the number of container
+ * threads waiting on them, is thus bounded by the pool and queue sizes.
+ */
+public class JAASLoginExecutor {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(JAASLoginExecutor.class);
+
+    /** Threads running the logins. */
+    private final ThreadPoolExecutor executor;
+
+    /** Maximum time, in milliseconds, an attempt waits for its login, including time spent queued. */
+    private final long loginTimeout;
+
+    /** Number of logins that succeeded. */
+    private final AtomicLong successCount;
+
+    /** Number of logins that failed. */
+    private final AtomicLong failureCount;
+
+    /** Number of attempts rejected because the queue was full. */
+    private final AtomicLong rejectedCount;
+
+    /** Number of attempts abandoned because the login did not complete in time. */
+    private final AtomicLong timeoutCount;
+
+    /** Total time, in milliseconds, logins spent queued. */
+    private final AtomicLong totalQueueWait;
+
+    /** Total time, in milliseconds, spent in JAAS logins. */
+    private final AtomicLong totalLoginTime;
+
+    /**
+     * Constructor.
+     *
+     * @param threads number of threads running logins
+     * @param queueSize maximum number of logins waiting for a thread
+     * @param timeout maximum time, in milliseconds, an attempt waits for its login, including time spent queued
+     */
+    public JAASLoginExecutor(int threads, int queueSize, long timeout) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of login threads must be greater than 0");
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Login queue size must be greater than 0");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Login timeout must be greater than 0");
+        }
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueSize), new LoginThreadFactory(Thread.currentThread().getContextClassLoader()));
+        executor.allowCoreThreadTimeOut(true);
+        loginTimeout = timeout;
+
+        successCount = new AtomicLong();
+        failureCount = new AtomicLong();
+        rejectedCount = new AtomicLong();
+        timeoutCount = new AtomicLong();
+        totalQueueWait = new AtomicLong();
+        totalLoginTime = new AtomicLong();
+    }
+
+    /**
+     * Logs a user in with a JAAS configuration.
+     *
+     * @param jaasConfigName name of the JAAS configuration
+     * @param callbackHandler handler providing the user's credentials to the login modules
+     *
+     * @return the authenticated subject
+     *
+     * @throws LoginException thrown if the login fails, or a {@link LoginUnavailableException} if it is rejected or
+     *             does not complete in time
+     */
+    public Subject login(String jaasConfigName, CallbackHandler callbackHandler) throws LoginException {
+        Future<Subject> login;
+        try {
+            login = executor.submit(new LoginTask(jaasConfigName, callbackHandler));
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            log.warn("Rejecting JAAS login, {} logins are already waiting", executor.getQueue().size());
+            throw new LoginUnavailableException("Authentication service is busy");
+        }
+
+        try {
+            return login.get(loginTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            login.cancel(true);
+            executor.purge();
+            timeoutCount.incrementAndGet();
+            log.warn("JAAS login did not complete within {}ms", loginTimeout);
+            throw new LoginUnavailableException("Authentication service did not respond in time");
+        } catch (InterruptedException e) {
+            login.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new LoginUnavailableException("Interrupted while waiting for authentication");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LoginException) {
+                throw (LoginException) e.getCause();
+            }
+            log.debug("JAAS login failed", e.getCause());
+            throw new LoginException("unknown authentication error");
+        }
+    }
+
+    /** Stops the login threads. Logins in progress are interrupted and queued logins are abandoned. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets the maximum time, in milliseconds, an attempt waits for its login.
+     *
+     * @return the login timeout
+     */
+    public long getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    /**
+     * Gets the number of threads running logins.
+     *
+     * @return number of login threads
+     */
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Gets the number of logins in progress.
+     *
+     * @return number of logins in progress
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of logins waiting for a thread.
+     *
+     * @return number of queued logins
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of logins that succeeded.
+     *
+     * @return number of successful logins
+     */
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+    /**
+     * Gets the number of logins that failed, including those that completed after their attempt timed out.
+     *
+     * @return number of failed logins
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Gets the number of attempts rejected because the queue was full.
+     *
+     * @return number of rejected attempts
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets the number of attempts abandoned because their login did not complete in time.
+     *
+     * @return number of timed out attempts
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Gets the total time, in milliseconds, logins spent waiting for a thread.
+     *
+     * @return total queue wait
+     */
+    public long getTotalQueueWait() {
+        return totalQueueWait.get();
+    }
+
+    /**
+     * Gets the total time, in milliseconds, spent in JAAS logins.
+     *
+     * @return total login time
+     */
+    public long getTotalLoginTime() {
+        return totalLoginTime.get();
+    }
+
+    /** A JAAS login, run by a login thread. */
+    private class LoginTask implements Callable<Subject> {
+
+        /** Name of the JAAS configuration. */
+        private final String configName;
+
+        /** Handler providing the user's credentials. */
+        private final CallbackHandler handler;
+
+        /** Instant, in milliseconds since the epoch, the login was queued. */
+        private final long queuedInstant;
+
+        /**
+         * Constructor.
+         *
+         * @param jaasConfigName name of the JAAS configuration
+         * @param callbackHandler handler providing the user's credentials
+         */
+        public LoginTask(String jaasConfigName, CallbackHandler callbackHandler) {
+            configName = jaasConfigName;
+            handler = callbackHandler;
+            queuedInstant = System.currentTimeMillis();
+        }
+
+        /** {@inheritDoc} */
+        public Subject call() throws LoginException {
+            long start = System.currentTimeMillis();
+            totalQueueWait.addAndGet(start - queuedInstant);
+            try {
+                LoginContext jaasLoginCtx = new LoginContext(configName, handler);
+                jaasLoginCtx.login();
+                successCount.incrementAndGet();
+                return jaasLoginCtx.getSubject();
+            } catch (LoginException e) {
+                failureCount.incrementAndGet();
+                throw e;
+            } catch (RuntimeException e) {
+                failureCount.incrementAndGet();
+                throw e;
+            } finally {
+                totalLoginTime.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    /**
+     * Creates daemon login threads with the context class loader of the web application, which JAAS uses to load
+     * login modules.
+     */
+    private static class LoginThreadFactory implements ThreadFactory {
+
+        /** Number of threads created so far. */
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        /** Context class loader of the created threads. */
+        private final ClassLoader classLoader;
+
+        /**
+         * Constructor.
+         *
+         * @param contextClassLoader context class loader of the created threads
+         */
+        public LoginThreadFactory(ClassLoader contextClassLoader) {
+            classLoader = contextClassLoader;
+        }
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "JAAS login " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }
+    }
+}
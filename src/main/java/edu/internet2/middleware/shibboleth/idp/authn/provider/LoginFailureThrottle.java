@@ -0,0 +1,281 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttles login attempts by the number of recent failed logins of their username and of their client address.
+ *
+ * Failures are counted in lock-free sliding windows, one per username and one per client address. Once either count
+ * reaches its limit further attempts are refused, without reaching the authentication backend, until older failures
+ * leave the window. A successful login clears the failures of its username, but not of its client address. Usernames
+ * are compared case-insensitively. The number of tracked usernames and addresses is bounded. When the bound is reached
+ * counters below their limit are dropped, idle ones first, until a quarter of the bound is free, so that the cost of
+ * the sweep is spread over the keys it makes room for. Counters at their limit are never dropped, so flooding the
+ * throttle with new keys cannot lift a lockout; if every tracked counter is at its limit the failures of new keys are
+ * not counted until room frees.
+ */
+public class LoginFailureThrottle {
+
+    /** Number of buckets each window is divided into. */
+    private static final int WINDOW_BUCKETS = 10;
+
+    /** Length, in milliseconds, of the window in which failures are counted. */
+    private final long window;
+
+    /** Number of failures of a username within the window at which its attempts are refused. */
+    private final int maxUsernameFailures;
+
+    /** Number of failures from a client address within the window at which its attempts are refused. */
+    private final int maxAddressFailures;
+
+    /** Maximum number of usernames, and of client addresses, tracked. */
+    private final int maxTracked;
+
+    /** Recent failures by username. */
+    private final ConcurrentMap<String, SlidingWindowCounter> usernameFailures;
+
+    /** Recent failures by client address. */
+    private final ConcurrentMap<String, SlidingWindowCounter> addressFailures;
+
+    /** Number of attempts refused. */
+    private final AtomicLong throttledCount;
+
+    /**
+     * Constructor.
+     *
+     * @param failureWindow length, in milliseconds, of the window in which failures are counted
+     * @param usernameLimit number of failures of a username within the window at which its attempts are refused, 0 to
+     *            not throttle by username
+     * @param addressLimit number of failures from a client address within the window at which its attempts are
+     *            refused, 0 to not throttle by client address
+     * @param trackedLimit maximum number of usernames, and of client addresses, tracked
+     */
+    public LoginFailureThrottle(long failureWindow, int usernameLimit, int addressLimit, int trackedLimit) {
+        if (failureWindow <= 0) {
+            throw new IllegalArgumentException("Failure window must be greater than 0");
+        }
+        if (usernameLimit < 0 || addressLimit < 0) {
+            throw new IllegalArgumentException("Failure limits may not be negative");
+        }
+        if (trackedLimit <= 0) {
+            throw new IllegalArgumentException("Tracked limit must be greater than 0");
+        }
+        window = failureWindow;
+        maxUsernameFailures = usernameLimit;
+        maxAddressFailures = addressLimit;
+        maxTracked = trackedLimit;
+        usernameFailures = new ConcurrentHashMap<String, SlidingWindowCounter>();
+        addressFailures = new ConcurrentHashMap<String, SlidingWindowCounter>();
+        throttledCount = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a login attempt is refused.
+     *
+     * @param username username of the attempt
+     * @param clientAddress client address of the attempt, may be null
+     *
+     * @return true if the attempt is refused
+     */
+    public boolean isThrottled(String username, String clientAddress) {
+        return isThrottled(username, clientAddress, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether a login attempt is refused.
+     *
+     * @param username username of the attempt
+     * @param clientAddress client address of the attempt, may be null
+     * @param now current instant, in milliseconds since the epoch
+     *
+     * @return true if the attempt is refused
+     */
+    boolean isThrottled(String username, String clientAddress, long now) {
+        if (exceeds(usernameFailures, normalize(username), maxUsernameFailures, now)
+                || exceeds(addressFailures, clientAddress, maxAddressFailures, now)) {
+            throttledCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a failed login.
+     *
+     * @param username username of the login
+     * @param clientAddress client address of the login, may be null
+     */
+    public void loginFailed(String username, String clientAddress) {
+        loginFailed(username, clientAddress, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a failed login.
+     *
+     * @param username username of the login
+     * @param clientAddress client address of the login, may be null
+     * @param now instant, in milliseconds since the epoch, of the failure
+     */
+    void loginFailed(String username, String clientAddress, long now) {
+        if (maxUsernameFailures > 0) {
+            count(usernameFailures, normalize(username), maxUsernameFailures, now);
+        }
+        if (maxAddressFailures > 0) {
+            count(addressFailures, clientAddress, maxAddressFailures, now);
+        }
+    }
+
+    /**
+     * Records a successful login, which clears the failures of its username.
+     *
+     * @param username username of the login
+     */
+    public void loginSucceeded(String username) {
+        String key = normalize(username);
+        if (key != null) {
+            usernameFailures.remove(key);
+        }
+    }
+
+    /**
+     * Gets the number of attempts refused.
+     *
+     * @return number of refused attempts
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * Gets the number of usernames with tracked failures.
+     *
+     * @return number of tracked usernames
+     */
+    public int getTrackedUsernameCount() {
+        return usernameFailures.size();
+    }
+
+    /**
+     * Gets the number of client addresses with tracked failures.
+     *
+     * @return number of tracked client addresses
+     */
+    public int getTrackedAddressCount() {
+        return addressFailures.size();
+    }
+
+    /**
+     * Checks whether the failures of a key have reached their limit.
+     *
+     * @param failures failures by key
+     * @param key the key, may be null
+     * @param limit the limit, 0 for none
+     * @param now current instant, in milliseconds since the epoch
+     *
+     * @return true if the limit has been reached
+     */
+    private boolean exceeds(ConcurrentMap<String, SlidingWindowCounter> failures, String key, int limit, long now) {
+        if (key == null || limit == 0) {
+            return false;
+        }
+        SlidingWindowCounter counter = failures.get(key);
+        return counter != null && counter.sum(now) >= limit;
+    }
+
+    /**
+     * Counts a failure of a key.
+     *
+     * @param failures failures by key
+     * @param key the key, may be null
+     * @param limit the limit of the key's failures
+     * @param now instant, in milliseconds since the epoch, of the failure
+     */
+    private void count(ConcurrentMap<String, SlidingWindowCounter> failures, String key, int limit, long now) {
+        if (key == null) {
+            return;
+        }
+
+        SlidingWindowCounter counter = failures.get(key);
+        if (counter == null) {
+            if (failures.size() >= maxTracked && !evict(failures, limit, now)) {
+                return;
+            }
+            counter = new SlidingWindowCounter(window, WINDOW_BUCKETS);
+            SlidingWindowCounter existing = failures.putIfAbsent(key, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.increment(now);
+    }
+
+    /**
+     * Makes room for new keys by dropping counters below their limit, idle ones first, until a quarter of the bound is
+     * free. Counters at their limit are kept.
+     *
+     * @param failures failures by key
+     * @param limit the limit of the keys' failures
+     * @param now current instant, in milliseconds since the epoch
+     *
+     * @return true if there is room for a new key
+     */
+    private boolean evict(ConcurrentMap<String, SlidingWindowCounter> failures, int limit, long now) {
+        synchronized (failures) {
+            if (failures.size() < maxTracked) {
+                return true;
+            }
+
+            int target = maxTracked - Math.max(1, maxTracked / 4);
+            Iterator<SlidingWindowCounter> counters = failures.values().iterator();
+            while (failures.size() > target && counters.hasNext()) {
+                if (counters.next().sum(now) == 0) {
+                    counters.remove();
+                }
+            }
+
+            counters = failures.values().iterator();
+            while (failures.size() > target && counters.hasNext()) {
+                if (counters.next().sum(now) < limit) {
+                    counters.remove();
+                }
+            }
+
+            return failures.size() < maxTracked;
+        }
+    }
+
+    /**
+     * Normalizes a username into its key.
+     *
+     * @param username the username, may be null
+     *
+     * @return the key, or null if the username is null
+     */
+    private String normalize(String username) {
+        if (username == null) {
+            return null;
+        }
+        return username.trim().toLowerCase(Locale.ENGLISH);
+    }
+}
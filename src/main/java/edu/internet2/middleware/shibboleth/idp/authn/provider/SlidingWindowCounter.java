@@ -0,0 +1,96 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free count of the events within a sliding time window.
+ *
+ * The window is divided into buckets, kept in a ring. Each bucket holds, in a single long, the time slot it counts
+ * and its count, so that moving a bucket to a new slot and counting in it are one compare-and-set; no increment is
+ * lost to a concurrent reset. The count is exact at bucket granularity: events older than the window, less up to one
+ * bucket width, are no longer counted.
+ */
+final class SlidingWindowCounter {
+
+    /** Number of low bits of a bucket holding its count. */
+    private static final int COUNT_BITS = 20;
+
+    /** Mask of the count of a bucket. */
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    /** Width, in milliseconds, of a bucket. */
+    private final long bucketWidth;
+
+    /** Buckets, each holding its time slot in the high bits and its count in the low bits. */
+    private final AtomicLongArray buckets;
+
+    /**
+     * Constructor.
+     *
+     * @param window length, in milliseconds, of the window
+     * @param bucketCount number of buckets the window is divided into
+     */
+    SlidingWindowCounter(long window, int bucketCount) {
+        bucketWidth = Math.max(1, window / bucketCount);
+        buckets = new AtomicLongArray(bucketCount);
+    }
+
+    /**
+     * Counts an event.
+     *
+     * @param now instant, in milliseconds since the epoch, of the event
+     */
+    void increment(long now) {
+        long slot = now / bucketWidth;
+        int index = (int) (slot % buckets.length());
+        long bucket;
+        long updated;
+        do {
+            bucket = buckets.get(index);
+            if (bucket >>> COUNT_BITS != slot) {
+                updated = (slot << COUNT_BITS) | 1;
+            } else if ((bucket & COUNT_MASK) == COUNT_MASK) {
+                return;
+            } else {
+                updated = bucket + 1;
+            }
+        } while (!buckets.compareAndSet(index, bucket, updated));
+    }
+
+    /**
+     * Gets the number of events within the window.
+     *
+     * @param now current instant, in milliseconds since the epoch
+     *
+     * @return number of events within the window ending now
+     */
+    long sum(long now) {
+        long slot = now / bucketWidth;
+        long total = 0;
+        long bucket;
+        for (int i = 0; i < buckets.length(); i++) {
+            bucket = buckets.get(i);
+            if (slot - (bucket >>> COUNT_BITS) < buckets.length()) {
+                total += bucket & COUNT_MASK;
+            }
+        }
+        return total;
+    }
+}
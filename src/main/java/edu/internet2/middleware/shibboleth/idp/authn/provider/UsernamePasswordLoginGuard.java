@@ -0,0 +1,125 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import javax.security.auth.Subject;
+
+/**
+ * Front of the authentication backend of {@link UsernamePasswordLoginServlet}.
+ *
+ * Attempts are first checked against an optional {@link LoginFailureThrottle}, refused attempts never reaching the
+ * backend, and then against an optional {@link VerifiedCredentialCache}, cache hits being authenticated without the
+ * backend. The outcome of every login reaching the backend is reported back so that failures are counted and cached
+ * credentials invalidated. The servlet finds the guard in its servlet context, see
+ * {@link UsernamePasswordLoginServlet}.
+ */
+public class UsernamePasswordLoginGuard {
+
+    /** Cache of verified credentials, may be null. */
+    private final VerifiedCredentialCache credentialCache;
+
+    /** Throttle of failed logins, may be null. */
+    private final LoginFailureThrottle failureThrottle;
+
+    /**
+     * Constructor.
+     *
+     * @param cache cache of verified credentials, may be null
+     * @param throttle throttle of failed logins, may be null
+     */
+    public UsernamePasswordLoginGuard(VerifiedCredentialCache cache, LoginFailureThrottle throttle) {
+        credentialCache = cache;
+        failureThrottle = throttle;
+    }
+
+    /**
+     * Gets the cache of verified credentials.
+     *
+     * @return the cache of verified credentials, may be null
+     */
+    public VerifiedCredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    /**
+     * Gets the throttle of failed logins.
+     *
+     * @return the throttle of failed logins, may be null
+     */
+    public LoginFailureThrottle getFailureThrottle() {
+        return failureThrottle;
+    }
+
+    /**
+     * Checks whether a login attempt is refused.
+     *
+     * @param username username of the attempt
+     * @param clientAddress client address of the attempt, may be null
+     *
+     * @return true if the attempt is refused
+     */
+    public boolean isThrottled(String username, String clientAddress) {
+        return failureThrottle != null && failureThrottle.isThrottled(username, clientAddress);
+    }
+
+    /**
+     * Authenticates a user from a recently verified credential.
+     *
+     * @param username the username
+     * @param password the password
+     *
+     * @return the authenticated subject, or null if the credential must be verified by the backend
+     */
+    public Subject getVerifiedSubject(String username, String password) {
+        if (credentialCache == null) {
+            return null;
+        }
+        return credentialCache.getSubject(username, password);
+    }
+
+    /**
+     * Records a login verified by the backend.
+     *
+     * @param username the username
+     * @param password the password
+     * @param subject the subject authenticated by the backend
+     */
+    public void loginSucceeded(String username, String password, Subject subject) {
+        if (failureThrottle != null) {
+            failureThrottle.loginSucceeded(username);
+        }
+        if (credentialCache != null) {
+            credentialCache.add(username, password, subject);
+        }
+    }
+
+    /**
+     * Records a login rejected by the backend.
+     *
+     * @param username the username
+     * @param clientAddress client address of the login, may be null
+     */
+    public void loginFailed(String username, String clientAddress) {
+        if (credentialCache != null) {
+            credentialCache.invalidate(username);
+        }
+        if (failureThrottle != null) {
+            failureThrottle.loginFailed(username, clientAddress);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.FailedLoginException;
 import javax.security.auth.login.LoginException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -51,9 +52,25 @@ import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
  * By default, this Servlet assumes that the authentication method
  * <code>urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport</code> to be returned to the authentication
  * engine. This can be override by setting the servlet configuration parameter <code>authnMethod</code>.
+ * 
+ * JAAS logins are run by a {@link JAASLoginExecutor}, sized by the servlet configuration parameters
+ * <code>jaasLoginThreads</code>, <code>jaasLoginQueueSize</code> and <code>jaasLoginTimeout</code> (in milliseconds).
+ * Setting <code>jaasLoginThreads</code> to 0 runs logins on the requesting thread instead. The executor is bound to the
+ * servlet context, under the name {@link #LOGIN_EXECUTOR_ATTRIBUTE} followed by "." and the servlet name, so that its
+ * statistics may be reported.
+ * 
+ * If the servlet context bears a {@link UsernamePasswordLoginGuard}, under the ID given by the servlet configuration
+ * parameter <code>loginGuardId</code> or else {@link #DEFAULT_LOGIN_GUARD_ID}, logins are throttled and served from
+ * recently verified credentials by that guard before reaching JAAS.
  */
 public class UsernamePasswordLoginServlet extends HttpServlet {
 
+    /** Prefix of the name of the servlet context attribute bearing the login executor: {@value} . */
+    public static final String LOGIN_EXECUTOR_ATTRIBUTE = JAASLoginExecutor.class.getName();
+
+    /** Default ID of the login guard within the servlet context: {@value} . */
+    public static final String DEFAULT_LOGIN_GUARD_ID = "shibboleth.UsernamePasswordLoginGuard";
+
     /** Serial version UID. */
     private static final long serialVersionUID = -572799841125956990L;
 
@@ -84,6 +101,27 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
     /** HTTP request parameter containing the user's password. */
     private final String passwordAttribute = "j_password";
 
+    /** init-param giving the number of threads running JAAS logins, 0 to run them on the requesting thread. */
+    private final String loginThreadsInitParam = "jaasLoginThreads";
+
+    /** init-param giving the maximum number of JAAS logins waiting for a thread. */
+    private final String loginQueueSizeInitParam = "jaasLoginQueueSize";
+
+    /** init-param giving the maximum time, in milliseconds, a user waits for their JAAS login. */
+    private final String loginTimeoutInitParam = "jaasLoginTimeout";
+
+    /** init-param giving the ID of the login guard within the servlet context. */
+    private final String loginGuardInitParam = "loginGuardId";
+
+    /** Guard of the JAAS backend, or null if there is none. */
+    private UsernamePasswordLoginGuard loginGuard;
+
+    /** Executor running JAAS logins, or null if they are run on the requesting thread. */
+    private JAASLoginExecutor loginExecutor;
+
+    /** Name of the servlet context attribute bearing the login executor. */
+    private String loginExecutorAttribute;
+
     /** {@inheritDoc} */
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -106,6 +144,54 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
         } else {
             authenticationMethod = AuthnContext.PPT_AUTHN_CTX;
         }
+
+        int loginThreads = getIntInitParameter(loginThreadsInitParam, 16);
+        if (loginThreads > 0) {
+            loginExecutor = new JAASLoginExecutor(loginThreads, getIntInitParameter(loginQueueSizeInitParam, 64),
+                    getIntInitParameter(loginTimeoutInitParam, 15000));
+            loginExecutorAttribute = LOGIN_EXECUTOR_ATTRIBUTE + "." + config.getServletName();
+            config.getServletContext().setAttribute(loginExecutorAttribute, loginExecutor);
+        }
+
+        String loginGuardId = DatatypeHelper.safeTrimOrNullString(getInitParameter(loginGuardInitParam));
+        if (loginGuardId == null) {
+            loginGuardId = DEFAULT_LOGIN_GUARD_ID;
+        }
+        Object guard = config.getServletContext().getAttribute(loginGuardId);
+        if (guard instanceof UsernamePasswordLoginGuard) {
+            loginGuard = (UsernamePasswordLoginGuard) guard;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void destroy() {
+        if (loginExecutor != null) {
+            getServletContext().removeAttribute(loginExecutorAttribute);
+            loginExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Gets an integer init-param of this servlet.
+     * 
+     * @param name name of the init-param
+     * @param defaultValue value used if the init-param is not set
+     * 
+     * @return the value of the init-param
+     * 
+     * @throws ServletException thrown if the init-param is not a valid integer
+     */
+    private int getIntInitParameter(String name, int defaultValue) throws ServletException {
+        String value = DatatypeHelper.safeTrimOrNullString(getInitParameter(name));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ServletException("Servlet init-param " + name + " is not an integer: " + value);
+        }
     }
 
     /** {@inheritDoc} */
@@ -157,7 +243,9 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
 
     /**
      * Authenticate a username and password against JAAS. If authentication succeeds the name of the first principal, or
-     * the username if that is empty, and the subject are placed into the request in their respective attributes.
+     * the username if that is empty, and the subject are placed into the request in their respective attributes. If
+     * there is a login guard, attempts it throttles are refused and credentials it recently verified are not checked
+     * against JAAS again.
      * 
      * @param request current authentication request
      * @param username the principal name of the user to be authenticated
@@ -166,21 +254,41 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
      * @throws LoginException thrown if there is a problem authenticating the user
      */
     protected void authenticateUser(HttpServletRequest request, String username, String password) throws LoginException {
+        if (loginGuard != null && loginGuard.isThrottled(username, request.getRemoteAddr())) {
+            log.info("Refusing login of user {} from {}, too many recent failed logins", username, request
+                    .getRemoteAddr());
+            throw new FailedLoginException("Too many failed login attempts");
+        }
+
         try {
             log.debug("Attempting to authenticate user {}", username);
 
-            SimpleCallbackHandler cbh = new SimpleCallbackHandler(username, password);
-
-            javax.security.auth.login.LoginContext jaasLoginCtx = new javax.security.auth.login.LoginContext(
-                    jaasConfigName, cbh);
+            Subject loginSubject = null;
+            if (loginGuard != null) {
+                loginSubject = loginGuard.getVerifiedSubject(username, password);
+            }
 
-            jaasLoginCtx.login();
-            log.debug("Successfully authenticated user {}", username);
+            if (loginSubject != null) {
+                log.debug("Successfully authenticated user {} from a recently verified credential", username);
+            } else {
+                SimpleCallbackHandler cbh = new SimpleCallbackHandler(username, password);
+                if (loginExecutor != null) {
+                    loginSubject = loginExecutor.login(jaasConfigName, cbh);
+                } else {
+                    javax.security.auth.login.LoginContext jaasLoginCtx = new javax.security.auth.login.LoginContext(
+                            jaasConfigName, cbh);
+                    jaasLoginCtx.login();
+                    loginSubject = jaasLoginCtx.getSubject();
+                }
+                log.debug("Successfully authenticated user {}", username);
 
-            Subject loginSubject = jaasLoginCtx.getSubject();
+                loginSubject.getPrincipals().add(new UsernamePrincipal(username));
+                if (loginGuard != null) {
+                    loginGuard.loginSucceeded(username, password, loginSubject);
+                }
+            }
 
             Set<Principal> principals = loginSubject.getPrincipals();
-            principals.add(new UsernamePrincipal(username));
 
             Set<Object> publicCredentials = loginSubject.getPublicCredentials();
 
@@ -192,6 +300,9 @@ public class UsernamePasswordLoginServlet extends HttpServlet {
             request.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, authenticationMethod);
         } catch (LoginException e) {
             log.debug("User authentication for " + username + " failed", e);
+            if (loginGuard != null && !(e instanceof LoginUnavailableException)) {
+                loginGuard.loginFailed(username, request.getRemoteAddr());
+            }
             throw e;
         } catch (Throwable e) {
             log.debug("User authentication for " + username + " failed", e);
@@ -0,0 +1,331 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.security.auth.Subject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.util.PerThreadRandomSource;
+
+/**
+ * Short lived cache of credentials recently verified by the authentication backend.
+ *
+ * A username whose password was verified within the time to live is authenticated again, with the principals the
+ * backend gave it, without reaching the backend. Passwords are not kept: each entry holds a random salt and a PBKDF2
+ * verifier of the password, so that a hit costs one slow hash. Any attempt with a different password invalidates the
+ * entry, so that a changed or revoked password is checked by the backend again. Only the principals of the verified
+ * subject are kept, not its credentials. The number of entries is bounded; when the bound is reached expired entries
+ * are dropped first and, failing that, an arbitrary one.
+ */
+public class VerifiedCredentialCache {
+
+    /** Algorithm of the password verifiers. */
+    private static final String VERIFIER_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /** Length, in bits, of the password verifiers. */
+    private static final int VERIFIER_LENGTH = 160;
+
+    /** Length, in bytes, of the salts. */
+    private static final int SALT_LENGTH = 16;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(VerifiedCredentialCache.class);
+
+    /** Time, in milliseconds, a verified credential is cached. */
+    private final long timeToLive;
+
+    /** Maximum number of cached credentials. */
+    private final int maxEntries;
+
+    /** Number of PBKDF2 iterations of the password verifiers. */
+    private final int iterations;
+
+    /** Cached credentials, by username. */
+    private final ConcurrentMap<String, Entry> entries;
+
+    /** Source of the salts, or null to use {@link #secureRandom}. */
+    private PerThreadRandomSource randomSource;
+
+    /** Source of the salts if no random source is set. */
+    private final SecureRandom secureRandom;
+
+    /** Number of logins served from the cache. */
+    private final AtomicLong hitCount;
+
+    /** Number of logins not served from the cache. */
+    private final AtomicLong missCount;
+
+    /** Number of entries invalidated by a different password. */
+    private final AtomicLong invalidationCount;
+
+    /**
+     * Constructor.
+     *
+     * @param ttl time, in milliseconds, a verified credential is cached
+     * @param maximumEntries maximum number of cached credentials
+     * @param hashIterations number of PBKDF2 iterations of the password verifiers
+     */
+    public VerifiedCredentialCache(long ttl, int maximumEntries, int hashIterations) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be greater than 0");
+        }
+        if (maximumEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be greater than 0");
+        }
+        if (hashIterations <= 0) {
+            throw new IllegalArgumentException("Number of hash iterations must be greater than 0");
+        }
+        timeToLive = ttl;
+        maxEntries = maximumEntries;
+        iterations = hashIterations;
+        entries = new ConcurrentHashMap<String, Entry>();
+        secureRandom = new SecureRandom();
+        hitCount = new AtomicLong();
+        missCount = new AtomicLong();
+        invalidationCount = new AtomicLong();
+    }
+
+    /**
+     * Sets the source of the salts. If not set a {@link SecureRandom} shared by all threads is used.
+     *
+     * @param source source of the salts
+     */
+    public void setRandomSource(PerThreadRandomSource source) {
+        randomSource = source;
+    }
+
+    /**
+     * Authenticates a user from a cached credential.
+     *
+     * @param username the username
+     * @param password the password
+     *
+     * @return a new subject bearing the cached principals, or null if the credential is not cached
+     */
+    public Subject getSubject(String username, String password) {
+        return getSubject(username, password, System.currentTimeMillis());
+    }
+
+    /**
+     * Authenticates a user from a cached credential.
+     *
+     * @param username the username
+     * @param password the password
+     * @param now current instant, in milliseconds since the epoch
+     *
+     * @return a new subject bearing the cached principals, or null if the credential is not cached
+     */
+    Subject getSubject(String username, String password, long now) {
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (entry.expiration <= now) {
+            entries.remove(username, entry);
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        byte[] verifier = computeVerifier(password, entry.salt);
+        if (verifier == null || !MessageDigest.isEqual(verifier, entry.verifier)) {
+            if (entries.remove(username, entry)) {
+                invalidationCount.incrementAndGet();
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return new Subject(false, new HashSet<Principal>(entry.principals), Collections.emptySet(), Collections
+                .emptySet());
+    }
+
+    /**
+     * Caches a credential verified by the authentication backend.
+     *
+     * @param username the username
+     * @param password the password
+     * @param subject the subject authenticated by the backend
+     */
+    public void add(String username, String password, Subject subject) {
+        add(username, password, subject, System.currentTimeMillis());
+    }
+
+    /**
+     * Caches a credential verified by the authentication backend.
+     *
+     * @param username the username
+     * @param password the password
+     * @param subject the subject authenticated by the backend
+     * @param now current instant, in milliseconds since the epoch
+     */
+    void add(String username, String password, Subject subject, long now) {
+        byte[] salt = new byte[SALT_LENGTH];
+        if (randomSource != null) {
+            randomSource.nextBytes(salt);
+        } else {
+            secureRandom.nextBytes(salt);
+        }
+        byte[] verifier = computeVerifier(password, salt);
+        if (verifier == null) {
+            return;
+        }
+
+        if (!entries.containsKey(username) && entries.size() >= maxEntries) {
+            evict(now);
+        }
+        entries.put(username, new Entry(salt, verifier, new HashSet<Principal>(subject.getPrincipals()), now
+                + timeToLive));
+    }
+
+    /**
+     * Invalidates the cached credential of a user.
+     *
+     * @param username the username
+     */
+    public void invalidate(String username) {
+        if (entries.remove(username) != null) {
+            invalidationCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of cached credentials, including expired ones not dropped yet.
+     *
+     * @return number of cached credentials
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of logins served from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of logins not served from the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of cached credentials invalidated by a different password or a failed login.
+     *
+     * @return number of invalidations
+     */
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    /**
+     * Makes room for a new entry, by dropping expired entries or, if there are none, an arbitrary entry.
+     *
+     * @param now current instant, in milliseconds since the epoch
+     */
+    private void evict(long now) {
+        Iterator<Entry> values = entries.values().iterator();
+        while (values.hasNext()) {
+            if (values.next().expiration <= now) {
+                values.remove();
+            }
+        }
+
+        values = entries.values().iterator();
+        while (entries.size() >= maxEntries && values.hasNext()) {
+            values.next();
+            values.remove();
+        }
+    }
+
+    /**
+     * Computes the verifier of a password.
+     *
+     * @param password the password
+     * @param salt salt of the verifier
+     *
+     * @return the verifier, or null if it can not be computed
+     */
+    private byte[] computeVerifier(String password, byte[] salt) {
+        PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, iterations, VERIFIER_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(VERIFIER_ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            log.error("Unable to compute password verifier", e);
+            return null;
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    /** A cached credential. */
+    private static class Entry {
+
+        /** Salt of the verifier. */
+        private final byte[] salt;
+
+        /** Verifier of the password. */
+        private final byte[] verifier;
+
+        /** Principals of the verified subject. */
+        private final Set<Principal> principals;
+
+        /** Instant, in milliseconds since the epoch, at which the entry expires. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param verifierSalt salt of the verifier
+         * @param passwordVerifier verifier of the password
+         * @param subjectPrincipals principals of the verified subject
+         * @param expirationInstant instant, in milliseconds since the epoch, at which the entry expires
+         */
+        public Entry(byte[] verifierSalt, byte[] passwordVerifier, Set<Principal> subjectPrincipals,
+                long expirationInstant) {
+            salt = verifierSalt;
+            verifier = passwordVerifier;
+            principals = subjectPrincipals;
+            expiration = expirationInstant;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package edu.internet2.middleware.shibboleth.idp.config.profile.saml2;
 import edu.internet2.middleware.shibboleth.idp.config.profile.ProfileHandlerNamespaceHandler;
 import edu.internet2.middleware.shibboleth.idp.profile.saml2.SLOProfileHandler;
 import javax.xml.namespace.QName;
+import org.opensaml.xml.util.DatatypeHelper;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.w3c.dom.Element;
 
@@ -40,5 +41,24 @@ public class SAML2SLOProfileHandlerBeanDefinitionParser extends AbstractSAML2Pro
     @Override
     protected void doParse(Element config, BeanDefinitionBuilder builder) {
         super.doParse(config, builder);
+
+        if (config.hasAttributeNS(null, "backChannelLogoutThreads")) {
+            builder.addPropertyValue("backChannelLogoutThreads", Integer.parseInt(DatatypeHelper
+                    .safeTrimOrNullString(config.getAttributeNS(null, "backChannelLogoutThreads"))));
+        }
+
+        if (config.hasAttributeNS(null, "backChannelLogoutTimeout")) {
+            builder.addPropertyValue("backChannelLogoutTimeout", Long.parseLong(DatatypeHelper
+                    .safeTrimOrNullString(config.getAttributeNS(null, "backChannelLogoutTimeout"))));
+        }
+
+        if (config.hasAttributeNS(null, "httpClientPoolRef")) {
+            builder.addPropertyReference("httpClientPool", DatatypeHelper.safeTrimOrNullString(config.getAttributeNS(
+                    null, "httpClientPoolRef")));
+        }
+        if (config.hasAttributeNS(null, "logoutRetryQueueRef")) {
+            builder.addPropertyReference("logoutRetryQueue", DatatypeHelper.safeTrimOrNullString(config
+                    .getAttributeNS(null, "logoutRetryQueueRef")));
+        }
     }
 }
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.xml.namespace.QName;
 
 import org.opensaml.common.IdentifierGenerator;
 import org.opensaml.common.binding.decoding.SAMLMessageDecoder;
@@ -46,7 +47,9 @@ import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.security.SecurityPolicyResolver;
 import org.opensaml.ws.transport.InTransport;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.opensaml.xml.util.Pair;
 import org.slf4j.Logger;
@@ -99,9 +102,30 @@ public abstract class AbstractSAMLProfileHandler extends
     /** Credential resolver for resolving keys from metadata. */
     private MetadataCredentialResolver metadataCredentialResolver;
 
+    /** Resolved metadata and configuration of relying parties. */
+    private final RelyingPartyBundleCache relyingPartyBundles;
+
+    /** Signature parameters derived from signing credentials. */
+    private final SignatureTemplateCache signatureTemplates;
+
+    /** Number and duration of the stages of the production of responses. */
+    private final ResponseStageStatistics responseStageStatistics;
+
     /** Constructor. */
     protected AbstractSAMLProfileHandler() {
         super();
+        relyingPartyBundles = new RelyingPartyBundleCache(10 * 60 * 1000, 10000);
+        signatureTemplates = new SignatureTemplateCache();
+        responseStageStatistics = new ResponseStageStatistics();
+    }
+
+    /**
+     * Gets the number and duration of the stages this handler went through to produce responses.
+     * 
+     * @return number and duration of the stages of the production of responses
+     */
+    public ResponseStageStatistics getResponseStageStatistics() {
+        return responseStageStatistics;
     }
 
     /**
@@ -203,6 +227,18 @@ public abstract class AbstractSAMLProfileHandler extends
         return metadataCredentialResolver;
     }
 
+    /**
+     * Prepares a signature for signing: sets its signature and canonicalization algorithms, HMAC output length and key
+     * info according to its signing credential. The algorithms are worked out once per credential.
+     * 
+     * @param signature signature to prepare, whose signing credential is set
+     * 
+     * @throws SecurityException thrown if the signature parameters can not be derived from the signing credential
+     */
+    protected void prepareSignatureParams(Signature signature) throws SecurityException {
+        signatureTemplates.prepare(signature);
+    }
+
     /**
      * Gets the SAML message bindings that may be used by outbound messages.
      * 
@@ -283,16 +319,130 @@ public abstract class AbstractSAMLProfileHandler extends
     /** {@inheritDoc} */
     public RelyingPartyConfiguration getRelyingPartyConfiguration(String relyingPartyId) {
         try {
-            if (getMetadataProvider().getEntityDescriptor(relyingPartyId) == null) {
-                log.warn("No metadata for relying party {}, treating party as anonymous", relyingPartyId);
-                return getRelyingPartyConfigurationManager().getAnonymousRelyingConfiguration();
+            RelyingPartyBundle bundle = getRelyingPartyBundle(relyingPartyId);
+            if (bundle == null) {
+                return null;
             }
+            return bundle.getRelyingPartyConfiguration();
         } catch (MetadataProviderException e) {
             log.error("Unable to look up relying party metadata", e);
             return null;
         }
+    }
+
+    /**
+     * Gets the resolved metadata and configuration of a relying party. Bundles of relying parties with metadata are
+     * cached until the metadata is refreshed or the relying party configurations are reloaded.
+     * 
+     * @param relyingPartyId entity ID of the relying party
+     * 
+     * @return the bundle of the relying party, or null if the relying party has no configuration
+     * 
+     * @throws MetadataProviderException thrown if there is a problem looking up the relying or asserting party's
+     *             metadata
+     */
+    protected RelyingPartyBundle getRelyingPartyBundle(String relyingPartyId) throws MetadataProviderException {
+        MetadataProvider metadataProvider = getMetadataProvider();
+        long generation = relyingPartyBundles.getGeneration(metadataProvider, getRelyingPartyConfigurationManager()
+                .getAnonymousRelyingConfiguration());
+        RelyingPartyBundle bundle = relyingPartyBundles.get(relyingPartyId);
+        if (bundle != null) {
+            return bundle;
+        }
+
+        EntityDescriptor relyingPartyMetadata = metadataProvider.getEntityDescriptor(relyingPartyId);
+        RelyingPartyConfiguration rpConfig;
+        if (relyingPartyMetadata == null) {
+            log.warn("No metadata for relying party {}, treating party as anonymous", relyingPartyId);
+            rpConfig = getRelyingPartyConfigurationManager().getAnonymousRelyingConfiguration();
+        } else {
+            rpConfig = super.getRelyingPartyConfiguration(relyingPartyId);
+        }
+        if (rpConfig == null) {
+            return null;
+        }
 
-        return super.getRelyingPartyConfiguration(relyingPartyId);
+        bundle = new RelyingPartyBundle(relyingPartyId, relyingPartyMetadata, rpConfig, metadataProvider
+                .getEntityDescriptor(rpConfig.getProviderId()));
+        if (relyingPartyMetadata != null) {
+            // anyone may claim an entity ID without metadata, caching those would let them flush the cache
+            relyingPartyBundles.put(bundle, generation);
+        }
+        return bundle;
+    }
+
+    /**
+     * Gets the bundle of the relying party of a request, if it was resolved by
+     * {@link #populateRelyingPartyInformation(BaseSAMLProfileRequestContext)} and is still cached.
+     * 
+     * @param requestContext current request context
+     * 
+     * @return the bundle of the relying party of the request, or null
+     */
+    protected RelyingPartyBundle getRelyingPartyBundle(BaseSAMLProfileRequestContext requestContext) {
+        RelyingPartyBundle bundle = relyingPartyBundles.get(requestContext.getPeerEntityId());
+        if (bundle != null && bundle.getRelyingPartyConfiguration() == requestContext.getRelyingPartyConfiguration()) {
+            return bundle;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the first role descriptor of the relying party of a request, of the given role, supporting the given
+     * protocol.
+     * 
+     * @param requestContext current request context, whose peer entity metadata is populated
+     * @param role name of the role descriptor element, or schema type, of the role
+     * @param protocol the protocol
+     * 
+     * @return the role descriptor, or null if there is none
+     */
+    protected RoleDescriptor getPeerEntityRoleMetadata(BaseSAMLProfileRequestContext requestContext, QName role,
+            String protocol) {
+        RelyingPartyBundle bundle = getRelyingPartyBundle(requestContext);
+        if (bundle != null && bundle.getRelyingPartyMetadata() == requestContext.getPeerEntityMetadata()) {
+            return bundle.getRelyingPartyRole(role, protocol);
+        }
+        return getRoleMetadata(requestContext.getPeerEntityMetadata(), role, protocol);
+    }
+
+    /**
+     * Gets the first role descriptor of the asserting party of a request, of the given role, supporting the given
+     * protocol.
+     * 
+     * @param requestContext current request context, whose local entity metadata is populated
+     * @param role name of the role descriptor element, or schema type, of the role
+     * @param protocol the protocol
+     * 
+     * @return the role descriptor, or null if there is none
+     */
+    protected RoleDescriptor getLocalEntityRoleMetadata(BaseSAMLProfileRequestContext requestContext, QName role,
+            String protocol) {
+        RelyingPartyBundle bundle = getRelyingPartyBundle(requestContext);
+        if (bundle != null && bundle.getAssertingPartyMetadata() == requestContext.getLocalEntityMetadata()) {
+            return bundle.getAssertingPartyRole(role, protocol);
+        }
+        return getRoleMetadata(requestContext.getLocalEntityMetadata(), role, protocol);
+    }
+
+    /**
+     * Gets the first role descriptor of an entity, of the given role, supporting the given protocol.
+     * 
+     * @param entity metadata of the entity, may be null
+     * @param role name of the role descriptor element, or schema type, of the role
+     * @param protocol the protocol
+     * 
+     * @return the role descriptor, or null if there is none
+     */
+    private RoleDescriptor getRoleMetadata(EntityDescriptor entity, QName role, String protocol) {
+        if (entity == null) {
+            return null;
+        }
+        List<RoleDescriptor> roles = entity.getRoleDescriptors(role, protocol);
+        if (roles == null || roles.isEmpty()) {
+            return null;
+        }
+        return roles.get(0);
     }
 
     /**
@@ -329,20 +479,22 @@ public abstract class AbstractSAMLProfileHandler extends
      */
     protected void populateRelyingPartyInformation(BaseSAMLProfileRequestContext requestContext)
             throws ProfileException {
-        MetadataProvider metadataProvider = requestContext.getMetadataProvider();
         String relyingPartyId = requestContext.getInboundMessageIssuer();
         requestContext.setPeerEntityId(relyingPartyId);
 
-        EntityDescriptor relyingPartyMetadata;
+        RelyingPartyBundle bundle;
         try {
-            relyingPartyMetadata = metadataProvider.getEntityDescriptor(relyingPartyId);
-            requestContext.setPeerEntityMetadata(relyingPartyMetadata);
+            bundle = getRelyingPartyBundle(relyingPartyId);
         } catch (MetadataProviderException e) {
             log.error("Error looking up metadata for relying party " + relyingPartyId, e);
             throw new ProfileException("Error looking up metadata for relying party " + relyingPartyId);
         }
 
-        RelyingPartyConfiguration rpConfig = getRelyingPartyConfiguration(relyingPartyId);
+        RelyingPartyConfiguration rpConfig = null;
+        if (bundle != null) {
+            requestContext.setPeerEntityMetadata(bundle.getRelyingPartyMetadata());
+            rpConfig = bundle.getRelyingPartyConfiguration();
+        }
         if (rpConfig == null) {
             log.error("Unable to retrieve relying party configuration data for entity with ID {}", relyingPartyId);
             throw new ProfileException("Unable to retrieve relying party configuration data for entity with ID "
@@ -372,6 +524,14 @@ public abstract class AbstractSAMLProfileHandler extends
         requestContext.setLocalEntityId(assertingPartyId);
         requestContext.setOutboundMessageIssuer(assertingPartyId);
 
+        RelyingPartyBundle bundle = getRelyingPartyBundle(requestContext);
+        if (bundle != null) {
+            if (bundle.getAssertingPartyMetadata() != null) {
+                requestContext.setLocalEntityMetadata(bundle.getAssertingPartyMetadata());
+            }
+            return;
+        }
+
         try {
             EntityDescriptor localEntityDescriptor = requestContext.getMetadataProvider().getEntityDescriptor(
                     assertingPartyId);
@@ -605,7 +765,16 @@ public abstract class AbstractSAMLProfileHandler extends
         ArrayList<String> nameFormats = new ArrayList<String>();
 
         RoleDescriptor relyingPartyRole = requestContext.getPeerEntityRoleMetadata();
+        RelyingPartyBundle bundle = null;
         if (relyingPartyRole != null) {
+            bundle = getRelyingPartyBundle(requestContext);
+            if (bundle != null) {
+                List<String> cachedFormats = bundle.getSupportedNameFormats(relyingPartyRole);
+                if (cachedFormats != null) {
+                    return new ArrayList<String>(cachedFormats);
+                }
+            }
+
             List<String> relyingPartySupportedFormats = getEntitySupportedFormats(relyingPartyRole);
             if (relyingPartySupportedFormats != null && !relyingPartySupportedFormats.isEmpty()) {
                 nameFormats.addAll(relyingPartySupportedFormats);
@@ -617,6 +786,10 @@ public abstract class AbstractSAMLProfileHandler extends
             nameFormats.clear();
         }
 
+        if (bundle != null) {
+            bundle.setSupportedNameFormats(relyingPartyRole, Collections.unmodifiableList(new ArrayList<String>(
+                    nameFormats)));
+        }
         return nameFormats;
     }
 
@@ -779,7 +952,9 @@ public abstract class AbstractSAMLProfileHandler extends
                     requestContext.getInboundSAMLMessageId(), requestContext.getInboundMessageIssuer());
 
             requestContext.setMessageEncoder(encoder);
+            long encodeStart = responseStageStatistics.start();
             encoder.encode(requestContext);
+            responseStageStatistics.record(ResponseStageStatistics.Stage.ENCODE, encodeStart);
         } catch (MessageEncodingException e) {
             throw new ProfileException("Unable to encode response to relying party: "
                     + requestContext.getInboundMessageIssuer(), e);
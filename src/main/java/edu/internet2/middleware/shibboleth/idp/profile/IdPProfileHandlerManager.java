@@ -18,6 +18,7 @@
 package edu.internet2.middleware.shibboleth.idp.profile;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 
@@ -35,6 +36,7 @@ import edu.internet2.middleware.shibboleth.common.profile.ProfileHandlerManager;
 import edu.internet2.middleware.shibboleth.common.profile.provider.AbstractRequestURIMappedProfileHandler;
 import edu.internet2.middleware.shibboleth.common.service.ServiceException;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginHandlerIndex;
 
 /**
  * Implementation of a {@link ProfileHandlerManager} that maps the request path, without the servlet context, to a
@@ -54,11 +56,15 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
     /** Map of authentication methods to login handlers. */
     private Map<String, LoginHandler> loginHandlers;
 
+    /** Index of the login handlers, replaced as a whole when the configuration is reloaded. */
+    private volatile LoginHandlerIndex loginHandlerIndex;
+
     /** Constructor. */
     public IdPProfileHandlerManager() {
         super();
         profileHandlers = new HashMap<String, AbstractRequestURIMappedProfileHandler>();
         loginHandlers = new HashMap<String, LoginHandler>();
+        loginHandlerIndex = new LoginHandlerIndex(loginHandlers);
     }
 
     /** {@inheritDoc} */
@@ -120,12 +126,22 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
         return loginHandlers;
     }
 
+    /**
+     * Gets the index used to select the login handler for a request.
+     * 
+     * @return index of the registered authentication handlers
+     */
+    public LoginHandlerIndex getLoginHandlerIndex() {
+        return loginHandlerIndex;
+    }
+
     /** {@inheritDoc} */
     protected void onNewContextCreated(ApplicationContext newServiceContext) throws ServiceException {
         log.debug("{}: Loading new configuration into service", getId());
         AbstractErrorHandler oldErrorHandler = errorHandler;
         Map<String, AbstractRequestURIMappedProfileHandler> oldProfileHandlers = profileHandlers;
         Map<String, LoginHandler> oldLoginHandlers = loginHandlers;
+        LoginHandlerIndex oldLoginHandlerIndex = loginHandlerIndex;
 
         try {
             loadNewErrorHandler(newServiceContext);
@@ -135,6 +151,7 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
             errorHandler = oldErrorHandler;
             profileHandlers = oldProfileHandlers;
             loginHandlers = oldLoginHandlers;
+            loginHandlerIndex = oldLoginHandlerIndex;
             throw new ServiceException(getId() + " configuration is not valid, retaining old configuration", e);
         }
     }
@@ -182,7 +199,7 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
         String[] authnBeanNames = newServiceContext.getBeanNamesForType(LoginHandler.class);
         log.debug("{}: Loading {} new authentication handlers.", getId(), authnBeanNames.length);
 
-        Map<String, LoginHandler> newLoginHandlers = new HashMap<String, LoginHandler>();
+        Map<String, LoginHandler> newLoginHandlers = new LinkedHashMap<String, LoginHandler>();
         LoginHandler authnHandler;
         for (String authnBeanName : authnBeanNames) {
             authnHandler = (LoginHandler) newServiceContext.getBean(authnBeanName);
@@ -193,6 +210,8 @@ public class IdPProfileHandlerManager extends BaseReloadableService implements P
                 newLoginHandlers.put(authnMethod, authnHandler);
             }
         }
+        LoginHandlerIndex newLoginHandlerIndex = new LoginHandlerIndex(newLoginHandlers);
         loginHandlers = newLoginHandlers;
+        loginHandlerIndex = newLoginHandlerIndex;
     }
 }
\ No newline at end of file
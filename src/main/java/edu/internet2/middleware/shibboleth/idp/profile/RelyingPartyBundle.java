@@ -0,0 +1,237 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.xml.encryption.KeyEncryptionParameters;
+
+import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
+
+/**
+ * Everything a profile handler resolves about a relying party before it can process the party's request: its metadata,
+ * its relying party configuration, the metadata of the asserting party it is configured with, their role descriptors,
+ * the name identifier formats the party supports and the parameters used to encrypt keys to the party.
+ *
+ * A bundle is built once, by {@link AbstractSAMLProfileHandler}, and then shared by every request of the relying party
+ * until it is dropped from the {@link RelyingPartyBundleCache}. Role descriptors, name identifier formats and key
+ * encryption parameters are resolved on first use.
+ */
+public class RelyingPartyBundle {
+
+    /** Marker of a role descriptor resolved as absent. */
+    private static final Object NO_ROLE = new Object();
+
+    /** Entity ID of the relying party. */
+    private final String relyingPartyId;
+
+    /** Metadata of the relying party, null if it has none. */
+    private final EntityDescriptor relyingPartyMetadata;
+
+    /** Configuration of the relying party. */
+    private final RelyingPartyConfiguration relyingPartyConfiguration;
+
+    /** Metadata of the asserting party, null if it has none. */
+    private final EntityDescriptor assertingPartyMetadata;
+
+    /** Instant, in milliseconds since the epoch, the bundle was built. */
+    private final long creationInstant;
+
+    /** Role descriptors of the relying and asserting parties, by party, role and protocol. */
+    private final ConcurrentMap<String, Object> roleDescriptors;
+
+    /** Name identifier formats supported by roles of the relying party. */
+    private final ConcurrentMap<RoleDescriptor, List<String>> supportedNameFormats;
+
+    /** Parameters used to encrypt data encryption keys to the relying party, by data encryption algorithm. */
+    private final ConcurrentMap<String, KeyEncryptionParameters> keyEncryptionParameters;
+
+    /**
+     * Constructor.
+     *
+     * @param id entity ID of the relying party
+     * @param metadata metadata of the relying party, may be null
+     * @param configuration configuration of the relying party
+     * @param assertingMetadata metadata of the asserting party, may be null
+     */
+    public RelyingPartyBundle(String id, EntityDescriptor metadata, RelyingPartyConfiguration configuration,
+            EntityDescriptor assertingMetadata) {
+        if (configuration == null) {
+            throw new IllegalArgumentException("Relying party configuration may not be null");
+        }
+        relyingPartyId = id;
+        relyingPartyMetadata = metadata;
+        relyingPartyConfiguration = configuration;
+        assertingPartyMetadata = assertingMetadata;
+        creationInstant = System.currentTimeMillis();
+        roleDescriptors = new ConcurrentHashMap<String, Object>();
+        supportedNameFormats = new ConcurrentHashMap<RoleDescriptor, List<String>>();
+        keyEncryptionParameters = new ConcurrentHashMap<String, KeyEncryptionParameters>();
+    }
+
+    /**
+     * Gets the entity ID of the relying party.
+     *
+     * @return entity ID of the relying party
+     */
+    public String getRelyingPartyId() {
+        return relyingPartyId;
+    }
+
+    /**
+     * Gets the metadata of the relying party.
+     *
+     * @return metadata of the relying party, null if it has none
+     */
+    public EntityDescriptor getRelyingPartyMetadata() {
+        return relyingPartyMetadata;
+    }
+
+    /**
+     * Gets the configuration of the relying party.
+     *
+     * @return configuration of the relying party
+     */
+    public RelyingPartyConfiguration getRelyingPartyConfiguration() {
+        return relyingPartyConfiguration;
+    }
+
+    /**
+     * Gets the metadata of the asserting party the relying party is configured with.
+     *
+     * @return metadata of the asserting party, null if it has none
+     */
+    public EntityDescriptor getAssertingPartyMetadata() {
+        return assertingPartyMetadata;
+    }
+
+    /**
+     * Gets the instant the bundle was built.
+     *
+     * @return instant, in milliseconds since the epoch, the bundle was built
+     */
+    public long getCreationInstant() {
+        return creationInstant;
+    }
+
+    /**
+     * Gets the first role descriptor of the relying party of the given role supporting the given protocol.
+     *
+     * @param role name of the role descriptor element, or schema type, of the role
+     * @param protocol the protocol
+     *
+     * @return the role descriptor, or null if there is none
+     */
+    public RoleDescriptor getRelyingPartyRole(QName role, String protocol) {
+        return getRole("peer", relyingPartyMetadata, role, protocol);
+    }
+
+    /**
+     * Gets the first role descriptor of the asserting party of the given role supporting the given protocol.
+     *
+     * @param role name of the role descriptor element, or schema type, of the role
+     * @param protocol the protocol
+     *
+     * @return the role descriptor, or null if there is none
+     */
+    public RoleDescriptor getAssertingPartyRole(QName role, String protocol) {
+        return getRole("local", assertingPartyMetadata, role, protocol);
+    }
+
+    /**
+     * Gets the name identifier formats supported by a role of the relying party, if they have been resolved.
+     *
+     * @param role role of the relying party
+     *
+     * @return the supported formats, or null if they have not been resolved yet
+     */
+    public List<String> getSupportedNameFormats(RoleDescriptor role) {
+        return supportedNameFormats.get(role);
+    }
+
+    /**
+     * Sets the name identifier formats supported by a role of the relying party.
+     *
+     * @param role role of the relying party
+     * @param formats the supported formats, which must no longer be modified
+     */
+    public void setSupportedNameFormats(RoleDescriptor role, List<String> formats) {
+        supportedNameFormats.put(role, formats);
+    }
+
+    /**
+     * Gets the parameters used to encrypt data encryption keys to the relying party, if they have been resolved.
+     *
+     * @param dataAlgorithm URI of the algorithm of the data encryption keys
+     *
+     * @return the key encryption parameters, or null if they have not been resolved yet
+     */
+    public KeyEncryptionParameters getKeyEncryptionParameters(String dataAlgorithm) {
+        return keyEncryptionParameters.get(dataAlgorithm);
+    }
+
+    /**
+     * Sets the parameters used to encrypt data encryption keys to the relying party.
+     *
+     * @param dataAlgorithm URI of the algorithm of the data encryption keys
+     * @param parameters the key encryption parameters, which must no longer be modified
+     */
+    public void setKeyEncryptionParameters(String dataAlgorithm, KeyEncryptionParameters parameters) {
+        keyEncryptionParameters.put(dataAlgorithm, parameters);
+    }
+
+    /**
+     * Gets, resolving it on first use, the first role descriptor of an entity of the given role supporting the given
+     * protocol.
+     *
+     * @param party name of the party, to tell the relying and asserting party apart
+     * @param entity metadata of the party, may be null
+     * @param role name of the role descriptor element, or schema type, of the role
+     * @param protocol the protocol
+     *
+     * @return the role descriptor, or null if there is none
+     */
+    private RoleDescriptor getRole(String party, EntityDescriptor entity, QName role, String protocol) {
+        if (entity == null) {
+            return null;
+        }
+
+        String key = party + '|' + role + '|' + protocol;
+        Object descriptor = roleDescriptors.get(key);
+        if (descriptor == null) {
+            List<RoleDescriptor> descriptors = entity.getRoleDescriptors(role, protocol);
+            if (descriptors == null || descriptors.isEmpty()) {
+                descriptor = NO_ROLE;
+            } else {
+                descriptor = descriptors.get(0);
+            }
+            roleDescriptors.put(key, descriptor);
+        }
+
+        if (descriptor == NO_ROLE) {
+            return null;
+        }
+        return (RoleDescriptor) descriptor;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
+
+/**
+ * Cache of {@link RelyingPartyBundle}s, by relying party entity ID.
+ *
+ * Bundles are dropped when their metadata provider signals a refresh, when the metadata provider or relying party
+ * configurations they were built from are replaced by a reload, and at the latest after a maximum age, which bounds
+ * their staleness with metadata providers that do not signal refreshes. The number of cached bundles is bounded; once
+ * the bound is reached expired bundles are dropped and, if there are none, arbitrary ones. Lookups take no lock.
+ *
+ * A bundle built while the cache is cleared is not cached, so that a bundle built from replaced metadata or
+ * configuration can not outlive the clearing.
+ */
+public class RelyingPartyBundleCache {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(RelyingPartyBundleCache.class);
+
+    /** Maximum age, in milliseconds, of a bundle. */
+    private final long maxAge;
+
+    /** Maximum number of cached bundles. */
+    private final int maxEntries;
+
+    /** Cached bundles, by relying party entity ID. */
+    private final ConcurrentHashMap<String, RelyingPartyBundle> bundles;
+
+    /** Number of times the cache has been cleared. */
+    private final AtomicLong generation;
+
+    /** Observer clearing the cache on metadata refreshes. */
+    private final MetadataObserver metadataObserver;
+
+    /** Metadata provider the cached bundles were built from. */
+    private volatile MetadataProvider metadataProvider;
+
+    /** Anonymous relying party configuration in place when the cached bundles were built. */
+    private volatile RelyingPartyConfiguration anonymousConfiguration;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumAge maximum age, in milliseconds, of a bundle
+     * @param maximumEntries maximum number of cached bundles
+     */
+    public RelyingPartyBundleCache(long maximumAge, int maximumEntries) {
+        if (maximumAge <= 0) {
+            throw new IllegalArgumentException("Maximum age must be greater than 0");
+        }
+        if (maximumEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be greater than 0");
+        }
+        maxAge = maximumAge;
+        maxEntries = maximumEntries;
+        bundles = new ConcurrentHashMap<String, RelyingPartyBundle>();
+        generation = new AtomicLong();
+        metadataObserver = new MetadataObserver();
+    }
+
+    /**
+     * Gets the generation of the cache, which is to be passed to {@link #put(RelyingPartyBundle, long)} when a bundle
+     * missing from the cache has been built. Obtaining the generation also checks that the cached bundles were built
+     * from the given metadata provider and relying party configurations and, if not, clears the cache.
+     *
+     * @param provider current metadata provider
+     * @param anonymous current anonymous relying party configuration, which is replaced whenever the relying party
+     *            configurations are reloaded
+     *
+     * @return the current generation of the cache
+     */
+    public long getGeneration(MetadataProvider provider, RelyingPartyConfiguration anonymous) {
+        if (provider != metadataProvider || anonymous != anonymousConfiguration) {
+            synchronized (this) {
+                if (provider != metadataProvider || anonymous != anonymousConfiguration) {
+                    if (provider != metadataProvider) {
+                        if (metadataProvider instanceof ObservableMetadataProvider) {
+                            ((ObservableMetadataProvider) metadataProvider).getObservers().remove(metadataObserver);
+                        }
+                        if (provider instanceof ObservableMetadataProvider) {
+                            ((ObservableMetadataProvider) provider).getObservers().add(metadataObserver);
+                        }
+                    }
+                    if (metadataProvider != null) {
+                        log.debug("Metadata provider or relying party configurations replaced, clearing cache");
+                    }
+                    clear();
+                    metadataProvider = provider;
+                    anonymousConfiguration = anonymous;
+                }
+            }
+        }
+        return generation.get();
+    }
+
+    /**
+     * Gets the bundle of a relying party. The generation of the cache must have been checked first, with
+     * {@link #getGeneration(MetadataProvider, RelyingPartyConfiguration)}.
+     *
+     * @param relyingPartyId entity ID of the relying party
+     *
+     * @return the bundle of the relying party, or null if none is cached
+     */
+    public RelyingPartyBundle get(String relyingPartyId) {
+        if (relyingPartyId == null) {
+            return null;
+        }
+
+        RelyingPartyBundle bundle = bundles.get(relyingPartyId);
+        if (bundle != null && isExpired(bundle, System.currentTimeMillis())) {
+            bundles.remove(relyingPartyId, bundle);
+            return null;
+        }
+        return bundle;
+    }
+
+    /**
+     * Caches the bundle of a relying party, unless the cache has been cleared since it was built.
+     *
+     * @param bundle the bundle
+     * @param bundleGeneration generation of the cache when the bundle was found missing
+     */
+    public void put(RelyingPartyBundle bundle, long bundleGeneration) {
+        if (bundle.getRelyingPartyId() == null) {
+            return;
+        }
+
+        if (generation.get() != bundleGeneration) {
+            return;
+        }
+        if (!bundles.containsKey(bundle.getRelyingPartyId()) && bundles.size() >= maxEntries) {
+            evict(System.currentTimeMillis());
+        }
+        bundles.put(bundle.getRelyingPartyId(), bundle);
+
+        // clear() moves to the next generation before dropping the bundles, so a clearing that missed this bundle
+        // is seen here
+        if (generation.get() != bundleGeneration) {
+            bundles.remove(bundle.getRelyingPartyId(), bundle);
+        }
+    }
+
+    /** Drops every cached bundle. */
+    public void clear() {
+        generation.incrementAndGet();
+        bundles.clear();
+    }
+
+    /**
+     * Gets the number of cached bundles.
+     *
+     * @return number of cached bundles
+     */
+    public int getSize() {
+        return bundles.size();
+    }
+
+    /**
+     * Checks whether a bundle is older than the maximum age.
+     *
+     * @param bundle the bundle
+     * @param now current instant, in milliseconds since the epoch
+     *
+     * @return true if the bundle is too old to be used
+     */
+    private boolean isExpired(RelyingPartyBundle bundle, long now) {
+        return now - bundle.getCreationInstant() >= maxAge;
+    }
+
+    /**
+     * Makes room for a new bundle, by dropping expired bundles or, if there are none, arbitrary bundles.
+     *
+     * @param now current instant, in milliseconds since the epoch
+     */
+    private void evict(long now) {
+        Iterator<RelyingPartyBundle> values = bundles.values().iterator();
+        while (values.hasNext()) {
+            if (isExpired(values.next(), now)) {
+                values.remove();
+            }
+        }
+
+        values = bundles.values().iterator();
+        while (bundles.size() >= maxEntries && values.hasNext()) {
+            values.next();
+            values.remove();
+        }
+    }
+
+    /** Clears the cache whenever the observed metadata provider signals a refresh. */
+    private class MetadataObserver implements ObservableMetadataProvider.Observer {
+
+        /** {@inheritDoc} */
+        public void onEvent(MetadataProvider provider) {
+            log.debug("Metadata refreshed, clearing cached relying party bundles");
+            clear();
+        }
+    }
+}
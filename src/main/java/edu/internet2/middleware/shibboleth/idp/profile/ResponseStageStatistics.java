@@ -0,0 +1,123 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number and duration of the stages a profile handler goes through to produce a SAML response: building the response,
+ * signing its assertion, encrypting its assertion and encoding it to the outbound transport.
+ */
+public class ResponseStageStatistics {
+
+    /** Stages of the production of a response. */
+    public static enum Stage {
+
+        /** Building the response and its assertion. */
+        BUILD,
+
+        /** Signing the assertion. */
+        SIGN,
+
+        /** Encrypting the assertion. */
+        ENCRYPT,
+
+        /** Encoding, which includes serializing and possibly signing, the response. */
+        ENCODE
+    }
+
+    /** Number of times each stage was completed. */
+    private final AtomicLongArray counts;
+
+    /** Total time, in nanoseconds, spent in each stage. */
+    private final AtomicLongArray totalTimes;
+
+    /** Longest time, in nanoseconds, spent in one run of each stage. */
+    private final AtomicLongArray maxTimes;
+
+    /** Constructor. */
+    public ResponseStageStatistics() {
+        int stages = Stage.values().length;
+        counts = new AtomicLongArray(stages);
+        totalTimes = new AtomicLongArray(stages);
+        maxTimes = new AtomicLongArray(stages);
+    }
+
+    /**
+     * Gets the start instant of a stage, to be passed to {@link #record(Stage, long)} once the stage is completed.
+     * 
+     * @return the start instant, in nanoseconds of an arbitrary origin
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the completion of a stage.
+     * 
+     * @param stage the completed stage
+     * @param startInstant instant the stage started, as returned by {@link #start()}
+     * 
+     * @return the time, in nanoseconds, spent in the stage
+     */
+    public long record(Stage stage, long startInstant) {
+        long time = System.nanoTime() - startInstant;
+        int index = stage.ordinal();
+        counts.incrementAndGet(index);
+        totalTimes.addAndGet(index, time);
+
+        long max = maxTimes.get(index);
+        while (time > max && !maxTimes.compareAndSet(index, max, time)) {
+            max = maxTimes.get(index);
+        }
+        return time;
+    }
+
+    /**
+     * Gets the number of times a stage was completed.
+     * 
+     * @param stage the stage
+     * 
+     * @return number of times the stage was completed
+     */
+    public long getCount(Stage stage) {
+        return counts.get(stage.ordinal());
+    }
+
+    /**
+     * Gets the total time spent in a stage.
+     * 
+     * @param stage the stage
+     * 
+     * @return total time, in milliseconds, spent in the stage
+     */
+    public long getTotalTime(Stage stage) {
+        return totalTimes.get(stage.ordinal()) / 1000000;
+    }
+
+    /**
+     * Gets the longest time spent in one run of a stage.
+     * 
+     * @param stage the stage
+     * 
+     * @return longest time, in milliseconds, spent in one run of the stage
+     */
+    public long getMaxTime(Stage stage) {
+        return maxTimes.get(stage.ordinal()) / 1000000;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opensaml.Configuration;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.KeyInfoGeneratorFactory;
+import org.opensaml.xml.security.keyinfo.NamedKeyInfoGeneratorManager;
+import org.opensaml.xml.signature.Signature;
+
+/**
+ * Cache of the signature parameters derived from signing credentials.
+ * 
+ * {@link SecurityHelper#prepareSignatureParams(Signature, Credential, SecurityConfiguration, String)} looks the
+ * signature and canonicalization algorithms up in the global security configuration, and the key info generator in
+ * its generator managers, every time a signature is prepared. The outcome only depends on the credential, so it is
+ * worked out once per credential and applied to each signature as a template. Key info is still generated for each
+ * signature, since an XML object may only have a single parent, by a generator obtained for that signature alone from
+ * the cached generator factory, since generators are not safe for use by concurrent threads.
+ * 
+ * Credentials are replaced when the relying party configurations are reloaded, so the cache is cleared once it holds
+ * more than a few templates rather than holding on to the replaced credentials.
+ */
+public class SignatureTemplateCache {
+
+    /** Number of templates beyond which the cache is cleared. */
+    private static final int MAX_TEMPLATES = 64;
+
+    /** Builder of the scratch signatures the templates are derived from. */
+    private final XMLObjectBuilder<Signature> signatureBuilder;
+
+    /** Templates, by signing credential. */
+    private final ConcurrentMap<Credential, SignatureTemplate> templates;
+
+    /** Constructor. */
+    @SuppressWarnings("unchecked")
+    public SignatureTemplateCache() {
+        signatureBuilder = (XMLObjectBuilder<Signature>) Configuration.getBuilderFactory().getBuilder(
+                Signature.DEFAULT_ELEMENT_NAME);
+        templates = new ConcurrentHashMap<Credential, SignatureTemplate>();
+    }
+
+    /**
+     * Prepares a signature for signing with a credential: sets its signature and canonicalization algorithms, HMAC
+     * output length and key info.
+     * 
+     * @param signature signature to prepare, whose signing credential is set
+     * 
+     * @throws SecurityException thrown if the signature parameters can not be derived from the credential or its key
+     *             info can not be generated
+     */
+    public void prepare(Signature signature) throws SecurityException {
+        Credential credential = signature.getSigningCredential();
+        SignatureTemplate template = templates.get(credential);
+        if (template == null) {
+            template = new SignatureTemplate(credential);
+            if (templates.size() >= MAX_TEMPLATES) {
+                templates.clear();
+            }
+            templates.put(credential, template);
+        }
+        template.apply(signature, credential);
+    }
+
+    /**
+     * Gets the number of cached templates.
+     * 
+     * @return number of cached templates
+     */
+    public int getSize() {
+        return templates.size();
+    }
+
+    /** Signature parameters derived from a signing credential. */
+    private class SignatureTemplate {
+
+        /** URI of the signature algorithm. */
+        private final String signatureAlgorithm;
+
+        /** URI of the canonicalization algorithm. */
+        private final String canonicalizationAlgorithm;
+
+        /** HMAC output length, null if the signature algorithm is not an HMAC or the length is not constrained. */
+        private final Integer hmacOutputLength;
+
+        /** Factory of the generators of the key info of the signatures, null if signatures carry no key info. */
+        private final KeyInfoGeneratorFactory keyInfoGeneratorFactory;
+
+        /**
+         * Constructor.
+         * 
+         * @param credential signing credential
+         * 
+         * @throws SecurityException thrown if the signature parameters can not be derived from the credential
+         */
+        public SignatureTemplate(Credential credential) throws SecurityException {
+            SecurityConfiguration config = Configuration.getGlobalSecurityConfiguration();
+            Signature scratch = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
+            scratch.setSigningCredential(credential);
+            SecurityHelper.prepareSignatureParams(scratch, credential, config, null);
+
+            signatureAlgorithm = scratch.getSignatureAlgorithm();
+            canonicalizationAlgorithm = scratch.getCanonicalizationAlgorithm();
+            hmacOutputLength = scratch.getHMACOutputLength();
+            // looked up as SecurityHelper.getKeyInfoGenerator() does, keeping the factory rather than one generator
+            NamedKeyInfoGeneratorManager keyInfoManager = config.getKeyInfoGeneratorManager();
+            if (scratch.getKeyInfo() != null && keyInfoManager != null) {
+                keyInfoGeneratorFactory = keyInfoManager.getDefaultManager().getFactory(credential);
+            } else {
+                keyInfoGeneratorFactory = null;
+            }
+        }
+
+        /**
+         * Applies the template to a signature.
+         * 
+         * @param signature signature to prepare
+         * @param credential signing credential of the signature
+         * 
+         * @throws SecurityException thrown if the key info of the signature can not be generated
+         */
+        public void apply(Signature signature, Credential credential) throws SecurityException {
+            signature.setSignatureAlgorithm(signatureAlgorithm);
+            signature.setCanonicalizationAlgorithm(canonicalizationAlgorithm);
+            if (hmacOutputLength != null) {
+                signature.setHMACOutputLength(hmacOutputLength);
+            }
+            if (keyInfoGeneratorFactory != null) {
+                signature.setKeyInfo(keyInfoGeneratorFactory.newInstance().generate(credential));
+            }
+        }
+    }
+}
@@ -52,7 +52,6 @@ import org.opensaml.xml.XMLObjectBuilder;
 import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.security.SecurityException;
-import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.SignatureException;
@@ -72,6 +71,8 @@ import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfi
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.CryptoOperationRequirementLevel;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml1.AbstractSAML1ProfileConfiguration;
 import edu.internet2.middleware.shibboleth.idp.profile.AbstractSAMLProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponseStageStatistics;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponseStageStatistics.Stage;
 import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 
@@ -229,6 +230,10 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
     protected Response buildResponse(BaseSAML1ProfileRequestContext<?, ?, ?> requestContext, List<Statement> statements)
             throws ProfileException {
 
+        ResponseStageStatistics statistics = getResponseStageStatistics();
+        long buildStart = statistics.start();
+        long signTime = 0;
+
         DateTime issueInstant = new DateTime();
 
         // create the SAML response and add the assertion
@@ -242,12 +247,19 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
             assertion = buildAssertion(requestContext, issueInstant);
             assertion.getStatements().addAll(statements);
             samlResponse.getAssertions().add(assertion);
+            long signStart = statistics.start();
             signAssertion(requestContext, assertion);
+            if (assertion.getSignature() != null) {
+                signTime = statistics.record(Stage.SIGN, signStart);
+            }
         }
 
         Status status = buildStatus(StatusCode.SUCCESS, null, null);
         samlResponse.setStatus(status);
 
+        // the build stage excludes the time spent signing
+        statistics.record(Stage.BUILD, buildStart + signTime);
+
         return samlResponse;
     }
 
@@ -611,7 +623,7 @@ public abstract class AbstractSAML1ProfileHandler extends AbstractSAMLProfileHan
         try {
             // TODO pull SecurityConfiguration from SAMLMessageContext? needs to be added
             // TODO how to pull what keyInfoGenName to use?
-            SecurityHelper.prepareSignatureParams(signature, signatureCredential, null, null);
+            prepareSignatureParams(signature);
         } catch (SecurityException e) {
             requestContext.setFailureStatus(buildStatus(StatusCode.RESPONDER, StatusCode.REQUEST_DENIED,
                     "Unable to prepare assertion signature"));
@@ -181,7 +181,8 @@ public class ArtifactResolution extends AbstractSAML1ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setPeerEntityRoleMetadata(getPeerEntityRoleMetadata(requestContext,
+                    SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML11P_NS));
         }
     }
 
@@ -193,8 +194,8 @@ public class ArtifactResolution extends AbstractSAML1ProfileHandler {
         EntityDescriptor localEntityDescriptor = requestContext.getLocalEntityMetadata();
         if (localEntityDescriptor != null) {
             requestContext.setLocalEntityRole(AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setLocalEntityRoleMetadata(localEntityDescriptor
-                    .getAttributeAuthorityDescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setLocalEntityRoleMetadata(getLocalEntityRoleMetadata(requestContext,
+                    AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML11P_NS));
         }
     }
 
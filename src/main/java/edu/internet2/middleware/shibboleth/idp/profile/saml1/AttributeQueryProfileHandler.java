@@ -195,7 +195,8 @@ public class AttributeQueryProfileHandler extends AbstractSAML1ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setPeerEntityRoleMetadata(getPeerEntityRoleMetadata(requestContext,
+                    SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML11P_NS));
         }
     }
 
@@ -207,8 +208,8 @@ public class AttributeQueryProfileHandler extends AbstractSAML1ProfileHandler {
         EntityDescriptor localEntityDescriptor = requestContext.getLocalEntityMetadata();
         if (localEntityDescriptor != null) {
             requestContext.setLocalEntityRole(AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setLocalEntityRoleMetadata(localEntityDescriptor
-                    .getAttributeAuthorityDescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setLocalEntityRoleMetadata(getLocalEntityRoleMetadata(requestContext,
+                    AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML11P_NS));
         }
     }
 
@@ -59,14 +59,12 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRe
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml1.ShibbolethSSOConfiguration;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
-<<<<<<< HEAD
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContext;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AbstractSessionManager;
 import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
-=======
->>>>>>> tags/2.3.7
-import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
-import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContext;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 import org.opensaml.saml1.core.NameIdentifier;
 
@@ -128,27 +126,42 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
                 servletContext, httpRequest);
         
         if(loginContext != null){
-            HttpServletHelper.unbindLoginContext(getStorageService(), servletContext, httpRequest, httpResponse);
+            if (HttpServletHelper.unbindLoginContext(getStorageService(), servletContext, httpRequest,
+                    httpResponse) == null) {
+                if (!hasInboundMessage(httpRequest)) {
+                    log.warn("Incoming request contained a login context that has already been used and no "
+                            + "authentication request, refusing to process it again");
+                    throw new ProfileException("Login context has already been used");
+                }
+                log.debug("Incoming request contained a login context that has already been used, processing "
+                        + "as first leg of request");
+                performAuthentication(inTransport, outTransport);
+                return;
+            }
             
             if(!(loginContext instanceof ShibbolethSSOLoginContext)){
-                log.debug("Incoming request contained a login context but it was not a ShibbolethSSOLoginContext, processing as first leg of request");
+                log.debug("Incoming request contained a login context but it was not a ShibbolethSSOLoginContext, "
+                        + "processing as first leg of request");
                 performAuthentication(inTransport, outTransport);
                 return;
             }
             
             if(loginContext.isPrincipalAuthenticated()){
-                log.debug("Incoming request contains a login context and indicates principal was authenticated, processing second leg of request");
+                log.debug("Incoming request contains a login context and indicates principal was authenticated, "
+                        + "processing second leg of request");
                 completeAuthenticationRequest((ShibbolethSSOLoginContext)loginContext, inTransport, outTransport);
                 return;
             }
             
             if(loginContext.getAuthenticationFailure() != null){
-                log.debug("Incoming request contains a login context and indicates there was an error authenticating the principal, processing second leg of request");
+                log.debug("Incoming request contains a login context and indicates there was an error "
+                        + "authenticating the principal, processing second leg of request");
                 completeAuthenticationRequest((ShibbolethSSOLoginContext)loginContext, inTransport, outTransport);
                 return;
             }
 
-            log.debug("Incoming request contains a login context but principal was not authenticated, processing first leg of request");
+            log.debug("Incoming request contains a login context but principal was not authenticated, "
+                    + "processing first leg of request");
             performAuthentication(inTransport, outTransport);
             return;
         }
@@ -158,6 +171,17 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
         return;
     }
 
+    /**
+     * Checks whether a request carries a Shibboleth authentication request, so that a new login may be started from it.
+     * 
+     * @param httpRequest the request
+     * 
+     * @return true if the request carries a Shibboleth authentication request
+     */
+    private boolean hasInboundMessage(HttpServletRequest httpRequest) {
+        return httpRequest.getParameter("shire") != null;
+    }
+
     /**
      * Creates a {@link ShibbolethSSOLoginContext} an sends the request off to the AuthenticationManager to begin the
      * process of authenticating the user.
@@ -190,6 +214,12 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
             throw new ProfileException(msg);
         }
 
+        if (AuthenticationEngine.authenticateWithPreviousSession(loginContext, httpRequest, httpResponse)) {
+            log.debug("Existing IdP session used for authentication, completing request without authentication engine");
+            completeAuthenticationRequest(loginContext, inTransport, outTransport);
+            return;
+        }
+
         HttpServletHelper.bindLoginContext(loginContext, getStorageService(), httpRequest.getSession()
                 .getServletContext(), httpRequest, httpResponse);
 
@@ -315,6 +345,7 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
             if (index != null) {
                 sessionManager.indexSession(session, index);
             }
+            AbstractSessionManager.writeBack(sessionManager, session);
         } catch (ProfileException e) {
             samlResponse = buildErrorResponse(requestContext);
         }
@@ -372,7 +403,8 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML11P_NS));
+            requestContext.setPeerEntityRoleMetadata(getPeerEntityRoleMetadata(requestContext,
+                    SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML11P_NS));
         }
     }
 
@@ -384,8 +416,8 @@ public class ShibbolethSSOProfileHandler extends AbstractSAML1ProfileHandler {
         EntityDescriptor localEntityDescriptor = requestContext.getLocalEntityMetadata();
         if (localEntityDescriptor != null) {
             requestContext.setLocalEntityRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setLocalEntityRoleMetadata(localEntityDescriptor
-                    .getIDPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setLocalEntityRoleMetadata(getLocalEntityRoleMetadata(requestContext,
+                    IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
         }
     }
 
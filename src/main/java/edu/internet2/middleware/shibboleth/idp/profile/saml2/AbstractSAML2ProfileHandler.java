@@ -17,10 +17,13 @@
 
 package edu.internet2.middleware.shibboleth.idp.profile.saml2;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import javax.crypto.spec.SecretKeySpec;
+
 import org.joda.time.DateTime;
 import org.opensaml.Configuration;
 import org.opensaml.common.SAMLObjectBuilder;
@@ -51,6 +54,7 @@ import org.opensaml.saml2.encryption.Encrypter;
 import org.opensaml.saml2.encryption.Encrypter.KeyPlacement;
 import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.security.MetadataCredentialResolver;
 import org.opensaml.security.MetadataCriteria;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
@@ -91,8 +95,12 @@ import edu.internet2.middleware.shibboleth.common.profile.provider.BaseSAMLProfi
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.CryptoOperationRequirementLevel;
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.AbstractSAML2ProfileConfiguration;
 import edu.internet2.middleware.shibboleth.idp.profile.AbstractSAMLProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.RelyingPartyBundle;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponseStageStatistics;
+import edu.internet2.middleware.shibboleth.idp.profile.ResponseStageStatistics.Stage;
 import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.PerThreadRandomSource;
 
 /** Common implementation details for profile handlers. */
 public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHandler {
@@ -145,6 +153,9 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
     /** For building signature. */
     private XMLObjectBuilder<Signature> signatureBuilder;
 
+    /** Source of the random bytes of data encryption keys. */
+    private final PerThreadRandomSource dataKeySource;
+
     /** Constructor. */
     @SuppressWarnings("unchecked")
     protected AbstractSAML2ProfileHandler() {
@@ -172,6 +183,7 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
                 ProxyRestriction.DEFAULT_ELEMENT_NAME);
         audienceBuilder = (SAMLObjectBuilder<Audience>) getBuilderFactory().getBuilder(Audience.DEFAULT_ELEMENT_NAME);
         signatureBuilder = (XMLObjectBuilder<Signature>) getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME);
+        dataKeySource = new PerThreadRandomSource();
     }
 
     /** {@inheritDoc} */
@@ -253,6 +265,11 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
     protected Response buildResponse(BaseSAML2ProfileRequestContext<?, ?, ?> requestContext,
             String subjectConfirmationMethod, List<Statement> statements) throws ProfileException {
 
+        ResponseStageStatistics statistics = getResponseStageStatistics();
+        long buildStart = statistics.start();
+        long signTime = 0;
+        long encryptTime = 0;
+
         DateTime issueInstant = new DateTime();
 
         Response samlResponse = responseBuilder.buildObject();
@@ -267,8 +284,12 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
 
             postProcessAssertion(requestContext, assertion);
 
+            long signStart = statistics.start();
             signAssertion(requestContext, assertion);
-            
+            if (assertion.getSignature() != null) {
+                signTime = statistics.record(Stage.SIGN, signStart);
+            }
+
             if (isEncryptAssertion(requestContext)) {
                 if (log.isDebugEnabled()) {
                     log.debug("Attempting to encrypt assertion to relying party '{}'",
@@ -283,8 +304,10 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
                 }
 
                 try {
+                    long encryptStart = statistics.start();
                     Encrypter encrypter = getEncrypter(requestContext.getInboundMessageIssuer());
                     samlResponse.getEncryptedAssertions().add(encrypter.encrypt(assertion));
+                    encryptTime = statistics.record(Stage.ENCRYPT, encryptStart);
                 } catch (SecurityException e) {
                     log.error("Unable to construct encrypter", e);
                     requestContext.setFailureStatus(buildStatus(StatusCode.RESPONDER_URI, null,
@@ -306,6 +329,9 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
 
         postProcessResponse(requestContext, samlResponse);
 
+        // the build stage excludes the time spent signing and encrypting
+        statistics.record(Stage.BUILD, buildStart + signTime + encryptTime);
+
         return samlResponse;
     }
 
@@ -599,7 +625,7 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
         try {
             // TODO pull SecurityConfiguration from SAMLMessageContext? needs to be added
             // TODO how to pull what keyInfoGenName to use?
-            SecurityHelper.prepareSignatureParams(signature, signatureCredential, null, null);
+            prepareSignatureParams(signature);
         } catch (SecurityException e) {
             requestContext.setFailureStatus(buildStatus(StatusCode.RESPONDER_URI, null,
                     "Unable to prepare assertion for signing"));
@@ -902,7 +928,9 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
     }
 
     /**
-     * Gets an encrypter that may be used encrypt content to a given peer.
+     * Gets an encrypter that may be used encrypt content to a given peer. The parameters used to encrypt keys to the
+     * peer are cached with the peer's relying party bundle, so that its key encryption credential is only resolved
+     * from metadata again once the metadata is refreshed.
      * 
      * @param peerEntityId entity ID of the peer
      * 
@@ -917,21 +945,63 @@ public abstract class AbstractSAML2ProfileHandler extends AbstractSAMLProfileHan
 
         EncryptionParameters dataEncParams = SecurityHelper
                 .buildDataEncryptionParams(null, securityConfiguration, null);
+        SecretKeySpec dataKey = generateDataEncryptionKey(dataEncParams.getAlgorithm());
+        if (dataKey != null) {
+            dataEncParams.setEncryptionCredential(SecurityHelper.getSimpleCredential(dataKey));
+        }
 
-        Credential keyEncryptionCredential = getKeyEncryptionCredential(peerEntityId);
-        if (keyEncryptionCredential == null) {
-            log.error("Could not resolve a key encryption credential for peer entity: {}", peerEntityId);
-            throw new SecurityException("Could not resolve key encryption credential");
+        RelyingPartyBundle bundle;
+        try {
+            bundle = getRelyingPartyBundle(peerEntityId);
+        } catch (MetadataProviderException e) {
+            log.error("Unable to look up metadata for peer entity: " + peerEntityId, e);
+            throw new SecurityException("Unable to look up metadata for peer entity", e);
+        }
+
+        KeyEncryptionParameters keyEncParams = null;
+        if (bundle != null) {
+            keyEncParams = bundle.getKeyEncryptionParameters(dataEncParams.getAlgorithm());
+        }
+        if (keyEncParams == null) {
+            Credential keyEncryptionCredential = getKeyEncryptionCredential(peerEntityId);
+            if (keyEncryptionCredential == null) {
+                log.error("Could not resolve a key encryption credential for peer entity: {}", peerEntityId);
+                throw new SecurityException("Could not resolve key encryption credential");
+            }
+            String wrappedJCAKeyAlgorithm = SecurityHelper.getKeyAlgorithmFromURI(dataEncParams.getAlgorithm());
+            keyEncParams = SecurityHelper.buildKeyEncryptionParams(keyEncryptionCredential, wrappedJCAKeyAlgorithm,
+                    securityConfiguration, null, null);
+            if (bundle != null) {
+                bundle.setKeyEncryptionParameters(dataEncParams.getAlgorithm(), keyEncParams);
+            }
         }
-        String wrappedJCAKeyAlgorithm = SecurityHelper.getKeyAlgorithmFromURI(dataEncParams.getAlgorithm());
-        KeyEncryptionParameters keyEncParams = SecurityHelper.buildKeyEncryptionParams(keyEncryptionCredential,
-                wrappedJCAKeyAlgorithm, securityConfiguration, null, null);
 
         Encrypter encrypter = new Encrypter(dataEncParams, keyEncParams);
         encrypter.setKeyPlacement(KeyPlacement.INLINE);
         return encrypter;
     }
 
+    /**
+     * Generates a new data encryption key from the handler's per-thread random source, sparing the encrypter the
+     * lookup of a JCE key generator and the contention on its shared PRNG. Keys are never reused.
+     * 
+     * @param algorithmURI URI of the data encryption algorithm
+     * 
+     * @return the key, or null if the key algorithm or length of the data encryption algorithm is not known, in which
+     *         case the encrypter generates the key itself
+     */
+    protected SecretKeySpec generateDataEncryptionKey(String algorithmURI) {
+        String keyAlgorithm = SecurityHelper.getKeyAlgorithmFromURI(algorithmURI);
+        Integer keyLength = SecurityHelper.getKeyLengthFromURI(algorithmURI);
+        if (keyAlgorithm == null || keyLength == null) {
+            return null;
+        }
+        byte[] keyBytes = dataKeySource.nextBytes(keyLength / 8);
+        SecretKeySpec key = new SecretKeySpec(keyBytes, keyAlgorithm);
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
     /**
      * Gets the credential that can be used to encrypt encryption keys for a peer.
      * 
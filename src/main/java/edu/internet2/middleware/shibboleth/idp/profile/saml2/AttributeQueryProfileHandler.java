@@ -212,7 +212,8 @@ public class AttributeQueryProfileHandler extends AbstractSAML2ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setPeerEntityRoleMetadata(getPeerEntityRoleMetadata(requestContext,
+                    SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -224,8 +225,8 @@ public class AttributeQueryProfileHandler extends AbstractSAML2ProfileHandler {
         EntityDescriptor localEntityDescriptor = requestContext.getLocalEntityMetadata();
         if (localEntityDescriptor != null) {
             requestContext.setLocalEntityRole(AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setLocalEntityRoleMetadata(localEntityDescriptor
-                    .getAttributeAuthorityDescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setLocalEntityRoleMetadata(getLocalEntityRoleMetadata(requestContext,
+                    AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
         }
     }
 
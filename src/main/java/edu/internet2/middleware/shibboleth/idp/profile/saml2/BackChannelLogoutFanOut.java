@@ -0,0 +1,108 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile.saml2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the back-channel logouts of a single logout concurrently and waits for them until a common deadline.
+ *
+ * Logouts still running at the deadline are aborted. They are reported as unfinished together with the logouts the
+ * executor refused to take. No logout is ever run on the thread requesting the single logout, so the deadline bounds
+ * how long that thread waits.
+ */
+final class BackChannelLogoutFanOut {
+
+    /** Class logger. */
+    private static final Logger log = LoggerFactory.getLogger(BackChannelLogoutFanOut.class);
+
+    /** Constructor. */
+    private BackChannelLogoutFanOut() {
+    }
+
+    /**
+     * Runs back-channel logouts and waits for them until the deadline.
+     *
+     * @param <T> type of the tasks
+     * @param executor executor running the logouts
+     * @param tasks tasks issuing the logouts
+     * @param timeout time, in milliseconds, the logouts are allowed to take overall
+     *
+     * @return the tasks which did not complete in time, either because they were refused or because they were still
+     *         running at the deadline and have been aborted
+     */
+    static <T extends Task> List<T> run(ExecutorService executor, List<T> tasks, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<T> submitted = new ArrayList<T>(tasks.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        List<T> unfinished = new ArrayList<T>();
+        for (T task : tasks) {
+            try {
+                futures.add(executor.submit(task));
+                submitted.add(task);
+            } catch (RejectedExecutionException e) {
+                log.warn("Too many back-channel logouts in progress, refusing to issue one more");
+                unfinished.add(task);
+            }
+        }
+
+        int completed = 0;
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    // the tasks catch everything they throw, a failed one is still over so keep waiting for the others
+                    log.error("Unexpected exception caught while issuing back-channel logout request", e.getCause());
+                }
+                completed++;
+            }
+        } catch (TimeoutException e) {
+            log.info("Back-channel logout did not complete within {}ms", timeout);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for back-channel logout to complete");
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = completed; i < submitted.size(); i++) {
+            if (!futures.get(i).isDone()) {
+                futures.get(i).cancel(false);
+                submitted.get(i).abort();
+                unfinished.add(submitted.get(i));
+            }
+        }
+        return unfinished;
+    }
+
+    /** Task issuing the back-channel logout of a session participant. */
+    interface Task extends Runnable {
+
+        /** Aborts the logout, which is still running at the deadline. */
+        void abort();
+    }
+}
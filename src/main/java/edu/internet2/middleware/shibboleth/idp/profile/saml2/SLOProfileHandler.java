@@ -22,35 +22,40 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfi
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.LogoutRequestConfiguration;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
+import edu.internet2.middleware.shibboleth.idp.profile.RelyingPartyBundle;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 import edu.internet2.middleware.shibboleth.idp.slo.HTTPClientInTransportAdapter;
 import edu.internet2.middleware.shibboleth.idp.slo.HTTPClientOutTransportAdapter;
+import edu.internet2.middleware.shibboleth.idp.slo.LogoutRetryQueue;
+import edu.internet2.middleware.shibboleth.idp.slo.LogoutRetryQueue.PendingLogout;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextStorageHelper;
+import edu.internet2.middleware.shibboleth.idp.util.HttpClientPool;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
-import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
-import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnection;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
-import org.apache.commons.httpclient.contrib.ssl.EasySSLProtocolSocketFactory;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
-import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
 import org.joda.time.DateTime;
 import org.opensaml.common.SAMLObjectBuilder;
 import org.opensaml.common.SAMLVersion;
@@ -81,7 +86,6 @@ import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
-import org.opensaml.ws.soap.client.http.HttpClientBuilder;
 import org.opensaml.ws.transport.http.HTTPInTransport;
 import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
@@ -108,6 +112,36 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
     private final SAMLObjectBuilder<LogoutRequest> requestBuilder;
     private final SAMLObjectBuilder<Issuer> issuerBuilder;
 
+    /** Default number of threads issuing back-channel logout requests. */
+    public static final int DEFAULT_BACK_CHANNEL_LOGOUT_THREADS = 16;
+
+    /** Number of threads issuing back-channel logout requests concurrently, 0 to issue them one after another. */
+    private int backChannelLogoutThreads = DEFAULT_BACK_CHANNEL_LOGOUT_THREADS;
+
+    /**
+     * Maximum time, in milliseconds, a back-channel logout may take overall, 0 to allow as much time as the slowest
+     * session participant may take according to its relying party configuration.
+     */
+    private long backChannelLogoutTimeout;
+
+    /** Default time, in milliseconds, allowed for the back-channel logout of a participant without configuration. */
+    public static final long DEFAULT_BACK_CHANNEL_LOGOUT_TIMEOUT = 10000;
+
+    /** Executor issuing back-channel logout requests, created on first use. */
+    private ThreadPoolExecutor backChannelLogoutExecutor;
+
+    /** Default maximum number of pooled back-channel connections to a single SP. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** Default maximum number of pooled back-channel connections to all SPs. */
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 64;
+
+    /** Pool of the connections back-channel logout requests are issued over. */
+    private HttpClientPool httpClientPool;
+
+    /** Queue of failed back-channel logouts to retry, null if they are not retried. */
+    private LogoutRetryQueue logoutRetryQueue;
+
     public SLOProfileHandler() {
         super();
         sloServiceBuilder = (SAMLObjectBuilder<SingleLogoutService>) getBuilderFactory().getBuilder(
@@ -156,7 +190,8 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
                 requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setPeerEntityRoleMetadata(getPeerEntityRoleMetadata(requestContext,
+                    SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -382,16 +417,37 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      */
     public SingleLogoutContext administrativeLogout(Session idpSession) throws ProfileException {
         log.info("Administratively logging out user '{}'", idpSession.getPrincipalName());
+        SingleLogoutContext sloContext = createAdministrativeLogoutContext(idpSession);
+        administrativeLogout(sloContext);
+        destroySession(sloContext);
+        return sloContext;
+    }
+
+    /**
+     * Creates the context of an administrative logout of a session. The context holds everything needed to log out
+     * the session participants, so the session may be destroyed before they are.
+     * 
+     * @param idpSession session to log out
+     * @return context of the logout
+     */
+    public SingleLogoutContext createAdministrativeLogoutContext(Session idpSession) {
         InitialLogoutRequestContext initialRequest = createInitialLogoutRequestContext();
-        SingleLogoutContext sloContext = SingleLogoutContext.createInstance(null, initialRequest, idpSession);
+        return SingleLogoutContext.createInstance(null, initialRequest, idpSession);
+    }
+
+    /**
+     * Issues back-channel logout requests to all session participants of an administrative logout. The session
+     * itself is not destroyed.
+     * 
+     * @param sloContext context of the logout, see {@link #createAdministrativeLogoutContext(Session)}
+     */
+    public void administrativeLogout(SingleLogoutContext sloContext) {
         try {
             initiateBackChannelLogout(sloContext);
         } catch (ProfileException e) {
-            log.error("Exception was caught while administratively logging out user '{}'",
-                    idpSession.getPrincipalName(), e);
+            log.error("Exception was caught while administratively logging out session '{}'",
+                    sloContext.getIdpSessionID(), e);
         }
-        destroySession(sloContext);
-        return sloContext;
     }
 
     /**
@@ -456,16 +512,246 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      * @throws ProfileException
      */
     private void initiateBackChannelLogout(SingleLogoutContext sloContext) throws ProfileException {
+        ThreadPoolExecutor executor = getBackChannelLogoutExecutor();
+        if (executor == null) {
+            for (LogoutInformation serviceLogoutInfo : sloContext.getServiceInformation().values()) {
+                if (serviceLogoutInfo.isLoggedIn()) {
+                    new BackChannelLogoutTask(sloContext, serviceLogoutInfo).run();
+                }
+            }
+            return;
+        }
+
+        List<BackChannelLogoutTask> tasks = new ArrayList<BackChannelLogoutTask>();
+        long timeout = 0;
         for (LogoutInformation serviceLogoutInfo : sloContext.getServiceInformation().values()) {
             if (serviceLogoutInfo.isLoggedIn()) {
-                try {
-                    initiateBackChannelLogout(sloContext, serviceLogoutInfo);
-                } catch (ProfileException ex) {
-                    log.warn("Caught exception while trying to issue LogoutRequest to '{}'",
-                            serviceLogoutInfo.getEntityID(), ex);
-                    serviceLogoutInfo.setLogoutFailed();
+                tasks.add(new BackChannelLogoutTask(sloContext, serviceLogoutInfo));
+                timeout = Math.max(timeout, getBackChannelLogoutTimeout(serviceLogoutInfo));
+            }
+        }
+        if (backChannelLogoutTimeout > 0) {
+            timeout = backChannelLogoutTimeout;
+        }
+
+        log.debug("Issuing {} back-channel logout requests, allowing them {}ms", tasks.size(), timeout);
+        for (BackChannelLogoutTask task : BackChannelLogoutFanOut.run(executor, tasks, timeout)) {
+            LogoutInformation serviceLogoutInfo = task.getServiceLogoutInfo();
+            boolean timedOut = false;
+            synchronized (serviceLogoutInfo) {
+                if (serviceLogoutInfo.isLoggedIn()) {
+                    serviceLogoutInfo.setLogoutAttempted();
+                }
+                if (serviceLogoutInfo.getLogoutStatus() == LogoutStatus.LOGOUT_ATTEMPTED) {
+                    log.info("Back-channel logout of SP '{}' timed out", serviceLogoutInfo.getEntityID());
+                    serviceLogoutInfo.setLogoutTimedOut();
+                    timedOut = true;
                 }
             }
+            if (timedOut) {
+                retryLater(sloContext, serviceLogoutInfo);
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum time the back-channel logout of a session participant may take according to its relying party
+     * configuration: the time waiting for a pooled connection, for the connection to be established and for the
+     * response. Participants without a logout profile configuration are allowed
+     * {@link #DEFAULT_BACK_CHANNEL_LOGOUT_TIMEOUT}.
+     * 
+     * @param serviceLogoutInfo logout information of the session participant
+     * 
+     * @return maximum time, in milliseconds, the back-channel logout may take
+     */
+    private long getBackChannelLogoutTimeout(LogoutInformation serviceLogoutInfo) {
+        LogoutRequestConfiguration config = (LogoutRequestConfiguration) getProfileConfiguration(
+                serviceLogoutInfo.getEntityID(), getProfileId());
+        if (config == null) {
+            return DEFAULT_BACK_CHANNEL_LOGOUT_TIMEOUT;
+        }
+        return (long) config.getBackChannelConnectionPoolTimeout() + config.getBackChannelConnectionTimeout()
+                + config.getBackChannelResponseTimeout();
+    }
+
+    /**
+     * Gets the executor issuing back-channel logout requests, creating it on first use.
+     * 
+     * The executor runs at most {@link #getBackChannelLogoutThreads()} daemon threads, which terminate after a minute
+     * without logout. Should its queue fill up, further requests are refused and their logouts marked timed out, so
+     * that the thread requesting the logout never issues requests itself without a deadline.
+     * 
+     * @return the executor, or null if back-channel logout requests are to be issued one after another
+     */
+    private synchronized ThreadPoolExecutor getBackChannelLogoutExecutor() {
+        if (backChannelLogoutThreads <= 0) {
+            return null;
+        }
+
+        if (backChannelLogoutExecutor == null) {
+            final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            backChannelLogoutExecutor = new ThreadPoolExecutor(backChannelLogoutThreads, backChannelLogoutThreads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(backChannelLogoutThreads * 16),
+                    new ThreadFactory() {
+                        private final AtomicInteger threadNumber = new AtomicInteger();
+
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, "shibboleth-slo-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            thread.setContextClassLoader(contextClassLoader);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            backChannelLogoutExecutor.allowCoreThreadTimeOut(true);
+        }
+        return backChannelLogoutExecutor;
+    }
+
+    /**
+     * Gets the number of threads issuing back-channel logout requests concurrently.
+     * 
+     * @return number of threads, 0 if requests are issued one after another
+     */
+    public int getBackChannelLogoutThreads() {
+        return backChannelLogoutThreads;
+    }
+
+    /**
+     * Sets the number of threads issuing back-channel logout requests concurrently.
+     * 
+     * @param threads number of threads, 0 to issue requests one after another
+     */
+    public synchronized void setBackChannelLogoutThreads(int threads) {
+        if (backChannelLogoutExecutor != null) {
+            throw new IllegalStateException("Back-channel logout executor is already running");
+        }
+        backChannelLogoutThreads = threads;
+    }
+
+    /**
+     * Gets the pool of the connections back-channel logout requests are issued over, creating a pool of this handler's
+     * own if none was set.
+     * 
+     * @return pool of back-channel connections
+     */
+    public synchronized HttpClientPool getHttpClientPool() {
+        if (httpClientPool == null) {
+            httpClientPool = new HttpClientPool(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS);
+        }
+        return httpClientPool;
+    }
+
+    /**
+     * Sets the pool of the connections back-channel logout requests are issued over, usually one shared by the IdP's
+     * handlers.
+     * 
+     * @param pool pool of back-channel connections
+     */
+    public synchronized void setHttpClientPool(HttpClientPool pool) {
+        httpClientPool = pool;
+    }
+
+    /**
+     * Gets the queue of failed back-channel logouts to retry.
+     * 
+     * @return retry queue, null if failed logouts are not retried
+     */
+    public LogoutRetryQueue getLogoutRetryQueue() {
+        return logoutRetryQueue;
+    }
+
+    /**
+     * Sets the queue of failed back-channel logouts to retry. This handler then issues the logouts the queue retries.
+     * 
+     * @param queue retry queue, null to not retry failed logouts
+     */
+    public void setLogoutRetryQueue(LogoutRetryQueue queue) {
+        logoutRetryQueue = queue;
+        if (queue != null) {
+            queue.setDispatcher(new RetryDispatcher());
+        }
+    }
+
+    /**
+     * Gets the maximum time a back-channel logout may take overall.
+     * 
+     * @return maximum time, in milliseconds, or 0 if the slowest session participant's relying party configuration
+     *         sets it
+     */
+    public long getBackChannelLogoutTimeout() {
+        return backChannelLogoutTimeout;
+    }
+
+    /**
+     * Sets the maximum time a back-channel logout may take overall.
+     * 
+     * @param timeout maximum time, in milliseconds, or 0 to let the slowest session participant's relying party
+     *            configuration set it
+     */
+    public void setBackChannelLogoutTimeout(long timeout) {
+        backChannelLogoutTimeout = timeout;
+    }
+
+    /**
+     * Sets the status of the logout of a session participant to attempted, unless it is no longer logged in, as is the
+     * case once its back-channel logout has been abandoned.
+     * 
+     * @param serviceLogoutInfo logout information of the session participant
+     * 
+     * @return true if the status was set, false if the logout is not to be attempted
+     */
+    private boolean setLogoutAttempted(LogoutInformation serviceLogoutInfo) {
+        synchronized (serviceLogoutInfo) {
+            if (!serviceLogoutInfo.isLoggedIn()) {
+                return false;
+            }
+            serviceLogoutInfo.setLogoutAttempted();
+            return true;
+        }
+    }
+
+    /**
+     * Sets the status of the logout of a session participant to failed, unless it is no longer being attempted, as is
+     * the case once its back-channel logout has been abandoned.
+     * 
+     * @param serviceLogoutInfo logout information of the session participant
+     * 
+     * @return true if the status was set
+     */
+    private boolean setLogoutFailed(LogoutInformation serviceLogoutInfo) {
+        synchronized (serviceLogoutInfo) {
+            if (serviceLogoutInfo.getLogoutStatus() == LogoutStatus.LOGOUT_ATTEMPTED) {
+                serviceLogoutInfo.setLogoutFailed();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Queues the logout of a session participant whose back-channel logout failed for retry, if a retry queue is set.
+     * 
+     * @param sloContext context of the single logout
+     * @param serviceLogoutInfo logout information of the session participant
+     */
+    private void retryLater(SingleLogoutContext sloContext, LogoutInformation serviceLogoutInfo) {
+        if (logoutRetryQueue != null) {
+            log.info("Queuing back-channel logout of SP '{}' for retry", serviceLogoutInfo.getEntityID());
+            logoutRetryQueue.enqueue(sloContext.getResponderEntityID(), serviceLogoutInfo);
+        }
+    }
+
+    /**
+     * Sets the status of the logout of a session participant to succeeded, unless it is no longer being attempted, as
+     * is the case once its back-channel logout has been abandoned.
+     * 
+     * @param serviceLogoutInfo logout information of the session participant
+     */
+    private void setLogoutSucceeded(LogoutInformation serviceLogoutInfo) {
+        synchronized (serviceLogoutInfo) {
+            if (serviceLogoutInfo.getLogoutStatus() == LogoutStatus.LOGOUT_ATTEMPTED) {
+                serviceLogoutInfo.setLogoutSucceeded();
+            }
         }
     }
 
@@ -474,10 +760,12 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      *
      * @param sloContext
      * @param serviceLogoutInfo
+     * @param task task issuing the request, null if it is issued outside of a back-channel logout
+     * @param retryOnFailure whether to queue the logout for retry if it fails for a reason that may be transient
      * @throws ProfileException
      */
-    private void initiateBackChannelLogout(SingleLogoutContext sloContext, LogoutInformation serviceLogoutInfo)
-            throws ProfileException {
+    private void initiateBackChannelLogout(SingleLogoutContext sloContext, LogoutInformation serviceLogoutInfo,
+            BackChannelLogoutTask task, boolean retryOnFailure) throws ProfileException {
 
         if (!serviceLogoutInfo.isLoggedIn()) {
             log.info("Logout status for entity is '{}', not attempting logout", serviceLogoutInfo.getLogoutStatus().toString());
@@ -489,33 +777,50 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
                 getEndpointForBinding(spEntityID, SAMLConstants.SAML2_SOAP11_BINDING_URI);
         if (endpoint == null) {
             log.info("No SAML2 LogoutRequest SOAP endpoint found for entity '{}'", spEntityID);
-            serviceLogoutInfo.setLogoutUnsupported();
+            synchronized (serviceLogoutInfo) {
+                if (serviceLogoutInfo.isLoggedIn()) {
+                    serviceLogoutInfo.setLogoutUnsupported();
+                }
+            }
             return;
         }
 
-        serviceLogoutInfo.setLogoutAttempted();
+        if (!setLogoutAttempted(serviceLogoutInfo)) {
+            return;
+        }
         LogoutRequestContext requestCtx =
                 createLogoutRequestContext(sloContext, serviceLogoutInfo, endpoint);
         if (requestCtx == null) {
             log.info("Cannot create LogoutRequest Context for entity '{}'", spEntityID);
-            serviceLogoutInfo.setLogoutFailed();
+            setLogoutFailed(serviceLogoutInfo);
             return;
         }
         HttpConnection httpConn = null;
+        boolean reusable = false;
         try {
             //prepare http message exchange for soap
             log.debug("Preparing HTTP transport for SOAP request");
             httpConn = createHttpConnection(serviceLogoutInfo, endpoint);
             if (httpConn == null) {
                 log.warn("Unable to acquire usable http connection from the pool");
-                serviceLogoutInfo.setLogoutFailed();
+                setLogoutFailed(serviceLogoutInfo);
+                return;
+            }
+            if (task != null && !task.setConnection(httpConn)) {
+                log.debug("Back-channel logout of SP '{}' was abandoned", spEntityID);
                 return;
             }
-            log.debug("Opening HTTP connection to '{}'", endpoint.getLocation());
-            httpConn.open();
+            httpConn.closeIfStale();
+            if (httpConn.isOpen()) {
+                log.debug("Reusing HTTP connection to '{}'", endpoint.getLocation());
+                httpConn.setSocketTimeout(httpConn.getParams().getSoTimeout());
+            } else {
+                log.debug("Opening HTTP connection to '{}'", endpoint.getLocation());
+                httpConn.open();
+            }
             if (!httpConn.isOpen()) {
                 log.warn("HTTP connection could not be opened");
-                serviceLogoutInfo.setLogoutFailed();
+                setLogoutFailed(serviceLogoutInfo);
                 return;
             }
 
@@ -535,40 +840,48 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
             if (!requestCtx.execute(httpConn)) {
                 log.warn("Logout execution failed on SP '{}', HTTP status is '{}'",
                         spEntityID, requestCtx.getHttpStatus());
-                serviceLogoutInfo.setLogoutFailed();
+                if (setLogoutFailed(serviceLogoutInfo) && retryOnFailure) {
+                    retryLater(sloContext, serviceLogoutInfo);
+                }
 
                 return;
             }
 
             //decode saml response
             decoder.decode(requestCtx);
+            reusable = true;
 
             LogoutResponse spResponse = requestCtx.getInboundSAMLMessage();
             StatusCode statusCode = spResponse.getStatus().getStatusCode();
             if (statusCode.getValue().equals(StatusCode.SUCCESS_URI)) {
                 log.info("Logout was successful on SP '{}'.", spEntityID);
-                serviceLogoutInfo.setLogoutSucceeded();
+                setLogoutSucceeded(serviceLogoutInfo);
             } else {
                 log.warn("Logout failed on SP '{}', logout status code is '{}'.", spEntityID, statusCode.getValue());
                 StatusCode secondaryCode = statusCode.getStatusCode();
                 if (secondaryCode != null) {
                     log.warn("Additional status code: '{}'", secondaryCode.getValue());
                 }
-                serviceLogoutInfo.setLogoutFailed();
+                if (setLogoutFailed(serviceLogoutInfo) && retryOnFailure) {
+                    retryLater(sloContext, serviceLogoutInfo);
+                }
             }
         } catch (SocketTimeoutException e) { //socket connect or read timeout
             log.info("Socket timeout while sending SOAP request to SP '{}'",
                     serviceLogoutInfo.getEntityID());
-            serviceLogoutInfo.setLogoutFailed();
+            if (setLogoutFailed(serviceLogoutInfo) && retryOnFailure) {
+                retryLater(sloContext, serviceLogoutInfo);
+            }
         } catch (IOException e) { //other networking error
             log.info("IOException caught while sending SOAP request", e);
-            serviceLogoutInfo.setLogoutFailed();
+            if (setLogoutFailed(serviceLogoutInfo) && retryOnFailure) {
+                retryLater(sloContext, serviceLogoutInfo);
+            }
         } catch (Throwable t) { //unexpected
             log.error("Unexpected exception caught while sending SAML Logout request", t);
-            serviceLogoutInfo.setLogoutFailed();
+            setLogoutFailed(serviceLogoutInfo);
         } finally { //
-            requestCtx.releaseConnection();
-            if (httpConn != null && httpConn.isOpen()) {
+            if (!reusable && httpConn != null && httpConn.isOpen()) {
                 log.debug("Closing HTTP connection");
                 try {
                     httpConn.close();
@@ -576,6 +889,11 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
                     log.warn("Caught exception while closing HTTP Connection", t);
                 }
             }
+            //hand the connection back to the pool
+            requestCtx.releaseConnection();
+            if (httpConn != null) {
+                httpConn.releaseConnection();
+            }
         }
     }
 
@@ -602,8 +920,11 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
         RoleDescriptor spMetadata = null;
         try {
             //retrieve metadata
-            spMetadata =
-                    getMetadataProvider().getRole(spEntityID, SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS);
+            RelyingPartyBundle bundle = getRelyingPartyBundle(spEntityID);
+            if (bundle != null) {
+                spMetadata = bundle.getRelyingPartyRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                        SAMLConstants.SAML20P_NS);
+            }
             if (spMetadata == null) {
                 log.warn("SP Metadata is null");
                 return null;
@@ -677,16 +998,19 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      * @param sloContext
      */
     private void populateServiceDisplayNames(SingleLogoutContext sloContext) {
-        MetadataProvider mdProvider = getMetadataProvider();
         for (LogoutInformation serviceInfo : sloContext.getServiceInformation().values()) {
             EntityDescriptor spMetadata;
             String spEntityID = serviceInfo.getEntityID();
             try {
-                spMetadata = mdProvider.getEntityDescriptor(spEntityID);
+                RelyingPartyBundle bundle = getRelyingPartyBundle(spEntityID);
+                spMetadata = bundle == null ? null : bundle.getRelyingPartyMetadata();
             } catch (MetadataProviderException ex) {
                 log.warn("Can not get metadata for relying party '{}'", spEntityID);
                 continue;
             }
+            if (spMetadata == null) {
+                continue;
+            }
             Map<String, String> serviceNames = extractServiceNames(spMetadata);
             if (serviceNames != null && serviceNames.size() > 0) {
                 serviceInfo.setDisplayName(serviceNames);
@@ -769,30 +1093,15 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
      * @param endpoint
      * @return
      * @throws URIException
-     * @throws GeneralSecurityException
-     * @throws IOException
      */
     private HttpConnection createHttpConnection(
             LogoutInformation serviceLogoutInfo, Endpoint endpoint)
-            throws URIException, GeneralSecurityException, IOException {
-
-        HttpClientBuilder httpClientBuilder =
-                new HttpClientBuilder();
-        httpClientBuilder.setContentCharSet("UTF-8");
-        SecureProtocolSocketFactory sf = new EasySSLProtocolSocketFactory();
-        httpClientBuilder.setHttpsProtocolSocketFactory(sf);
-
-        //build http connection
-        HttpClient httpClient = httpClientBuilder.buildClient();
-
-        HostConfiguration hostConfig = new HostConfiguration();
-        URI location = new URI(endpoint.getLocation());
-        hostConfig.setHost(location);
+            throws URIException {
 
         LogoutRequestConfiguration config = (LogoutRequestConfiguration) getProfileConfiguration(
                 serviceLogoutInfo.getEntityID(), getProfileId());
         if (log.isDebugEnabled()) {
-            log.debug("Creating new HTTP connection with the following timeouts:");
+            log.debug("Leasing HTTP connection with the following timeouts:");
             log.debug("Maximum waiting time for the connection pool is {}",
                     config.getBackChannelConnectionPoolTimeout());
             log.debug("Timeout for connection establishment is {}",
@@ -802,8 +1111,8 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
         }
         HttpConnection httpConn = null;
         try {
-            httpConn = httpClient.getHttpConnectionManager().
-                    getConnectionWithTimeout(hostConfig, config.getBackChannelConnectionPoolTimeout());
+            httpConn = getHttpClientPool().getConnection(endpoint.getLocation(),
+                    config.getBackChannelConnectionPoolTimeout());
         } catch (ConnectionPoolTimeoutException e) {
             return null;
         }
@@ -871,7 +1180,7 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
                     getEndpointForBinding(spEntityID, SAMLConstants.SAML2_SOAP11_BINDING_URI);
             if (endpoint != null) {
                 //fallback to SOAP1.1 when no HTTP-POST is set
-                initiateBackChannelLogout(sloContext, serviceLogoutInfo);
+                initiateBackChannelLogout(sloContext, serviceLogoutInfo, null, true);
             } else {
                 //no supported endpoints found
                 serviceLogoutInfo.setLogoutUnsupported();
@@ -1080,6 +1389,145 @@ public class SLOProfileHandler extends AbstractSAML2ProfileHandler {
         }
     }
 
+    /**
+     * Issues the back-channel logout request to a session participant. A task that is not done by the time the
+     * back-channel logout times out is aborted by closing its HTTP connection, as blocking socket operations do not
+     * respond to interruption.
+     */
+    private class BackChannelLogoutTask implements BackChannelLogoutFanOut.Task {
+
+        /** Context of the single logout. */
+        private final SingleLogoutContext sloContext;
+
+        /** Logout information of the session participant. */
+        private final LogoutInformation serviceLogoutInfo;
+
+        /** Connection the request is issued over, null until one has been acquired. */
+        private HttpConnection connection;
+
+        /** Whether the task has been aborted. */
+        private boolean aborted;
+
+        /**
+         * Constructor.
+         * 
+         * @param sloContext context of the single logout
+         * @param serviceLogoutInfo logout information of the session participant
+         */
+        BackChannelLogoutTask(SingleLogoutContext sloContext, LogoutInformation serviceLogoutInfo) {
+            this.sloContext = sloContext;
+            this.serviceLogoutInfo = serviceLogoutInfo;
+        }
+
+        /**
+         * Gets the logout information of the session participant.
+         * 
+         * @return logout information of the session participant
+         */
+        LogoutInformation getServiceLogoutInfo() {
+            return serviceLogoutInfo;
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                initiateBackChannelLogout(sloContext, serviceLogoutInfo, this, true);
+            } catch (ProfileException ex) {
+                log.warn("Caught exception while trying to issue LogoutRequest to '{}'",
+                        serviceLogoutInfo.getEntityID(), ex);
+                setLogoutFailed(serviceLogoutInfo);
+            } catch (RuntimeException ex) {
+                if (!isAborted()) {
+                    log.error("Unexpected exception caught while trying to issue LogoutRequest to '{}'",
+                            serviceLogoutInfo.getEntityID(), ex);
+                    setLogoutFailed(serviceLogoutInfo);
+                }
+            }
+        }
+
+        /**
+         * Registers the connection the request is issued over, so that aborting the task closes it.
+         * 
+         * @param conn connection the request is issued over
+         * 
+         * @return false if the task has already been aborted
+         */
+        synchronized boolean setConnection(HttpConnection conn) {
+            if (aborted) {
+                return false;
+            }
+            connection = conn;
+            return true;
+        }
+
+        /**
+         * Gets whether the task has been aborted.
+         * 
+         * @return whether the task has been aborted
+         */
+        synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        /** Aborts the task, closing the connection the request is being issued over. */
+        public void abort() {
+            HttpConnection conn;
+            synchronized (this) {
+                aborted = true;
+                conn = connection;
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (Throwable t) {
+                    log.debug("Caught exception while aborting back-channel logout to '{}'",
+                            serviceLogoutInfo.getEntityID(), t);
+                }
+            }
+        }
+    }
+
+    /** Issues the back-channel logouts queued for retry. */
+    private class RetryDispatcher implements LogoutRetryQueue.Dispatcher {
+
+        /** {@inheritDoc} */
+        public boolean dispatch(PendingLogout logout) {
+            SingleLogoutContext sloContext = logout.createSingleLogoutContext();
+            LogoutInformation serviceLogoutInfo = sloContext.getServiceInformation().get(logout.getEntityID());
+
+            // the request has no session index, it would also end a session established since it was queued
+            NameID nameID = buildNameID(serviceLogoutInfo);
+            if (nameID != null) {
+                SessionManager<Session> sessionManager = getSessionManager();
+                Session session = sessionManager.getSession(sessionManager.getIndexFromNameID(nameID));
+                if (logout.isSupersededBy(session)) {
+                    log.info("Principal authenticated to SP '{}' again, dropping queued logout",
+                            logout.getEntityID());
+                    return true;
+                }
+            }
+
+            try {
+                initiateBackChannelLogout(sloContext, serviceLogoutInfo, null, false);
+            } catch (ProfileException e) {
+                log.warn("Caught exception while retrying LogoutRequest to '{}'", logout.getEntityID(), e);
+                return false;
+            }
+
+            switch (serviceLogoutInfo.getLogoutStatus()) {
+                case LOGOUT_SUCCEEDED:
+                    log.info("Queued logout was delivered to SP '{}'", logout.getEntityID());
+                    return true;
+                case LOGOUT_UNSUPPORTED:
+                    log.info("SP '{}' no longer supports back-channel logout, dropping queued logout",
+                            logout.getEntityID());
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
     public class InitialLogoutRequestContext
             extends BaseSAML2ProfileRequestContext<LogoutRequest, LogoutResponse, LogoutRequestConfiguration> {
     }
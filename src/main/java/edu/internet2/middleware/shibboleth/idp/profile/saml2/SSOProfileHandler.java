@@ -79,8 +79,10 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRe
 import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.SSOConfiguration;
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.common.util.HttpHelper;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
 import edu.internet2.middleware.shibboleth.idp.authn.PassiveAuthenticationException;
 import edu.internet2.middleware.shibboleth.idp.authn.Saml2LoginContext;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AbstractSessionManager;
 import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
@@ -160,27 +162,42 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
                 servletContext, httpRequest);
         
         if(loginContext != null){
-            HttpServletHelper.unbindLoginContext(getStorageService(), servletContext, httpRequest, httpResponse);
+            if (HttpServletHelper.unbindLoginContext(getStorageService(), servletContext, httpRequest,
+                    httpResponse) == null) {
+                if (!hasInboundMessage(httpRequest)) {
+                    log.warn("Incoming request contained a login context that has already been used and no "
+                            + "authentication request, refusing to process it again");
+                    throw new ProfileException("Login context has already been used");
+                }
+                log.debug("Incoming request contained a login context that has already been used, processing "
+                        + "as first leg of request");
+                performAuthentication(inTransport, outTransport);
+                return;
+            }
             
             if(!(loginContext instanceof Saml2LoginContext)){
-                log.debug("Incoming request contained a login context but it was not a Saml2LoginContext, processing as first leg of request");
+                log.debug("Incoming request contained a login context but it was not a Saml2LoginContext, "
+                        + "processing as first leg of request");
                 performAuthentication(inTransport, outTransport);
                 return;
             }
                         
             if(loginContext.isPrincipalAuthenticated()){
-                log.debug("Incoming request contains a login context and indicates principal was authenticated, processing second leg of request");
+                log.debug("Incoming request contains a login context and indicates principal was authenticated, "
+                        + "processing second leg of request");
                 completeAuthenticationRequest((Saml2LoginContext)loginContext, inTransport, outTransport);
                 return;
             }
             
             if(loginContext.getAuthenticationFailure() != null){
-                log.debug("Incoming request contains a login context and indicates there was an error authenticating the principal, processing second leg of request");
+                log.debug("Incoming request contains a login context and indicates there was an error "
+                        + "authenticating the principal, processing second leg of request");
                 completeAuthenticationRequest((Saml2LoginContext)loginContext, inTransport, outTransport);
                 return;
             }
 
-            log.debug("Incoming request contains a login context but principal was not authenticated, processing first leg of request");
+            log.debug("Incoming request contains a login context but principal was not authenticated, "
+                    + "processing first leg of request");
             performAuthentication(inTransport, outTransport);
             return;
         }
@@ -190,6 +207,17 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
         return;
     }
 
+    /**
+     * Checks whether a request carries a SAML request or artifact, so that a new login may be started from it.
+     * 
+     * @param httpRequest the request
+     * 
+     * @return true if the request carries a SAML request or artifact
+     */
+    private boolean hasInboundMessage(HttpServletRequest httpRequest) {
+        return httpRequest.getParameter("SAMLRequest") != null || httpRequest.getParameter("SAMLart") != null;
+    }
+
     /**
      * Creates a {@link Saml2LoginContext} an sends the request off to the AuthenticationManager to begin the process of
      * authenticating the user.
@@ -231,6 +259,13 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
             loginContext.setProfileHandlerURL(HttpHelper.getRequestUriWithoutContext(httpRequest));
             loginContext.setDefaultAuthenticationMethod(rpConfig.getDefaultAuthenticationMethod());
 
+            if (AuthenticationEngine.authenticateWithPreviousSession(loginContext, httpRequest, httpResponse)) {
+                log.debug("Existing IdP session used for authentication, completing request without "
+                        + "authentication engine");
+                completeAuthenticationRequest(loginContext, inTransport, outTransport);
+                return;
+            }
+
             HttpServletHelper.bindLoginContext(loginContext, getStorageService(), httpRequest.getSession()
                     .getServletContext(), httpRequest, httpResponse);
 
@@ -322,6 +357,7 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
             if (index != null) {
                 sessionManager.indexSession(session, index);
             }
+            AbstractSessionManager.writeBack(sessionManager, session);
         } catch (ProfileException e) {
             if (requestContext.isUnsolicited()) {
                 // Just delegate to the IdP's global error handler
@@ -494,7 +530,8 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
         EntityDescriptor relyingPartyMetadata = requestContext.getPeerEntityMetadata();
         if (relyingPartyMetadata != null) {
             requestContext.setPeerEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setPeerEntityRoleMetadata(relyingPartyMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setPeerEntityRoleMetadata(getPeerEntityRoleMetadata(requestContext,
+                    SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -506,8 +543,8 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
         EntityDescriptor localEntityDescriptor = requestContext.getLocalEntityMetadata();
         if (localEntityDescriptor != null) {
             requestContext.setLocalEntityRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
-            requestContext.setLocalEntityRoleMetadata(localEntityDescriptor
-                    .getIDPSSODescriptor(SAMLConstants.SAML20P_NS));
+            requestContext.setLocalEntityRoleMetadata(getLocalEntityRoleMetadata(requestContext,
+                    IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
         }
     }
 
@@ -529,7 +566,7 @@ public class SSOProfileHandler extends AbstractSAML2ProfileHandler {
             Saml2LoginContext loginContext = ssoRequestContext.getLoginContext();
             requestContext.setRelayState(loginContext.getRelayState());
 
-            AuthnRequest authnRequest = deserializeRequest(loginContext.getAuthenticationRequest());
+            AuthnRequest authnRequest = loginContext.getAuthenticiationRequestXmlObject();
             requestContext.setInboundMessage(authnRequest);
             requestContext.setInboundSAMLMessage(authnRequest);
             requestContext.setInboundSAMLMessageId(authnRequest.getID());
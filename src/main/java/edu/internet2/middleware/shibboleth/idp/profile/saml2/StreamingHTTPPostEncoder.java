@@ -0,0 +1,182 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile.saml2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.saml2.binding.encoding.HTTPPostEncoder;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HTTPOutTransport;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import edu.internet2.middleware.shibboleth.idp.util.Base64EncodingOutputStream;
+
+/**
+ * SAML 2 HTTP POST binding encoder which streams the SAML message into the HTTP response.
+ * 
+ * The standard encoder serializes the message DOM to a string, Base64 encodes the string's bytes into another string
+ * and only then renders the form, holding several copies of the message in memory at once. This encoder renders the
+ * form with a marker in place of the message, writes the form up to the marker, serializes the message DOM, which is
+ * built by signing and encryption anyway, through a Base64 encoding stream straight into the response, and then
+ * writes the rest of the form. The form is rendered by the standard encoder's own template and escaping, so the output
+ * is identical to the standard encoder's.
+ */
+public class StreamingHTTPPostEncoder extends HTTPPostEncoder {
+
+    /** Marker rendered in place of the message parameter. */
+    private static final String MESSAGE_MARKER = "\u0000SAMLMessage\u0000";
+
+    /** Size of the buffers of Base64 characters. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Per-thread buffers of Base64 characters. */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StreamingHTTPPostEncoder.class);
+
+    /** Velocity engine used to render the form. */
+    private final VelocityEngine velocityEngine;
+
+    /** ID of the Velocity template of the form. */
+    private final String velocityTemplateId;
+
+    /** Builder of the placeholder messages the form is rendered with. */
+    private final SAMLObjectBuilder<Response> placeholderBuilder;
+
+    /**
+     * Constructor.
+     * 
+     * @param engine Velocity engine used to render the form
+     * @param templateId ID of the Velocity template of the form
+     */
+    @SuppressWarnings("unchecked")
+    public StreamingHTTPPostEncoder(VelocityEngine engine, String templateId) {
+        super(engine, templateId);
+        velocityEngine = engine;
+        velocityTemplateId = templateId;
+        placeholderBuilder = (SAMLObjectBuilder<Response>) Configuration.getBuilderFactory().getBuilder(
+                Response.DEFAULT_ELEMENT_NAME);
+    }
+
+    /** {@inheritDoc} */
+    protected void postEncode(SAMLMessageContext messageContext, String endpointURL) throws MessageEncodingException {
+        SAMLObject message = messageContext.getOutboundSAMLMessage();
+        Element messageElement = message.getDOM();
+        if (messageElement == null) {
+            messageElement = marshallMessage(message);
+        }
+
+        String messageParameter = "SAMLResponse";
+        if (message instanceof RequestAbstractType) {
+            messageParameter = "SAMLRequest";
+        }
+
+        String form = renderForm(messageContext, endpointURL, messageParameter);
+        int markerIndex = form.indexOf(MESSAGE_MARKER);
+        if (markerIndex < 0) {
+            log.debug("Template {} does not render the {} parameter, using standard encoding", velocityTemplateId,
+                    messageParameter);
+            super.postEncode(messageContext, endpointURL);
+            return;
+        }
+
+        log.debug("Streaming SAML message into POST body");
+        HTTPOutTransport outTransport = (HTTPOutTransport) messageContext.getOutboundMessageTransport();
+        HTTPTransportUtils.addNoCacheHeaders(outTransport);
+        HTTPTransportUtils.setUTF8Encoding(outTransport);
+        HTTPTransportUtils.setContentType(outTransport, "text/html");
+
+        try {
+            OutputStream outStream = outTransport.getOutgoingStream();
+            Writer out = new OutputStreamWriter(outStream, "UTF-8");
+            out.write(form, 0, markerIndex);
+            out.flush();
+
+            // Base64 characters are ASCII, and so already UTF-8 encoded
+            Base64EncodingOutputStream base64Stream = new Base64EncodingOutputStream(outStream, BUFFERS.get());
+            Writer messageWriter = new OutputStreamWriter(base64Stream, "UTF-8");
+            XMLHelper.writeNode(messageElement, messageWriter);
+            messageWriter.flush();
+            base64Stream.finish();
+
+            out.write(form, markerIndex + MESSAGE_MARKER.length(), form.length() - markerIndex
+                    - MESSAGE_MARKER.length());
+            out.flush();
+        } catch (IOException e) {
+            log.error("Error writing POST body", e);
+            throw new MessageEncodingException("Error writing POST body", e);
+        }
+    }
+
+    /**
+     * Renders the form with a marker in place of the message parameter. The other form parameters are populated by
+     * the standard encoder, from a message context carrying the message context's relay state and an empty
+     * placeholder message.
+     * 
+     * @param messageContext current message context
+     * @param endpointURL URL of the endpoint the message is posted to
+     * @param messageParameter name of the message parameter
+     * 
+     * @return the rendered form
+     * 
+     * @throws MessageEncodingException thrown if the form can not be rendered
+     */
+    protected String renderForm(SAMLMessageContext<?, ?, ?> messageContext, String endpointURL,
+            String messageParameter) throws MessageEncodingException {
+        BasicSAMLMessageContext<SAMLObject, SAMLObject, SAMLObject> placeholderContext =
+                new BasicSAMLMessageContext<SAMLObject, SAMLObject, SAMLObject>();
+        placeholderContext.setOutboundSAMLMessage(placeholderBuilder.buildObject());
+        placeholderContext.setRelayState(messageContext.getRelayState());
+
+        VelocityContext context = new VelocityContext();
+        populateVelocityContext(context, placeholderContext, endpointURL);
+        context.remove("SAMLResponse");
+        context.put(messageParameter, MESSAGE_MARKER);
+
+        try {
+            StringWriter form = new StringWriter();
+            velocityEngine.mergeTemplate(velocityTemplateId, "UTF-8", context, form);
+            return form.toString();
+        } catch (Exception e) {
+            log.error("Error invoking Velocity template", e);
+            throw new MessageEncodingException("Error creating output document", e);
+        }
+    }
+}
@@ -18,22 +18,24 @@
 package edu.internet2.middleware.shibboleth.idp.session;
 
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
 
 import org.joda.time.DateTime;
-import org.opensaml.ws.transport.http.HTTPTransportUtils;
-import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +43,11 @@ import org.slf4j.MDC;
 
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AbstractSessionManager;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ClientSessionManager;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionActivityTracker;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerImpl;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
  * A filter that adds the current users {@link Session} the request, if the user has a session.
@@ -56,6 +63,21 @@ public class IdPSessionFilter implements Filter {
     /** IdP session manager. */
     private SessionManager<Session> sessionManager;
 
+    /** IdP session manager, if sessions are kept by the client. */
+    private ClientSessionManager clientSessionManager;
+
+    /** Tracker buffering session activity, may be null. */
+    private SessionActivityTracker activityTracker;
+
+    /** Current servlet context. */
+    private ServletContext servletContext;
+
+    /**
+     * Request paths, relative to the context path, for which no session is looked up. A path also covers the paths
+     * below it, a path ending with a '/' only covers those.
+     */
+    private String[] excludedPaths;
+
     /** {@inheritDoc} */
     public void destroy() {
 
@@ -65,20 +87,55 @@ public class IdPSessionFilter implements Filter {
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain) throws IOException,
             ServletException {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
-        
-        MDC.put("JSESSIONID", httpRequest.getSession().getId());
+        // the MDC is bound to the thread, clear what the previous request on this thread left behind
+        MDC.remove("idpSessionId");
         MDC.put("clientIP", httpRequest.getRemoteAddr());
+        if (isExcludedPath(httpRequest)) {
+            // do not create an HTTP session just for logging
+            HttpSession httpSession = httpRequest.getSession(false);
+            if (httpSession != null) {
+                MDC.put("JSESSIONID", httpSession.getId());
+            } else {
+                MDC.remove("JSESSIONID");
+            }
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        MDC.put("JSESSIONID", httpRequest.getSession().getId());
 
         Cookie sessionCookie = getIdPSessionCookie(httpRequest);
-        Session idpSession = getUserSession(sessionCookie, httpRequest);
+        Session idpSession;
+        byte[] clientSessionState = null;
+        if (clientSessionManager != null) {
+            idpSession = getClientSession(sessionCookie, httpRequest);
+            if (idpSession != null) {
+                clientSessionState = clientSessionManager.serializeSession(idpSession, httpRequest.getRemoteAddr());
+            }
+        } else {
+            idpSession = getUserSession(sessionCookie, httpRequest);
+        }
+
         if (idpSession != null) {
             log.trace("Updating IdP session activity time and adding session object to the request");
-            idpSession.setLastActivityInstant(new DateTime());
+            if (activityTracker != null) {
+                activityTracker.touch(idpSession);
+            } else {
+                idpSession.setLastActivityInstant(new DateTime());
+                AbstractSessionManager.writeBack(sessionManager, idpSession);
+            }
             MDC.put("idpSessionId", idpSession.getSessionID());
             httpRequest.setAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE, idpSession);
         }
 
-        filterChain.doFilter(request, response);
+        if (clientSessionManager != null) {
+            ClientSessionResponse clientSessionResponse = new ClientSessionResponse(httpRequest,
+                    (HttpServletResponse) response, clientSessionState);
+            filterChain.doFilter(request, clientSessionResponse);
+            clientSessionResponse.writeSessionCookie();
+        } else {
+            filterChain.doFilter(request, response);
+        }
     }
 
     /** {@inheritDoc} */
@@ -88,7 +145,13 @@ public class IdPSessionFilter implements Filter {
             sessionManagerId = "shibboleth.SessionManager";
         }
 
-        sessionManager = (SessionManager<Session>) filterConfig.getServletContext().getAttribute(sessionManagerId);
+        servletContext = filterConfig.getServletContext();
+        sessionManager = (SessionManager<Session>) servletContext.getAttribute(sessionManagerId);
+        if (sessionManager instanceof ClientSessionManager) {
+            clientSessionManager = (ClientSessionManager) sessionManager;
+        } else if (sessionManager instanceof SessionManagerImpl) {
+            activityTracker = ((SessionManagerImpl) sessionManager).getActivityTracker();
+        }
 
         String consistentAddressParam = filterConfig.getInitParameter("ensureConsistentClientAddress");
         if (DatatypeHelper.isEmpty(consistentAddressParam)) {
@@ -96,6 +159,41 @@ public class IdPSessionFilter implements Filter {
         } else {
             consistentAddress = Boolean.parseBoolean(consistentAddressParam);
         }
+
+        String excludedPathsParam = filterConfig.getInitParameter("excludedPaths");
+        if (DatatypeHelper.isEmpty(excludedPathsParam)) {
+            excludedPaths = new String[0];
+        } else {
+            excludedPaths = DatatypeHelper.safeTrim(excludedPathsParam).split("[\\s,]+");
+        }
+    }
+
+    /**
+     * Checks whether the request is for a path which never needs the user's session, such as a static resource.
+     * 
+     * @param httpRequest current HTTP request
+     * 
+     * @return true if no session needs to be looked up for the request
+     */
+    protected boolean isExcludedPath(HttpServletRequest httpRequest) {
+        if (excludedPaths.length == 0) {
+            return false;
+        }
+
+        String requestURI = httpRequest.getRequestURI();
+        int pathStart = httpRequest.getContextPath().length();
+        for (String excludedPath : excludedPaths) {
+            if (!requestURI.startsWith(excludedPath, pathStart)) {
+                continue;
+            }
+
+            // "/status" covers "/status" and "/status/..." but not "/statusReport"
+            int pathEnd = pathStart + excludedPath.length();
+            if (excludedPath.endsWith("/") || requestURI.length() == pathEnd || requestURI.charAt(pathEnd) == '/') {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -134,70 +232,170 @@ public class IdPSessionFilter implements Filter {
             return null;
         }
 
-        // index 0: remote address
-        // index 1: session ID
-        // index 2: Base64(HMAC(index 0 + index 1))
-        String cookieValue = HTTPTransportUtils.urlDecode(sessionCookie.getValue());
-        String[] valueComponents = cookieValue.split("\\|");
-        if (valueComponents.length != 3) {
+        String cookieValue = sessionCookie.getValue();
+        String sessionId = SessionCookieCodec.getSessionID(cookieValue);
+        if (sessionId == null) {
             log.warn("IdP session cookie has an improperly formated value: {}", cookieValue);
             return null;
         }
 
-        byte[] remoteAddressBytes = Base64.decode(valueComponents[0]);
-        byte[] sessionIdBytes = Base64.decode(valueComponents[1]);
-        byte[] signatureBytes = Base64.decode(valueComponents[2]);
-
-        String sessionId = new String(sessionIdBytes);
         Session userSession = sessionManager.getSession(sessionId);
-
         if (userSession != null) {
-            if (isCookieValid(httpRequest, remoteAddressBytes, sessionIdBytes, signatureBytes, userSession
-                    .getSessionSecret())) {
+            if (isCookieValid(httpRequest, cookieValue, userSession.getSessionSecret())) {
                 return userSession;
             }
         } else {
-            log.debug("No session associated with session ID {} - session must have timed out", valueComponents[1]);
+            log.debug("No session associated with session ID {} - session must have timed out", sessionId);
         }
         return null;
     }
 
+    /**
+     * Gets the user session carried by a client-side session cookie.
+     * 
+     * @param sessionCookie the session cookie
+     * @param httpRequest the current HTTP request
+     * 
+     * @return the session carried by the cookie or null if the cookie does not carry a currently valid session
+     */
+    protected Session getClientSession(Cookie sessionCookie, HttpServletRequest httpRequest) {
+        if (sessionCookie == null || DatatypeHelper.isEmpty(sessionCookie.getValue())) {
+            return null;
+        }
+
+        return clientSessionManager.decodeSession(sessionCookie.getValue(), consistentAddress ? httpRequest
+                .getRemoteAddr() : null);
+    }
+
     /**
      * Validates the session cookie. This validates that the cookie came from the same IP address to which it was given,
      * if consistent address checking is enabled, and that cookie data hasn't been changed.
      * 
      * @param httpRequest incoming HTTP request
-     * @param remoteAddressBytes remote address from the cookie value
-     * @param sessionIdBytes session ID from the cookie value
-     * @param signatureBytes signature from the cookie value
+     * @param cookieValue well formed value of the session cookie
      * @param sessionSecret secrete associated with the user's session
      * 
      * @return true if the information in the cookie is valid, false if not
      */
-    protected boolean isCookieValid(HttpServletRequest httpRequest, byte[] remoteAddressBytes, byte[] sessionIdBytes,
-            byte[] signatureBytes, byte[] sessionSecret) {
-        if (consistentAddress) {
-            String remoteAddress = new String(remoteAddressBytes);
-            if (!httpRequest.getRemoteAddr().equals(remoteAddress)) {
-                log.error("Client sent a cookie from address {} but the cookie was issued to address {}", httpRequest
-                        .getRemoteAddr(), remoteAddress);
-                return false;
-            }
+    protected boolean isCookieValid(HttpServletRequest httpRequest, String cookieValue, byte[] sessionSecret) {
+        return SessionCookieCodec.isValid(cookieValue, consistentAddress ? httpRequest.getRemoteAddr() : null,
+                sessionSecret);
+    }
+
+    /**
+     * Response wrapper that re-issues the client-side session cookie, if the session bound to the request has changed,
+     * before the response is committed.
+     */
+    private class ClientSessionResponse extends HttpServletResponseWrapper {
+
+        /** Current HTTP request. */
+        private HttpServletRequest httpRequest;
+
+        /** Serialized form of the session carried by the request's session cookie, or null. */
+        private byte[] requestSessionState;
+
+        /** Whether the session cookie has been written. */
+        private boolean cookieWritten;
+
+        /**
+         * Constructor.
+         * 
+         * @param request current HTTP request
+         * @param response current HTTP response
+         * @param sessionState serialized form of the session carried by the request's session cookie, may be null
+         */
+        public ClientSessionResponse(HttpServletRequest request, HttpServletResponse response, byte[] sessionState) {
+            super(response);
+            httpRequest = request;
+            requestSessionState = sessionState;
+        }
+
+        /** {@inheritDoc} */
+        public ServletOutputStream getOutputStream() throws IOException {
+            writeSessionCookie();
+            return super.getOutputStream();
         }
 
-        try {
-            MessageDigest digester = MessageDigest.getInstance("SHA");
-            digester.update(sessionSecret);
-            digester.update(remoteAddressBytes);
-            digester.update(sessionIdBytes);
-            if (!Arrays.equals(digester.digest(), signatureBytes)) {
-                log.error("Session cookie has been tampered with, its signature no longer matches expected value");
-                return false;
+        /** {@inheritDoc} */
+        public PrintWriter getWriter() throws IOException {
+            writeSessionCookie();
+            return super.getWriter();
+        }
+
+        /** {@inheritDoc} */
+        public void sendRedirect(String location) throws IOException {
+            writeSessionCookie();
+            super.sendRedirect(location);
+        }
+
+        /** {@inheritDoc} */
+        public void sendError(int sc) throws IOException {
+            writeSessionCookie();
+            super.sendError(sc);
+        }
+
+        /** {@inheritDoc} */
+        public void sendError(int sc, String msg) throws IOException {
+            writeSessionCookie();
+            super.sendError(sc, msg);
+        }
+
+        /** {@inheritDoc} */
+        public void flushBuffer() throws IOException {
+            writeSessionCookie();
+            super.flushBuffer();
+        }
+
+        /**
+         * Writes the session cookie if the session bound to the request is new, has changed or has been destroyed. Only
+         * the first call has any effect.
+         */
+        public void writeSessionCookie() {
+            if (cookieWritten || isCommitted()) {
+                return;
+            }
+            cookieWritten = true;
+
+            Session idpSession = (Session) httpRequest.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE);
+            if (idpSession == null) {
+                return;
+            }
+
+            if (clientSessionManager.isRevoked(idpSession.getSessionID())) {
+                log.trace("Removing destroyed client-side session {}", idpSession.getSessionID());
+                addSessionCookie("", 0);
+                return;
+            }
+
+            byte[] sessionState = clientSessionManager.serializeSession(idpSession, httpRequest.getRemoteAddr());
+            if (Arrays.equals(requestSessionState, sessionState)) {
+                return;
+            }
+
+            String cookieValue = clientSessionManager.encodeSession(sessionState);
+            if (cookieValue != null) {
+                log.debug("Adding client-side IdP session cookie to HTTP response");
+                addSessionCookie(cookieValue, -1);
             }
-        } catch (GeneralSecurityException e) {
-            log.error("Unable to compute signature over session cookie material", e);
         }
 
-        return true;
+        /**
+         * Adds the session cookie to the response.
+         * 
+         * @param value value of the cookie
+         * @param maxAge maximum age of the cookie, in seconds, or -1 for a browser session cookie
+         */
+        private void addSessionCookie(String value, int maxAge) {
+            Cookie sessionCookie = new Cookie(AuthenticationEngine.IDP_SESSION_COOKIE_NAME, value);
+            sessionCookie.setVersion(1);
+            String cookieDomain = HttpServletHelper.getCookieDomain(servletContext);
+            if (cookieDomain != null) {
+                sessionCookie.setDomain(cookieDomain);
+            }
+            sessionCookie.setPath("".equals(httpRequest.getContextPath()) ? "/" : httpRequest.getContextPath());
+            sessionCookie.setSecure(httpRequest.isSecure());
+            sessionCookie.setMaxAge(maxAge);
+            addCookie(sessionCookie);
+        }
     }
-}
\ No newline at end of file
+}
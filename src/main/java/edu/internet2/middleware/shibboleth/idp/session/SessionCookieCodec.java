@@ -0,0 +1,286 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encoder and decoder of the IdP session cookie value.
+ *
+ * The cookie value is <code>sessionID.hex(clientAddress).hex(tag)</code>, where the tag is the HMAC-SHA256, keyed with
+ * the session secret, of <code>clientAddress|sessionID</code>. Every component is made of cookie-safe characters so the
+ * value needs no URL or Base64 decoding and is checked in place. Each thread keeps its own {@link Mac}, which is only
+ * re-keyed with the session secret, and the computed tag is compared, in constant time, directly against the hex
+ * characters of the cookie.
+ */
+public final class SessionCookieCodec {
+
+    /** Separator between the components of the cookie value. */
+    private static final char SEPARATOR = '.';
+
+    /** Size, in bytes, of the HMAC-SHA256 tag. */
+    private static final int MAC_SIZE = 32;
+
+    /** Hex digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(SessionCookieCodec.class);
+
+    /** Per-thread MAC and tag buffer. */
+    private static final ThreadLocal<MacHolder> MAC_HOLDER = new ThreadLocal<MacHolder>() {
+        protected MacHolder initialValue() {
+            try {
+                return new MacHolder(Mac.getInstance("HmacSHA256"));
+            } catch (GeneralSecurityException e) {
+                LOG.error("HmacSHA256 is not supported by this JVM", e);
+                return null;
+            }
+        }
+    };
+
+    /** Constructor. */
+    private SessionCookieCodec() {
+    }
+
+    /**
+     * Encodes a session cookie value.
+     *
+     * @param clientAddress address of the client the cookie is issued to
+     * @param sessionID ID of the session
+     * @param sessionSecret secret of the session
+     *
+     * @return the cookie value or null if the tag could not be computed
+     */
+    public static String encode(String clientAddress, String sessionID, byte[] sessionSecret) {
+        byte[] tag = computeTag(clientAddress, 0, clientAddress.length(), false, sessionID, sessionID.length(),
+                sessionSecret);
+        if (tag == null) {
+            return null;
+        }
+
+        StringBuilder value = new StringBuilder(sessionID.length() + 2 * clientAddress.length() + 2 * MAC_SIZE + 2);
+        value.append(sessionID).append(SEPARATOR);
+        for (int i = 0; i < clientAddress.length(); i++) {
+            appendHex(value, clientAddress.charAt(i));
+        }
+        value.append(SEPARATOR);
+        for (int i = 0; i < MAC_SIZE; i++) {
+            appendHex(value, tag[i]);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Gets the session ID from a session cookie value. The value is only checked to be well formed, not authentic.
+     *
+     * @param cookieValue the cookie value
+     *
+     * @return the session ID or null if the value is malformed
+     */
+    public static String getSessionID(String cookieValue) {
+        if (cookieValue == null) {
+            return null;
+        }
+
+        int addressStart = cookieValue.indexOf(SEPARATOR) + 1;
+        int tagStart = cookieValue.indexOf(SEPARATOR, addressStart) + 1;
+        if (addressStart <= 1 || tagStart <= addressStart || (tagStart - 1 - addressStart) % 2 != 0
+                || cookieValue.length() - tagStart != 2 * MAC_SIZE) {
+            return null;
+        }
+
+        return cookieValue.substring(0, addressStart - 1);
+    }
+
+    /**
+     * Checks that a session cookie value is authentic and, if a client address is given, was issued to that client.
+     * The value must be well formed, see {@link #getSessionID(String)}.
+     *
+     * @param cookieValue the cookie value
+     * @param clientAddress address of the client presenting the cookie, or null if the address is not checked
+     * @param sessionSecret secret of the session identified by the cookie
+     *
+     * @return true if the cookie is valid, false if not
+     */
+    public static boolean isValid(String cookieValue, String clientAddress, byte[] sessionSecret) {
+        int addressStart = cookieValue.indexOf(SEPARATOR) + 1;
+        int tagStart = cookieValue.indexOf(SEPARATOR, addressStart) + 1;
+        int addressLength = (tagStart - 1 - addressStart) / 2;
+
+        if (clientAddress != null && !isIssuedAddress(cookieValue, addressStart, addressLength, clientAddress)) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Client sent a cookie from address {} but the cookie was issued to address {}",
+                        clientAddress, decodeAddress(cookieValue, addressStart, addressLength));
+            }
+            return false;
+        }
+
+        byte[] tag = computeTag(cookieValue, addressStart, addressLength, true, cookieValue, addressStart - 1,
+                sessionSecret);
+        if (tag == null) {
+            return false;
+        }
+
+        int diff = 0;
+        int high;
+        int low;
+        for (int i = 0; i < MAC_SIZE; i++) {
+            high = Character.digit(cookieValue.charAt(tagStart + 2 * i), 16);
+            low = Character.digit(cookieValue.charAt(tagStart + 2 * i + 1), 16);
+            diff |= (high | low) >>> 31;
+            diff |= ((high << 4) | low) ^ (tag[i] & 0xff);
+        }
+        if (diff != 0) {
+            LOG.error("Session cookie has been tampered with, its signature no longer matches expected value");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Computes the tag over a client address and session ID. The tag is written to a per-thread buffer which is only
+     * valid until the next call on the same thread.
+     *
+     * @param address string holding the client address
+     * @param addressStart index of the address within the string
+     * @param addressLength length, in characters, of the address
+     * @param hexAddress whether the address is hex encoded within the string
+     * @param sessionID string starting with the ID of the session
+     * @param sessionIDLength length of the session ID
+     * @param sessionSecret secret of the session
+     *
+     * @return the tag or null if it could not be computed
+     */
+    private static byte[] computeTag(String address, int addressStart, int addressLength, boolean hexAddress,
+            String sessionID, int sessionIDLength, byte[] sessionSecret) {
+        MacHolder holder = MAC_HOLDER.get();
+        if (holder == null) {
+            return null;
+        }
+
+        try {
+            Mac mac = holder.mac;
+            mac.init(new SecretKeySpec(sessionSecret, "HmacSHA256"));
+            for (int i = 0; i < addressLength; i++) {
+                if (hexAddress) {
+                    mac.update(hexByte(address, addressStart + 2 * i));
+                } else {
+                    mac.update((byte) address.charAt(addressStart + i));
+                }
+            }
+            mac.update((byte) '|');
+            for (int i = 0; i < sessionIDLength; i++) {
+                mac.update((byte) sessionID.charAt(i));
+            }
+            mac.doFinal(holder.tag, 0);
+            return holder.tag;
+        } catch (GeneralSecurityException e) {
+            LOG.error("Unable to compute signature over session cookie material", e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the hex encoded address in a cookie value is the given client address.
+     *
+     * @param cookieValue the cookie value
+     * @param addressStart index of the hex encoded address within the cookie value
+     * @param addressLength length, in characters, of the decoded address
+     * @param clientAddress the client address
+     *
+     * @return true if the addresses are equal
+     */
+    private static boolean isIssuedAddress(String cookieValue, int addressStart, int addressLength,
+            String clientAddress) {
+        if (clientAddress.length() != addressLength) {
+            return false;
+        }
+        for (int i = 0; i < addressLength; i++) {
+            if (hexByte(cookieValue, addressStart + 2 * i) != (byte) clientAddress.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the hex encoded address in a cookie value, for logging.
+     *
+     * @param cookieValue the cookie value
+     * @param addressStart index of the hex encoded address within the cookie value
+     * @param addressLength length, in characters, of the decoded address
+     *
+     * @return the address
+     */
+    private static String decodeAddress(String cookieValue, int addressStart, int addressLength) {
+        StringBuilder address = new StringBuilder(addressLength);
+        for (int i = 0; i < addressLength; i++) {
+            address.append((char) (hexByte(cookieValue, addressStart + 2 * i) & 0xff));
+        }
+        return address.toString();
+    }
+
+    /**
+     * Reads a hex encoded byte. Invalid hex digits result in a byte that will not match the expected value.
+     *
+     * @param value string holding the hex encoded byte
+     * @param index index of the first hex digit
+     *
+     * @return the byte
+     */
+    private static byte hexByte(String value, int index) {
+        return (byte) ((Character.digit(value.charAt(index), 16) << 4) | Character.digit(value.charAt(index + 1), 16));
+    }
+
+    /**
+     * Appends the two hex digits of a byte.
+     *
+     * @param builder builder to append to
+     * @param b the byte
+     */
+    private static void appendHex(StringBuilder builder, int b) {
+        builder.append(HEX_DIGITS[(b >>> 4) & 0x0f]).append(HEX_DIGITS[b & 0x0f]);
+    }
+
+    /** Per-thread MAC and the buffer receiving its tags. */
+    private static final class MacHolder {
+
+        /** HMAC-SHA256 MAC. */
+        private final Mac mac;
+
+        /** Buffer receiving computed tags. */
+        private final byte[] tag = new byte[MAC_SIZE];
+
+        /**
+         * Constructor.
+         *
+         * @param hmac HMAC-SHA256 MAC
+         */
+        private MacHolder(Mac hmac) {
+            mac = hmac;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import org.apache.commons.ssl.util.Hex;
+import org.opensaml.saml1.core.NameIdentifier;
+import org.opensaml.saml2.core.NameID;
+
+import edu.internet2.middleware.shibboleth.common.session.SessionManager;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.util.PerThreadRandomSource;
+
+/** Base class for managers of IdP sessions. */
+public abstract class AbstractSessionManager implements SessionManager<Session> {
+
+    /** Number of random bytes within a session ID. */
+    private final int sessionIDSize = 32;
+
+    /** Number of random bytes within a session secret. */
+    private final int sessionSecretSize = 16;
+
+    /** Source of random bytes for session IDs and secrets. */
+    private PerThreadRandomSource randomSource = new PerThreadRandomSource();
+
+    /**
+     * Gets the source of random bytes for session IDs and secrets.
+     *
+     * @return source of random bytes for session IDs and secrets
+     */
+    public PerThreadRandomSource getRandomSource() {
+        return randomSource;
+    }
+
+    /**
+     * Sets the source of random bytes for session IDs and secrets.
+     *
+     * @param source source of random bytes for session IDs and secrets
+     */
+    public void setRandomSource(PerThreadRandomSource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Random source may not be null");
+        }
+        randomSource = source;
+    }
+
+    /**
+     * Generates a new random session ID.
+     *
+     * @return the session ID
+     */
+    protected String generateSessionID() {
+        return Hex.encode(randomSource.nextBytes(sessionIDSize));
+    }
+
+    /**
+     * Generates a new random session secret.
+     *
+     * @return the session secret
+     */
+    protected byte[] generateSessionSecret() {
+        return randomSource.nextBytes(sessionSecretSize);
+    }
+
+    /**
+     * Fills the given array with random bytes from the session manager's random source.
+     *
+     * @param bytes array to fill
+     */
+    protected void nextRandomBytes(byte[] bytes) {
+        randomSource.nextBytes(bytes);
+    }
+
+    /**
+     * Makes changes to a session, obtained from this manager, visible to later lookups of the session. Managers that
+     * hand out the stored session itself need not do anything, which is the default.
+     *
+     * @param session the changed session
+     */
+    public void updateSession(Session session) {
+    }
+
+    /**
+     * Makes changes to a session visible to later lookups of the session, through whichever session manager it was
+     * obtained from. Session managers not derived from this class are assumed to hand out the stored session itself.
+     *
+     * @param sessionManager the session manager the session was obtained from
+     * @param session the changed session
+     */
+    public static void writeBack(SessionManager<Session> sessionManager, Session session) {
+        if (sessionManager instanceof AbstractSessionManager) {
+            ((AbstractSessionManager) sessionManager).updateSession(session);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String getIndexFromNameID(NameIdentifier nameIdentifier) {
+        if (nameIdentifier == null || nameIdentifier.getNameIdentifier() == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append(nameIdentifier.getNameIdentifier());
+        b.append("|");
+        b.append(nameIdentifier.getFormat());
+        if (nameIdentifier.getNameQualifier() != null) {
+            b.append("|");
+            b.append(nameIdentifier.getNameQualifier());
+        }
+
+        return b.toString();
+    }
+
+    /** {@inheritDoc} */
+    public String getIndexFromNameID(NameID nameIdentifier) {
+        if (nameIdentifier == null || nameIdentifier.getValue() == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append(nameIdentifier.getValue());
+        b.append("|");
+        b.append(nameIdentifier.getFormat());
+        if (nameIdentifier.getNameQualifier() != null || nameIdentifier.getSPNameQualifier() != null) {
+            b.append("|");
+            b.append(nameIdentifier.getNameQualifier());
+        }
+        if (nameIdentifier.getSPNameQualifier() != null) {
+            b.append("|");
+            b.append(nameIdentifier.getSPNameQualifier());
+        }
+
+        return b.toString();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.security.Principal;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/**
+ * Codec of {@link AuthenticationMethodInformationImpl}s.
+ *
+ * Also provides the encoding of the {@link Subject}s and {@link Principal}s of sessions and login contexts. As with
+ * Java serialization, only the principals of a subject are encoded, not its credentials.
+ */
+public class AuthenticationMethodInformationCodec implements BinaryCodec<AuthenticationMethodInformationImpl> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** Marker of a null principal. */
+    private static final int NULL_PRINCIPAL = 0;
+
+    /** Marker of a {@link UsernamePrincipal}, written as its name. */
+    private static final int USERNAME_PRINCIPAL = 1;
+
+    /** Marker of any other principal, written as a nested value. */
+    private static final int OTHER_PRINCIPAL = 2;
+
+    /** Marker of an authentication subject encoded in full. */
+    private static final int OWN_SUBJECT = 0;
+
+    /** Marker of an authentication subject that is the subject of the enclosing session. */
+    private static final int SESSION_SUBJECT = 1;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(AuthenticationMethodInformationImpl value, BinaryOutput out) throws IOException {
+        encode(value, null, out);
+    }
+
+    /** {@inheritDoc} */
+    public AuthenticationMethodInformationImpl decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported authentication method encoding version " + version);
+        }
+        return decode(in, null);
+    }
+
+    /**
+     * Encodes authentication method information.
+     *
+     * @param value the authentication method information
+     * @param sessionSubject subject of the enclosing session, which is not encoded again if it is also the
+     *            authentication subject, may be null
+     * @param out output to which the information is written
+     *
+     * @throws IOException thrown if the information can not be encoded
+     */
+    public static void encode(AuthenticationMethodInformation value, Subject sessionSubject, BinaryOutput out)
+            throws IOException {
+        out.writeInternedString(value.getAuthenticationMethod());
+        out.writeVarLong(value.getAuthenticationInstant().getMillis());
+        out.writeVarLong(value.getAuthenticationDuration());
+        encodePrincipal(value.getAuthenticationPrincipal(), out);
+
+        Subject subject = value.getAuthenticationSubject();
+        if (sessionSubject != null && subject == sessionSubject) {
+            out.writeByte(SESSION_SUBJECT);
+        } else {
+            out.writeByte(OWN_SUBJECT);
+            encodeSubject(subject, out);
+        }
+    }
+
+    /**
+     * Decodes authentication method information.
+     *
+     * @param in input from which the information is read
+     * @param sessionSubject subject of the enclosing session, may be null
+     *
+     * @return the authentication method information
+     *
+     * @throws IOException thrown if the information is malformed
+     */
+    public static AuthenticationMethodInformationImpl decode(BinaryInput in, Subject sessionSubject)
+            throws IOException {
+        String method = in.readInternedString();
+        DateTime instant = new DateTime(in.readVarLong());
+        long duration = in.readVarLong();
+        Principal principal = decodePrincipal(in);
+
+        Subject subject;
+        if (in.readByte() == SESSION_SUBJECT) {
+            subject = sessionSubject;
+        } else {
+            subject = decodeSubject(in);
+        }
+
+        if (method == null || duration < 0) {
+            throw new StreamCorruptedException("Malformed authentication method information");
+        }
+        return new AuthenticationMethodInformationImpl(subject, principal, method, instant, duration);
+    }
+
+    /**
+     * Encodes the principals of a subject.
+     *
+     * @param subject the subject, may be null
+     * @param out output to which the subject is written
+     *
+     * @throws IOException thrown if one of the principals can not be encoded
+     */
+    public static void encodeSubject(Subject subject, BinaryOutput out) throws IOException {
+        if (subject == null) {
+            out.writeVarInt(0);
+            return;
+        }
+
+        Principal[] principals = subject.getPrincipals().toArray(new Principal[0]);
+        out.writeVarInt(principals.length + 1);
+        for (Principal principal : principals) {
+            encodePrincipal(principal, out);
+        }
+    }
+
+    /**
+     * Decodes a subject.
+     *
+     * @param in input from which the subject is read
+     *
+     * @return the subject, may be null
+     *
+     * @throws IOException thrown if the subject is malformed
+     */
+    public static Subject decodeSubject(BinaryInput in) throws IOException {
+        int count = in.readCount() - 1;
+        if (count < 0) {
+            return null;
+        }
+
+        Subject subject = new Subject();
+        Set<Principal> principals = subject.getPrincipals();
+        Principal principal;
+        for (int i = 0; i < count; i++) {
+            principal = decodePrincipal(in);
+            if (principal != null) {
+                principals.add(principal);
+            }
+        }
+        return subject;
+    }
+
+    /**
+     * Encodes a principal.
+     *
+     * @param principal the principal, may be null
+     * @param out output to which the principal is written
+     *
+     * @throws IOException thrown if the principal can not be encoded
+     */
+    public static void encodePrincipal(Principal principal, BinaryOutput out) throws IOException {
+        if (principal == null) {
+            out.writeByte(NULL_PRINCIPAL);
+        } else if (principal.getClass() == UsernamePrincipal.class) {
+            out.writeByte(USERNAME_PRINCIPAL);
+            out.writeString(principal.getName());
+        } else {
+            out.writeByte(OTHER_PRINCIPAL);
+            out.writeObject(principal);
+        }
+    }
+
+    /**
+     * Decodes a principal.
+     *
+     * @param in input from which the principal is read
+     *
+     * @return the principal, may be null
+     *
+     * @throws IOException thrown if the principal is malformed
+     */
+    public static Principal decodePrincipal(BinaryInput in) throws IOException {
+        switch (in.readByte()) {
+            case NULL_PRINCIPAL:
+                return null;
+            case USERNAME_PRINCIPAL:
+                return new UsernamePrincipal(in.readString());
+            case OTHER_PRINCIPAL:
+                Object principal = in.readObject();
+                if (principal instanceof Principal) {
+                    return (Principal) principal;
+                }
+                throw new StreamCorruptedException("Encoded principal is not a Principal");
+            default:
+                throw new StreamCorruptedException("Unknown principal marker");
+        }
+    }
+}
@@ -0,0 +1,622 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.StorageService;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/**
+ * Manager of IdP sessions that are kept by the client, in the IdP session cookie, rather than by the IdP.
+ *
+ * The session is serialized into a compact binary form, compressed, encrypted with AES-CBC and authenticated with
+ * HMAC-SHA256 (encrypt-then-MAC). Keys are derived from a single, Base64 encoded, secret which must be shared by all
+ * IdP nodes. Only the names of the subject's principals are kept, credentials are never written to the cookie, and
+ * only the most recent services are kept so that the cookie stays within browser limits.
+ *
+ * Because no session state is kept by the IdP, sessions can not be found by index and SAML back-channel requests
+ * (attribute queries, SOAP logout) that rely on finding a session without the session cookie are not supported.
+ * Destroyed sessions are recorded in a small revocation list, held in a storage service, until every cookie issued for
+ * the session has expired.
+ */
+public class ClientSessionManager extends AbstractSessionManager {
+
+    /** Version of the session cookie format. */
+    public static final byte COOKIE_VERSION = 1;
+
+    /** Default storage service partition holding revoked session IDs. */
+    public static final String DEFAULT_REVOCATION_PARTITION = "revokedSession";
+
+    /** Size, in bytes, of the AES initialization vector. */
+    private static final int IV_SIZE = 16;
+
+    /** Size, in bytes, of the HMAC-SHA256 tag. */
+    private static final int MAC_SIZE = 32;
+
+    /** Largest accepted size, in bytes, of a decompressed session. */
+    private static final int MAX_SESSION_SIZE = 16384;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ClientSessionManager.class);
+
+    /** Storage service holding the IDs of revoked sessions. */
+    private StorageService<String, RevokedSessionEntry> revocationStorage;
+
+    /** Partition in which revoked session IDs are stored. */
+    private String revocationPartition;
+
+    /** Lifetime, in milliseconds, of session. */
+    private long sessionLifetime;
+
+    /** Key used to encrypt sessions. */
+    private SecretKeySpec encryptionKey;
+
+    /** Key used to authenticate encrypted sessions. */
+    private SecretKeySpec macKey;
+
+    /** Maximum number of services kept in a session. */
+    private int maxServices;
+
+    /** Granularity, in milliseconds, with which the session's last activity instant is kept. */
+    private long activityGranularity;
+
+    /**
+     * Constructor.
+     *
+     * @param storageService service used to store revoked session IDs
+     * @param lifetime lifetime, in milliseconds, of sessions
+     * @param sessionKey Base64 encoded secret, at least 16 bytes long, from which session keys are derived
+     */
+    public ClientSessionManager(StorageService<String, RevokedSessionEntry> storageService, long lifetime,
+            String sessionKey) {
+        if (storageService == null) {
+            throw new IllegalArgumentException("Revocation storage service may not be null");
+        }
+        revocationStorage = storageService;
+        revocationPartition = DEFAULT_REVOCATION_PARTITION;
+        sessionLifetime = lifetime;
+        maxServices = 10;
+        activityGranularity = 60000;
+
+        byte[] secret = null;
+        if (!DatatypeHelper.isEmpty(sessionKey)) {
+            secret = Base64.decode(DatatypeHelper.safeTrim(sessionKey));
+        }
+        if (secret == null || secret.length < 16) {
+            throw new IllegalArgumentException("Session key must be a Base64 encoded value of at least 16 bytes");
+        }
+
+        try {
+            MessageDigest digester = MessageDigest.getInstance("SHA-256");
+            digester.update(secret);
+            digester.update((byte) 1);
+            encryptionKey = new SecretKeySpec(digester.digest(), 0, 16, "AES");
+            digester.update(secret);
+            digester.update((byte) 2);
+            macKey = new SecretKeySpec(digester.digest(), "HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Unable to derive session keys", e);
+        }
+    }
+
+    /**
+     * Gets the partition in which revoked session IDs are stored.
+     *
+     * @return partition in which revoked session IDs are stored
+     */
+    public String getRevocationPartition() {
+        return revocationPartition;
+    }
+
+    /**
+     * Sets the partition in which revoked session IDs are stored.
+     *
+     * @param partition partition in which revoked session IDs are stored
+     */
+    public void setRevocationPartition(String partition) {
+        if (!DatatypeHelper.isEmpty(partition)) {
+            revocationPartition = DatatypeHelper.safeTrim(partition);
+        } else {
+            revocationPartition = DEFAULT_REVOCATION_PARTITION;
+        }
+    }
+
+    /**
+     * Gets the maximum number of services kept in a session.
+     *
+     * @return maximum number of services kept in a session
+     */
+    public int getMaxServices() {
+        return maxServices;
+    }
+
+    /**
+     * Sets the maximum number of services kept in a session. When a session has more services the ones logged in to
+     * least recently are dropped.
+     *
+     * @param max maximum number of services kept in a session
+     */
+    public void setMaxServices(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Maximum number of services must be at least 1");
+        }
+        maxServices = max;
+    }
+
+    /**
+     * Gets the granularity, in milliseconds, with which the session's last activity instant is kept.
+     *
+     * @return granularity with which the session's last activity instant is kept
+     */
+    public long getActivityGranularity() {
+        return activityGranularity;
+    }
+
+    /**
+     * Sets the granularity, in milliseconds, with which the session's last activity instant is kept. The session cookie
+     * only needs to be re-issued for activity when the activity instant moves by at least this much. Sessions may time
+     * out up to this much earlier than their inactivity timeout.
+     *
+     * @param granularity granularity with which the session's last activity instant is kept
+     */
+    public void setActivityGranularity(long granularity) {
+        if (granularity < 1) {
+            throw new IllegalArgumentException("Activity granularity must be at least 1 millisecond");
+        }
+        activityGranularity = granularity;
+    }
+
+    /** {@inheritDoc} */
+    public Session createSession() {
+        String sessionID = generateSessionID();
+        Session session = new SessionImpl(sessionID, generateSessionSecret(), sessionLifetime);
+
+        MDC.put("idpSessionId", sessionID);
+        log.trace("Created client-side session {}", sessionID);
+        return session;
+    }
+
+    /** {@inheritDoc} */
+    public Session createSession(String principal) {
+        return createSession();
+    }
+
+    /** {@inheritDoc} */
+    public void destroySession(String sessionID) {
+        if (sessionID == null) {
+            return;
+        }
+
+        log.trace("Revoking client-side session {}", sessionID);
+        revocationStorage.put(revocationPartition, sessionID, new RevokedSessionEntry(sessionID, sessionLifetime
+                + activityGranularity));
+    }
+
+    /**
+     * Client-side sessions are not held by the IdP and so can not be looked up by ID or index.
+     *
+     * {@inheritDoc}
+     */
+    public Session getSession(String index) {
+        return null;
+    }
+
+    /**
+     * Client-side sessions are not held by the IdP and so are not indexed.
+     *
+     * {@inheritDoc}
+     */
+    public boolean indexSession(Session session, String index) {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public void removeSessionIndex(String index) {
+
+    }
+
+    /**
+     * Checks whether a session has been destroyed.
+     *
+     * @param sessionID ID of the session
+     *
+     * @return true if the session has been destroyed
+     */
+    public boolean isRevoked(String sessionID) {
+        RevokedSessionEntry entry = revocationStorage.get(revocationPartition, sessionID);
+        return entry != null && !entry.isExpired();
+    }
+
+    /**
+     * Serializes a session into the form kept in the session cookie, prior to compression and encryption. Two
+     * serializations of a session are equal if the session has not changed in a way that requires the cookie to be
+     * re-issued.
+     *
+     * @param session the session
+     * @param clientAddress address of the client to which the session is issued
+     *
+     * @return the serialized session
+     */
+    public byte[] serializeSession(Session session, String clientAddress) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeUTF(session.getSessionID());
+            byte[] secret = session.getSessionSecret();
+            out.writeShort(secret.length);
+            out.write(secret);
+            long lastActivity = session.getLastActivityInstant().getMillis();
+            out.writeLong(lastActivity - (lastActivity % activityGranularity));
+            out.writeLong(session.getInactivityTimeout());
+            writeString(out, clientAddress);
+
+            Subject subject = session.getSubject();
+            if (subject == null) {
+                out.writeShort(0);
+            } else {
+                List<Principal> principals = new ArrayList<Principal>(subject.getPrincipals());
+                out.writeShort(principals.size());
+                for (Principal principal : principals) {
+                    out.writeUTF(principal.getName());
+                }
+            }
+
+            List<AuthenticationMethodInformation> methods = new ArrayList<AuthenticationMethodInformation>(session
+                    .getAuthenticationMethods().values());
+            out.writeShort(methods.size());
+            for (AuthenticationMethodInformation method : methods) {
+                writeAuthenticationMethod(out, method);
+            }
+
+            List<ServiceInformation> services = getRecentServices(session);
+            out.writeShort(services.size());
+            for (ServiceInformation service : services) {
+                out.writeUTF(service.getEntityID());
+                out.writeLong(service.getLoginInstant().getMillis());
+                writeString(out, service.getAuthenticationMethod() == null ? null : service
+                        .getAuthenticationMethod().getAuthenticationMethod());
+                writeString(out, service.getNameIdentifier());
+                writeString(out, service.getNameIdentifierFormat());
+                writeString(out, service.getNameQualifier());
+                writeString(out, service.getSPNameQualifier());
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            // can not happen when writing to a byte array
+            throw new IllegalStateException("Unable to serialize session", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compresses, encrypts and authenticates a serialized session, producing the value of the session cookie.
+     *
+     * @param serializedSession the session as produced by {@link #serializeSession(Session, String)}
+     *
+     * @return the session cookie value or null if the session could not be encrypted
+     */
+    public String encodeSession(byte[] serializedSession) {
+        try {
+            byte[] compressed = deflate(serializedSession);
+
+            byte[] iv = new byte[IV_SIZE];
+            nextRandomBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            int cipherTextSize = cipher.getOutputSize(compressed.length);
+
+            byte[] value = new byte[1 + IV_SIZE + cipherTextSize + MAC_SIZE];
+            value[0] = COOKIE_VERSION;
+            System.arraycopy(iv, 0, value, 1, IV_SIZE);
+            cipherTextSize = cipher.doFinal(compressed, 0, compressed.length, value, 1 + IV_SIZE);
+
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(value, 0, 1 + IV_SIZE + cipherTextSize);
+            mac.doFinal(value, 1 + IV_SIZE + cipherTextSize);
+
+            return HTTPTransportUtils.urlEncode(Base64.encodeBytes(value, Base64.DONT_BREAK_LINES));
+        } catch (GeneralSecurityException e) {
+            log.error("Unable to encrypt client-side session", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a session cookie value. The session is only returned if the cookie is authentic, the session has not
+     * timed out, has not been revoked, and, if a client address is given, was issued to that address.
+     *
+     * @param cookieValue the session cookie value
+     * @param clientAddress the address of the client presenting the cookie, or null if the address is not checked
+     *
+     * @return the session or null
+     */
+    public Session decodeSession(String cookieValue, String clientAddress) {
+        if (DatatypeHelper.isEmpty(cookieValue)) {
+            return null;
+        }
+
+        byte[] value = Base64.decode(HTTPTransportUtils.urlDecode(cookieValue));
+        if (value == null || value.length < 1 + IV_SIZE + 16 + MAC_SIZE || value[0] != COOKIE_VERSION) {
+            log.warn("IdP session cookie has an improperly formated value");
+            return null;
+        }
+
+        try {
+            int macOffset = value.length - MAC_SIZE;
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(value, 0, macOffset);
+            byte[] expectedMac = mac.doFinal();
+            byte[] cookieMac = new byte[MAC_SIZE];
+            System.arraycopy(value, macOffset, cookieMac, 0, MAC_SIZE);
+            if (!MessageDigest.isEqual(expectedMac, cookieMac)) {
+                log.error("Session cookie has been tampered with, its signature no longer matches expected value");
+                return null;
+            }
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(value, 1, IV_SIZE));
+            byte[] compressed = cipher.doFinal(value, 1 + IV_SIZE, macOffset - 1 - IV_SIZE);
+
+            return deserializeSession(inflate(compressed), clientAddress);
+        } catch (GeneralSecurityException e) {
+            log.error("Unable to decrypt client-side session", e);
+        } catch (DataFormatException e) {
+            log.error("Unable to decompress client-side session", e);
+        } catch (IOException e) {
+            log.error("Unable to read client-side session", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads a session from its serialized form.
+     *
+     * @param serializedSession the serialized session
+     * @param clientAddress the address of the client presenting the session, or null if the address is not checked
+     *
+     * @return the session or null if the session is not valid for the client
+     *
+     * @throws IOException thrown if the serialized session is malformed
+     */
+    protected Session deserializeSession(byte[] serializedSession, String clientAddress) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(serializedSession));
+
+        String sessionID = in.readUTF();
+        byte[] secret = new byte[in.readUnsignedShort()];
+        in.readFully(secret);
+        long lastActivity = in.readLong();
+        long timeout = in.readLong();
+        String issuedAddress = readString(in);
+
+        if (lastActivity + timeout < System.currentTimeMillis()) {
+            log.debug("Client-side session {} has timed out", sessionID);
+            return null;
+        }
+        if (clientAddress != null && !clientAddress.equals(issuedAddress)) {
+            log.error("Client sent a cookie from address {} but the cookie was issued to address {}", clientAddress,
+                    issuedAddress);
+            return null;
+        }
+        if (isRevoked(sessionID)) {
+            log.debug("Client-side session {} has been destroyed", sessionID);
+            return null;
+        }
+
+        SessionImpl session = new SessionImpl(sessionID, secret, timeout);
+        session.setLastActivityInstant(new DateTime(lastActivity));
+
+        Subject subject = new Subject();
+        int principalCount = in.readUnsignedShort();
+        for (int i = 0; i < principalCount; i++) {
+            subject.getPrincipals().add(new UsernamePrincipal(in.readUTF()));
+        }
+        session.setSubject(subject);
+
+        Map<String, AuthenticationMethodInformation> methods = session.getAuthenticationMethods();
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            String method = in.readUTF();
+            DateTime instant = new DateTime(in.readLong());
+            long duration = in.readLong();
+            String principalName = readString(in);
+            Principal principal = principalName == null ? null : new UsernamePrincipal(principalName);
+            methods.put(method, new AuthenticationMethodInformationImpl(subject, principal, method, instant,
+                    duration));
+        }
+
+        Map<String, ServiceInformation> services = session.getServicesInformation();
+        int serviceCount = in.readUnsignedShort();
+        ServiceInformationImpl service;
+        for (int i = 0; i < serviceCount; i++) {
+            String entityID = in.readUTF();
+            DateTime loginInstant = new DateTime(in.readLong());
+            String method = readString(in);
+            service = new ServiceInformationImpl(entityID, loginInstant, method == null ? null : methods.get(method));
+            service.setNameIdentifier(readString(in), readString(in), readString(in), readString(in));
+            services.put(entityID, service);
+        }
+
+        return session;
+    }
+
+    /**
+     * Gets the services of the session, most recently logged in to first, limited to the maximum number of services.
+     *
+     * @param session the session
+     *
+     * @return the services to keep in the session cookie
+     */
+    private List<ServiceInformation> getRecentServices(Session session) {
+        List<ServiceInformation> services = new ArrayList<ServiceInformation>(session.getServicesInformation()
+                .values());
+        if (services.size() > maxServices) {
+            Collections.sort(services, new Comparator<ServiceInformation>() {
+                public int compare(ServiceInformation service1, ServiceInformation service2) {
+                    return service2.getLoginInstant().compareTo(service1.getLoginInstant());
+                }
+            });
+            log.debug("Session {} has {} services, only the {} most recent are kept", new Object[] {
+                    session.getSessionID(), services.size(), maxServices, });
+            return services.subList(0, maxServices);
+        }
+        return services;
+    }
+
+    /**
+     * Writes an authentication method to a serialized session.
+     *
+     * @param out stream to write to
+     * @param method the authentication method
+     *
+     * @throws IOException thrown if the method can not be written
+     */
+    private void writeAuthenticationMethod(DataOutputStream out, AuthenticationMethodInformation method)
+            throws IOException {
+        out.writeUTF(method.getAuthenticationMethod());
+        out.writeLong(method.getAuthenticationInstant().getMillis());
+        out.writeLong(method.getAuthenticationDuration());
+        Principal principal = method.getAuthenticationPrincipal();
+        writeString(out, principal == null ? null : principal.getName());
+    }
+
+    /**
+     * Writes a string, which may be null, to a serialized session.
+     *
+     * @param out stream to write to
+     * @param value the string
+     *
+     * @throws IOException thrown if the string can not be written
+     */
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string, which may be null, from a serialized session.
+     *
+     * @param in stream to read from
+     *
+     * @return the string
+     *
+     * @throws IOException thrown if the string can not be read
+     */
+    private String readString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    /**
+     * Compresses data.
+     *
+     * @param data data to compress
+     *
+     * @return the compressed data
+     */
+    private byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses data, refusing data which would decompress to more than {@value #MAX_SESSION_SIZE} bytes.
+     *
+     * @param data data to decompress
+     *
+     * @return the decompressed data
+     *
+     * @throws DataFormatException thrown if the data is not valid compressed data or is too large
+     */
+    private byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[512];
+            int read;
+            while (!inflater.finished()) {
+                read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // raw inflate may need one byte beyond the input to detect the end of the data
+                    break;
+                }
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_SESSION_SIZE) {
+                    throw new DataFormatException("Decompressed session exceeds " + MAX_SESSION_SIZE + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
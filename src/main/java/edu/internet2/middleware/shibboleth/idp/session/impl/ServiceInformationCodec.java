@@ -0,0 +1,147 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/**
+ * Codec of {@link ServiceInformationImpl}s.
+ *
+ * Within a session, the authentication method of a service is normally one of the session's authentication methods and
+ * is then written as a reference to it, by method URI, rather than again in full.
+ */
+public class ServiceInformationCodec implements BinaryCodec<ServiceInformationImpl> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** Marker of a service without authentication method. */
+    private static final int NO_METHOD = 0;
+
+    /** Marker of an authentication method that is one of the enclosing session's. */
+    private static final int SESSION_METHOD = 1;
+
+    /** Marker of an authentication method encoded in full. */
+    private static final int OWN_METHOD = 2;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(ServiceInformationImpl value, BinaryOutput out) throws IOException {
+        encode(value, null, null, out);
+    }
+
+    /** {@inheritDoc} */
+    public ServiceInformationImpl decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported service information encoding version " + version);
+        }
+        return decode(in, null, null);
+    }
+
+    /**
+     * Encodes service information.
+     *
+     * @param value the service information
+     * @param sessionMethods authentication methods of the enclosing session, may be null
+     * @param sessionSubject subject of the enclosing session, may be null
+     * @param out output to which the information is written
+     *
+     * @throws IOException thrown if the information can not be encoded
+     */
+    public static void encode(ServiceInformation value, Map<String, AuthenticationMethodInformation> sessionMethods,
+            Subject sessionSubject, BinaryOutput out) throws IOException {
+        out.writeInternedString(value.getEntityID());
+        out.writeVarLong(value.getLoginInstant().getMillis());
+
+        AuthenticationMethodInformation method = value.getAuthenticationMethod();
+        if (method == null) {
+            out.writeByte(NO_METHOD);
+        } else if (sessionMethods != null && sessionMethods.get(method.getAuthenticationMethod()) == method) {
+            out.writeByte(SESSION_METHOD);
+            out.writeInternedString(method.getAuthenticationMethod());
+        } else {
+            out.writeByte(OWN_METHOD);
+            AuthenticationMethodInformationCodec.encode(method, sessionSubject, out);
+        }
+
+        out.writeString(value.getNameIdentifier());
+        out.writeInternedString(value.getNameIdentifierFormat());
+        out.writeInternedString(value.getNameQualifier());
+        out.writeInternedString(value.getSPNameQualifier());
+    }
+
+    /**
+     * Decodes service information.
+     *
+     * @param in input from which the information is read
+     * @param sessionMethods authentication methods of the enclosing session, may be null
+     * @param sessionSubject subject of the enclosing session, may be null
+     *
+     * @return the service information
+     *
+     * @throws IOException thrown if the information is malformed
+     */
+    public static ServiceInformationImpl decode(BinaryInput in,
+            Map<String, AuthenticationMethodInformation> sessionMethods, Subject sessionSubject) throws IOException {
+        String entityID = in.readInternedString();
+        DateTime loginInstant = new DateTime(in.readVarLong());
+
+        AuthenticationMethodInformation method;
+        switch (in.readByte()) {
+            case NO_METHOD:
+                method = null;
+                break;
+            case SESSION_METHOD:
+                String methodURI = in.readInternedString();
+                method = sessionMethods == null ? null : sessionMethods.get(methodURI);
+                if (method == null) {
+                    throw new StreamCorruptedException("Reference to unknown session authentication method "
+                            + methodURI);
+                }
+                break;
+            case OWN_METHOD:
+                method = AuthenticationMethodInformationCodec.decode(in, sessionSubject);
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown authentication method marker");
+        }
+
+        ServiceInformationImpl service = new ServiceInformationImpl(entityID, loginInstant, method);
+        String nameIdentifier = in.readString();
+        String format = in.readInternedString();
+        String nameQualifier = in.readInternedString();
+        service.setNameIdentifier(nameIdentifier, format, nameQualifier, in.readInternedString());
+        return service;
+    }
+}
@@ -119,6 +119,21 @@ public class ServiceInformationImpl implements ServiceInformation {
         }
     }
 
+    /**
+     * Sets the name identifier for the principal known by the service.
+     * 
+     * @param value value of the name identifier
+     * @param format format of the name identifier
+     * @param qualifier name qualifier of the name identifier
+     * @param spQualifier SP name qualifier of the name identifier
+     */
+    public synchronized void setNameIdentifier(String value, String format, String qualifier, String spQualifier) {
+        nameIdentifier = value;
+        nameIdentifierFormat = format;
+        nameQualifier = qualifier;
+        SPNameQualifier = spQualifier;
+    }
+
     /** {@inheritDoc} */
     public synchronized String getNameIdentifier() {
         return nameIdentifier;
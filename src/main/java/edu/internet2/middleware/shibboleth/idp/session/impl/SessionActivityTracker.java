@@ -0,0 +1,307 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+
+/**
+ * Coalesces updates of the last activity instant of sessions.
+ *
+ * Writing the activity instant of a session that is clustered, or otherwise replicated, is expensive, yet it changes
+ * on every request. Touches are instead recorded in a node-local buffer and the session itself is only written when the
+ * touch moves its activity instant by at least the configured granularity, or when the buffer is periodically flushed.
+ * {@link #getLastActivity(Session)} takes buffered touches into account, so expiration checks made on this node remain
+ * exact; other nodes may see an activity instant that is, at most, one granularity or flush interval old.
+ */
+public class SessionActivityTracker {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SessionActivityTracker.class);
+
+    /** Minimum change, in milliseconds, of a session's activity instant that is written through immediately. */
+    private final long granularity;
+
+    /** Latest buffered touches, keyed by session ID. */
+    private final ConcurrentMap<String, PendingActivity> pendingActivity;
+
+    /** Store whose sessions are tracked, to which written activity is written back. */
+    private volatile SessionStore sessionStore;
+
+    /** Number of session writes made. */
+    private final AtomicLong writeCount;
+
+    /** Number of touches absorbed by the buffer. */
+    private final AtomicLong coalescedCount;
+
+    /**
+     * Constructor. Buffered touches are only written by calls to {@link #flush()}.
+     *
+     * @param activityGranularity minimum change, in milliseconds, of a session's activity instant that is written
+     *            through immediately
+     */
+    public SessionActivityTracker(long activityGranularity) {
+        if (activityGranularity < 0) {
+            throw new IllegalArgumentException("Activity granularity may not be negative");
+        }
+        granularity = activityGranularity;
+        pendingActivity = new ConcurrentHashMap<String, PendingActivity>();
+        writeCount = new AtomicLong();
+        coalescedCount = new AtomicLong();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param activityGranularity minimum change, in milliseconds, of a session's activity instant that is written
+     *            through immediately
+     * @param taskTimer timer used to periodically flush buffered touches
+     * @param flushInterval interval, in milliseconds, between flushes of buffered touches
+     */
+    public SessionActivityTracker(long activityGranularity, Timer taskTimer, long flushInterval) {
+        this(activityGranularity);
+        if (taskTimer == null) {
+            throw new IllegalArgumentException("Task timer may not be null");
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("Flush interval must be greater than 0");
+        }
+        taskTimer.schedule(new FlushTask(), flushInterval, flushInterval);
+    }
+
+    /**
+     * Gets the minimum change, in milliseconds, of a session's activity instant that is written through immediately.
+     *
+     * @return the activity granularity
+     */
+    public long getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Sets the store whose sessions are tracked. Called by the store when it is given this tracker.
+     *
+     * @param store store whose sessions are tracked
+     */
+    void setSessionStore(SessionStore store) {
+        sessionStore = store;
+    }
+
+    /**
+     * Records activity on a session at the current time.
+     *
+     * @param session the session
+     */
+    public void touch(Session session) {
+        touch(session, System.currentTimeMillis());
+    }
+
+    /**
+     * Records activity on a session.
+     *
+     * @param session the session
+     * @param instant instant, in milliseconds since the epoch, of the activity
+     */
+    public void touch(Session session, long instant) {
+        String sessionID = session.getSessionID();
+        if (instant - session.getLastActivityInstant().getMillis() >= granularity) {
+            session.setLastActivityInstant(new DateTime(instant));
+            writeBack(sessionID, instant);
+            writeCount.incrementAndGet();
+            return;
+        }
+
+        PendingActivity pending;
+        PendingActivity existing;
+        do {
+            // a buffered touch being flushed is closed, the touch then starts a new one
+            pending = pendingActivity.get(sessionID);
+            if (pending == null) {
+                pending = new PendingActivity(session);
+                existing = pendingActivity.putIfAbsent(sessionID, pending);
+                if (existing != null) {
+                    pending = existing;
+                }
+            }
+        } while (!pending.advance(instant));
+        coalescedCount.incrementAndGet();
+    }
+
+    /**
+     * Gets the last activity instant of a session, including any buffered touch.
+     *
+     * @param session the session
+     *
+     * @return the last activity instant, in milliseconds since the epoch
+     */
+    public long getLastActivity(Session session) {
+        long lastActivity = session.getLastActivityInstant().getMillis();
+        PendingActivity pending = pendingActivity.get(session.getSessionID());
+        if (pending != null) {
+            return Math.max(lastActivity, pending.latest.get());
+        }
+        return lastActivity;
+    }
+
+    /**
+     * Writes all buffered touches to their sessions.
+     *
+     * @return number of sessions written
+     */
+    public int flush() {
+        int written = 0;
+        Iterator<Map.Entry<String, PendingActivity>> entries = pendingActivity.entrySet().iterator();
+        Map.Entry<String, PendingActivity> entry;
+        PendingActivity pending;
+        long latest;
+        while (entries.hasNext()) {
+            entry = entries.next();
+            pending = entry.getValue();
+            if (!pendingActivity.remove(entry.getKey(), pending)) {
+                continue;
+            }
+
+            // touches made from here on start a new buffered touch, so none is lost
+            latest = pending.close();
+            if (latest > pending.session.getLastActivityInstant().getMillis()) {
+                pending.session.setLastActivityInstant(new DateTime(latest));
+                writeBack(entry.getKey(), latest);
+                written++;
+            }
+        }
+
+        writeCount.addAndGet(written);
+        log.trace("Flushed activity of {} sessions", written);
+        return written;
+    }
+
+    /**
+     * Gets the number of sessions with a buffered touch.
+     *
+     * @return number of sessions with a buffered touch
+     */
+    public int getPendingCount() {
+        return pendingActivity.size();
+    }
+
+    /**
+     * Gets the number of writes made to sessions.
+     *
+     * @return number of writes made to sessions
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Gets the number of touches absorbed by the buffer rather than written to their session.
+     *
+     * @return number of touches absorbed by the buffer
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Writes the activity instant of a session back to the store, which only does so if its storage service hands out
+     * copies of sessions.
+     *
+     * @param sessionID ID of the session
+     * @param instant the activity instant, in milliseconds since the epoch
+     */
+    private void writeBack(String sessionID, long instant) {
+        SessionStore store = sessionStore;
+        if (store != null) {
+            store.updateLastActivity(sessionID, instant);
+        }
+    }
+
+    /** Latest buffered touch of a session. */
+    private static class PendingActivity {
+
+        /** Value of {@link #latest} once the touch is closed. */
+        private static final long CLOSED = Long.MIN_VALUE;
+
+        /** The touched session. */
+        private final Session session;
+
+        /** Latest touch, in milliseconds since the epoch. */
+        private final AtomicLong latest;
+
+        /**
+         * Constructor.
+         *
+         * @param touchedSession the touched session
+         */
+        public PendingActivity(Session touchedSession) {
+            session = touchedSession;
+            latest = new AtomicLong();
+        }
+
+        /**
+         * Moves the latest touch forward to the given instant, if it is later.
+         *
+         * @param instant the instant
+         *
+         * @return true if the instant is recorded, false if the touch is closed
+         */
+        public boolean advance(long instant) {
+            long current = latest.get();
+            while (current != CLOSED) {
+                if (instant <= current || latest.compareAndSet(current, instant)) {
+                    return true;
+                }
+                current = latest.get();
+            }
+            return false;
+        }
+
+        /**
+         * Closes the touch so that it records no further instant.
+         *
+         * @return the latest touch, in milliseconds since the epoch
+         */
+        public long close() {
+            return latest.getAndSet(CLOSED);
+        }
+    }
+
+    /** Timer task that flushes buffered touches. */
+    private class FlushTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                flush();
+            } catch (Throwable t) {
+                log.error("Unable to flush session activity", t);
+            }
+        }
+    }
+}
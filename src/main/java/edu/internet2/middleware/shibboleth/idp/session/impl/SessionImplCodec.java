@@ -0,0 +1,115 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/**
+ * Codec of {@link SessionImpl}s.
+ *
+ * The session's authentication methods are written before its services, so that services refer to them rather than
+ * repeat them, and authentication methods refer to the session's subject when they share it.
+ */
+public class SessionImplCodec implements BinaryCodec<SessionImpl> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SessionImpl value, BinaryOutput out) throws IOException {
+        out.writeString(value.getSessionID());
+        out.writeBytes(value.getSessionSecret());
+        out.writeVarLong(value.getInactivityTimeout());
+        out.writeVarLong(value.getLastActivityInstant().getMillis());
+
+        Subject subject = value.getSubject();
+        AuthenticationMethodInformationCodec.encodeSubject(subject, out);
+
+        Map<String, AuthenticationMethodInformation> methods = value.getAuthenticationMethods();
+        List<AuthenticationMethodInformation> methodList = new ArrayList<AuthenticationMethodInformation>(methods
+                .values());
+        out.writeVarInt(methodList.size());
+        for (AuthenticationMethodInformation method : methodList) {
+            AuthenticationMethodInformationCodec.encode(method, subject, out);
+        }
+
+        List<ServiceInformation> serviceList = new ArrayList<ServiceInformation>(value.getServicesInformation()
+                .values());
+        out.writeVarInt(serviceList.size());
+        for (ServiceInformation service : serviceList) {
+            ServiceInformationCodec.encode(service, methods, subject, out);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SessionImpl decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported session encoding version " + version);
+        }
+
+        String sessionID = in.readString();
+        byte[] secret = in.readBytes();
+        long timeout = in.readVarLong();
+        long lastActivity = in.readVarLong();
+        if (sessionID == null) {
+            throw new StreamCorruptedException("Session ID may not be null");
+        }
+
+        SessionImpl session = new SessionImpl(sessionID, secret, timeout);
+        session.setLastActivityInstant(new DateTime(lastActivity));
+        Subject subject = AuthenticationMethodInformationCodec.decodeSubject(in);
+        session.setSubject(subject);
+
+        Map<String, AuthenticationMethodInformation> methods = session.getAuthenticationMethods();
+        int methodCount = in.readCount();
+        AuthenticationMethodInformation method;
+        for (int i = 0; i < methodCount; i++) {
+            method = AuthenticationMethodInformationCodec.decode(in, subject);
+            methods.put(method.getAuthenticationMethod(), method);
+        }
+
+        Map<String, ServiceInformation> services = session.getServicesInformation();
+        int serviceCount = in.readCount();
+        ServiceInformation service;
+        for (int i = 0; i < serviceCount; i++) {
+            service = ServiceInformationCodec.decode(in, methods, subject);
+            services.put(service.getEntityID(), service);
+        }
+
+        return session;
+    }
+}
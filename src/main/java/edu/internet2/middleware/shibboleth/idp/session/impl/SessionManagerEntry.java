@@ -34,7 +34,7 @@
 package edu.internet2.middleware.shibboleth.idp.session.impl;
 
 import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.joda.time.DateTime;
 import org.opensaml.util.storage.AbstractExpiringObject;
@@ -53,6 +53,9 @@ public class SessionManagerEntry extends AbstractExpiringObject {
     /** Indexes for this session. */
     private List<String> indexes;
 
+    /** Store holding this entry, notified when the entry expires. */
+    private transient SessionStore sessionStore;
+
     /**
      * Constructor.
      * 
@@ -62,7 +65,7 @@ public class SessionManagerEntry extends AbstractExpiringObject {
     public SessionManagerEntry(Session session, long lifetime) {
         super(new DateTime().plus(lifetime));
         userSession = session;
-        indexes = new Vector<String>();
+        indexes = new CopyOnWriteArrayList<String>();
         indexes.add(userSession.getSessionID());
     }
 
@@ -75,6 +78,15 @@ public class SessionManagerEntry extends AbstractExpiringObject {
         return userSession;
     }
 
+    /**
+     * Replaces the user session, for example with a changed copy of it.
+     * 
+     * @param session user session, must have the same ID as the current one
+     */
+    void setSession(Session session) {
+        userSession = session;
+    }
+
     /**
      * Gets the ID of the user session.
      * 
@@ -95,6 +107,27 @@ public class SessionManagerEntry extends AbstractExpiringObject {
 
     /** {@inheritDoc} */
     public DateTime getExpirationTime() {
+        SessionStore store = sessionStore;
+        if (store != null) {
+            return new DateTime(store.getLastActivity(userSession) + userSession.getInactivityTimeout());
+        }
         return userSession.getLastActivityInstant().plus(userSession.getInactivityTimeout());
     }
+
+    /** {@inheritDoc} */
+    public void onExpire() {
+        SessionStore store = sessionStore;
+        if (store != null) {
+            store.onExpire(this);
+        }
+    }
+
+    /**
+     * Sets the store holding this entry.
+     * 
+     * @param store store holding this entry
+     */
+    void setSessionStore(SessionStore store) {
+        sessionStore = store;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+
+/**
+ * Codec of {@link SessionManagerEntry}s. The expiration time of an entry is that of its session and so is not encoded;
+ * neither is the session ID among the entry's indexes.
+ */
+public class SessionManagerEntryCodec implements BinaryCodec<SessionManagerEntry> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SessionManagerEntry value, BinaryOutput out) throws IOException {
+        out.writeObject(value.getSession());
+
+        List<String> indexes = new ArrayList<String>(value.getSessionIndexes());
+        indexes.remove(value.getSessionId());
+        out.writeVarInt(indexes.size());
+        for (String index : indexes) {
+            out.writeString(index);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SessionManagerEntry decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported session entry encoding version " + version);
+        }
+
+        Object session = in.readObject();
+        if (!(session instanceof Session)) {
+            throw new StreamCorruptedException("Session entry does not hold a session");
+        }
+
+        SessionManagerEntry entry = new SessionManagerEntry((Session) session, ((Session) session)
+                .getInactivityTimeout());
+        List<String> indexes = entry.getSessionIndexes();
+        int indexCount = in.readCount();
+        for (int i = 0; i < indexCount; i++) {
+            indexes.add(in.readString());
+        }
+        return entry;
+    }
+}
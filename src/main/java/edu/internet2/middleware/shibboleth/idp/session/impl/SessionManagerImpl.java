@@ -17,37 +17,22 @@
 
 package edu.internet2.middleware.shibboleth.idp.session.impl;
 
-import java.security.SecureRandom;
-
-import org.apache.commons.ssl.util.Hex;
-import org.opensaml.saml1.core.NameIdentifier;
-import org.opensaml.saml2.core.NameID;
 import org.opensaml.util.storage.StorageService;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
-import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 
 /** Manager of IdP sessions. */
-public class SessionManagerImpl implements SessionManager<Session> {
+public class SessionManagerImpl extends AbstractSessionManager {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SessionManagerImpl.class);
 
-    /** Number of random bits within a session ID. */
-    private final int sessionIDSize = 32;
-
-    /** A {@link SecureRandom} PRNG to generate session IDs. */
-    private final SecureRandom prng = new SecureRandom();
-
-    /** Backing service used to store sessions. */
-    private StorageService<String, SessionManagerEntry> sessionStore;
-
-    /** Partition in which entries are stored. */
-    private String partition;
+    /** Store holding the sessions and their indexes. */
+    private SessionStore sessionStore;
 
     /** Lifetime, in milliseconds, of session. */
     private long sessionLifetime;
@@ -59,8 +44,7 @@ public class SessionManagerImpl implements SessionManager<Session> {
      * @param lifetime lifetime, in milliseconds, of sessions
      */
     public SessionManagerImpl(StorageService<String, SessionManagerEntry> storageService, long lifetime) {
-        sessionStore = storageService;
-        partition = "session";
+        sessionStore = new SessionStore(storageService, "session");
         sessionLifetime = lifetime;
     }
 
@@ -73,30 +57,39 @@ public class SessionManagerImpl implements SessionManager<Session> {
      */
     public SessionManagerImpl(StorageService<String, SessionManagerEntry> storageService, String storageParition,
             long lifetime) {
-        sessionStore = storageService;
         if (!DatatypeHelper.isEmpty(storageParition)) {
-            partition = DatatypeHelper.safeTrim(storageParition);
+            sessionStore = new SessionStore(storageService, DatatypeHelper.safeTrim(storageParition));
         } else {
-            partition = "session";
+            sessionStore = new SessionStore(storageService, "session");
         }
         sessionLifetime = lifetime;
     }
 
+    /**
+     * Gets the tracker buffering session activity.
+     * 
+     * @return tracker buffering session activity, or null if activity is written directly to sessions
+     */
+    public SessionActivityTracker getActivityTracker() {
+        return sessionStore.getActivityTracker();
+    }
+
+    /**
+     * Sets the tracker buffering session activity. The IdP session filter records request activity with this tracker.
+     * 
+     * @param tracker tracker buffering session activity, or null if activity is written directly to sessions
+     */
+    public void setActivityTracker(SessionActivityTracker tracker) {
+        sessionStore.setActivityTracker(tracker);
+    }
+
     /** {@inheritDoc} */
     public Session createSession() {
-        // generate a random session ID
-        byte[] sid = new byte[sessionIDSize];
-        prng.nextBytes(sid);
-        String sessionID = Hex.encode(sid);
-        
-        byte[] sessionSecret = new byte[16];
-        prng.nextBytes(sessionSecret);
-
-        Session session =
-                new SessionImpl(sessionID, sessionSecret, sessionLifetime);
+        String sessionID = generateSessionID();
+        Session session = new SessionImpl(sessionID, generateSessionSecret(), sessionLifetime);
         SessionManagerEntry sessionEntry =
                 new SessionManagerEntry(session, sessionLifetime);
-        sessionStore.put(partition, sessionID, sessionEntry);
+        sessionStore.add(sessionEntry);
 
         MDC.put("idpSessionId", sessionID);
         log.trace("Created session {}", sessionID);
@@ -105,19 +98,11 @@ public class SessionManagerImpl implements SessionManager<Session> {
 
     /** {@inheritDoc} */
     public Session createSession(String principal) {
-        // generate a random session ID
-        byte[] sid = new byte[sessionIDSize];
-        prng.nextBytes(sid);
-        String sessionID = Hex.encode(sid);
-        
-        byte[] sessionSecret = new byte[16];
-        prng.nextBytes(sessionSecret);
-
-        Session session =
-                new SessionImpl(sessionID, sessionSecret, sessionLifetime);
+        String sessionID = generateSessionID();
+        Session session = new SessionImpl(sessionID, generateSessionSecret(), sessionLifetime);
         SessionManagerEntry sessionEntry =
                 new SessionManagerEntry(session, sessionLifetime);
-        sessionStore.put(partition, sessionID, sessionEntry);
+        sessionStore.add(sessionEntry);
 
         MDC.put("idpSessionId", sessionID);
         log.trace("Created session {}", sessionID);
@@ -130,14 +115,14 @@ public class SessionManagerImpl implements SessionManager<Session> {
             return;
         }
 
-        SessionManagerEntry sessionEntry = sessionStore.get(partition, sessionID);
+        SessionManagerEntry sessionEntry = sessionStore.remove(sessionID);
         if (sessionEntry == null) {
-            return;
-        }
-        for(String sessionIndex : sessionEntry.getSessionIndexes()){
-            sessionStore.remove(partition, sessionIndex);
+            // the ID may be one of the session's indexes
+            sessionEntry = sessionStore.getByIndex(sessionID);
+            if (sessionEntry != null) {
+                sessionStore.remove(sessionEntry.getSessionId());
+            }
         }
-        sessionStore.remove(partition, sessionID);
     }
 
     /** {@inheritDoc} */
@@ -146,7 +131,10 @@ public class SessionManagerImpl implements SessionManager<Session> {
             return null;
         }
 
-        SessionManagerEntry sessionEntry = sessionStore.get(partition, sessionID);
+        SessionManagerEntry sessionEntry = sessionStore.get(sessionID);
+        if (sessionEntry == null) {
+            sessionEntry = sessionStore.getByIndex(sessionID);
+        }
         if (sessionEntry == null) {
             return null;
         }
@@ -159,72 +147,55 @@ public class SessionManagerImpl implements SessionManager<Session> {
         }
     }
 
-    /** {@inheritDoc} */
+    /**
+     * Indexes the session. If the index is the name of the session's principal the session is added to the sessions
+     * of that principal, a principal may have any number of sessions. Any other index may only index one session.
+     * 
+     * {@inheritDoc}
+     */
     public boolean indexSession(Session session, String index) {
-        if (sessionStore.contains(partition, index)) {
+        if (session == null || index == null) {
             return false;
         }
 
-        SessionManagerEntry sessionEntry = sessionStore.get(partition, session.getSessionID());
+        SessionManagerEntry sessionEntry = sessionStore.get(session.getSessionID());
         if (sessionEntry == null) {
             return false;
         }
 
-        if (sessionEntry.getSessionIndexes().contains(index)) {
-            return true;
+        if (index.equals(session.getPrincipalName())) {
+            return sessionStore.addPrincipalIndex(sessionEntry, index);
         }
-
-        sessionEntry.getSessionIndexes().add(index);
-        sessionStore.put(partition, index, sessionEntry);
-        log.trace("Added index {} to session {}", index, session.getSessionID());
-        return true;
+        return sessionStore.addIndex(sessionEntry, index);
     }
 
-    /** {@inheritDoc} */
-    public void removeSessionIndex(String index) {
-        SessionManagerEntry sessionEntry = sessionStore.remove(partition, index);
-        if (sessionEntry != null) {
-            log.trace("Removing index {} for session {}", index, sessionEntry.getSessionId());
-            sessionEntry.getSessionIndexes().remove(index);
+    /**
+     * Writes the session back to the session store, which only does so if its storage service hands out copies of
+     * sessions.
+     * 
+     * {@inheritDoc}
+     */
+    public void updateSession(Session session) {
+        if (session == null) {
+            return;
         }
+        sessionStore.update(session);
     }
 
     /** {@inheritDoc} */
-    public String getIndexFromNameID(NameIdentifier nameIdentifier) {
-        if (nameIdentifier == null || nameIdentifier.getNameIdentifier() == null) {
-            return null;
-        }
-        StringBuilder b = new StringBuilder();
-        b.append(nameIdentifier.getNameIdentifier());
-        b.append("|");
-        b.append(nameIdentifier.getFormat());
-        if (nameIdentifier.getNameQualifier() != null) {
-            b.append("|");
-            b.append(nameIdentifier.getNameQualifier());
+    public void removeSessionIndex(String index) {
+        if (index == null) {
+            return;
         }
-
-        return b.toString();
+        sessionStore.removeIndex(index);
     }
 
-    /** {@inheritDoc} */
-    public String getIndexFromNameID(NameID nameIdentifier) {
-        if (nameIdentifier == null || nameIdentifier.getValue() == null) {
-            return null;
-        }
-        StringBuilder b = new StringBuilder();
-        b.append(nameIdentifier.getValue());
-        b.append("|");
-        b.append(nameIdentifier.getFormat());
-        if (nameIdentifier.getNameQualifier() != null || nameIdentifier.getSPNameQualifier() != null) {
-            b.append("|");
-            b.append(nameIdentifier.getNameQualifier());
-        }
-        if (nameIdentifier.getSPNameQualifier() != null) {
-            b.append("|");
-            b.append(nameIdentifier.getSPNameQualifier());
-        }
-
-        return b.toString();
+    /**
+     * Gets the store holding the sessions and their indexes.
+     * 
+     * @return store holding the sessions and their indexes
+     */
+    public SessionStore getSessionStore() {
+        return sessionStore;
     }
 }
-
@@ -0,0 +1,776 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.storage.OffHeapStorageService;
+
+/**
+ * Store of IdP sessions along with their secondary indexes.
+ *
+ * Session entries are kept in a {@link StorageService} partition under their session ID only. Principal names and name
+ * identifier based indexes are kept in dedicated maps, principal name to session IDs and name identifier to session ID
+ * respectively, so that adding an index does not add another entry to the storage service. Sessions are also indexed
+ * by the entity IDs of the services they were used with and by the authentication methods they hold, from the
+ * session's own information each time it is updated, so that all the sessions matching one of these keys are found
+ * without scanning the storage service.
+ *
+ * All changes to the indexes of a session are made while holding a lock striped by session ID, and changes to the set
+ * of sessions of a key while holding a lock striped by that key. Locks are always acquired in that order.
+ *
+ * Storage services that hand out copies of their entries, like {@link OffHeapStorageService}, do not see changes made
+ * to an entry until it is stored again. For such services the store writes an entry back after changing it, see
+ * {@link #update(Session)} and {@link #updateLastActivity(String, long)}.
+ */
+public class SessionStore {
+
+    /** Number of lock stripes. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SessionStore.class);
+
+    /** Backing service used to store session entries. */
+    private final StorageService<String, SessionManagerEntry> storageService;
+
+    /** Partition in which session entries are stored. */
+    private final String partition;
+
+    /** Index from principal name to the IDs of the sessions of that principal. */
+    private final ConcurrentMap<String, Set<String>> principalIndex;
+
+    /** Index from name identifier based index to session ID. */
+    private final ConcurrentMap<String, String> nameIDIndex;
+
+    /** Index from service entity ID to the IDs of the sessions used with that service. */
+    private final ConcurrentMap<String, Set<String>> serviceIndex;
+
+    /** Index from authentication method to the IDs of the sessions holding that method. */
+    private final ConcurrentMap<String, Set<String>> authnMethodIndex;
+
+    /** Locks guarding the indexes of a session, striped by session ID. */
+    private final Object[] sessionLocks;
+
+    /** Locks guarding the set of sessions of a principal, service or authentication method, striped by key. */
+    private final Object[] principalLocks;
+
+    /** Whether the storage service hands out copies of its entries, which must be stored again once changed. */
+    private final boolean writeBack;
+
+    /** Tracker buffering session activity, may be null. */
+    private SessionActivityTracker activityTracker;
+
+    /**
+     * Constructor.
+     *
+     * @param storage service used to store session entries
+     * @param storagePartition partition in which session entries are stored
+     */
+    public SessionStore(StorageService<String, SessionManagerEntry> storage, String storagePartition) {
+        storageService = storage;
+        partition = storagePartition;
+        principalIndex = new ConcurrentHashMap<String, Set<String>>();
+        nameIDIndex = new ConcurrentHashMap<String, String>();
+        serviceIndex = new ConcurrentHashMap<String, Set<String>>();
+        authnMethodIndex = new ConcurrentHashMap<String, Set<String>>();
+
+        sessionLocks = new Object[LOCK_STRIPES];
+        principalLocks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            sessionLocks[i] = new Object();
+            principalLocks[i] = new Object();
+        }
+
+        if (storage instanceof OffHeapStorageService) {
+            writeBack = true;
+            ((OffHeapStorageService<String, SessionManagerEntry>) storage).setValueInitializer(partition,
+                    new OffHeapStorageService.ValueInitializer<SessionManagerEntry>() {
+                        public void initialize(SessionManagerEntry entry) {
+                            // entries expired by the storage service need their store to remove their indexes
+                            entry.setSessionStore(SessionStore.this);
+                        }
+                    });
+        } else {
+            writeBack = false;
+        }
+
+        rebuildIndexes();
+    }
+
+    /**
+     * Gets the storage service in which session entries are stored.
+     *
+     * @return storage service in which session entries are stored
+     */
+    public StorageService<String, SessionManagerEntry> getStorageService() {
+        return storageService;
+    }
+
+    /**
+     * Gets the partition in which session entries are stored.
+     *
+     * @return partition in which session entries are stored
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    /**
+     * Gets the tracker buffering session activity.
+     *
+     * @return tracker buffering session activity, or null if activity is written directly to sessions
+     */
+    public SessionActivityTracker getActivityTracker() {
+        return activityTracker;
+    }
+
+    /**
+     * Sets the tracker buffering session activity.
+     *
+     * @param tracker tracker buffering session activity, or null if activity is written directly to sessions
+     */
+    public void setActivityTracker(SessionActivityTracker tracker) {
+        if (tracker != null) {
+            tracker.setSessionStore(this);
+        }
+        activityTracker = tracker;
+    }
+
+    /**
+     * Gets the last activity instant of a session, including activity buffered by the activity tracker.
+     *
+     * @param session the session
+     *
+     * @return the last activity instant, in milliseconds since the epoch
+     */
+    public long getLastActivity(Session session) {
+        SessionActivityTracker tracker = activityTracker;
+        if (tracker != null) {
+            return tracker.getLastActivity(session);
+        }
+        return session.getLastActivityInstant().getMillis();
+    }
+
+    /**
+     * Adds a session entry to the store.
+     *
+     * @param entry the session entry
+     */
+    public void add(SessionManagerEntry entry) {
+        entry.setSessionStore(this);
+        store(entry.getSessionId(), entry);
+    }
+
+    /**
+     * Gets a session entry by its session ID.
+     *
+     * @param sessionID ID of the session
+     *
+     * @return the session entry or null if no session has that ID
+     */
+    public SessionManagerEntry get(String sessionID) {
+        SessionManagerEntry entry = storageService.get(partition, sessionID);
+        if (entry != null) {
+            // entries read back from a serialized form have lost their store reference
+            entry.setSessionStore(this);
+        }
+        return entry;
+    }
+
+    /**
+     * Writes a changed session back to the storage service, if the storage service hands out copies of its entries.
+     * The session's entry keeps the indexes it has in the store, and is indexed by the services and authentication
+     * methods the session now holds.
+     *
+     * Services and authentication methods are never removed from a session, so those of the stored session which the
+     * changed session lacks, typically added by a concurrent request working on its own copy, are merged into the
+     * changed session rather than lost.
+     *
+     * @param session the changed session
+     *
+     * @return true if the session was written back, false if the storage service does not need it or the session is
+     *         no longer in the store
+     */
+    public boolean update(Session session) {
+        String sessionID = session.getSessionID();
+        synchronized (sessionLock(sessionID)) {
+            if (!writeBack) {
+                if (storageService.contains(partition, sessionID)) {
+                    addSessionMappings(session);
+                }
+                return false;
+            }
+
+            SessionManagerEntry entry = get(sessionID);
+            if (entry == null) {
+                return false;
+            }
+            mergeSession(entry.getSession(), session);
+            entry.setSession(session);
+            store(sessionID, entry);
+            addSessionMappings(session);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the last activity instant of a session back to the storage service, if the storage service hands out
+     * copies of its entries. Unlike {@link #update(Session)} no other change is written, so this may be used with a
+     * session read before the stored session was last changed.
+     *
+     * @param sessionID ID of the session
+     * @param instant the last activity instant, in milliseconds since the epoch
+     */
+    public void updateLastActivity(String sessionID, long instant) {
+        if (!writeBack) {
+            return;
+        }
+
+        synchronized (sessionLock(sessionID)) {
+            SessionManagerEntry entry = get(sessionID);
+            if (entry != null && entry.getSession().getLastActivityInstant().getMillis() < instant) {
+                entry.getSession().setLastActivityInstant(new DateTime(instant));
+                store(sessionID, entry);
+            }
+        }
+    }
+
+    /**
+     * Gets a session entry by one of its indexes. If the index is a principal name with more than one session, the
+     * most recently active, unexpired, session is returned.
+     *
+     * @param index the index
+     *
+     * @return the session entry or null if no session has that index
+     */
+    public SessionManagerEntry getByIndex(String index) {
+        String sessionID = nameIDIndex.get(index);
+        if (sessionID != null) {
+            SessionManagerEntry entry = get(sessionID);
+            if (entry == null) {
+                nameIDIndex.remove(index, sessionID);
+            }
+            return entry;
+        }
+
+        Set<String> sessionIDs = principalIndex.get(index);
+        if (sessionIDs == null) {
+            return null;
+        }
+
+        SessionManagerEntry selected = null;
+        SessionManagerEntry entry;
+        for (String principalSessionID : sessionIDs) {
+            entry = get(principalSessionID);
+            if (entry == null) {
+                removePrincipalMapping(index, principalSessionID);
+                continue;
+            }
+            if (entry.isExpired()) {
+                continue;
+            }
+            if (selected == null
+                    || getLastActivity(entry.getSession()) > getLastActivity(selected.getSession())) {
+                selected = entry;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * Gets the IDs of the sessions of a principal. Sessions are indexed by principal name through
+     * {@link #addPrincipalIndex(SessionManagerEntry, String)}.
+     *
+     * @param principalName the principal name
+     *
+     * @return IDs of the sessions of the principal, some of which may have been removed since
+     */
+    public List<String> getSessionIDsByPrincipal(String principalName) {
+        return getMappedSessionIDs(principalIndex, principalName);
+    }
+
+    /**
+     * Gets the IDs of the sessions used with a service, as of their last update.
+     *
+     * @param entityID entity ID of the service
+     *
+     * @return IDs of the sessions used with the service, some of which may have been removed since
+     */
+    public List<String> getSessionIDsByService(String entityID) {
+        return getMappedSessionIDs(serviceIndex, entityID);
+    }
+
+    /**
+     * Gets the IDs of the sessions holding an authentication method, as of their last update. Sessions whose method
+     * has expired since are still returned; see {@link #pruneAuthenticationMethod(String, String)}.
+     *
+     * @param authenticationMethod the authentication method
+     *
+     * @return IDs of the sessions holding the authentication method, some of which may have been removed since
+     */
+    public List<String> getSessionIDsByAuthenticationMethod(String authenticationMethod) {
+        return getMappedSessionIDs(authnMethodIndex, authenticationMethod);
+    }
+
+    /**
+     * Unmaps a session from an authentication method it no longer holds, or holds only expired. The index is only
+     * pruned when the session is updated or removed, so it keeps expired and dropped methods until then.
+     *
+     * @param sessionID ID of the session
+     * @param authenticationMethod the authentication method
+     *
+     * @return true if the session was unmapped, false if it still holds the authentication method
+     */
+    public boolean pruneAuthenticationMethod(String sessionID, String authenticationMethod) {
+        synchronized (sessionLock(sessionID)) {
+            SessionManagerEntry entry = get(sessionID);
+            if (entry != null) {
+                AuthenticationMethodInformation authnMethodInfo = entry.getSession().getAuthenticationMethods().get(
+                        authenticationMethod);
+                if (authnMethodInfo != null && !authnMethodInfo.isExpired()) {
+                    return false;
+                }
+            }
+            removeMapping(authnMethodIndex, authenticationMethod, sessionID);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a session entry, and all of its indexes, from the store.
+     *
+     * @param sessionID ID of the session
+     *
+     * @return the removed entry or null if no session has that ID
+     */
+    public SessionManagerEntry remove(String sessionID) {
+        synchronized (sessionLock(sessionID)) {
+            SessionManagerEntry entry = storageService.remove(partition, sessionID);
+            if (entry != null) {
+                removeIndexes(entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Indexes a session by the name of its principal. A principal may have any number of sessions.
+     *
+     * @param entry the session entry
+     * @param principalName the principal name
+     *
+     * @return true if the index was added, false if the session is no longer in the store
+     */
+    public boolean addPrincipalIndex(SessionManagerEntry entry, String principalName) {
+        String sessionID = entry.getSessionId();
+        synchronized (sessionLock(sessionID)) {
+            if (!storageService.contains(partition, sessionID)) {
+                return false;
+            }
+
+            synchronized (principalLock(principalName)) {
+                Set<String> sessionIDs = principalIndex.get(principalName);
+                if (sessionIDs == null) {
+                    sessionIDs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(2));
+                    principalIndex.put(principalName, sessionIDs);
+                }
+                sessionIDs.add(sessionID);
+            }
+
+            recordIndex(entry, principalName);
+        }
+
+        log.trace("Added principal index {} to session {}", principalName, sessionID);
+        return true;
+    }
+
+    /**
+     * Indexes a session by a unique key, for example one derived from a name identifier. A key may only index one
+     * session.
+     *
+     * @param entry the session entry
+     * @param index the index
+     *
+     * @return true if the index was added or already indexes the session, false if the index is already used by
+     *         another session or if the session is no longer in the store
+     */
+    public boolean addIndex(SessionManagerEntry entry, String index) {
+        String sessionID = entry.getSessionId();
+        synchronized (sessionLock(sessionID)) {
+            if (!storageService.contains(partition, sessionID)) {
+                return false;
+            }
+
+            String existing = nameIDIndex.putIfAbsent(index, sessionID);
+            if (existing != null && !existing.equals(sessionID)) {
+                return false;
+            }
+
+            recordIndex(entry, index);
+        }
+
+        log.trace("Added index {} to session {}", index, sessionID);
+        return true;
+    }
+
+    /**
+     * Removes an index. If the index is a principal name it is removed from all the sessions of that principal.
+     *
+     * @param index the index
+     */
+    public void removeIndex(String index) {
+        String sessionID = nameIDIndex.get(index);
+        if (sessionID != null) {
+            synchronized (sessionLock(sessionID)) {
+                if (nameIDIndex.remove(index, sessionID)) {
+                    forgetIndex(sessionID, index);
+                }
+            }
+            return;
+        }
+
+        Set<String> sessionIDs = principalIndex.get(index);
+        if (sessionIDs != null) {
+            for (String principalSessionID : new ArrayList<String>(sessionIDs)) {
+                synchronized (sessionLock(principalSessionID)) {
+                    removePrincipalMapping(index, principalSessionID);
+                    forgetIndex(principalSessionID, index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a session entry has expired and has been removed from the storage service by something other than
+     * this store. Removes the indexes of the session.
+     *
+     * @param entry the expired entry
+     */
+    protected void onExpire(SessionManagerEntry entry) {
+        synchronized (sessionLock(entry.getSessionId())) {
+            removeIndexes(entry);
+        }
+    }
+
+    /**
+     * Gets the number of principals that currently index at least one session.
+     *
+     * @return number of indexed principals
+     */
+    public int getIndexedPrincipalCount() {
+        return principalIndex.size();
+    }
+
+    /**
+     * Gets the number of unique indexes currently in the store.
+     *
+     * @return number of unique indexes
+     */
+    public int getIndexCount() {
+        return nameIDIndex.size();
+    }
+
+    /**
+     * Gets the number of services that currently index at least one session.
+     *
+     * @return number of indexed services
+     */
+    public int getIndexedServiceCount() {
+        return serviceIndex.size();
+    }
+
+    /**
+     * Rebuilds the indexes of session entries already in the storage partition, for example entries restored from a
+     * snapshot before the store was created.
+     */
+    private void rebuildIndexes() {
+        Iterator<String> sessionIDs = storageService.getKeys(partition);
+        if (sessionIDs == null) {
+            return;
+        }
+
+        int rebuilt = 0;
+        SessionManagerEntry entry;
+        String principalName;
+        while (sessionIDs.hasNext()) {
+            entry = get(sessionIDs.next());
+            if (entry == null) {
+                continue;
+            }
+
+            principalName = entry.getSession().getPrincipalName();
+            for (String index : entry.getSessionIndexes()) {
+                if (index.equals(entry.getSessionId())) {
+                    continue;
+                }
+                if (index.equals(principalName)) {
+                    addPrincipalIndex(entry, index);
+                } else {
+                    addIndex(entry, index);
+                }
+            }
+            synchronized (sessionLock(entry.getSessionId())) {
+                addSessionMappings(entry.getSession());
+            }
+            rebuilt++;
+        }
+
+        if (rebuilt > 0) {
+            log.info("Rebuilt indexes of {} stored sessions", rebuilt);
+        }
+    }
+
+    /**
+     * Removes all the indexes of a session. Caller must hold the session's lock.
+     *
+     * @param entry the session entry
+     */
+    private void removeIndexes(SessionManagerEntry entry) {
+        String sessionID = entry.getSessionId();
+        for (String index : entry.getSessionIndexes()) {
+            if (index.equals(sessionID)) {
+                continue;
+            }
+            nameIDIndex.remove(index, sessionID);
+            removePrincipalMapping(index, sessionID);
+        }
+
+        Session session = entry.getSession();
+        for (String entityID : session.getServicesInformation().keySet()) {
+            removeMapping(serviceIndex, entityID, sessionID);
+        }
+        for (String authenticationMethod : session.getAuthenticationMethods().keySet()) {
+            removeMapping(authnMethodIndex, authenticationMethod, sessionID);
+        }
+    }
+
+    /**
+     * Maps the session from the services and authentication methods it holds. Caller must hold the session's lock.
+     *
+     * @param session the session
+     */
+    private void addSessionMappings(Session session) {
+        String sessionID = session.getSessionID();
+        for (String entityID : session.getServicesInformation().keySet()) {
+            addMapping(serviceIndex, entityID, sessionID);
+        }
+        for (String authenticationMethod : session.getAuthenticationMethods().keySet()) {
+            addMapping(authnMethodIndex, authenticationMethod, sessionID);
+        }
+    }
+
+    /**
+     * Adds to a changed session the services and authentication methods of the stored session it lacks. Caller must
+     * hold the session's lock.
+     *
+     * @param storedSession the session as currently stored
+     * @param session the changed session
+     */
+    private void mergeSession(Session storedSession, Session session) {
+        if (storedSession == null || storedSession == session) {
+            return;
+        }
+
+        Map<String, ServiceInformation> services = session.getServicesInformation();
+        for (Map.Entry<String, ServiceInformation> service : storedSession.getServicesInformation().entrySet()) {
+            if (!services.containsKey(service.getKey())) {
+                services.put(service.getKey(), service.getValue());
+            }
+        }
+
+        Map<String, AuthenticationMethodInformation> authnMethods = session.getAuthenticationMethods();
+        for (Map.Entry<String, AuthenticationMethodInformation> authnMethod : storedSession
+                .getAuthenticationMethods().entrySet()) {
+            if (!authnMethods.containsKey(authnMethod.getKey())) {
+                authnMethods.put(authnMethod.getKey(), authnMethod.getValue());
+            }
+        }
+    }
+
+    /**
+     * Records an index in the session entry's list of indexes. Caller must hold the session's lock.
+     *
+     * @param entry the session entry
+     * @param index the index
+     */
+    private void recordIndex(SessionManagerEntry entry, String index) {
+        SessionManagerEntry storedEntry = entry;
+        if (writeBack) {
+            // the given entry may be a copy read before the stored entry was last changed
+            storedEntry = get(entry.getSessionId());
+            if (storedEntry == null) {
+                return;
+            }
+        }
+
+        List<String> indexes = storedEntry.getSessionIndexes();
+        if (!indexes.contains(index)) {
+            indexes.add(index);
+            if (writeBack) {
+                store(storedEntry.getSessionId(), storedEntry);
+            }
+        }
+    }
+
+    /**
+     * Stores a session entry. Off-heap storage is asked not to read back the replaced entry, which no caller uses.
+     *
+     * @param sessionID ID of the session
+     * @param entry the session entry
+     */
+    private void store(String sessionID, SessionManagerEntry entry) {
+        if (writeBack) {
+            ((OffHeapStorageService<String, SessionManagerEntry>) storageService).store(partition, sessionID, entry);
+        } else {
+            storageService.put(partition, sessionID, entry);
+        }
+    }
+
+    /**
+     * Removes an index from a stored session entry's list of indexes. Caller must hold the session's lock.
+     *
+     * @param sessionID ID of the session
+     * @param index the index
+     */
+    private void forgetIndex(String sessionID, String index) {
+        SessionManagerEntry entry = get(sessionID);
+        if (entry != null) {
+            log.trace("Removing index {} for session {}", index, sessionID);
+            if (entry.getSessionIndexes().remove(index) && writeBack) {
+                store(sessionID, entry);
+            }
+        }
+    }
+
+    /**
+     * Removes a session ID from the set of sessions of a principal.
+     *
+     * @param principalName the principal name
+     * @param sessionID ID of the session
+     */
+    private void removePrincipalMapping(String principalName, String sessionID) {
+        removeMapping(principalIndex, principalName, sessionID);
+    }
+
+    /**
+     * Adds a session ID to the set of sessions of a key.
+     *
+     * @param index index from keys to the IDs of their sessions
+     * @param key the key
+     * @param sessionID ID of the session
+     */
+    private void addMapping(ConcurrentMap<String, Set<String>> index, String key, String sessionID) {
+        Set<String> sessionIDs = index.get(key);
+        if (sessionIDs != null && sessionIDs.contains(sessionID)) {
+            return;
+        }
+
+        synchronized (principalLock(key)) {
+            sessionIDs = index.get(key);
+            if (sessionIDs == null) {
+                sessionIDs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(2));
+                index.put(key, sessionIDs);
+            }
+            sessionIDs.add(sessionID);
+        }
+    }
+
+    /**
+     * Removes a session ID from the set of sessions of a key.
+     *
+     * @param index index from keys to the IDs of their sessions
+     * @param key the key
+     * @param sessionID ID of the session
+     */
+    private void removeMapping(ConcurrentMap<String, Set<String>> index, String key, String sessionID) {
+        synchronized (principalLock(key)) {
+            Set<String> sessionIDs = index.get(key);
+            if (sessionIDs != null && sessionIDs.remove(sessionID) && sessionIDs.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Gets a copy of the set of sessions of a key.
+     *
+     * @param index index from keys to the IDs of their sessions
+     * @param key the key
+     *
+     * @return IDs of the sessions of the key, empty if it has none
+     */
+    private List<String> getMappedSessionIDs(ConcurrentMap<String, Set<String>> index, String key) {
+        Set<String> sessionIDs = index.get(key);
+        if (sessionIDs == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(sessionIDs);
+    }
+
+    /**
+     * Gets the lock for the given session.
+     *
+     * @param sessionID ID of the session
+     *
+     * @return the lock
+     */
+    private Object sessionLock(String sessionID) {
+        return sessionLocks[stripe(sessionID)];
+    }
+
+    /**
+     * Gets the lock for the given principal, or for the given key of another index of sets of sessions.
+     *
+     * @param principalName name of the principal
+     *
+     * @return the lock
+     */
+    private Object principalLock(String principalName) {
+        return principalLocks[stripe(principalName)];
+    }
+
+    /**
+     * Computes the lock stripe for a key.
+     *
+     * @param key the key
+     *
+     * @return the stripe
+     */
+    private int stripe(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (LOCK_STRIPES - 1);
+    }
+}
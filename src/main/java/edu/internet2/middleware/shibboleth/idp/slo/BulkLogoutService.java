@@ -0,0 +1,463 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.profile.saml2.SLOProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerEntry;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Administrative revocation of all the sessions of a principal, of all the
+ * sessions used with an SP, or of all the sessions holding an
+ * authentication method.
+ *
+ * Target sessions are looked up in the indexes of the {@link SessionStore},
+ * so a revocation costs in proportion to the number of sessions it
+ * matches. Sessions are destroyed in batches, right away; the logout
+ * context of each is captured first and queued, and the back-channel
+ * logouts of the session participants are issued from the queue by a few
+ * threads of the service's own at a limited rate, so that revoking many
+ * sessions does not flood the SPs or the IdP's outbound connections.
+ * Room in the queue is taken before a session is destroyed; once the queue
+ * is full, a revocation stops and leaves the remaining sessions alive, so
+ * no revoked session goes without its logout and the caller never waits.
+ * Logouts that fail are retried from the {@link LogoutRetryQueue} of the
+ * profile handler, if it has one. Logouts still queued when the service is
+ * destroyed are not issued.
+ */
+public class BulkLogoutService {
+
+    /** Key by which target sessions are selected. */
+    public static enum Criterion {
+        /** Name of the principal of the session. */
+        PRINCIPAL,
+        /** Entity ID of an SP the session was used with. */
+        SERVICE,
+        /** Authentication method held by the session. */
+        AUTHENTICATION_METHOD
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BulkLogoutService.class);
+    /** Manager of the sessions to revoke. */
+    private final SessionManagerImpl sessionManager;
+    /** Logouts of revoked sessions waiting to be issued. */
+    private final BlockingQueue<SingleLogoutContext> pendingLogouts;
+    /** Room left in the queue of logouts. */
+    private final Semaphore queueSlots;
+    /** Number of sessions revoked. */
+    private final AtomicLong revokedCount = new AtomicLong();
+    /** Number of logouts issued. */
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    /** Lock guarding the start time of the next logout. */
+    private final Object rateLock = new Object();
+    /** Number of sessions destroyed per batch. */
+    private int batchSize = 100;
+    /** Maximum number of logouts issued per second. */
+    private int maxLogoutsPerSecond = 20;
+    /** Number of threads issuing logouts. */
+    private int dispatchThreads = 4;
+    /** Earliest time the next logout may be issued, in nanoseconds. */
+    private long nextDispatch;
+    /** Threads issuing logouts, null until the first revocation. */
+    private List<Thread> dispatchers;
+    /** Handler issuing the back-channel logouts. */
+    private volatile SLOProfileHandler profileHandler;
+
+    /**
+     * Creates a new service.
+     *
+     * @param sessionManager manager of the sessions to revoke
+     * @param profileHandler handler issuing the back-channel logouts
+     * @param queueCapacity maximum number of logouts waiting to be issued,
+     * revocations stop short beyond that
+     */
+    public BulkLogoutService(SessionManagerImpl sessionManager, SLOProfileHandler profileHandler,
+            int queueCapacity) {
+        if (sessionManager == null || profileHandler == null) {
+            throw new IllegalArgumentException("Session manager and profile handler may not be null");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be greater than 0");
+        }
+        this.sessionManager = sessionManager;
+        this.profileHandler = profileHandler;
+        pendingLogouts = new LinkedBlockingQueue<SingleLogoutContext>();
+        queueSlots = new Semaphore(queueCapacity);
+        nextDispatch = System.nanoTime();
+    }
+
+    /**
+     * Revokes all the sessions matching a key: destroys them and queues the
+     * logout of their participants. If the queue of logouts fills up, the
+     * sessions not revoked yet are left alive and counted as deferred; the
+     * revocation may be repeated once the queue has drained.
+     *
+     * @param criterion what the key is matched against
+     * @param key principal name, SP entity ID or authentication method
+     * @return outcome of the revocation
+     */
+    public RevocationResult revoke(Criterion criterion, String key) {
+        if (criterion == null || DatatypeHelper.isEmpty(key)) {
+            throw new IllegalArgumentException("Criterion and key may not be null or empty");
+        }
+        startDispatchers();
+
+        List<String> sessionIDs = findSessionIDs(criterion, key);
+        log.info("Revoking up to {} sessions by {} '{}'", new Object[] {sessionIDs.size(), criterion, key});
+
+        SessionStore store = sessionManager.getSessionStore();
+        int size = getBatchSize();
+        List<SingleLogoutContext> batch = new ArrayList<SingleLogoutContext>(size);
+        int revoked = 0;
+        int deferred = 0;
+        for (int start = 0; start < sessionIDs.size() && deferred == 0; start += size) {
+            batch.clear();
+            int end = Math.min(start + size, sessionIDs.size());
+            for (int i = start; i < end; i++) {
+                String sessionID = sessionIDs.get(i);
+                SessionManagerEntry entry = store.get(sessionID);
+                if (entry == null || !matches(entry.getSession(), criterion, key)) {
+                    if (criterion == Criterion.AUTHENTICATION_METHOD) {
+                        store.pruneAuthenticationMethod(sessionID, key);
+                    }
+                    continue;
+                }
+                SingleLogoutContext sloContext = null;
+                if (!entry.getSession().getServicesInformation().isEmpty()) {
+                    if (!queueSlots.tryAcquire()) {
+                        deferred = sessionIDs.size() - i;
+                        break;
+                    }
+                    sloContext = profileHandler.createAdministrativeLogoutContext(entry.getSession());
+                }
+                if (store.remove(sessionID) == null) {
+                    // destroyed concurrently, whoever did so logs it out
+                    if (sloContext != null) {
+                        queueSlots.release();
+                    }
+                    continue;
+                }
+                revoked++;
+                if (sloContext != null) {
+                    batch.add(sloContext);
+                }
+            }
+            pendingLogouts.addAll(batch);
+        }
+
+        revokedCount.addAndGet(revoked);
+        if (deferred > 0) {
+            log.warn("Revoked {} sessions by {} '{}', logout queue is full, deferring up to {} more",
+                    new Object[] {revoked, criterion, key, deferred});
+        } else {
+            log.info("Revoked {} sessions by {} '{}'", new Object[] {revoked, criterion, key});
+        }
+        return new RevocationResult(revoked, deferred);
+    }
+
+    /**
+     * Stops issuing logouts. Logouts still queued are not issued.
+     */
+    public void destroy() {
+        List<Thread> threads;
+        synchronized (this) {
+            threads = dispatchers;
+            dispatchers = null;
+        }
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        if (!pendingLogouts.isEmpty()) {
+            log.warn("Discarding {} queued administrative logouts", pendingLogouts.size());
+            pendingLogouts.clear();
+        }
+    }
+
+    /**
+     * Returns the handler issuing the back-channel logouts.
+     *
+     * @return profile handler
+     */
+    public SLOProfileHandler getProfileHandler() {
+        return profileHandler;
+    }
+
+    /**
+     * Sets the handler issuing the back-channel logouts, such as after the
+     * profile handlers were reloaded. Queued logouts are issued by the new
+     * handler.
+     *
+     * @param handler profile handler
+     */
+    public void setProfileHandler(SLOProfileHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Profile handler may not be null");
+        }
+        profileHandler = handler;
+    }
+
+    /**
+     * Returns the number of sessions destroyed per batch.
+     *
+     * @return batch size
+     */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of sessions destroyed per batch.
+     *
+     * @param size batch size, greater than 0
+     */
+    public synchronized void setBatchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+        }
+        batchSize = size;
+    }
+
+    /**
+     * Returns the maximum number of logouts issued per second.
+     *
+     * @return maximum logout rate
+     */
+    public int getMaxLogoutsPerSecond() {
+        synchronized (rateLock) {
+            return maxLogoutsPerSecond;
+        }
+    }
+
+    /**
+     * Sets the maximum number of logouts issued per second.
+     *
+     * @param rate maximum logout rate, greater than 0
+     */
+    public void setMaxLogoutsPerSecond(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Logout rate must be greater than 0");
+        }
+        synchronized (rateLock) {
+            maxLogoutsPerSecond = rate;
+        }
+    }
+
+    /**
+     * Returns the number of threads issuing logouts.
+     *
+     * @return number of dispatch threads
+     */
+    public synchronized int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    /**
+     * Sets the number of threads issuing logouts. Takes effect if set
+     * before the first revocation.
+     *
+     * @param threads number of dispatch threads, greater than 0
+     */
+    public synchronized void setDispatchThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of dispatch threads must be greater than 0");
+        }
+        dispatchThreads = threads;
+    }
+
+    /**
+     * Returns the number of logouts waiting to be issued.
+     *
+     * @return number of queued logouts
+     */
+    public int getPendingCount() {
+        return pendingLogouts.size();
+    }
+
+    /**
+     * Returns the number of sessions revoked.
+     *
+     * @return number of revoked sessions
+     */
+    public long getRevokedCount() {
+        return revokedCount.get();
+    }
+
+    /**
+     * Returns the number of logouts issued.
+     *
+     * @return number of issued logouts
+     */
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Looks up the IDs of the sessions matching a key in the session
+     * indexes.
+     *
+     * @param criterion what the key is matched against
+     * @param key the key
+     * @return IDs of the matching sessions, some of which may no longer
+     * match or exist
+     */
+    private List<String> findSessionIDs(Criterion criterion, String key) {
+        SessionStore store = sessionManager.getSessionStore();
+        switch (criterion) {
+            case PRINCIPAL:
+                return store.getSessionIDsByPrincipal(key);
+            case SERVICE:
+                return store.getSessionIDsByService(key);
+            default:
+                return store.getSessionIDsByAuthenticationMethod(key);
+        }
+    }
+
+    /**
+     * Checks whether a session still matches a key. A session matches an
+     * authentication method only while the method has not expired.
+     *
+     * @param session the session
+     * @param criterion what the key is matched against
+     * @param key the key
+     * @return true if the session matches
+     */
+    private boolean matches(Session session, Criterion criterion, String key) {
+        switch (criterion) {
+            case PRINCIPAL:
+                return key.equals(session.getPrincipalName());
+            case SERVICE:
+                return session.getServicesInformation().containsKey(key);
+            default:
+                AuthenticationMethodInformation authnMethodInfo = session.getAuthenticationMethods().get(key);
+                return authnMethodInfo != null && !authnMethodInfo.isExpired();
+        }
+    }
+
+    /**
+     * Starts the threads issuing logouts, if they are not running.
+     */
+    private synchronized void startDispatchers() {
+        if (dispatchers != null) {
+            return;
+        }
+        dispatchers = new ArrayList<Thread>(dispatchThreads);
+        for (int i = 0; i < dispatchThreads; i++) {
+            Thread thread = new Thread(new DispatchTask(), "shibboleth-bulk-logout-" + (i + 1));
+            thread.setDaemon(true);
+            dispatchers.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Waits until the next logout may be issued under the rate limit.
+     *
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting
+     */
+    private void acquireDispatchSlot() throws InterruptedException {
+        long wait;
+        synchronized (rateLock) {
+            long now = System.nanoTime();
+            long slot = nextDispatch - now > 0 ? nextDispatch : now;
+            nextDispatch = slot + TimeUnit.SECONDS.toNanos(1) / maxLogoutsPerSecond;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /** Outcome of a revocation. */
+    public static class RevocationResult {
+
+        /** Number of sessions revoked. */
+        private final int revokedCount;
+        /** Upper bound of the number of matching sessions left alive for lack of room in the queue. */
+        private final int deferredCount;
+
+        /**
+         * Creates a new result.
+         *
+         * @param revoked number of sessions revoked
+         * @param deferred number of sessions left alive
+         */
+        RevocationResult(int revoked, int deferred) {
+            revokedCount = revoked;
+            deferredCount = deferred;
+        }
+
+        /**
+         * Returns the number of sessions revoked.
+         *
+         * @return number of revoked sessions
+         */
+        public int getRevokedCount() {
+            return revokedCount;
+        }
+
+        /**
+         * Returns the number of sessions, some of which may no longer match,
+         * left alive because the queue of logouts was full.
+         *
+         * @return number of deferred sessions, 0 if the revocation is complete
+         */
+        public int getDeferredCount() {
+            return deferredCount;
+        }
+    }
+
+    /** Issues queued logouts until interrupted. */
+    private class DispatchTask implements Runnable {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                while (true) {
+                    SingleLogoutContext sloContext = pendingLogouts.take();
+                    queueSlots.release();
+                    acquireDispatchSlot();
+                    try {
+                        profileHandler.administrativeLogout(sloContext);
+                    } catch (RuntimeException e) {
+                        log.error("Caught exception while logging out session '" + sloContext.getIdpSessionID()
+                                + "'", e);
+                    }
+                    dispatchedCount.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                log.debug("Bulk logout dispatcher stopped");
+            }
+        }
+    }
+}
@@ -0,0 +1,1012 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
+import edu.internet2.middleware.shibboleth.idp.util.FileHelper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of back-channel logouts to be retried after they failed during a
+ * single logout, so that the session of the principal at the SP is ended
+ * eventually without making the user wait.
+ *
+ * Queued logouts are recorded in a local append-only journal, which is
+ * replayed on startup and compacted once it holds mostly delivered
+ * logouts. Attempt counts are not journaled, so backoff starts over after
+ * a restart. Journal records are buffered while the queue is locked and
+ * written to disk after it is released, so threads queuing logouts do not
+ * wait for each other's disk writes; concurrent writes are done as one.
+ *
+ * Due logouts are handed in batches, grouped by SP, to a {@link Dispatcher}
+ * on a thread of the queue's own, as they block on the network. A logout
+ * that fails is retried with exponential backoff until it expires. An SP
+ * whose logouts fail repeatedly in a row is considered down: its circuit
+ * is opened and none of its logouts are attempted until the circuit
+ * timeout has passed, after which a single logout probes whether it is up
+ * again.
+ *
+ * A queued logout request carries only the name identifier of the
+ * principal, no session index, so it ends every session of the principal
+ * at the SP. The dispatcher must therefore drop a queued logout once the
+ * principal has authenticated to the SP again, see
+ * {@link PendingLogout#isSupersededBy(Session)}.
+ */
+public class LogoutRetryQueue {
+
+    /** Magic number identifying a journal file. */
+    private static final int MAGIC = 0x534c4f52;
+    /** Version of the journal file format. */
+    private static final short FORMAT_VERSION = 1;
+    /** Journal record of a queued logout. */
+    private static final int RECORD_QUEUED = 1;
+    /** Journal record of a logout removed from the queue. */
+    private static final int RECORD_REMOVED = 2;
+    /** Minimum number of removal records before the journal is compacted. */
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LogoutRetryQueue.class);
+    /** File holding the journal. */
+    private final File journalFile;
+    /** Interval between dispatches, in milliseconds. */
+    private final long dispatchInterval;
+    /** Queued logouts, by ID, in the order they were queued. */
+    private final Map<Long, PendingLogout> pendingLogouts = new LinkedHashMap<Long, PendingLogout>();
+    /** Circuits of the SPs that have queued logouts, by entityID. */
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+    /** Lock held while dispatching. */
+    private final Object dispatchLock = new Object();
+    /** Lock held while writing the journal file, taken before the queue lock. */
+    private final Object journalLock = new Object();
+    /** Journal records not yet written to the journal file, guarded by the queue. */
+    private final ByteArrayOutputStream journalBuffer = new ByteArrayOutputStream();
+    /** Writer of the buffered journal records, guarded by the queue. */
+    private final DataOutputStream bufferedJournal = new DataOutputStream(journalBuffer);
+    /** Number of logouts delivered. */
+    private final AtomicLong deliveredCount = new AtomicLong();
+    /** Number of failed delivery attempts. */
+    private final AtomicLong failedAttemptCount = new AtomicLong();
+    /** Number of logouts dropped as expired. */
+    private final AtomicLong droppedCount = new AtomicLong();
+    /** Delay before the first retry, in milliseconds. */
+    private long initialBackoff = 60000;
+    /** Maximum delay between retries, in milliseconds. */
+    private long maxBackoff = 3600000;
+    /** Time after which an undelivered logout is dropped, in milliseconds. */
+    private long maxAge = 86400000;
+    /** Maximum number of logouts attempted per dispatch. */
+    private int batchSize = 100;
+    /** Number of failures in a row after which the circuit of an SP is opened. */
+    private int circuitBreakerThreshold = 5;
+    /** Time an open circuit stays open, in milliseconds. */
+    private long circuitBreakerTimeout = 600000;
+    /** Whether journal writes are forced to disk. */
+    private boolean syncJournal = true;
+    /** Receives due logouts. */
+    private volatile Dispatcher dispatcher;
+    /** ID of the next queued logout. */
+    private long nextId = 1;
+    /** Whether the queue is initialized. */
+    private boolean initialized;
+    /** Number of buffered removal records. */
+    private int bufferedRemovals;
+    /** Number of removal records in the journal file, guarded by the journal lock. */
+    private int removalRecords;
+    /** Stream of the journal file, guarded by the journal lock. */
+    private FileOutputStream journalFileStream;
+    /** Timer running the dispatches. */
+    private Timer dispatchTimer;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param journalFile path of the journal file
+     * @param dispatchInterval interval between dispatches, in milliseconds
+     */
+    public LogoutRetryQueue(String journalFile, long dispatchInterval) {
+        if (DatatypeHelper.isEmpty(journalFile)) {
+            throw new IllegalArgumentException("Journal file may not be null or empty");
+        }
+        if (dispatchInterval <= 0) {
+            throw new IllegalArgumentException("Dispatch interval must be greater than 0");
+        }
+        this.journalFile = new File(journalFile);
+        this.dispatchInterval = dispatchInterval;
+    }
+
+    /**
+     * Replays the journal and starts dispatching.
+     */
+    public void initialize() {
+        synchronized (journalLock) {
+            synchronized (this) {
+                if (initialized) {
+                    return;
+                }
+                replayJournal();
+                try {
+                    compactJournal(new ArrayList<PendingLogout>(pendingLogouts.values()));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to write logout retry journal " + journalFile, e);
+                }
+                log.info("{} logouts queued for retry", pendingLogouts.size());
+
+                initialized = true;
+                dispatchTimer = new Timer("shibboleth-slo-retry", true);
+                dispatchTimer.schedule(new DispatchTask(), dispatchInterval, dispatchInterval);
+            }
+        }
+    }
+
+    /**
+     * Stops dispatching and closes the journal. Queued logouts stay in the
+     * journal.
+     */
+    public void destroy() {
+        Timer timer;
+        synchronized (this) {
+            initialized = false;
+            timer = dispatchTimer;
+            dispatchTimer = null;
+        }
+        if (timer != null) {
+            timer.cancel();
+        }
+        synchronized (dispatchLock) {
+            writeJournalBuffer();
+            synchronized (journalLock) {
+                closeJournal();
+            }
+        }
+    }
+
+    /**
+     * Queues the logout of a session participant for retry.
+     *
+     * @param responderEntityID entityID of the IdP issuing the logout request
+     * @param serviceLogoutInfo logout information of the session participant
+     */
+    public void enqueue(String responderEntityID, LogoutInformation serviceLogoutInfo) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (!initialized) {
+                log.warn("Logout retry queue is not initialized, not queuing logout of SP '{}'",
+                        serviceLogoutInfo.getEntityID());
+                return;
+            }
+            PendingLogout logout = new PendingLogout(nextId++, now, serviceLogoutInfo.getEntityID(),
+                    responderEntityID, serviceLogoutInfo.getNameIdentifier(),
+                    serviceLogoutInfo.getNameIdentifierFormat(), serviceLogoutInfo.getNameQualifier(),
+                    serviceLogoutInfo.getSPNameQualifier());
+            logout.nextAttempt = now + initialBackoff;
+            try {
+                writeQueuedRecord(bufferedJournal, logout);
+            } catch (IOException e) {
+                log.error("Unable to journal logout of SP '" + logout.getEntityID() + "', not queuing it", e);
+                return;
+            }
+            pendingLogouts.put(logout.getId(), logout);
+        }
+        writeJournalBuffer();
+    }
+
+    /**
+     * Attempts the queued logouts that are due, at most
+     * {@link #getBatchSize()} of them. Called periodically once the queue is
+     * initialized.
+     *
+     * @return number of logouts delivered
+     */
+    public int dispatch() {
+        Dispatcher currentDispatcher = dispatcher;
+        if (currentDispatcher == null) {
+            return 0;
+        }
+
+        synchronized (dispatchLock) {
+            int delivered = 0;
+            for (List<PendingLogout> batch : collectDueLogouts().values()) {
+                for (PendingLogout logout : batch) {
+                    boolean done;
+                    try {
+                        done = currentDispatcher.dispatch(logout);
+                    } catch (Throwable t) {
+                        log.warn("Caught exception while retrying logout of SP '" + logout.getEntityID() + "'", t);
+                        done = false;
+                    }
+                    if (done) {
+                        delivered++;
+                    }
+                    if (!recordAttempt(logout, done)) {
+                        // the circuit of the SP opened, leave the rest of its logouts queued
+                        break;
+                    }
+                }
+            }
+            writeJournalBuffer();
+            return delivered;
+        }
+    }
+
+    /**
+     * Returns the number of queued logouts.
+     *
+     * @return number of queued logouts
+     */
+    public synchronized int getPendingCount() {
+        return pendingLogouts.size();
+    }
+
+    /**
+     * Returns the number of SPs whose circuit is open.
+     *
+     * @return number of open circuits
+     */
+    public synchronized int getOpenCircuitCount() {
+        int count = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.openUntil != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of logouts delivered.
+     *
+     * @return number of delivered logouts
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * Returns the number of failed delivery attempts.
+     *
+     * @return number of failed attempts
+     */
+    public long getFailedAttemptCount() {
+        return failedAttemptCount.get();
+    }
+
+    /**
+     * Returns the number of logouts dropped as expired.
+     *
+     * @return number of dropped logouts
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Sets the receiver of due logouts.
+     *
+     * @param dispatcher receiver of due logouts
+     */
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Returns the delay before the first retry.
+     *
+     * @return delay in milliseconds
+     */
+    public synchronized long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Sets the delay before the first retry. The delay doubles with every
+     * failed retry.
+     *
+     * @param backoff delay in milliseconds
+     */
+    public synchronized void setInitialBackoff(long backoff) {
+        if (backoff <= 0) {
+            throw new IllegalArgumentException("Initial backoff must be greater than 0");
+        }
+        initialBackoff = backoff;
+    }
+
+    /**
+     * Returns the maximum delay between retries.
+     *
+     * @return delay in milliseconds
+     */
+    public synchronized long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Sets the maximum delay between retries.
+     *
+     * @param backoff delay in milliseconds
+     */
+    public synchronized void setMaxBackoff(long backoff) {
+        if (backoff <= 0) {
+            throw new IllegalArgumentException("Maximum backoff must be greater than 0");
+        }
+        maxBackoff = backoff;
+    }
+
+    /**
+     * Returns the time after which an undelivered logout is dropped.
+     *
+     * @return time in milliseconds
+     */
+    public synchronized long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets the time after which an undelivered logout is dropped.
+     *
+     * @param age time in milliseconds
+     */
+    public synchronized void setMaxAge(long age) {
+        if (age <= 0) {
+            throw new IllegalArgumentException("Maximum age must be greater than 0");
+        }
+        maxAge = age;
+    }
+
+    /**
+     * Returns the maximum number of logouts attempted per dispatch.
+     *
+     * @return batch size
+     */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of logouts attempted per dispatch.
+     *
+     * @param size batch size
+     */
+    public synchronized void setBatchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+        }
+        batchSize = size;
+    }
+
+    /**
+     * Returns the number of failures in a row after which the circuit of an
+     * SP is opened.
+     *
+     * @return number of failures
+     */
+    public synchronized int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Sets the number of failures in a row after which the circuit of an SP
+     * is opened.
+     *
+     * @param threshold number of failures
+     */
+    public synchronized void setCircuitBreakerThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Circuit breaker threshold must be greater than 0");
+        }
+        circuitBreakerThreshold = threshold;
+    }
+
+    /**
+     * Returns the time an open circuit stays open.
+     *
+     * @return time in milliseconds
+     */
+    public synchronized long getCircuitBreakerTimeout() {
+        return circuitBreakerTimeout;
+    }
+
+    /**
+     * Sets the time an open circuit stays open.
+     *
+     * @param timeout time in milliseconds
+     */
+    public synchronized void setCircuitBreakerTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Circuit breaker timeout must be greater than 0");
+        }
+        circuitBreakerTimeout = timeout;
+    }
+
+    /**
+     * Returns whether journal writes are forced to disk.
+     *
+     * @return whether journal writes are forced to disk
+     */
+    public synchronized boolean isSyncJournal() {
+        return syncJournal;
+    }
+
+    /**
+     * Sets whether journal writes are forced to disk. Unless they are, a
+     * queued logout may be lost if the host crashes.
+     *
+     * @param sync whether journal writes are forced to disk
+     */
+    public synchronized void setSyncJournal(boolean sync) {
+        syncJournal = sync;
+    }
+
+    /**
+     * Collects the logouts to attempt, dropping expired ones on the way.
+     *
+     * @return logouts to attempt, grouped by SP
+     */
+    private synchronized Map<String, List<PendingLogout>> collectDueLogouts() {
+        long now = System.currentTimeMillis();
+        Map<String, List<PendingLogout>> batches = new LinkedHashMap<String, List<PendingLogout>>();
+        int count = 0;
+        Iterator<PendingLogout> logouts = pendingLogouts.values().iterator();
+        while (logouts.hasNext() && count < batchSize) {
+            PendingLogout logout = logouts.next();
+            if (now - logout.getCreated() > maxAge) {
+                log.info("Dropping logout of SP '{}' queued at {}, it could not be delivered in time",
+                        logout.getEntityID(), logout.getCreated());
+                logouts.remove();
+                droppedCount.incrementAndGet();
+                journalRemoval(logout);
+                continue;
+            }
+            if (logout.nextAttempt > now) {
+                continue;
+            }
+
+            List<PendingLogout> batch = batches.get(logout.getEntityID());
+            Circuit circuit = circuits.get(logout.getEntityID());
+            if (circuit != null && circuit.openUntil != 0) {
+                // an open circuit lets a single logout through once it times out
+                if (circuit.openUntil > now || batch != null) {
+                    continue;
+                }
+            }
+            if (batch == null) {
+                batch = new ArrayList<PendingLogout>();
+                batches.put(logout.getEntityID(), batch);
+            }
+            batch.add(logout);
+            count++;
+        }
+        return batches;
+    }
+
+    /**
+     * Records the outcome of an attempted logout.
+     *
+     * @param logout attempted logout
+     * @param done whether the logout needs no further attempt
+     * @return false if the circuit of the SP is open after the attempt
+     */
+    private synchronized boolean recordAttempt(PendingLogout logout, boolean done) {
+        long now = System.currentTimeMillis();
+        Circuit circuit = circuits.get(logout.getEntityID());
+        if (done) {
+            deliveredCount.incrementAndGet();
+            circuits.remove(logout.getEntityID());
+            if (pendingLogouts.remove(logout.getId()) != null) {
+                journalRemoval(logout);
+            }
+            return true;
+        }
+
+        failedAttemptCount.incrementAndGet();
+        logout.attempts++;
+        logout.nextAttempt = now + Math.min(maxBackoff, initialBackoff << Math.min(logout.attempts, 30));
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits.put(logout.getEntityID(), circuit);
+        }
+        circuit.failures++;
+        if (circuit.openUntil != 0 || circuit.failures >= circuitBreakerThreshold) {
+            if (circuit.openUntil == 0) {
+                log.warn("Logouts of SP '{}' failed {} times in a row, suspending them for {}ms",
+                        new Object[] {logout.getEntityID(), circuit.failures, circuitBreakerTimeout});
+            }
+            circuit.openUntil = now + circuitBreakerTimeout;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Buffers the journal record of the removal of a logout from the queue.
+     * Must be called holding the queue lock.
+     *
+     * @param logout removed logout
+     */
+    private void journalRemoval(PendingLogout logout) {
+        try {
+            bufferedJournal.writeByte(RECORD_REMOVED);
+            bufferedJournal.writeLong(logout.getId());
+            bufferedRemovals++;
+        } catch (IOException e) {
+            log.error("Unable to journal removal of logout of SP '" + logout.getEntityID()
+                    + "', it may be retried after a restart", e);
+        }
+    }
+
+    /**
+     * Writes the buffered journal records to the journal file, compacting
+     * the journal once it holds mostly removed logouts. The queue lock is
+     * only held while the buffer is taken, not during the disk write.
+     */
+    private void writeJournalBuffer() {
+        synchronized (journalLock) {
+            byte[] records;
+            boolean sync;
+            List<PendingLogout> queued = null;
+            synchronized (this) {
+                records = journalBuffer.toByteArray();
+                journalBuffer.reset();
+                sync = syncJournal;
+                removalRecords += bufferedRemovals;
+                bufferedRemovals = 0;
+                if (removalRecords >= MIN_COMPACTION_RECORDS && removalRecords > 2 * pendingLogouts.size()) {
+                    queued = new ArrayList<PendingLogout>(pendingLogouts.values());
+                }
+            }
+            if (journalFileStream == null || (records.length == 0 && queued == null)) {
+                return;
+            }
+
+            try {
+                if (records.length > 0) {
+                    journalFileStream.write(records);
+                    if (sync) {
+                        journalFileStream.getFD().sync();
+                    }
+                }
+                if (queued != null) {
+                    compactJournal(queued);
+                }
+            } catch (IOException e) {
+                log.error("Unable to write logout retry journal " + journalFile
+                        + ", queued logouts may be lost or retried after a restart", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the queued logouts from the journal file.
+     */
+    private void replayJournal() {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a logout retry journal");
+            }
+            short version = in.readShort();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported journal format version " + version);
+            }
+
+            long now = System.currentTimeMillis();
+            while (true) {
+                int record = in.read();
+                if (record == -1) {
+                    break;
+                }
+                long id = in.readLong();
+                if (record == RECORD_QUEUED) {
+                    PendingLogout logout = new PendingLogout(id, in.readLong(), readString(in), readString(in),
+                            readString(in), readString(in), readString(in), readString(in));
+                    logout.nextAttempt = now;
+                    pendingLogouts.put(id, logout);
+                } else if (record == RECORD_REMOVED) {
+                    pendingLogouts.remove(id);
+                } else {
+                    throw new IOException("Unknown journal record type " + record);
+                }
+                nextId = Math.max(nextId, id + 1);
+            }
+        } catch (EOFException e) {
+            log.warn("Logout retry journal {} ends with an incomplete record, ignoring it", journalFile);
+        } catch (IOException e) {
+            log.error("Unable to read logout retry journal " + journalFile + ", ignoring the rest of it", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the queued logouts and reopens it. The
+     * journal in use stays open until the rewritten one is complete, and is
+     * reopened if it can not be replaced, so a failed compaction does not
+     * stop logouts from being queued. Must be called holding the journal
+     * lock.
+     *
+     * @param queued logouts queued when the buffered journal records were last taken
+     * @throws IOException if the journal can not be written
+     */
+    private void compactJournal(Collection<PendingLogout> queued) throws IOException {
+        File parent = journalFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File compactedFile = new File(journalFile.getPath() + ".tmp");
+        compactedFile.delete();
+        writeJournal(compactedFile, queued);
+
+        closeJournal();
+        try {
+            if (!compactedFile.renameTo(journalFile)) {
+                // the target may not be replaced on some platforms
+                journalFile.delete();
+                if (!compactedFile.renameTo(journalFile)) {
+                    compactedFile.delete();
+                    throw new IOException("Unable to replace " + journalFile + " with " + compactedFile);
+                }
+            }
+            removalRecords = 0;
+        } finally {
+            openJournal(queued);
+        }
+    }
+
+    /**
+     * Opens the journal for appending, writing it from the queued logouts
+     * if the journal file is missing.
+     *
+     * @param queued queued logouts
+     * @throws IOException if the journal can not be opened
+     */
+    private void openJournal(Collection<PendingLogout> queued) throws IOException {
+        if (!journalFile.exists()) {
+            writeJournal(journalFile, queued);
+            removalRecords = 0;
+        }
+        journalFileStream = new FileOutputStream(journalFile, true);
+    }
+
+    /**
+     * Writes a new journal file, readable only by its owner, holding the
+     * queued logouts.
+     *
+     * @param file the journal file, which must not exist
+     * @param queued queued logouts
+     * @throws IOException if the file can not be written
+     */
+    private void writeJournal(File file, Collection<PendingLogout> queued) throws IOException {
+        // the journal holds the name identifiers of principals, only the IdP may read it
+        FileHelper.createPrivateFile(file);
+        FileOutputStream fileOut = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            for (PendingLogout logout : queued) {
+                writeQueuedRecord(out, logout);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            written = true;
+        } finally {
+            fileOut.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes the journal, if open.
+     */
+    private void closeJournal() {
+        if (journalFileStream == null) {
+            return;
+        }
+        try {
+            journalFileStream.close();
+        } catch (IOException e) {
+            log.warn("Unable to close logout retry journal " + journalFile, e);
+        }
+        journalFileStream = null;
+    }
+
+    /**
+     * Writes the journal record of a queued logout.
+     *
+     * @param out journal writer
+     * @param logout queued logout
+     * @throws IOException if the record can not be written
+     */
+    private static void writeQueuedRecord(DataOutputStream out, PendingLogout logout) throws IOException {
+        out.writeByte(RECORD_QUEUED);
+        out.writeLong(logout.getId());
+        out.writeLong(logout.getCreated());
+        writeString(out, logout.getEntityID());
+        writeString(out, logout.getResponderEntityID());
+        writeString(out, logout.getNameIdentifier());
+        writeString(out, logout.getNameIdentifierFormat());
+        writeString(out, logout.getNameQualifier());
+        writeString(out, logout.getSPNameQualifier());
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out journal writer
+     * @param value string to write
+     * @throws IOException if the string can not be written
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string that may be null.
+     *
+     * @param in journal reader
+     * @return the string
+     * @throws IOException if the string can not be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    /**
+     * Receiver of the queued logouts that are due.
+     */
+    public interface Dispatcher {
+
+        /**
+         * Issues a queued logout request.
+         *
+         * @param logout queued logout
+         * @return true if the logout needs no further attempt, false if it
+         * is to be retried
+         */
+        boolean dispatch(PendingLogout logout);
+    }
+
+    /**
+     * Logout of a session participant waiting to be retried.
+     */
+    public static class PendingLogout {
+
+        /** ID of the queued logout. */
+        private final long id;
+        /** Instant the logout was queued, in milliseconds since the epoch. */
+        private final long created;
+        /** entityID of the SP. */
+        private final String entityID;
+        /** entityID of the IdP issuing the logout request. */
+        private final String responderEntityID;
+        /** name identifier value issued for the principal to the SP. */
+        private final String nameIdentifier;
+        /** name identifier format. */
+        private final String nameIdentifierFormat;
+        /** qualifier for the name identifier. */
+        private final String nameQualifier;
+        /** SP name qualifier for the name identifier. */
+        private final String SPNameQualifier;
+        /** Number of failed retries, guarded by the queue. */
+        private int attempts;
+        /** Instant of the next attempt, guarded by the queue. */
+        private long nextAttempt;
+
+        /**
+         * Creates a new queued logout.
+         *
+         * @param id ID of the queued logout
+         * @param created instant the logout was queued
+         * @param entityID entityID of the SP
+         * @param responderEntityID entityID of the IdP
+         * @param nameIdentifier name identifier value
+         * @param nameIdentifierFormat name identifier format
+         * @param nameQualifier name qualifier
+         * @param SPNameQualifier SP name qualifier
+         */
+        PendingLogout(long id, long created, String entityID, String responderEntityID,
+                String nameIdentifier, String nameIdentifierFormat, String nameQualifier,
+                String SPNameQualifier) {
+            this.id = id;
+            this.created = created;
+            this.entityID = entityID;
+            this.responderEntityID = responderEntityID;
+            this.nameIdentifier = nameIdentifier;
+            this.nameIdentifierFormat = nameIdentifierFormat;
+            this.nameQualifier = nameQualifier;
+            this.SPNameQualifier = SPNameQualifier;
+        }
+
+        /**
+         * Returns whether the principal has authenticated to the SP again, in
+         * the given session, since the logout was queued. The logout request
+         * would end the new session at the SP as well, so the logout must be
+         * dropped instead.
+         *
+         * @param session current session of the principal, may be null
+         * @return whether the logout is superseded by the session
+         */
+        public boolean isSupersededBy(Session session) {
+            if (session == null) {
+                return false;
+            }
+            ServiceInformation serviceInfo = session.getServicesInformation().get(entityID);
+            return serviceInfo != null && (serviceInfo.getLoginInstant() == null
+                    || serviceInfo.getLoginInstant().getMillis() >= created);
+        }
+
+        /**
+         * Creates a single logout context holding only this logout, for the
+         * participant to be logged out again.
+         *
+         * @return single logout context
+         */
+        public SingleLogoutContext createSingleLogoutContext() {
+            Map<String, LogoutInformation> serviceInfo = new HashMap<String, LogoutInformation>(1);
+            SingleLogoutContext context = new SingleLogoutContext(null, null, responderEntityID, null, null,
+                    null, 0, serviceInfo);
+            serviceInfo.put(entityID, context.new LogoutInformation(entityID, nameIdentifier,
+                    nameIdentifierFormat, nameQualifier, SPNameQualifier, LogoutStatus.LOGGED_IN));
+            return context;
+        }
+
+        /**
+         * Returns the ID of the queued logout.
+         *
+         * @return ID
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the instant the logout was queued.
+         *
+         * @return milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Returns the entityID of the SP.
+         *
+         * @return entityID
+         */
+        public String getEntityID() {
+            return entityID;
+        }
+
+        /**
+         * Returns the entityID of the IdP issuing the logout request.
+         *
+         * @return entityID
+         */
+        public String getResponderEntityID() {
+            return responderEntityID;
+        }
+
+        /**
+         * Returns the name identifier value issued for the principal to the SP.
+         *
+         * @return name identifier
+         */
+        public String getNameIdentifier() {
+            return nameIdentifier;
+        }
+
+        /**
+         * Returns the name identifier format.
+         *
+         * @return name identifier format
+         */
+        public String getNameIdentifierFormat() {
+            return nameIdentifierFormat;
+        }
+
+        /**
+         * Returns the name qualifier.
+         *
+         * @return name qualifier or NULL
+         */
+        public String getNameQualifier() {
+            return nameQualifier;
+        }
+
+        /**
+         * Returns the SP name qualifier.
+         *
+         * @return SP name qualifier or NULL
+         */
+        public String getSPNameQualifier() {
+            return SPNameQualifier;
+        }
+    }
+
+    /**
+     * Consecutive failures of the logouts of an SP, guarded by the queue.
+     */
+    private static class Circuit {
+
+        /** Number of failures in a row. */
+        private int failures;
+        /** Instant until which the circuit is open, 0 if it is closed. */
+        private long openUntil;
+    }
+
+    /**
+     * Timer task dispatching the due logouts.
+     */
+    private class DispatchTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                int delivered = dispatch();
+                if (delivered > 0) {
+                    log.info("Delivered {} queued logouts", delivered);
+                }
+            } catch (Throwable t) {
+                log.error("Caught exception while dispatching queued logouts", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory queue of the logout status transitions of the participants of
+ * a single logout, in the order they happened.
+ *
+ * Events are numbered from 1; a consumer remembers the number of the last
+ * event it has seen and waits for the ones after it. The queue of a logout
+ * holds a few events per session participant at most, so events are never
+ * discarded.
+ */
+class LogoutStatusEvents {
+
+    /** Events published so far. */
+    private final List<Event> events = new ArrayList<Event>();
+
+    /**
+     * Publishes a logout status transition and wakes up waiting consumers.
+     *
+     * @param entityID entityID of the session participant
+     * @param status new logout status of the session participant
+     */
+    synchronized void publish(String entityID, LogoutStatus status) {
+        events.add(new Event(entityID, status));
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of the last event published.
+     *
+     * @return number of the last event, 0 if none was published yet
+     */
+    synchronized int getLastEventNumber() {
+        return events.size();
+    }
+
+    /**
+     * Waits for events to be published after the given one.
+     *
+     * @param lastEventNumber number of the last event seen by the consumer
+     * @param timeout maximum time to wait, in milliseconds
+     * @return events published after the given one, in order; empty if
+     * none was published in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized List<Event> await(int lastEventNumber, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (events.size() <= lastEventNumber && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (events.size() <= lastEventNumber) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Event>(events.subList(lastEventNumber, events.size()));
+    }
+
+    /**
+     * Logout status transition of a session participant.
+     */
+    static class Event {
+
+        /** entityID of the session participant. */
+        private final String entityID;
+        /** new logout status of the session participant. */
+        private final LogoutStatus logoutStatus;
+
+        /**
+         * Creates a new event.
+         *
+         * @param entityID entityID of the session participant
+         * @param logoutStatus new logout status of the session participant
+         */
+        Event(String entityID, LogoutStatus logoutStatus) {
+            this.entityID = entityID;
+            this.logoutStatus = logoutStatus;
+        }
+
+        /**
+         * Returns the entityID of the session participant.
+         *
+         * @return entityID
+         */
+        String getEntityID() {
+            return entityID;
+        }
+
+        /**
+         * Returns the new logout status of the session participant.
+         *
+         * @return logout status
+         */
+        LogoutStatus getLogoutStatus() {
+            return logoutStatus;
+        }
+    }
+}
@@ -20,10 +20,12 @@ import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntry;
 import edu.internet2.middleware.shibboleth.idp.profile.saml2.SLOProfileHandler;
 import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
 import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
+import java.util.List;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -39,6 +41,8 @@ import org.opensaml.util.storage.StorageService;
 public class SLOServlet extends HttpServlet {
 
     private static final long serialVersionUID = -3562061733288921508L;
+    /** Maximum time an event stream is kept open, in milliseconds. */
+    private static final long EVENT_STREAM_TIMEOUT = 10000;
     // TODO remove once HttpServletHelper does redirects
     private static ServletContext context;
     /** Storage service used to store {@link LoginContext}s while authentication is in progress. */
@@ -69,7 +73,9 @@ public class SLOServlet extends HttpServlet {
         resp.setHeader("Cache-Control", "no-cache, must-revalidate");
         resp.setHeader("Pragma", "no-cache");
 
-        if (req.getParameter("status") != null) { //status query, response is JSON
+        if (req.getParameter("events") != null) { //status event stream
+            streamStatusEvents(sloContext, resp);
+        } else if (req.getParameter("status") != null) { //status query, response is JSON
             sloContext.checkTimeout();
             PrintWriter writer = resp.getWriter();
             writer.print("[");
@@ -77,11 +83,7 @@ public class SLOServlet extends HttpServlet {
                     sloContext.getServiceInformation().values().iterator();
             while (it.hasNext()) {
                 LogoutInformation service = it.next();
-                writer.print("{\"entityID\":\"");
-                writer.print(service.getEntityID());
-                writer.print("\",\"logoutStatus\":\"");
-                writer.print(service.getLogoutStatus().toString());
-                writer.print("\"}");
+                printStatus(writer, service.getEntityID(), service.getLogoutStatus());
                 if (it.hasNext()) {
                     writer.print(",");
                 }
@@ -101,4 +103,131 @@ public class SLOServlet extends HttpServlet {
             req.getRequestDispatcher("/sloQuestion.jsp").forward(req, resp);
         }
     }
+
+    /**
+     * Streams the logout status of the session participants as server-sent
+     * events: the current status of each participant first, then every
+     * transition as it happens. A "done" event ends the stream once no
+     * logout is pending. The stream is also ended after
+     * {@link #EVENT_STREAM_TIMEOUT}; the client then falls back to status
+     * queries.
+     *
+     * Transitions are only seen if they are made on the context instance
+     * held by this node's storage service.
+     *
+     * @param sloContext single logout context
+     * @param resp HTTP response
+     * @throws IOException if the response can not be written
+     */
+    private void streamStatusEvents(SingleLogoutContext sloContext, HttpServletResponse resp)
+            throws IOException {
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter writer = resp.getWriter();
+
+        LogoutStatusEvents statusEvents = sloContext.getStatusEvents();
+        int lastEventNumber = statusEvents.getLastEventNumber();
+        sloContext.checkTimeout();
+        for (LogoutInformation service : sloContext.getServiceInformation().values()) {
+            printStatusEvent(writer, service.getEntityID(), service.getLogoutStatus());
+        }
+        writer.flush();
+
+        long deadline = System.currentTimeMillis() + EVENT_STREAM_TIMEOUT;
+        long wait = getPendingLogoutWait(sloContext);
+        while (wait >= 0 && !writer.checkError()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            List<LogoutStatusEvents.Event> events;
+            try {
+                events = statusEvents.await(lastEventNumber, Math.max(1, Math.min(wait, remaining)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lastEventNumber += events.size();
+            for (LogoutStatusEvents.Event event : events) {
+                printStatusEvent(writer, event.getEntityID(), event.getLogoutStatus());
+            }
+            writer.flush();
+
+            //timed out logouts are published on the next iteration
+            sloContext.checkTimeout();
+            wait = getPendingLogoutWait(sloContext);
+        }
+        //send the transitions made by the last timeout check
+        try {
+            for (LogoutStatusEvents.Event event : statusEvents.await(lastEventNumber, 0)) {
+                printStatusEvent(writer, event.getEntityID(), event.getLogoutStatus());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        writer.print("event: done\ndata: \n\n");
+        writer.flush();
+    }
+
+    /**
+     * Returns how long the logout of the session participants may still be
+     * waited for before one of them times out.
+     *
+     * @param sloContext single logout context
+     * @return time in milliseconds until the next pending logout times out,
+     * {@link #EVENT_STREAM_TIMEOUT} if no attempted logout is pending but a
+     * participant is still logged in, or -1 if no logout is pending
+     */
+    private long getPendingLogoutWait(SingleLogoutContext sloContext) {
+        long wait = -1;
+        for (LogoutInformation service : sloContext.getServiceInformation().values()) {
+            synchronized (service) {
+                if (service.getLogoutStatus() == LogoutStatus.LOGOUT_ATTEMPTED) {
+                    long timeout = sloContext.getFrontChannelResponseTimeout() - service.getElapsedMillis();
+                    wait = wait < 0 ? Math.max(0, timeout) : Math.min(wait, Math.max(0, timeout));
+                } else if (service.isLoggedIn() && wait < 0) {
+                    wait = EVENT_STREAM_TIMEOUT;
+                }
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Prints the logout status of a session participant as a server-sent
+     * event.
+     *
+     * @param writer response writer
+     * @param entityID entityID of the session participant
+     * @param logoutStatus logout status of the session participant
+     */
+    private void printStatusEvent(PrintWriter writer, String entityID, LogoutStatus logoutStatus) {
+        writer.print("data: ");
+        printStatus(writer, entityID, logoutStatus);
+        writer.print("\n\n");
+    }
+
+    /**
+     * Prints the logout status of a session participant as a JSON object.
+     *
+     * @param writer response writer
+     * @param entityID entityID of the session participant
+     * @param logoutStatus logout status of the session participant
+     */
+    private void printStatus(PrintWriter writer, String entityID, LogoutStatus logoutStatus) {
+        writer.print("{\"entityID\":\"");
+        for (int i = 0; i < entityID.length(); i++) {
+            char c = entityID.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.print('\\');
+            }
+            if (c >= ' ') {
+                writer.print(c);
+            }
+        }
+        writer.print("\",\"logoutStatus\":\"");
+        writer.print(logoutStatus.toString());
+        writer.print("\"}");
+    }
 }
@@ -55,6 +55,8 @@ public class SingleLogoutContext implements Serializable {
     private final int frontChannelResponseTimeout;
     /** Logout information associated with each session participant. */
     private final Map<String, LogoutInformation> serviceInformation;
+    /** Logout status transitions, kept in memory only; created on first use. */
+    private transient LogoutStatusEvents statusEvents;
 
     /**
      * Private constructor to create a new SingleLogoutContext instance.
@@ -103,6 +105,40 @@ public class SingleLogoutContext implements Serializable {
         this.serviceInformation = Collections.unmodifiableMap(serviceInfo);
     }
 
+    /**
+     * Constructor used when a stored SingleLogoutContext is decoded. The
+     * logout information of the session participants is added to the given
+     * map by the caller, once the context exists.
+     *
+     * @param profileHandlerURL URL for the SLO profile handler
+     * @param requesterEntityID entityID of the requester SP (may be null)
+     * @param responderEntityID entityID of the IdP
+     * @param requestSAMLMessageID ID of the SAML LogoutRequest message
+     * @param relayState RelayState associated with the LogoutRequest
+     * @param idpSessionID IdP session ID of the principal
+     * @param frontChannelResponseTimeout timeout for frontchannel requests
+     * @param serviceInfo map of the logout information of the session participants
+     */
+    SingleLogoutContext(
+            String profileHandlerURL,
+            String requesterEntityID,
+            String responderEntityID,
+            String requestSAMLMessageID,
+            String relayState,
+            String idpSessionID,
+            int frontChannelResponseTimeout,
+            Map<String, LogoutInformation> serviceInfo) {
+
+        this.profileHandlerURL = profileHandlerURL;
+        this.requesterEntityID = requesterEntityID;
+        this.responderEntityID = responderEntityID;
+        this.requestSAMLMessageID = requestSAMLMessageID;
+        this.relayState = relayState;
+        this.idpSessionID = idpSessionID;
+        this.frontChannelResponseTimeout = frontChannelResponseTimeout;
+        this.serviceInformation = Collections.unmodifiableMap(serviceInfo);
+    }
+
     /**
      * Create a new instance of SingleLogoutContext.
      * 
@@ -181,6 +217,15 @@ public class SingleLogoutContext implements Serializable {
         return idpSessionID;
     }
 
+    /**
+     * Returns the timeout value for frontchannel requests.
+     *
+     * @return timeout in milliseconds
+     */
+    int getFrontChannelResponseTimeout() {
+        return frontChannelResponseTimeout;
+    }
+
     /**
      * Returns the logout information associated with each session participant.
      *
@@ -190,6 +235,24 @@ public class SingleLogoutContext implements Serializable {
         return serviceInformation;
     }
 
+    /**
+     * Returns the queue of the logout status transitions of the session
+     * participants. Only transitions made on this instance of the context
+     * are published to it.
+     *
+     * @return logout status transitions
+     */
+    LogoutStatusEvents getStatusEvents() {
+        // not synchronized on this, as status transitions publish to the
+        // queue while holding the lock of their logout information
+        synchronized (serviceInformation) {
+            if (statusEvents == null) {
+                statusEvents = new LogoutStatusEvents();
+            }
+            return statusEvents;
+        }
+    }
+
     /**
      * Checks all services for logout timeout. This method must be called
      * before the front channel logout status is determined and returned back
@@ -301,6 +364,7 @@ public class SingleLogoutContext implements Serializable {
          */
         private void setLogoutStatus(LogoutStatus logoutStatus) {
             this.logoutStatus = logoutStatus;
+            getStatusEvents().publish(entityID, logoutStatus);
         }
 
         /**
@@ -468,6 +532,34 @@ public class SingleLogoutContext implements Serializable {
             return dName;
         }
 
+        /**
+         * Returns the localized display names for this SP.
+         *
+         * @return map of language and display name or NULL
+         */
+        synchronized Map<String, String> getDisplayNames() {
+            return displayName;
+        }
+
+        /**
+         * Returns the timestamp of the logout request.
+         *
+         * @return timestamp or 0 if the logout is not attempted yet
+         */
+        synchronized long getLogoutTimestamp() {
+            return logoutTimestamp;
+        }
+
+        /**
+         * Sets the timestamp of the logout request, used when a stored
+         * context is decoded.
+         *
+         * @param timestamp timestamp of the logout request
+         */
+        synchronized void setLogoutTimestamp(long timestamp) {
+            this.logoutTimestamp = timestamp;
+        }
+
         /**
          * Returns the elapsed milliseconds since the logout request is sent.
          * This method must only be called when the request timestamp is set.
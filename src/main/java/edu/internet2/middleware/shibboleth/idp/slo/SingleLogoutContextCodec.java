@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Codec of {@link SingleLogoutContext}s, including the logout status of
+ * each session participant.
+ */
+public class SingleLogoutContextCodec implements BinaryCodec<SingleLogoutContext> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+    /** Logout statuses, indexed by their encoding. */
+    private static final LogoutStatus[] STATUSES = LogoutStatus.values();
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SingleLogoutContext value, BinaryOutput out) throws IOException {
+        out.writeInternedString(value.getProfileHandlerURL());
+        out.writeInternedString(value.getRequesterEntityID());
+        out.writeInternedString(value.getResponderEntityID());
+        out.writeString(value.getRequestSAMLMessageID());
+        out.writeString(value.getRelayState());
+        out.writeString(value.getIdpSessionID());
+        out.writeVarInt(value.getFrontChannelResponseTimeout());
+
+        Map<String, LogoutInformation> services = value.getServiceInformation();
+        out.writeVarInt(services.size());
+        for (LogoutInformation service : services.values()) {
+            synchronized (service) {
+                encodeLogoutInformation(service, out);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SingleLogoutContext decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException(
+                    "Unsupported single logout context encoding version " + version);
+        }
+
+        String profileHandlerURL = in.readInternedString();
+        String requesterEntityID = in.readInternedString();
+        String responderEntityID = in.readInternedString();
+        String requestSAMLMessageID = in.readString();
+        String relayState = in.readString();
+        String idpSessionID = in.readString();
+        int frontChannelResponseTimeout = in.readVarInt();
+
+        int serviceCount = in.readCount();
+        Map<String, LogoutInformation> services =
+                new HashMap<String, LogoutInformation>(serviceCount);
+        SingleLogoutContext context = new SingleLogoutContext(
+                profileHandlerURL,
+                requesterEntityID,
+                responderEntityID,
+                requestSAMLMessageID,
+                relayState,
+                idpSessionID,
+                frontChannelResponseTimeout,
+                services);
+
+        LogoutInformation service;
+        for (int i = 0; i < serviceCount; i++) {
+            service = decodeLogoutInformation(context, in);
+            services.put(service.getEntityID(), service);
+        }
+        return context;
+    }
+
+    /**
+     * Encodes the logout information of a session participant.
+     *
+     * @param service logout information
+     * @param out output to which the information is written
+     * @throws IOException thrown if the information can not be encoded
+     */
+    private void encodeLogoutInformation(LogoutInformation service, BinaryOutput out)
+            throws IOException {
+        out.writeInternedString(service.getEntityID());
+        out.writeString(service.getNameIdentifier());
+        out.writeInternedString(service.getNameIdentifierFormat());
+        out.writeInternedString(service.getNameQualifier());
+        out.writeInternedString(service.getSPNameQualifier());
+        out.writeByte(service.getLogoutStatus().ordinal());
+        out.writeString(service.getLogoutRequestId());
+        out.writeVarLong(service.getLogoutTimestamp());
+
+        Map<String, String> displayNames = service.getDisplayNames();
+        if (displayNames == null) {
+            out.writeVarInt(0);
+        } else {
+            out.writeVarInt(displayNames.size() + 1);
+            for (Map.Entry<String, String> displayName : displayNames.entrySet()) {
+                out.writeInternedString(displayName.getKey());
+                out.writeString(displayName.getValue());
+            }
+        }
+    }
+
+    /**
+     * Decodes the logout information of a session participant.
+     *
+     * @param context the single logout context the information belongs to
+     * @param in input from which the information is read
+     * @return logout information
+     * @throws IOException thrown if the information is malformed
+     */
+    private LogoutInformation decodeLogoutInformation(SingleLogoutContext context, BinaryInput in)
+            throws IOException {
+        String entityID = in.readInternedString();
+        String nameIdentifier = in.readString();
+        String nameIdentifierFormat = in.readInternedString();
+        String nameQualifier = in.readInternedString();
+        String SPNameQualifier = in.readInternedString();
+        int status = in.readByte();
+        if (entityID == null || status >= STATUSES.length) {
+            throw new StreamCorruptedException("Malformed logout information");
+        }
+
+        LogoutInformation service = context.new LogoutInformation(entityID, nameIdentifier,
+                nameIdentifierFormat, nameQualifier, SPNameQualifier, STATUSES[status]);
+        String logoutRequestId = in.readString();
+        if (logoutRequestId != null) {
+            service.setLogoutRequestId(logoutRequestId);
+        }
+        service.setLogoutTimestamp(in.readVarLong());
+
+        int displayNameCount = in.readCount() - 1;
+        if (displayNameCount >= 0) {
+            Map<String, String> displayNames = new HashMap<String, String>(displayNameCount);
+            for (int i = 0; i < displayNameCount; i++) {
+                displayNames.put(in.readInternedString(), in.readString());
+            }
+            service.setDisplayName(displayNames);
+        }
+        return service;
+    }
+}
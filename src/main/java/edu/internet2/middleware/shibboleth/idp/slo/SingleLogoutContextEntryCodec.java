@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodec;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Codec of {@link SingleLogoutContextEntry}s.
+ */
+public class SingleLogoutContextEntryCodec implements BinaryCodec<SingleLogoutContextEntry> {
+
+    /** Current version of the encoding. */
+    private static final int VERSION = 1;
+
+    /** {@inheritDoc} */
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /** {@inheritDoc} */
+    public void encode(SingleLogoutContextEntry value, BinaryOutput out) throws IOException {
+        out.writeVarLong(value.getExpirationTime().getMillis());
+        out.writeObject(value.getSingleLogoutContext());
+    }
+
+    /** {@inheritDoc} */
+    public SingleLogoutContextEntry decode(BinaryInput in, int version) throws IOException {
+        if (version != VERSION) {
+            throw new StreamCorruptedException(
+                    "Unsupported single logout context entry encoding version " + version);
+        }
+
+        long expiration = in.readVarLong();
+        Object context = in.readObject();
+        if (!(context instanceof SingleLogoutContext)) {
+            throw new StreamCorruptedException(
+                    "Single logout context entry does not hold a single logout context");
+        }
+        return new SingleLogoutContextEntry((SingleLogoutContext) context,
+                expiration - System.currentTimeMillis());
+    }
+}
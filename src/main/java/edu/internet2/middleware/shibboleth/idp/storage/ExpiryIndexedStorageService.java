@@ -0,0 +1,559 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.ExpiringObject;
+import org.opensaml.util.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} that indexes every stored {@link ExpiringObject} by its expiration time.
+ *
+ * Each partition keeps, next to its entries, a heap ordered by deadline holding a single deadline per key. A periodic
+ * sweep only pops the heads of these heaps that are due, so the work done per sweep is proportional to the number of
+ * expired entries rather than to the number of stored entries. Storing an entry again moves its deadline in place and
+ * removing an entry removes its deadline. Because some entries, like IdP sessions, push back their expiration time as
+ * they are used, a due entry is re-checked when popped and, if it is no longer expired, its deadline is moved to the
+ * new expiration time.
+ *
+ * Values which are not {@link ExpiringObject}s are stored but never swept.
+ *
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class ExpiryIndexedStorageService<KeyType, ValueType> implements StorageService<KeyType, ValueType> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ExpiryIndexedStorageService.class);
+
+    /** Partitions of the store, indexed by partition name. */
+    private final ConcurrentMap<String, Partition<KeyType, ValueType>> partitions;
+
+    /** Number of sweeps performed. */
+    private final AtomicLong sweepCount;
+
+    /** Total number of entries removed by sweeps. */
+    private final AtomicLong totalReclaimed;
+
+    /** Number of entries removed by the last sweep. */
+    private volatile long lastSweepReclaimed;
+
+    /** Duration, in milliseconds, of the last sweep. */
+    private volatile long lastSweepDuration;
+
+    /** Instant, in milliseconds since the epoch, the last sweep completed. */
+    private volatile long lastSweepInstant;
+
+    /** Constructor. Sweeps must be driven externally via {@link #sweep()}. */
+    public ExpiryIndexedStorageService() {
+        partitions = new ConcurrentHashMap<String, Partition<KeyType, ValueType>>();
+        sweepCount = new AtomicLong();
+        totalReclaimed = new AtomicLong();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param taskTimer timer used to schedule the expiration sweeps
+     * @param sweepInterval interval, in milliseconds, between expiration sweeps
+     */
+    public ExpiryIndexedStorageService(Timer taskTimer, long sweepInterval) {
+        this();
+
+        if (taskTimer == null) {
+            throw new IllegalArgumentException("Task timer may not be null");
+        }
+        if (sweepInterval <= 0) {
+            throw new IllegalArgumentException("Sweep interval must be greater than zero");
+        }
+
+        taskTimer.schedule(new SweepTask(), sweepInterval, sweepInterval);
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, KeyType key) {
+        if (key == null) {
+            return false;
+        }
+
+        Partition<KeyType, ValueType> storePartition = partitions.get(partition);
+        return storePartition != null && storePartition.entries.containsKey(key);
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return partitions.keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<KeyType> getKeys(String partition) {
+        return getPartition(partition).entries.keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public ValueType get(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        Partition<KeyType, ValueType> storePartition = partitions.get(partition);
+        if (storePartition == null) {
+            return null;
+        }
+        return storePartition.entries.get(key);
+    }
+
+    /** {@inheritDoc} */
+    public ValueType put(String partition, KeyType key, ValueType value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key and value may not be null");
+        }
+
+        Partition<KeyType, ValueType> storePartition = getPartition(partition);
+        ValueType replaced = storePartition.entries.put(key, value);
+        if (value instanceof ExpiringObject) {
+            storePartition.schedule(key, value, ((ExpiringObject) value).getExpirationTime());
+        } else if (replaced instanceof ExpiringObject) {
+            storePartition.unschedule(key, replaced);
+        }
+        return replaced;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        Partition<KeyType, ValueType> storePartition = partitions.get(partition);
+        if (storePartition == null) {
+            return null;
+        }
+
+        ValueType removed = storePartition.entries.remove(key);
+        if (removed instanceof ExpiringObject) {
+            storePartition.unschedule(key, removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all the entries, across all partitions, whose expiration time has passed.
+     *
+     * @return number of entries removed
+     */
+    public long sweep() {
+        return sweep(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes all the entries, across all partitions, which are expired as of the given instant.
+     *
+     * @param now the instant, in milliseconds since the epoch, against which expiration is checked
+     *
+     * @return number of entries removed
+     */
+    public long sweep(long now) {
+        long start = System.currentTimeMillis();
+        long reclaimed = 0;
+
+        for (Partition<KeyType, ValueType> partition : partitions.values()) {
+            reclaimed += partition.sweep(now);
+        }
+
+        long end = System.currentTimeMillis();
+        lastSweepDuration = end - start;
+        lastSweepReclaimed = reclaimed;
+        lastSweepInstant = end;
+        sweepCount.incrementAndGet();
+        totalReclaimed.addAndGet(reclaimed);
+
+        if (reclaimed > 0) {
+            log.debug("Expiration sweep removed {} entries in {}ms", reclaimed, lastSweepDuration);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Gets the number of entries currently stored in the given partition.
+     *
+     * @param partition the partition
+     *
+     * @return number of entries in the partition
+     */
+    public int getEntryCount(String partition) {
+        Partition<KeyType, ValueType> storePartition = partitions.get(partition);
+        if (storePartition == null) {
+            return 0;
+        }
+        return storePartition.entries.size();
+    }
+
+    /**
+     * Gets the number of deadlines currently queued for the given partition. There is one deadline per expiring entry.
+     *
+     * @param partition the partition
+     *
+     * @return number of queued deadlines
+     */
+    public int getDeadlineCount(String partition) {
+        Partition<KeyType, ValueType> storePartition = partitions.get(partition);
+        if (storePartition == null) {
+            return 0;
+        }
+        synchronized (storePartition.deadlines) {
+            return storePartition.deadlines.size();
+        }
+    }
+
+    /**
+     * Gets the number of sweeps performed since this service was created.
+     *
+     * @return number of sweeps performed
+     */
+    public long getSweepCount() {
+        return sweepCount.get();
+    }
+
+    /**
+     * Gets the total number of entries removed by sweeps since this service was created.
+     *
+     * @return total number of entries removed by sweeps
+     */
+    public long getTotalReclaimed() {
+        return totalReclaimed.get();
+    }
+
+    /**
+     * Gets the number of entries removed by the last sweep.
+     *
+     * @return number of entries removed by the last sweep
+     */
+    public long getLastSweepReclaimed() {
+        return lastSweepReclaimed;
+    }
+
+    /**
+     * Gets the duration, in milliseconds, of the last sweep.
+     *
+     * @return duration of the last sweep
+     */
+    public long getLastSweepDuration() {
+        return lastSweepDuration;
+    }
+
+    /**
+     * Gets the instant the last sweep completed.
+     *
+     * @return instant the last sweep completed, or null if no sweep has yet been performed
+     */
+    public DateTime getLastSweepInstant() {
+        if (lastSweepInstant == 0) {
+            return null;
+        }
+        return new DateTime(lastSweepInstant);
+    }
+
+    /**
+     * Gets the given partition, creating it if it does not yet exist.
+     *
+     * @param partition name of the partition
+     *
+     * @return the partition
+     */
+    protected Partition<KeyType, ValueType> getPartition(String partition) {
+        Partition<KeyType, ValueType> storePartition = partitions.get(partition);
+        if (storePartition == null) {
+            storePartition = new Partition<KeyType, ValueType>(partition);
+            Partition<KeyType, ValueType> existing = partitions.putIfAbsent(partition, storePartition);
+            if (existing != null) {
+                storePartition = existing;
+            }
+        }
+        return storePartition;
+    }
+
+    /**
+     * A single partition of the store.
+     *
+     * @param <KeyType> object type of the keys
+     * @param <ValueType> object type of the values
+     */
+    protected static class Partition<KeyType, ValueType> {
+
+        /** Name of the partition. */
+        private final String name;
+
+        /** Entries in this partition. */
+        private final ConcurrentMap<KeyType, ValueType> entries;
+
+        /** Deadlines of the expiring entries in this partition, a binary heap earliest first. Guarded by itself. */
+        private final List<Deadline<KeyType, ValueType>> deadlines;
+
+        /** Deadline of each expiring entry, by key. Guarded by {@link #deadlines}. */
+        private final Map<KeyType, Deadline<KeyType, ValueType>> scheduled;
+
+        /**
+         * Constructor.
+         *
+         * @param partitionName name of the partition
+         */
+        protected Partition(String partitionName) {
+            name = partitionName;
+            entries = new ConcurrentHashMap<KeyType, ValueType>();
+            deadlines = new ArrayList<Deadline<KeyType, ValueType>>();
+            scheduled = new HashMap<KeyType, Deadline<KeyType, ValueType>>();
+        }
+
+        /**
+         * Gets the name of this partition.
+         *
+         * @return name of this partition
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Sets the deadline of an entry, moving its existing deadline if it has one.
+         *
+         * @param key key of the entry
+         * @param value value of the entry
+         * @param expiration expiration time of the entry, may be null if the entry never expires
+         */
+        protected void schedule(KeyType key, ValueType value, DateTime expiration) {
+            synchronized (deadlines) {
+                Deadline<KeyType, ValueType> deadline = scheduled.get(key);
+                if (expiration == null) {
+                    if (deadline != null) {
+                        scheduled.remove(key);
+                        removeAt(deadline.index);
+                    }
+                    return;
+                }
+
+                long instant = expiration.getMillis();
+                if (deadline == null) {
+                    deadline = new Deadline<KeyType, ValueType>(key, value, instant);
+                    scheduled.put(key, deadline);
+                    deadline.index = deadlines.size();
+                    deadlines.add(deadline);
+                    siftUp(deadline.index);
+                    return;
+                }
+
+                deadline.value = value;
+                if (deadline.instant != instant) {
+                    deadline.instant = instant;
+                    siftDown(siftUp(deadline.index));
+                }
+            }
+        }
+
+        /**
+         * Removes the deadline of an entry, if it is still the deadline of the given value.
+         *
+         * @param key key of the entry
+         * @param value value of the entry whose deadline is removed
+         */
+        protected void unschedule(KeyType key, ValueType value) {
+            synchronized (deadlines) {
+                Deadline<KeyType, ValueType> deadline = scheduled.get(key);
+                if (deadline != null && deadline.value == value) {
+                    scheduled.remove(key);
+                    removeAt(deadline.index);
+                }
+            }
+        }
+
+        /**
+         * Removes the entries of this partition which are expired as of the given instant.
+         *
+         * @param now the current time, in milliseconds since the epoch
+         *
+         * @return number of entries removed
+         */
+        protected long sweep(long now) {
+            long reclaimed = 0;
+            Deadline<KeyType, ValueType> due;
+            ValueType value;
+            DateTime expiration;
+
+            while (true) {
+                synchronized (deadlines) {
+                    if (deadlines.isEmpty() || deadlines.get(0).instant > now) {
+                        break;
+                    }
+                    due = deadlines.get(0);
+                    scheduled.remove(due.key);
+                    removeAt(0);
+                }
+
+                // the deadline is checked against the current value, which may have been replaced or extended
+                value = entries.get(due.key);
+                if (!(value instanceof ExpiringObject)) {
+                    continue;
+                }
+
+                expiration = ((ExpiringObject) value).getExpirationTime();
+                if (expiration != null && expiration.getMillis() > now) {
+                    schedule(due.key, value, expiration);
+                    continue;
+                }
+
+                if (entries.remove(due.key, value)) {
+                    ((ExpiringObject) value).onExpire();
+                    reclaimed++;
+                }
+            }
+
+            return reclaimed;
+        }
+
+        /**
+         * Removes the deadline at the given heap position. Caller must hold the {@link #deadlines} lock.
+         *
+         * @param index position of the deadline
+         */
+        private void removeAt(int index) {
+            int last = deadlines.size() - 1;
+            Deadline<KeyType, ValueType> moved = deadlines.remove(last);
+            if (index != last) {
+                deadlines.set(index, moved);
+                moved.index = index;
+                siftDown(siftUp(index));
+            }
+        }
+
+        /**
+         * Moves the deadline at the given heap position towards the head while it is earlier than its parent. Caller
+         * must hold the {@link #deadlines} lock.
+         *
+         * @param index position of the deadline
+         *
+         * @return new position of the deadline
+         */
+        private int siftUp(int index) {
+            int position = index;
+            Deadline<KeyType, ValueType> deadline = deadlines.get(position);
+            while (position > 0) {
+                int parent = (position - 1) >>> 1;
+                Deadline<KeyType, ValueType> parentDeadline = deadlines.get(parent);
+                if (parentDeadline.instant <= deadline.instant) {
+                    break;
+                }
+                deadlines.set(position, parentDeadline);
+                parentDeadline.index = position;
+                position = parent;
+            }
+            deadlines.set(position, deadline);
+            deadline.index = position;
+            return position;
+        }
+
+        /**
+         * Moves the deadline at the given heap position away from the head while it is later than one of its
+         * children. Caller must hold the {@link #deadlines} lock.
+         *
+         * @param index position of the deadline
+         */
+        private void siftDown(int index) {
+            int position = index;
+            int size = deadlines.size();
+            Deadline<KeyType, ValueType> deadline = deadlines.get(position);
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && deadlines.get(child + 1).instant < deadlines.get(child).instant) {
+                    child++;
+                }
+                Deadline<KeyType, ValueType> childDeadline = deadlines.get(child);
+                if (deadline.instant <= childDeadline.instant) {
+                    break;
+                }
+                deadlines.set(position, childDeadline);
+                childDeadline.index = position;
+                position = child;
+            }
+            deadlines.set(position, deadline);
+            deadline.index = position;
+        }
+    }
+
+    /**
+     * The deadline of a stored entry.
+     *
+     * @param <KeyType> object type of the keys
+     * @param <ValueType> object type of the values
+     */
+    private static class Deadline<KeyType, ValueType> {
+
+        /** Key of the entry. */
+        private final KeyType key;
+
+        /** Value of the entry when the deadline was last set. */
+        private ValueType value;
+
+        /** Instant, in milliseconds since the epoch, the entry expires. */
+        private long instant;
+
+        /** Position of the deadline in the heap. */
+        private int index;
+
+        /**
+         * Constructor.
+         *
+         * @param entryKey key of the entry
+         * @param entryValue value of the entry
+         * @param expirationInstant instant, in milliseconds since the epoch, the entry expires
+         */
+        public Deadline(KeyType entryKey, ValueType entryValue, long expirationInstant) {
+            key = entryKey;
+            value = entryValue;
+            instant = expirationInstant;
+        }
+    }
+
+    /** Timer task that drives the periodic expiration sweeps. */
+    private class SweepTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                sweep();
+            } catch (Throwable t) {
+                log.error("Caught unexpected error during expiration sweep, sweep aborted", t);
+            }
+        }
+    }
+}
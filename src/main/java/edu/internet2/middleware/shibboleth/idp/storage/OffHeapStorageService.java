@@ -0,0 +1,696 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.ExpiringObject;
+import org.opensaml.util.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodecRegistry;
+
+/**
+ * A {@link StorageService} that keeps its values, serialized, outside of the Java heap.
+ *
+ * Values are serialized into chunks carved out of direct {@link ByteBuffer} slabs, which are allocated on demand up to
+ * a configured maximum. Chunk sizes are powers of two and freed chunks are kept on a free list per size, from which
+ * later values of that size are served. Only the key and the location and expiration time of its chunk are kept on
+ * the heap, so a large number of large, rarely read, values, like IdP sessions, costs the garbage collector very
+ * little.
+ *
+ * Values are serialized with the configured {@link BinaryCodecRegistry} or, if there is none, with Java serialization.
+ *
+ * Each {@link #get(String, Object)} deserializes a new copy of the stored value. Changes made to a value are therefore
+ * not visible to other readers until the value is stored again with {@link #put(String, Object, Object)}.
+ *
+ * Values which are {@link ExpiringObject}s are removed by {@link #sweep()} once the expiration time they had when last
+ * stored has passed; as values may push back their own expiration time, the value is read back and its expiration time
+ * checked again before it is removed.
+ *
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class OffHeapStorageService<KeyType, ValueType> implements StorageService<KeyType, ValueType> {
+
+    /** Default size, in bytes, of a slab. */
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    /** Default maximum number of slabs. */
+    public static final int DEFAULT_MAX_SLABS = 64;
+
+    /** Size, in bytes, of the smallest chunk, as a power of two. */
+    private static final int MIN_CHUNK_SHIFT = 8;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(OffHeapStorageService.class);
+
+    /** Size, in bytes, of a slab. */
+    private final int slabSize;
+
+    /**
+     * Allocated slabs. Slots only ever reference slabs allocated before the slot was stored in a partition, so readers
+     * that found the slot in a partition see the slab.
+     */
+    private final ByteBuffer[] slabs;
+
+    /** Free chunks, as addresses, indexed by size class. Guarded by itself. */
+    private final ArrayDeque<Long>[] freeChunks;
+
+    /** Number of slabs allocated. Guarded by {@link #freeChunks}. */
+    private int slabCount;
+
+    /** Offset of the first unallocated byte of the last allocated slab. Guarded by {@link #freeChunks}. */
+    private int slabPosition;
+
+    /** Number of bytes in chunks currently holding a value. Guarded by {@link #freeChunks}. */
+    private long allocatedBytes;
+
+    /** Slots of the stored values, indexed by partition name and key. */
+    private final ConcurrentMap<String, ConcurrentMap<KeyType, Slot>> partitions;
+
+    /** Initializers of values read back from the slabs, indexed by partition name. */
+    private final ConcurrentMap<String, ValueInitializer<ValueType>> initializers;
+
+    /** Registry of the codecs used to serialize values, null to use Java serialization. */
+    private volatile BinaryCodecRegistry codecRegistry;
+
+    /** Constructor. Uses the default slab size and maximum number of slabs; sweeps must be driven externally. */
+    public OffHeapStorageService() {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_SLABS);
+    }
+
+    /**
+     * Constructor. Sweeps must be driven externally via {@link #sweep()}.
+     *
+     * @param slabBytes size, in bytes, of a slab, must be a power of two
+     * @param maxSlabs maximum number of slabs
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapStorageService(int slabBytes, int maxSlabs) {
+        if (slabBytes < (1 << MIN_CHUNK_SHIFT) || Integer.bitCount(slabBytes) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least "
+                    + (1 << MIN_CHUNK_SHIFT) + " bytes");
+        }
+        if (maxSlabs < 1) {
+            throw new IllegalArgumentException("Maximum number of slabs must be greater than zero");
+        }
+
+        slabSize = slabBytes;
+        slabs = new ByteBuffer[maxSlabs];
+        slabPosition = slabSize;
+        freeChunks = new ArrayDeque[sizeClass(slabSize) + 1];
+        for (int i = 0; i < freeChunks.length; i++) {
+            freeChunks[i] = new ArrayDeque<Long>();
+        }
+        partitions = new ConcurrentHashMap<String, ConcurrentMap<KeyType, Slot>>();
+        initializers = new ConcurrentHashMap<String, ValueInitializer<ValueType>>();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param slabBytes size, in bytes, of a slab, must be a power of two
+     * @param maxSlabs maximum number of slabs
+     * @param taskTimer timer used to schedule the expiration sweeps
+     * @param sweepInterval interval, in milliseconds, between expiration sweeps
+     */
+    public OffHeapStorageService(int slabBytes, int maxSlabs, Timer taskTimer, long sweepInterval) {
+        this(slabBytes, maxSlabs);
+
+        if (taskTimer == null) {
+            throw new IllegalArgumentException("Task timer may not be null");
+        }
+        if (sweepInterval <= 0) {
+            throw new IllegalArgumentException("Sweep interval must be greater than zero");
+        }
+
+        taskTimer.schedule(new SweepTask(), sweepInterval, sweepInterval);
+    }
+
+    /**
+     * Sets the initializer of the values of a partition. The initializer is given each value read back from the slabs,
+     * including the values read back by an expiration sweep, before the value is used.
+     *
+     * @param partition the partition
+     * @param initializer initializer of the values of the partition, or null to remove the partition's initializer
+     */
+    public void setValueInitializer(String partition, ValueInitializer<ValueType> initializer) {
+        if (initializer == null) {
+            initializers.remove(partition);
+        } else {
+            initializers.put(partition, initializer);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, KeyType key) {
+        if (key == null) {
+            return false;
+        }
+
+        ConcurrentMap<KeyType, Slot> slots = partitions.get(partition);
+        return slots != null && slots.containsKey(key);
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return partitions.keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<KeyType> getKeys(String partition) {
+        return getSlots(partition).keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public ValueType get(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        ConcurrentMap<KeyType, Slot> slots = partitions.get(partition);
+        if (slots == null) {
+            return null;
+        }
+
+        Slot slot;
+        byte[] record;
+        while (true) {
+            slot = slots.get(key);
+            if (slot == null) {
+                return null;
+            }
+            record = read(slot);
+
+            // a chunk is only freed, and so possibly overwritten, after its slot has left the partition
+            if (slots.get(key) == slot) {
+                return readValue(partition, record);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public ValueType put(String partition, KeyType key, ValueType value) {
+        Slot replaced = putSlot(partition, key, value);
+        if (replaced == null) {
+            return null;
+        }
+
+        ValueType replacedValue = readValue(partition, read(replaced));
+        free(replaced);
+        return replacedValue;
+    }
+
+    /**
+     * Stores a value like {@link #put(String, Object, Object)}, but frees the chunk of the replaced value without
+     * reading it back. Callers that do not use the replaced value should prefer this method.
+     *
+     * @param partition the partition
+     * @param key the key
+     * @param value the value
+     */
+    public void store(String partition, KeyType key, ValueType value) {
+        Slot replaced = putSlot(partition, key, value);
+        if (replaced != null) {
+            free(replaced);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        ConcurrentMap<KeyType, Slot> slots = partitions.get(partition);
+        if (slots == null) {
+            return null;
+        }
+
+        Slot removed = slots.remove(key);
+        if (removed == null) {
+            return null;
+        }
+
+        ValueType removedValue = readValue(partition, read(removed));
+        free(removed);
+        return removedValue;
+    }
+
+    /**
+     * Writes a value into a new chunk and maps its key to it.
+     *
+     * @param partition the partition
+     * @param key the key
+     * @param value the value
+     *
+     * @return the slot of the replaced value, which the caller must free, or null if no value was replaced
+     */
+    private Slot putSlot(String partition, KeyType key, ValueType value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key and value may not be null");
+        }
+
+        byte[] record;
+        try {
+            record = serializeValue(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to serialize value of " + partition + " entry " + key, e);
+        }
+
+        long expiration = Long.MAX_VALUE;
+        if (value instanceof ExpiringObject) {
+            DateTime expirationTime = ((ExpiringObject) value).getExpirationTime();
+            if (expirationTime != null) {
+                expiration = expirationTime.getMillis();
+            }
+        }
+
+        return getSlots(partition).put(key, write(record, expiration));
+    }
+
+    /**
+     * Removes all the entries, across all partitions, whose expiration time has passed.
+     *
+     * @return number of entries removed
+     */
+    public long sweep() {
+        return sweep(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes all the entries, across all partitions, which are expired as of the given instant. Only the values of
+     * entries whose stored expiration time has passed are read back from the slabs. An entry whose value can not be
+     * read back is removed without being notified of its expiration, and does not stop the sweep.
+     *
+     * @param now the instant, in milliseconds since the epoch, against which expiration is checked
+     *
+     * @return number of entries removed
+     */
+    public long sweep(long now) {
+        long reclaimed = 0;
+        byte[] record;
+        ValueType value;
+        DateTime expiration;
+
+        for (Map.Entry<String, ConcurrentMap<KeyType, Slot>> partition : partitions.entrySet()) {
+            ConcurrentMap<KeyType, Slot> slots = partition.getValue();
+            for (Map.Entry<KeyType, Slot> entry : slots.entrySet()) {
+                Slot slot = entry.getValue();
+                if (slot.expiration > now) {
+                    continue;
+                }
+
+                record = read(slot);
+                if (slots.get(entry.getKey()) != slot) {
+                    // entry was removed or replaced, and its chunk possibly reused, while it was read
+                    continue;
+                }
+
+                try {
+                    value = readValue(partition.getKey(), record);
+                } catch (RuntimeException e) {
+                    log.error("Unable to read back expired entry " + entry.getKey() + " of partition "
+                            + partition.getKey() + ", removing it", e);
+                    if (slots.remove(entry.getKey(), slot)) {
+                        free(slot);
+                        reclaimed++;
+                    }
+                    continue;
+                }
+
+                expiration = ((ExpiringObject) value).getExpirationTime();
+                if (expiration != null && expiration.getMillis() > now) {
+                    slots.replace(entry.getKey(), slot, new Slot(slot.address, slot.length, slot.sizeClass,
+                            expiration.getMillis()));
+                    continue;
+                }
+
+                if (slots.remove(entry.getKey(), slot)) {
+                    free(slot);
+                    ((ExpiringObject) value).onExpire();
+                    reclaimed++;
+                }
+            }
+        }
+
+        if (reclaimed > 0) {
+            log.debug("Expiration sweep removed {} entries", reclaimed);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Gets the number of entries currently stored in the given partition.
+     *
+     * @param partition the partition
+     *
+     * @return number of entries in the partition
+     */
+    public int getEntryCount(String partition) {
+        ConcurrentMap<KeyType, Slot> slots = partitions.get(partition);
+        if (slots == null) {
+            return 0;
+        }
+        return slots.size();
+    }
+
+    /**
+     * Gets the number of slabs allocated.
+     *
+     * @return number of slabs allocated
+     */
+    public int getSlabCount() {
+        synchronized (freeChunks) {
+            return slabCount;
+        }
+    }
+
+    /**
+     * Gets the number of bytes in chunks currently holding a value.
+     *
+     * @return number of bytes in chunks currently holding a value
+     */
+    public long getAllocatedBytes() {
+        synchronized (freeChunks) {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * Gets the registry of the codecs used to serialize values.
+     *
+     * @return registry of the codecs used to serialize values, null if Java serialization is used
+     */
+    public BinaryCodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry of the codecs used to serialize values. Values already stored with Java serialization can still
+     * be read once a registry is set.
+     *
+     * @param registry registry of the codecs used to serialize values, null to use Java serialization
+     */
+    public void setCodecRegistry(BinaryCodecRegistry registry) {
+        codecRegistry = registry;
+    }
+
+    /**
+     * Serializes a value. The default implementation uses the codec registry, if set, and Java serialization
+     * otherwise.
+     *
+     * @param value the value
+     *
+     * @return the serialized value
+     *
+     * @throws IOException thrown if the value can not be serialized
+     */
+    protected byte[] serializeValue(ValueType value) throws IOException {
+        BinaryCodecRegistry registry = codecRegistry;
+        if (registry != null) {
+            return registry.encode(value);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a value. The default implementation uses the codec registry, if set, and Java serialization
+     * otherwise.
+     *
+     * @param record the serialized value
+     *
+     * @return the value
+     *
+     * @throws IOException thrown if the value can not be deserialized
+     */
+    @SuppressWarnings("unchecked")
+    protected ValueType deserializeValue(byte[] record) throws IOException {
+        BinaryCodecRegistry registry = codecRegistry;
+        if (registry != null) {
+            return (ValueType) registry.decode(record);
+        }
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record));
+        try {
+            return (ValueType) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class of stored value: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the slots of a partition, creating the partition if it does not yet exist.
+     *
+     * @param partition name of the partition
+     *
+     * @return slots of the partition
+     */
+    private ConcurrentMap<KeyType, Slot> getSlots(String partition) {
+        ConcurrentMap<KeyType, Slot> slots = partitions.get(partition);
+        if (slots == null) {
+            slots = new ConcurrentHashMap<KeyType, Slot>();
+            ConcurrentMap<KeyType, Slot> existing = partitions.putIfAbsent(partition, slots);
+            if (existing != null) {
+                slots = existing;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Deserializes and initializes a value read back from the slabs.
+     *
+     * @param partition partition of the value
+     * @param record the serialized value
+     *
+     * @return the value
+     */
+    private ValueType readValue(String partition, byte[] record) {
+        ValueType value;
+        try {
+            value = deserializeValue(record);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to deserialize stored value of partition " + partition, e);
+        }
+
+        ValueInitializer<ValueType> initializer = initializers.get(partition);
+        if (initializer != null) {
+            initializer.initialize(value);
+        }
+        return value;
+    }
+
+    /**
+     * Copies a serialized value into a newly allocated chunk.
+     *
+     * @param record the serialized value
+     * @param expiration instant, in milliseconds since the epoch, the value expires
+     *
+     * @return the slot of the chunk
+     */
+    private Slot write(byte[] record, long expiration) {
+        if (record.length > slabSize) {
+            throw new IllegalArgumentException("Serialized value of " + record.length
+                    + " bytes is larger than the slab size");
+        }
+
+        int sizeClass = sizeClass(record.length);
+        long address = allocate(sizeClass);
+        ByteBuffer chunk = slabs[(int) (address >>> 32)].duplicate();
+        chunk.position((int) address);
+        chunk.put(record);
+        return new Slot(address, record.length, sizeClass, expiration);
+    }
+
+    /**
+     * Copies a serialized value out of its chunk.
+     *
+     * @param slot slot of the chunk
+     *
+     * @return the serialized value
+     */
+    private byte[] read(Slot slot) {
+        byte[] record = new byte[slot.length];
+        ByteBuffer chunk = slabs[(int) (slot.address >>> 32)].duplicate();
+        chunk.position((int) slot.address);
+        chunk.get(record);
+        return record;
+    }
+
+    /**
+     * Allocates a chunk of the given size class, from the free list of that size if possible, otherwise from the last
+     * allocated slab or, if it is full, from a new slab.
+     *
+     * @param sizeClass the size class
+     *
+     * @return address of the chunk
+     */
+    private long allocate(int sizeClass) {
+        int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        synchronized (freeChunks) {
+            allocatedBytes += chunkSize;
+
+            Long free = freeChunks[sizeClass].poll();
+            if (free != null) {
+                return free;
+            }
+
+            if (slabSize - slabPosition < chunkSize) {
+                retireSlabRemainder();
+                if (slabCount == slabs.length) {
+                    allocatedBytes -= chunkSize;
+                    throw new IllegalStateException("Off-heap storage is full, all " + slabs.length
+                            + " slabs are in use");
+                }
+                slabs[slabCount] = ByteBuffer.allocateDirect(slabSize);
+                slabCount++;
+                slabPosition = 0;
+                log.debug("Allocated off-heap slab {} of {} bytes", slabCount, slabSize);
+            }
+
+            long address = ((long) (slabCount - 1) << 32) | slabPosition;
+            slabPosition += chunkSize;
+            return address;
+        }
+    }
+
+    /**
+     * Puts the unallocated remainder of the last allocated slab on the free lists. Chunks are powers of two, so the
+     * remainder is a sum of smaller powers of two. Caller must hold the lock on {@link #freeChunks}.
+     */
+    private void retireSlabRemainder() {
+        int remaining = slabSize - slabPosition;
+        int chunkSize;
+        for (int sizeClass = freeChunks.length - 1; sizeClass >= 0; sizeClass--) {
+            chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+            if (remaining >= chunkSize) {
+                freeChunks[sizeClass].push(((long) (slabCount - 1) << 32) | slabPosition);
+                slabPosition += chunkSize;
+                remaining -= chunkSize;
+            }
+        }
+    }
+
+    /**
+     * Returns the chunk of a slot, which must no longer be reachable from any partition, to its free list.
+     *
+     * @param slot the slot
+     */
+    private void free(Slot slot) {
+        synchronized (freeChunks) {
+            freeChunks[slot.sizeClass].push(slot.address);
+            allocatedBytes -= 1 << (slot.sizeClass + MIN_CHUNK_SHIFT);
+        }
+    }
+
+    /**
+     * Computes the size class of the smallest chunk that holds the given number of bytes.
+     *
+     * @param length the number of bytes
+     *
+     * @return the size class
+     */
+    private static int sizeClass(int length) {
+        if (length <= 1 << MIN_CHUNK_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CHUNK_SHIFT;
+    }
+
+    /**
+     * Initializes values read back from the slabs, for example to restore references that are not serialized.
+     *
+     * @param <ValueType> object type of the values
+     */
+    public interface ValueInitializer<ValueType> {
+
+        /**
+         * Initializes a value read back from the slabs.
+         *
+         * @param value the value
+         */
+        public void initialize(ValueType value);
+    }
+
+    /** Location, size and expiration time of a stored value. Slots are immutable. */
+    private static final class Slot {
+
+        /** Address of the chunk, the slab index in the upper 32 bits and the offset within the slab in the lower. */
+        private final long address;
+
+        /** Length, in bytes, of the serialized value. */
+        private final int length;
+
+        /** Size class of the chunk. */
+        private final int sizeClass;
+
+        /** Instant, in milliseconds since the epoch, the value expires. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param chunkAddress address of the chunk
+         * @param recordLength length, in bytes, of the serialized value
+         * @param chunkSizeClass size class of the chunk
+         * @param expirationInstant instant, in milliseconds since the epoch, the value expires
+         */
+        public Slot(long chunkAddress, int recordLength, int chunkSizeClass, long expirationInstant) {
+            address = chunkAddress;
+            length = recordLength;
+            sizeClass = chunkSizeClass;
+            expiration = expirationInstant;
+        }
+    }
+
+    /** Timer task that drives the periodic expiration sweeps. */
+    private class SweepTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                sweep();
+            } catch (Throwable t) {
+                log.error("Caught unexpected error during expiration sweep, sweep aborted", t);
+            }
+        }
+    }
+}
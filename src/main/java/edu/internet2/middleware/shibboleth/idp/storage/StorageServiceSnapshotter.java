@@ -0,0 +1,620 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.opensaml.util.storage.ExpiringObject;
+import org.opensaml.util.storage.StorageService;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.util.FileHelper;
+
+/**
+ * Writes snapshots of selected {@link StorageService} partitions to a local file and restores them on startup, so that
+ * restarting an IdP node does not lose the sessions and in-flight login and logout contexts it holds.
+ *
+ * A snapshot is written sequentially to a temporary file, created readable only by its owner, which then atomically
+ * replaces the previous snapshot. The file starts with a header naming the snapshotted partitions followed by one
+ * length-prefixed record per entry: partition index, expiration instant, key and the serialized value. Restoring
+ * memory-maps the file and streams through the records, skipping expired entries without deserializing their values.
+ *
+ * Each snapshot rewrites the whole file rather than appending changes to a journal. Stored objects such as sessions
+ * are changed in place without passing through the storage service, so a journal of puts and removes would miss those
+ * changes; and a rewritten file only ever holds live entries, needing neither compaction nor the replay of superseded
+ * records on restore. A crash loses at most the changes made since the last periodic snapshot.
+ *
+ * Values are serialized with the configured {@link BinaryCodecRegistry} or, if there is none, with Java serialization.
+ */
+public class StorageServiceSnapshotter {
+
+    /** Magic number identifying a snapshot file. */
+    private static final int MAGIC = 0x53484953;
+
+    /** Version of the snapshot file format. */
+    private static final short FORMAT_VERSION = 1;
+
+    /** Size, in bytes, of the windows through which the snapshot file is mapped. */
+    private static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /** Expiration instant recorded for values that do not expire. */
+    private static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StorageServiceSnapshotter.class);
+
+    /** Storage service whose partitions are snapshotted. */
+    private final StorageService<String, Object> storageService;
+
+    /** File holding the snapshot. */
+    private final File snapshotFile;
+
+    /** Names of the snapshotted partitions. */
+    private final List<String> partitions;
+
+    /** Timer used to schedule periodic snapshots, may be null. */
+    private final Timer taskTimer;
+
+    /** Interval, in milliseconds, between periodic snapshots. */
+    private final long snapshotInterval;
+
+    /** Task writing periodic snapshots. */
+    private TimerTask snapshotTask;
+
+    /** Registry of the codecs used to serialize values, null to use Java serialization. */
+    private BinaryCodecRegistry codecRegistry;
+
+    /**
+     * Constructor. Snapshots are only written on shutdown.
+     *
+     * @param storage storage service whose partitions are snapshotted
+     * @param file path of the file holding the snapshot
+     * @param snapshotPartitions names of the snapshotted partitions
+     */
+    public StorageServiceSnapshotter(StorageService<String, Object> storage, String file,
+            List<String> snapshotPartitions) {
+        this(storage, file, snapshotPartitions, null, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param storage storage service whose partitions are snapshotted
+     * @param file path of the file holding the snapshot
+     * @param snapshotPartitions names of the snapshotted partitions
+     * @param timer timer used to schedule periodic snapshots, may be null
+     * @param interval interval, in milliseconds, between periodic snapshots, 0 for no periodic snapshots
+     */
+    public StorageServiceSnapshotter(StorageService<String, Object> storage, String file,
+            List<String> snapshotPartitions, Timer timer, long interval) {
+        if (storage == null) {
+            throw new IllegalArgumentException("Storage service may not be null");
+        }
+        if (DatatypeHelper.isEmpty(file)) {
+            throw new IllegalArgumentException("Snapshot file may not be null or empty");
+        }
+        if (snapshotPartitions == null || snapshotPartitions.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition must be snapshotted");
+        }
+        if (snapshotPartitions.size() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many partitions to snapshot");
+        }
+        if (interval < 0) {
+            throw new IllegalArgumentException("Snapshot interval may not be negative");
+        }
+
+        storageService = storage;
+        snapshotFile = new File(DatatypeHelper.safeTrim(file));
+        partitions = new ArrayList<String>(snapshotPartitions);
+        taskTimer = timer;
+        snapshotInterval = interval;
+    }
+
+    /**
+     * Gets the file holding the snapshot.
+     *
+     * @return file holding the snapshot
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Restores the last snapshot, if any, and starts periodic snapshots. Should be called before the storage service is
+     * used.
+     */
+    public void initialize() {
+        restore();
+
+        if (taskTimer != null && snapshotInterval > 0) {
+            snapshotTask = new SnapshotTask();
+            taskTimer.schedule(snapshotTask, snapshotInterval, snapshotInterval);
+        }
+    }
+
+    /** Stops periodic snapshots and writes a final snapshot. */
+    public void destroy() {
+        if (snapshotTask != null) {
+            snapshotTask.cancel();
+        }
+        snapshot();
+    }
+
+    /**
+     * Writes a snapshot of the partitions.
+     *
+     * @return number of entries written or -1 if the snapshot could not be written
+     */
+    public synchronized int snapshot() {
+        long start = System.currentTimeMillis();
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        int written = 0;
+
+        DataOutputStream out = null;
+        try {
+            // the snapshot holds session secrets, only the IdP may read it
+            tempFile.delete();
+            FileHelper.createPrivateFile(tempFile);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeShort(partitions.size());
+            for (String partition : partitions) {
+                writeString(out, partition);
+            }
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+            for (int i = 0; i < partitions.size(); i++) {
+                written += writePartition(out, record, i);
+            }
+
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(snapshotFile)) {
+                // some platforms will not rename over an existing file
+                snapshotFile.delete();
+                if (!tempFile.renameTo(snapshotFile)) {
+                    throw new IOException("Unable to move snapshot into place at " + snapshotFile.getPath());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to write storage service snapshot to " + snapshotFile.getPath(), e);
+            return -1;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close snapshot file", e);
+                }
+                tempFile.delete();
+            }
+        }
+
+        log.debug("Wrote {} entries to storage service snapshot in {}ms", written, System.currentTimeMillis()
+                - start);
+        return written;
+    }
+
+    /**
+     * Restores the entries of the last snapshot which have not yet expired.
+     *
+     * @return number of entries restored
+     */
+    public int restore() {
+        if (!snapshotFile.isFile()) {
+            log.debug("No storage service snapshot at {}", snapshotFile.getPath());
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        int restored = 0;
+        int expired = 0;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(snapshotFile, "r");
+            SnapshotReader reader = new SnapshotReader(file.getChannel());
+
+            ByteBuffer header = reader.read(8);
+            if (header.getInt() != MAGIC || header.getShort() != FORMAT_VERSION) {
+                log.warn("Ignoring storage service snapshot {}, it is not in a supported format", snapshotFile
+                        .getPath());
+                return 0;
+            }
+            String[] snapshotPartitions = new String[header.getShort()];
+            for (int i = 0; i < snapshotPartitions.length; i++) {
+                snapshotPartitions[i] = readString(reader.read(2 + reader.peekShort()));
+            }
+
+            long now = System.currentTimeMillis();
+            ByteBuffer record;
+            int partitionIndex;
+            long expiration;
+            String key;
+            Object value;
+            while (reader.hasRemaining()) {
+                record = reader.read(4 + reader.peekInt());
+                record.getInt();
+                partitionIndex = record.getShort();
+                if (partitionIndex < 0 || partitionIndex >= snapshotPartitions.length) {
+                    throw new IOException("Snapshot file is corrupt, record has unknown partition " + partitionIndex);
+                }
+                expiration = record.getLong();
+                if (expiration <= now) {
+                    expired++;
+                    continue;
+                }
+
+                key = readString(record);
+                try {
+                    value = deserializeValue(record);
+                } catch (Exception e) {
+                    log.warn("Unable to restore entry {} from storage service snapshot: {}", key, e.getMessage());
+                    continue;
+                }
+                storageService.put(snapshotPartitions[partitionIndex], key, value);
+                restored++;
+            }
+        } catch (IOException e) {
+            log.error("Unable to read storage service snapshot " + snapshotFile.getPath(), e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close snapshot file", e);
+                }
+            }
+        }
+
+        log.info("Restored {} entries, skipped {} expired entries, from storage service snapshot in {}ms",
+                new Object[] {restored, expired, System.currentTimeMillis() - start,});
+        return restored;
+    }
+
+    /**
+     * Gets the registry of the codecs used to serialize values.
+     *
+     * @return registry of the codecs used to serialize values, null if Java serialization is used
+     */
+    public BinaryCodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the registry of the codecs used to serialize values. Snapshots written with Java serialization can still be
+     * restored once a registry is set.
+     *
+     * @param registry registry of the codecs used to serialize values, null to use Java serialization
+     */
+    public void setCodecRegistry(BinaryCodecRegistry registry) {
+        codecRegistry = registry;
+    }
+
+    /**
+     * Serializes a stored value.
+     *
+     * @param value the value
+     * @param out stream to which the value is written
+     *
+     * @throws IOException thrown if the value can not be serialized
+     */
+    protected void serializeValue(Object value, ByteArrayOutputStream out) throws IOException {
+        if (codecRegistry != null) {
+            out.write(codecRegistry.encode(value));
+            return;
+        }
+
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.writeObject(value);
+        objectOut.flush();
+    }
+
+    /**
+     * Deserializes a stored value.
+     *
+     * @param buffer buffer positioned at the start of the serialized value and limited to its end
+     *
+     * @return the value
+     *
+     * @throws Exception thrown if the value can not be deserialized
+     */
+    protected Object deserializeValue(ByteBuffer buffer) throws Exception {
+        if (codecRegistry != null) {
+            if (buffer.hasArray()) {
+                return codecRegistry.decode(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            }
+            byte[] record = new byte[buffer.remaining()];
+            buffer.get(record);
+            return codecRegistry.decode(record);
+        }
+
+        ObjectInputStream objectIn = new ObjectInputStream(new ByteBufferInputStream(buffer));
+        return objectIn.readObject();
+    }
+
+    /**
+     * Writes the records of a partition.
+     *
+     * @param out snapshot output
+     * @param record buffer used to build each record
+     * @param partitionIndex index of the partition
+     *
+     * @return number of records written
+     *
+     * @throws IOException thrown if the snapshot can not be written
+     */
+    private int writePartition(DataOutputStream out, ByteArrayOutputStream record, int partitionIndex)
+            throws IOException {
+        String partition = partitions.get(partitionIndex);
+        Iterator<String> keys = storageService.getKeys(partition);
+        if (keys == null) {
+            return 0;
+        }
+
+        int written = 0;
+        DataOutputStream recordOut = new DataOutputStream(record);
+        String key;
+        Object value;
+        long expiration;
+        while (keys.hasNext()) {
+            key = keys.next();
+            value = storageService.get(partition, key);
+            if (value == null) {
+                continue;
+            }
+
+            expiration = NO_EXPIRATION;
+            if (value instanceof ExpiringObject) {
+                ExpiringObject expiringValue = (ExpiringObject) value;
+                if (expiringValue.isExpired()) {
+                    continue;
+                }
+                expiration = expiringValue.getExpirationTime().getMillis();
+            }
+
+            record.reset();
+            recordOut.writeShort(partitionIndex);
+            recordOut.writeLong(expiration);
+            writeString(recordOut, key);
+            try {
+                serializeValue(value, record);
+            } catch (IOException e) {
+                log.debug("Unable to snapshot entry {} of partition {}: {}", new Object[] {key, partition,
+                        e.getMessage(),});
+                continue;
+            }
+
+            out.writeInt(record.size());
+            record.writeTo(out);
+            written++;
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes.
+     *
+     * @param out stream to write to
+     * @param value the string
+     *
+     * @throws IOException thrown if the string can not be written
+     */
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("String is too long to be snapshotted");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param buffer buffer to read from
+     *
+     * @return the string
+     *
+     * @throws IOException thrown if the string can not be read
+     */
+    private String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /** Reads a snapshot file through a sliding, memory-mapped, window. */
+    private static class SnapshotReader {
+
+        /** Channel of the snapshot file. */
+        private final FileChannel channel;
+
+        /** Size of the snapshot file. */
+        private final long fileSize;
+
+        /** Position, within the file, of the start of the current window. */
+        private long windowStart;
+
+        /** Current window. */
+        private ByteBuffer window;
+
+        /**
+         * Constructor.
+         *
+         * @param fileChannel channel of the snapshot file
+         *
+         * @throws IOException thrown if the size of the file can not be determined
+         */
+        public SnapshotReader(FileChannel fileChannel) throws IOException {
+            channel = fileChannel;
+            fileSize = channel.size();
+            window = ByteBuffer.allocate(0);
+        }
+
+        /**
+         * Checks whether any data remains to be read.
+         *
+         * @return true if data remains to be read
+         */
+        public boolean hasRemaining() {
+            return windowStart + window.position() < fileSize;
+        }
+
+        /**
+         * Reads, without consuming, a short from the current position.
+         *
+         * @return the short
+         *
+         * @throws IOException thrown if the file does not have two more bytes
+         */
+        public short peekShort() throws IOException {
+            ensure(2);
+            return window.getShort(window.position());
+        }
+
+        /**
+         * Reads, without consuming, an int from the current position.
+         *
+         * @return the int
+         *
+         * @throws IOException thrown if the file does not have four more bytes
+         */
+        public int peekInt() throws IOException {
+            ensure(4);
+            return window.getInt(window.position());
+        }
+
+        /**
+         * Consumes the given number of bytes.
+         *
+         * @param length number of bytes to consume
+         *
+         * @return buffer holding exactly the consumed bytes
+         *
+         * @throws IOException thrown if the file does not have enough bytes
+         */
+        public ByteBuffer read(int length) throws IOException {
+            ensure(length);
+            ByteBuffer slice = window.slice();
+            slice.limit(length);
+            window.position(window.position() + length);
+            return slice;
+        }
+
+        /**
+         * Ensures the current window holds at least the given number of bytes past the current position, moving the
+         * window if needed.
+         *
+         * @param length number of bytes needed
+         *
+         * @throws IOException thrown if the file does not have enough bytes
+         */
+        private void ensure(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Snapshot file is corrupt");
+            }
+            if (window.remaining() >= length) {
+                return;
+            }
+
+            long position = windowStart + window.position();
+            if (position + length > fileSize) {
+                throw new IOException("Snapshot file is truncated");
+            }
+            long size = Math.min(fileSize - position, Math.max(MAP_WINDOW_SIZE, length));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowStart = position;
+        }
+    }
+
+    /** Input stream reading from a byte buffer. */
+    private static class ByteBufferInputStream extends InputStream {
+
+        /** Buffer read from. */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param source buffer read from
+         */
+        public ByteBufferInputStream(ByteBuffer source) {
+            buffer = source;
+        }
+
+        /** {@inheritDoc} */
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        /** {@inheritDoc} */
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /** Timer task writing periodic snapshots. */
+    private class SnapshotTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                snapshot();
+            } catch (Throwable t) {
+                log.error("Unable to write storage service snapshot", t);
+            }
+        }
+    }
+}
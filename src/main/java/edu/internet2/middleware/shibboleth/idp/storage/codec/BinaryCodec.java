@@ -0,0 +1,60 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage.codec;
+
+import java.io.IOException;
+
+/**
+ * Explicit binary encoding of values of one class.
+ *
+ * Every encoded value is tagged with the version of the codec that wrote it. A codec must keep decoding every version
+ * it has ever written, so that values stored, replicated or snapshotted by an older release can still be read.
+ *
+ * @param <T> type of the encoded values
+ */
+public interface BinaryCodec<T> {
+
+    /**
+     * Gets the version of the encoding written by {@link #encode(Object, BinaryOutput)}.
+     *
+     * @return the current version of the encoding
+     */
+    public int getVersion();
+
+    /**
+     * Encodes a value.
+     *
+     * @param value the value, never null
+     * @param out output to which the value is written
+     *
+     * @throws IOException thrown if the value can not be encoded
+     */
+    public void encode(T value, BinaryOutput out) throws IOException;
+
+    /**
+     * Decodes a value.
+     *
+     * @param in input from which the value is read
+     * @param version version of the encoding of the value
+     *
+     * @return the value
+     *
+     * @throws IOException thrown if the value is malformed or its version is not supported
+     */
+    public T decode(BinaryInput in, int version) throws IOException;
+}
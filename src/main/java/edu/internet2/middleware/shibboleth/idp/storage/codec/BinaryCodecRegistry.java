@@ -0,0 +1,287 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of {@link BinaryCodec}s, by the exact class of the values they encode, which encodes and decodes stored
+ * values.
+ *
+ * An encoded value starts with the registry's format version, followed by the value's type ID, the version of its
+ * codec and the value as written by the codec. Values of classes without a registered codec, including subclasses of
+ * registered classes, fall back to Java serialization. Values stored with plain Java serialization, before a registry
+ * was in use, are recognized and decoded as such.
+ */
+public class BinaryCodecRegistry {
+
+    /** Version of the encoding of values by the registry. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** Smallest type ID that may be given to a registered codec; smaller IDs are reserved for built-in types. */
+    public static final int MIN_TYPE_ID = 16;
+
+    /** Type ID of null. */
+    private static final int NULL_TYPE_ID = 0;
+
+    /** Type ID of values written with Java serialization. */
+    private static final int SERIALIZED_TYPE_ID = 1;
+
+    /** Type ID of strings. */
+    private static final int STRING_TYPE_ID = 2;
+
+    /** First byte of a Java serialization stream. */
+    private static final byte SERIALIZATION_MAGIC = (byte) 0xAC;
+
+    /** Codecs indexed by the class they encode. */
+    private final ConcurrentMap<Class<?>, Registration> codecsByClass;
+
+    /** Codecs indexed by type ID. */
+    private final ConcurrentMap<Integer, Registration> codecsByType;
+
+    /** Constructor. */
+    public BinaryCodecRegistry() {
+        codecsByClass = new ConcurrentHashMap<Class<?>, Registration>();
+        codecsByType = new ConcurrentHashMap<Integer, Registration>();
+    }
+
+    /**
+     * Registers the codec of a class. The type ID is part of the encoding of the values of the class and must never
+     * change once values have been stored.
+     *
+     * @param <T> type of the encoded values
+     * @param typeID type ID of the class, at least {@link #MIN_TYPE_ID}
+     * @param type class whose instances are encoded by the codec
+     * @param codec the codec
+     */
+    public <T> void register(int typeID, Class<T> type, BinaryCodec<T> codec) {
+        if (typeID < MIN_TYPE_ID) {
+            throw new IllegalArgumentException("Type IDs below " + MIN_TYPE_ID + " are reserved");
+        }
+        if (type == null || codec == null) {
+            throw new IllegalArgumentException("Class and codec may not be null");
+        }
+
+        Registration registration = new Registration(typeID, codec);
+        if (codecsByType.putIfAbsent(typeID, registration) != null) {
+            throw new IllegalArgumentException("Type ID " + typeID + " is already registered");
+        }
+        if (codecsByClass.putIfAbsent(type, registration) != null) {
+            codecsByType.remove(typeID);
+            throw new IllegalArgumentException("A codec is already registered for " + type.getName());
+        }
+    }
+
+    /**
+     * Checks whether a codec is registered for the given class.
+     *
+     * @param type the class
+     *
+     * @return true if a codec is registered for the class
+     */
+    public boolean isRegistered(Class<?> type) {
+        return codecsByClass.containsKey(type);
+    }
+
+    /**
+     * Encodes a value.
+     *
+     * @param value the value, may be null
+     *
+     * @return the encoded value
+     *
+     * @throws IOException thrown if the value, or one of its nested values, can not be encoded
+     */
+    public byte[] encode(Object value) throws IOException {
+        BinaryOutput out = new BinaryOutput(this);
+        out.writeByte(FORMAT_VERSION);
+        writeObject(value, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a value written by {@link #encode(Object)} or by plain Java serialization.
+     *
+     * @param encoded the encoded value
+     *
+     * @return the value, may be null
+     *
+     * @throws IOException thrown if the value is malformed or was written by an unknown codec
+     */
+    public Object decode(byte[] encoded) throws IOException {
+        return decode(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Decodes a value written by {@link #encode(Object)} or by plain Java serialization.
+     *
+     * @param encoded array holding the encoded value
+     * @param offset offset of the encoded value within the array
+     * @param length length of the encoded value
+     *
+     * @return the value, may be null
+     *
+     * @throws IOException thrown if the value is malformed or was written by an unknown codec
+     */
+    public Object decode(byte[] encoded, int offset, int length) throws IOException {
+        if (length > 0 && encoded[offset] == SERIALIZATION_MAGIC) {
+            return deserialize(encoded, offset, length);
+        }
+
+        BinaryInput in = new BinaryInput(this, encoded, offset, length);
+        int format = in.readByte();
+        if (format != FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unsupported encoding format version " + format);
+        }
+        return readObject(in);
+    }
+
+    /**
+     * Writes a value, tagged with its type ID and codec version.
+     *
+     * @param value the value, may be null
+     * @param out output to which the value is written
+     *
+     * @throws IOException thrown if the value can not be encoded
+     */
+    @SuppressWarnings("unchecked")
+    void writeObject(Object value, BinaryOutput out) throws IOException {
+        if (value == null) {
+            out.writeVarInt(NULL_TYPE_ID);
+            return;
+        }
+        if (value instanceof String) {
+            out.writeVarInt(STRING_TYPE_ID);
+            out.writeString((String) value);
+            return;
+        }
+
+        Registration registration = codecsByClass.get(value.getClass());
+        if (registration == null) {
+            if (!(value instanceof Serializable)) {
+                throw new IOException("No codec for non-serializable " + value.getClass().getName());
+            }
+            out.writeVarInt(SERIALIZED_TYPE_ID);
+            out.writeBytes(serialize(value));
+            return;
+        }
+
+        out.writeVarInt(registration.typeID);
+        out.writeVarInt(registration.codec.getVersion());
+        ((BinaryCodec<Object>) registration.codec).encode(value, out);
+    }
+
+    /**
+     * Reads a value written by {@link #writeObject(Object, BinaryOutput)}.
+     *
+     * @param in input from which the value is read
+     *
+     * @return the value, may be null
+     *
+     * @throws IOException thrown if the value is malformed or was written by an unknown codec
+     */
+    Object readObject(BinaryInput in) throws IOException {
+        int typeID = in.readVarInt();
+        switch (typeID) {
+            case NULL_TYPE_ID:
+                return null;
+            case STRING_TYPE_ID:
+                return in.readString();
+            case SERIALIZED_TYPE_ID:
+                byte[] serialized = in.readBytes();
+                if (serialized == null) {
+                    throw new StreamCorruptedException("Serialized value may not be null");
+                }
+                return deserialize(serialized, 0, serialized.length);
+            default:
+                Registration registration = codecsByType.get(typeID);
+                if (registration == null) {
+                    throw new StreamCorruptedException("No codec registered for type ID " + typeID);
+                }
+                return registration.codec.decode(in, in.readVarInt());
+        }
+    }
+
+    /**
+     * Serializes a value with Java serialization.
+     *
+     * @param value the value
+     *
+     * @return the serialized value
+     *
+     * @throws IOException thrown if the value can not be serialized
+     */
+    private byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+        objectOut.writeObject(value);
+        objectOut.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a value written with Java serialization.
+     *
+     * @param serialized array holding the serialized value
+     * @param offset offset of the serialized value within the array
+     * @param length length of the serialized value
+     *
+     * @return the value
+     *
+     * @throws IOException thrown if the value can not be deserialized
+     */
+    private Object deserialize(byte[] serialized, int offset, int length) throws IOException {
+        ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serialized, offset, length));
+        try {
+            return objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class of serialized value: " + e.getMessage());
+        } finally {
+            objectIn.close();
+        }
+    }
+
+    /** A registered codec and its type ID. */
+    private static class Registration {
+
+        /** Type ID of the encoded class. */
+        private final int typeID;
+
+        /** The codec. */
+        private final BinaryCodec<?> codec;
+
+        /**
+         * Constructor.
+         *
+         * @param id type ID of the encoded class
+         * @param registeredCodec the codec
+         */
+        public Registration(int id, BinaryCodec<?> registeredCodec) {
+            typeID = id;
+            codec = registeredCodec;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Input of {@link BinaryCodec}s, reading what was written by a {@link BinaryOutput}. */
+public class BinaryInput {
+
+    /** Registry used to read nested values. */
+    private final BinaryCodecRegistry registry;
+
+    /** Bytes being read. */
+    private final byte[] buffer;
+
+    /** Offset of the next byte to read. */
+    private int position;
+
+    /** Offset just past the last byte that may be read. */
+    private final int limit;
+
+    /** Interned strings read so far, other than the dictionary's. Created on first use. */
+    private List<String> internedStrings;
+
+    /**
+     * Constructor.
+     *
+     * @param codecRegistry registry used to read nested values
+     * @param bytes bytes to read
+     * @param offset offset of the first byte to read
+     * @param count number of bytes that may be read
+     */
+    public BinaryInput(BinaryCodecRegistry codecRegistry, byte[] bytes, int offset, int count) {
+        registry = codecRegistry;
+        buffer = bytes;
+        position = offset;
+        limit = offset + count;
+    }
+
+    /**
+     * Reads a single byte.
+     *
+     * @return the byte, between 0 and 255
+     *
+     * @throws IOException thrown if there are no more bytes
+     */
+    public int readByte() throws IOException {
+        if (position >= limit) {
+            throw new EOFException("Unexpected end of encoded value");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * Reads a boolean.
+     *
+     * @return the boolean
+     *
+     * @throws IOException thrown if there are no more bytes
+     */
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    /**
+     * Reads a long written as a variable length quantity.
+     *
+     * @return the long
+     *
+     * @throws IOException thrown if the quantity is truncated or longer than ten bytes
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        int b;
+        for (int shift = 0; shift < 64; shift += 7) {
+            b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable length quantity");
+    }
+
+    /**
+     * Reads an int written as a variable length quantity.
+     *
+     * @return the int
+     *
+     * @throws IOException thrown if the quantity is truncated or malformed
+     */
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    /**
+     * Reads a length prefixed byte array.
+     *
+     * @return the byte array, may be null
+     *
+     * @throws IOException thrown if the array is truncated
+     */
+    public byte[] readBytes() throws IOException {
+        int count = readLength();
+        if (count < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[count];
+        System.arraycopy(buffer, position, bytes, 0, count);
+        position += count;
+        return bytes;
+    }
+
+    /**
+     * Reads a string.
+     *
+     * @return the string, may be null
+     *
+     * @throws IOException thrown if the string is truncated
+     */
+    public String readString() throws IOException {
+        int count = readLength();
+        if (count < 0) {
+            return null;
+        }
+
+        for (int i = position; i < position + count; i++) {
+            if (buffer[i] < 0) {
+                try {
+                    String value = new String(buffer, position, count, "UTF-8");
+                    position += count;
+                    return value;
+                } catch (UnsupportedEncodingException e) {
+                    // every JVM supports UTF-8
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        char[] chars = new char[count];
+        for (int i = 0; i < count; i++) {
+            chars[i] = (char) buffer[position++];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads a string written by {@link BinaryOutput#writeInternedString(String)}. The returned string is canonicalized.
+     *
+     * @return the string, may be null
+     *
+     * @throws IOException thrown if the string is truncated or refers to an unknown string
+     */
+    public String readInternedString() throws IOException {
+        int code = readVarInt();
+        if (code == 0) {
+            return null;
+        }
+
+        if (code == 1) {
+            String value = readString();
+            if (value == null) {
+                throw new StreamCorruptedException("Interned string may not be null");
+            }
+            value = StringDictionary.canonicalize(value);
+            if (internedStrings == null) {
+                internedStrings = new ArrayList<String>();
+            }
+            internedStrings.add(value);
+            return value;
+        }
+
+        int index = code - 2;
+        if (index >= 0 && index < StringDictionary.ENTRIES.length) {
+            return StringDictionary.ENTRIES[index];
+        }
+        index -= StringDictionary.ENTRIES.length;
+        if (internedStrings == null || index < 0 || index >= internedStrings.size()) {
+            throw new StreamCorruptedException("Reference to unknown interned string " + code);
+        }
+        return internedStrings.get(index);
+    }
+
+    /**
+     * Reads a nested value written by {@link BinaryOutput#writeObject(Object)}.
+     *
+     * @return the value, may be null
+     *
+     * @throws IOException thrown if the value can not be read
+     */
+    public Object readObject() throws IOException {
+        return registry.readObject(this);
+    }
+
+    /**
+     * Reads a count, checking that it is not negative.
+     *
+     * @return the count
+     *
+     * @throws IOException thrown if the count is truncated or negative
+     */
+    public int readCount() throws IOException {
+        int count = readVarInt();
+        if (count < 0 || count > limit - position) {
+            // every counted item takes at least one byte
+            throw new StreamCorruptedException("Malformed count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the length of a byte array or string, checking that that many bytes remain.
+     *
+     * @return the length, or -1 for null
+     *
+     * @throws IOException thrown if the length is truncated or larger than the remaining bytes
+     */
+    private int readLength() throws IOException {
+        int count = readVarInt() - 1;
+        if (count < -1 || count > limit - position) {
+            throw new StreamCorruptedException("Malformed length " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage.codec;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Output of {@link BinaryCodec}s.
+ *
+ * Integers are written as variable length quantities, seven bits per byte, least significant group first, so that
+ * small values, lengths and counts take a single byte. Strings are written as their UTF-8 length followed by their
+ * UTF-8 bytes; a null string is written as a length of zero and any other length is shifted up by one.
+ */
+public class BinaryOutput {
+
+    /** Registry used to write nested values. */
+    private final BinaryCodecRegistry registry;
+
+    /** Bytes written so far. */
+    private byte[] buffer;
+
+    /** Number of bytes written. */
+    private int length;
+
+    /** Codes of the interned strings written so far, other than the dictionary's. Created on first use. */
+    private Map<String, Integer> internedCodes;
+
+    /**
+     * Constructor.
+     *
+     * @param codecRegistry registry used to write nested values
+     */
+    public BinaryOutput(BinaryCodecRegistry codecRegistry) {
+        registry = codecRegistry;
+        buffer = new byte[256];
+    }
+
+    /**
+     * Writes a single byte.
+     *
+     * @param value the byte, only the lowest eight bits are written
+     */
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Writes a boolean as a single byte.
+     *
+     * @param value the boolean
+     */
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a long as a variable length quantity. Negative values take ten bytes.
+     *
+     * @param value the long
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer[length++] = (byte) remaining;
+    }
+
+    /**
+     * Writes an int as a variable length quantity. Negative values take ten bytes.
+     *
+     * @param value the int
+     */
+    public void writeVarInt(int value) {
+        writeVarLong(value);
+    }
+
+    /**
+     * Writes a byte array, prefixed by its length. A null array is written as a length of zero.
+     *
+     * @param value the byte array, may be null
+     */
+    public void writeBytes(byte[] value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(value.length + 1);
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, buffer, length, value.length);
+        length += value.length;
+    }
+
+    /**
+     * Writes a string.
+     *
+     * @param value the string, may be null
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        int charCount = value.length();
+        for (int i = 0; i < charCount; i++) {
+            if (value.charAt(i) >= 0x80) {
+                writeBytes(toUTF8(value));
+                return;
+            }
+        }
+
+        // ASCII strings, the vast majority, are their own UTF-8 encoding
+        writeVarInt(charCount + 1);
+        ensureCapacity(charCount);
+        for (int i = 0; i < charCount; i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a string that is likely to recur, like an entity ID or a URI. Well-known strings are written as a code
+     * into the {@link StringDictionary}, and strings already written by this output as a reference to the earlier
+     * occurrence.
+     *
+     * @param value the string, may be null
+     */
+    public void writeInternedString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        int code = StringDictionary.getCode(value);
+        if (code < 0 && internedCodes != null) {
+            Integer written = internedCodes.get(value);
+            if (written != null) {
+                code = written;
+            }
+        }
+        if (code >= 0) {
+            writeVarInt(code + 2);
+            return;
+        }
+
+        if (internedCodes == null) {
+            internedCodes = new HashMap<String, Integer>();
+        }
+        internedCodes.put(value, StringDictionary.ENTRIES.length + internedCodes.size());
+        writeVarInt(1);
+        writeString(value);
+    }
+
+    /**
+     * Writes a nested value, of any type, with the codec registered for its class.
+     *
+     * @param value the value, may be null
+     *
+     * @throws IOException thrown if the value can not be written
+     */
+    public void writeObject(Object value) throws IOException {
+        registry.writeObject(value, this);
+    }
+
+    /**
+     * Gets the number of bytes written.
+     *
+     * @return number of bytes written
+     */
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Gets a copy of the bytes written.
+     *
+     * @return the bytes written
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Grows the buffer, if needed, to hold the given number of additional bytes.
+     *
+     * @param additional number of additional bytes
+     */
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + additional)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Encodes a string in UTF-8.
+     *
+     * @param value the string
+     *
+     * @return the UTF-8 encoding of the string
+     */
+    private static byte[] toUTF8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // every JVM supports UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage.codec;
+
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntry;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntryCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.Saml2LoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.Saml2LoginContextCodec;
+import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.ShibbolethSSOLoginContextCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImplCodec;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerEntry;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerEntryCodec;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextCodec;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextEntry;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContextEntryCodec;
+
+/**
+ * Codec registry with the codecs of the values the IdP keeps in its storage services: sessions, login contexts and
+ * single logout contexts, along with their storage entries.
+ *
+ * The type IDs registered here are part of the stored encoding and must never be reassigned.
+ */
+public class DefaultBinaryCodecRegistry extends BinaryCodecRegistry {
+
+    /** Constructor. */
+    public DefaultBinaryCodecRegistry() {
+        super();
+        register(16, SessionManagerEntry.class, new SessionManagerEntryCodec());
+        register(17, SessionImpl.class, new SessionImplCodec());
+        register(18, AuthenticationMethodInformationImpl.class, new AuthenticationMethodInformationCodec());
+        register(19, ServiceInformationImpl.class, new ServiceInformationCodec());
+        register(20, LoginContextEntry.class, new LoginContextEntryCodec());
+        register(21, LoginContext.class, new LoginContextCodec());
+        register(22, Saml2LoginContext.class, new Saml2LoginContextCodec());
+        register(23, ShibbolethSSOLoginContext.class, new ShibbolethSSOLoginContextCodec());
+        register(24, SingleLogoutContextEntry.class, new SingleLogoutContextEntryCodec());
+        register(25, SingleLogoutContext.class, new SingleLogoutContextCodec());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Strings written by reference rather than by value by {@link BinaryOutput#writeInternedString(String)}.
+ *
+ * The dictionary holds well-known authentication method and name identifier format URIs. It is part of the encoded
+ * format: entries may only ever be appended, never removed or reordered.
+ *
+ * Interned strings read back are also canonicalized, so that the entity IDs and URIs of the many values read back from
+ * storage share a single instance.
+ */
+final class StringDictionary {
+
+    /** Well-known strings, in code order. */
+    static final String[] ENTRIES = {
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:Password",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:PreviousSession",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:Kerberos",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:X509",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:TLSClient",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:InternetProtocol",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:InternetProtocolPassword",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:TimeSyncToken",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:Smartcard",
+        "urn:oasis:names:tc:SAML:2.0:ac:classes:SmartcardPKI",
+        "urn:oasis:names:tc:SAML:1.0:am:password",
+        "urn:oasis:names:tc:SAML:1.0:am:unspecified",
+        "urn:oasis:names:tc:SAML:1.0:am:X509-PKI",
+        "urn:ietf:rfc:1510",
+        "urn:oasis:names:tc:SAML:2.0:nameid-format:transient",
+        "urn:oasis:names:tc:SAML:2.0:nameid-format:persistent",
+        "urn:oasis:names:tc:SAML:1.1:nameid-format:unspecified",
+        "urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress",
+        "urn:oasis:names:tc:SAML:1.1:nameid-format:X509SubjectName",
+        "urn:oasis:names:tc:SAML:2.0:nameid-format:entity",
+        "urn:mace:shibboleth:1.0:nameIdentifier",
+    };
+
+    /** Codes of the well-known strings. */
+    private static final Map<String, Integer> CODES;
+
+    /** Maximum number of canonical instances kept. */
+    private static final int MAX_CANONICAL = 16384;
+
+    /** Canonical instances of strings read back. */
+    private static final ConcurrentMap<String, String> CANONICAL = new ConcurrentHashMap<String, String>();
+
+    static {
+        CODES = new HashMap<String, Integer>();
+        for (int i = 0; i < ENTRIES.length; i++) {
+            CODES.put(ENTRIES[i], i);
+            CANONICAL.put(ENTRIES[i], ENTRIES[i]);
+        }
+    }
+
+    /** Constructor. */
+    private StringDictionary() {
+    }
+
+    /**
+     * Gets the code of a well-known string.
+     *
+     * @param value the string
+     *
+     * @return the code of the string, or -1 if the string is not well-known
+     */
+    static int getCode(String value) {
+        Integer code = CODES.get(value);
+        if (code == null) {
+            return -1;
+        }
+        return code;
+    }
+
+    /**
+     * Gets the canonical instance of a string. Once the maximum number of canonical instances is reached new strings
+     * are returned as is.
+     *
+     * @param value the string
+     *
+     * @return the canonical instance of the string
+     */
+    static String canonicalize(String value) {
+        String canonical = CANONICAL.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (CANONICAL.size() >= MAX_CANONICAL) {
+            return value;
+        }
+        canonical = CANONICAL.putIfAbsent(value, value);
+        return canonical == null ? value : canonical;
+    }
+}
@@ -38,6 +38,7 @@ import org.opensaml.saml2.metadata.ServiceName;
 import org.opensaml.samlext.saml2mdui.DisplayName;
 import org.opensaml.samlext.saml2mdui.UIInfo;
 import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.util.DatatypeHelper;
 import org.owasp.esapi.ESAPI;
 import org.owasp.esapi.Encoder;
 import org.slf4j.Logger;
@@ -62,6 +63,9 @@ public class ServiceTagSupport extends BodyTagSupport {
     /** Class logger. */
     private static Logger log = LoggerFactory.getLogger(ServiceTagSupport.class);
 
+    /** Name of the request attribute holding the relying party metadata resolved for the request. */
+    private static final String RP_METADATA_ATTRIBUTE = ServiceTagSupport.class.getName() + ".RelyingPartyMetadata";
+
     /** Bean storage. class reference */
     private String cssClass;
 
@@ -156,11 +160,41 @@ public class ServiceTagSupport extends BodyTagSupport {
      * @return the SPs EntityDescriptor
      */
     protected EntityDescriptor getSPEntityDescriptor() {
+        RelyingPartyMetadata metadata = getRelyingPartyMetadata();
+        if (metadata == null) {
+            return null;
+        }
+        return metadata.entityDescriptor;
+    }
+
+    /**
+     * Traverse the SP's EntityDescriptor and pick out the UIInfo.
+     * 
+     * @return the first UIInfo for the SP.
+     */
+    protected UIInfo getSPUIInfo() {
+        RelyingPartyMetadata metadata = getRelyingPartyMetadata();
+        if (metadata == null) {
+            return null;
+        }
+        if (!metadata.uiInfoResolved) {
+            metadata.uiInfo = findUIInfo(metadata.entityDescriptor);
+            metadata.uiInfoResolved = true;
+        }
+        return metadata.uiInfo;
+    }
+
+    /**
+     * Get the metadata of the relying party of the current login. The metadata is looked up once per request and shared
+     * by all the tags of the page.
+     * 
+     * @return the metadata of the relying party, or null if there is no login in progress
+     */
+    private RelyingPartyMetadata getRelyingPartyMetadata() {
         LoginContext loginContext;
         HttpServletRequest request;
         ServletContext application;
         RelyingPartyConfigurationManager rpConfigMngr;
-        EntityDescriptor spEntity;
 
         //
         // Populate up those things that jsp gives us.
@@ -181,18 +215,27 @@ public class ServiceTagSupport extends BodyTagSupport {
         if (loginContext == null || rpConfigMngr == null) {
             return null;
         }
-        spEntity = HttpServletHelper.getRelyingPartyMetadata(loginContext.getRelyingPartyId(), rpConfigMngr);
 
-        return spEntity;
+        String relyingPartyId = loginContext.getRelyingPartyId();
+        Object resolved = request.getAttribute(RP_METADATA_ATTRIBUTE);
+        if (resolved instanceof RelyingPartyMetadata
+                && DatatypeHelper.safeEquals(((RelyingPartyMetadata) resolved).entityId, relyingPartyId)) {
+            return (RelyingPartyMetadata) resolved;
+        }
+
+        RelyingPartyMetadata metadata = new RelyingPartyMetadata(relyingPartyId,
+                HttpServletHelper.getRelyingPartyMetadata(relyingPartyId, rpConfigMngr));
+        request.setAttribute(RP_METADATA_ATTRIBUTE, metadata);
+        return metadata;
     }
 
     /**
-     * Traverse the SP's EntityDescriptor and pick out the UIInfo.
+     * Traverse an SP's EntityDescriptor and pick out the UIInfo.
      * 
+     * @param spEntity the SPs EntityDescriptor, may be null
      * @return the first UIInfo for the SP.
      */
-    protected UIInfo getSPUIInfo() {
-        EntityDescriptor spEntity = getSPEntityDescriptor();
+    private UIInfo findUIInfo(EntityDescriptor spEntity) {
         Extensions exts;
 
         if (null == spEntity) {
@@ -376,4 +419,30 @@ public class ServiceTagSupport extends BodyTagSupport {
         return getNameFromEntityId();
     }
 
+    /** Metadata of a relying party, resolved once per request. */
+    private static final class RelyingPartyMetadata {
+
+        /** Entity ID of the relying party. */
+        private final String entityId;
+
+        /** The relying party's EntityDescriptor, null if it has no metadata. */
+        private final EntityDescriptor entityDescriptor;
+
+        /** The relying party's UIInfo, null if it has none. */
+        private UIInfo uiInfo;
+
+        /** Whether the UIInfo has been looked up. */
+        private boolean uiInfoResolved;
+
+        /**
+         * Constructor.
+         * 
+         * @param id entity ID of the relying party
+         * @param descriptor the relying party's EntityDescriptor, may be null
+         */
+        private RelyingPartyMetadata(String id, EntityDescriptor descriptor) {
+            entityId = id;
+            entityDescriptor = descriptor;
+        }
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream Base64 encoding the bytes written to it, without line breaks, into an underlying stream of ASCII
+ * characters. The output is identical to that of {@link org.opensaml.xml.util.Base64#encodeBytes(byte[], int)} with
+ * {@link org.opensaml.xml.util.Base64#DONT_BREAK_LINES}, without holding either the bytes or their encoding in memory.
+ * 
+ * Encoded characters are collected in a caller supplied buffer, so that buffers may be reused across streams, and
+ * written to the underlying stream whenever the buffer is full. {@link #finish()} must be called once all bytes have
+ * been written, to write the final, padded, group of characters.
+ */
+public class Base64EncodingOutputStream extends OutputStream {
+
+    /** Base64 alphabet. */
+    private static final byte[] ALPHABET = {'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O',
+            'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j',
+            'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4',
+            '5', '6', '7', '8', '9', '+', '/', };
+
+    /** Padding character. */
+    private static final byte PAD = '=';
+
+    /** Stream the encoded characters are written to. */
+    private final OutputStream out;
+
+    /** Buffer of encoded characters. */
+    private final byte[] buffer;
+
+    /** Number of encoded characters in the buffer. */
+    private int position;
+
+    /** Bytes written but not yet encoded, which do not yet make up a group of three. */
+    private int pending;
+
+    /** Number of bytes written but not yet encoded. */
+    private int pendingLength;
+
+    /** Whether the final group of characters has been written. */
+    private boolean finished;
+
+    /**
+     * Constructor.
+     * 
+     * @param output stream the encoded characters are written to
+     * @param encodingBuffer buffer of encoded characters, at least 4 bytes long
+     */
+    public Base64EncodingOutputStream(OutputStream output, byte[] encodingBuffer) {
+        if (output == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        if (encodingBuffer == null || encodingBuffer.length < 4) {
+            throw new IllegalArgumentException("Encoding buffer must be at least 4 bytes long");
+        }
+        out = output;
+        buffer = encodingBuffer;
+    }
+
+    /** {@inheritDoc} */
+    public void write(int b) throws IOException {
+        checkNotFinished();
+        pending = (pending << 8) | (b & 0xff);
+        pendingLength++;
+        if (pendingLength == 3) {
+            encodeGroup(pending, 4);
+            pending = 0;
+            pendingLength = 0;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        checkNotFinished();
+        int index = offset;
+        int end = offset + length;
+        while (pendingLength != 0 && index < end) {
+            write(bytes[index++]);
+        }
+        while (end - index >= 3) {
+            encodeGroup(((bytes[index] & 0xff) << 16) | ((bytes[index + 1] & 0xff) << 8) | (bytes[index + 2] & 0xff),
+                    4);
+            index += 3;
+        }
+        while (index < end) {
+            write(bytes[index++]);
+        }
+    }
+
+    /**
+     * Writes the encoded characters collected so far to the underlying stream and flushes it. Bytes which do not yet
+     * make up a group of three remain pending.
+     * 
+     * @throws IOException thrown if the underlying stream can not be written to
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the final, padded, group of characters and any collected characters to the underlying stream, without
+     * closing it. Nothing may be written to this stream afterwards.
+     * 
+     * @throws IOException thrown if the underlying stream can not be written to
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (pendingLength == 1) {
+            encodeGroup(pending << 16, 2);
+        } else if (pendingLength == 2) {
+            encodeGroup(pending << 8, 3);
+        }
+        pending = 0;
+        pendingLength = 0;
+        writeBuffer();
+        finished = true;
+    }
+
+    /**
+     * Finishes the encoding and closes the underlying stream.
+     * 
+     * @throws IOException thrown if the underlying stream can not be written to or closed
+     */
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Encodes a group of three bytes, padding the characters beyond the given number.
+     * 
+     * @param group the three bytes, most significant first
+     * @param characters number of characters carrying encoded bits, 2 to 4
+     * 
+     * @throws IOException thrown if the buffer must be written out and the underlying stream can not be written to
+     */
+    private void encodeGroup(int group, int characters) throws IOException {
+        if (position + 4 > buffer.length) {
+            writeBuffer();
+        }
+        buffer[position] = ALPHABET[(group >>> 18) & 0x3f];
+        buffer[position + 1] = ALPHABET[(group >>> 12) & 0x3f];
+        buffer[position + 2] = characters > 2 ? ALPHABET[(group >>> 6) & 0x3f] : PAD;
+        buffer[position + 3] = characters > 3 ? ALPHABET[group & 0x3f] : PAD;
+        position += 4;
+    }
+
+    /**
+     * Writes the collected characters to the underlying stream.
+     * 
+     * @throws IOException thrown if the underlying stream can not be written to
+     */
+    private void writeBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /** Checks that the final group of characters has not been written yet. */
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("Base64 encoding has already been finished");
+        }
+    }
+}
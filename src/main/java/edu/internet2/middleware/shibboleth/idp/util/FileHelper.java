@@ -0,0 +1,49 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Helper methods for files the IdP keeps on local disk. */
+public final class FileHelper {
+
+    /** Constructor. */
+    private FileHelper() {
+    }
+
+    /**
+     * Creates a new, empty file readable and writable only by its owner. The permissions are set before anything is
+     * written, so that data later written to the file is never exposed to other users, even briefly.
+     *
+     * @param file the file to create
+     *
+     * @throws IOException thrown if the file already exists or can not be created or restricted
+     */
+    public static void createPrivateFile(File file) throws IOException {
+        if (!file.createNewFile()) {
+            throw new IOException("File " + file.getPath() + " already exists");
+        }
+
+        if (!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false)
+                && file.setWritable(true, true) && file.setExecutable(false, false))) {
+            file.delete();
+            throw new IOException("Unable to restrict the permissions of " + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.contrib.ssl.EasySSLProtocolSocketFactory;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.DefaultProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of persistent HTTP connections used for outbound SOAP calls, such as back-channel logout requests.
+ * 
+ * Connections are kept open between calls, pooled per host, and capped both per host and overall. All HTTPS
+ * connections are made by the same socket factory, so TLS sessions are resumed rather than renegotiated when a
+ * connection to a host has to be reopened. Connections left idle for longer than the idle timeout are closed
+ * periodically; connections closed by the peer in the meantime are detected, and reopened, when they are leased.
+ * 
+ * Connections are leased with {@link #getConnection(String, long)} and must be handed back with
+ * {@link HttpConnection#releaseConnection()} once the exchange is over, or closed first if they are not to be reused.
+ */
+public class HttpClientPool {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(HttpClientPool.class);
+
+    /** Manager of the pooled connections. */
+    private final CountingConnectionManager connectionManager;
+
+    /** Protocol of plain HTTP connections. */
+    private final Protocol httpProtocol;
+
+    /** Protocol of HTTPS connections. */
+    private final Protocol httpsProtocol;
+
+    /** Task closing idle connections, null if idle connections are not closed periodically. */
+    private final TimerTask idleConnectionTask;
+
+    /** TLS sessions negotiated so far, used to tell resumed handshakes from full ones. */
+    private final Map<SSLSession, Boolean> negotiatedSessions;
+
+    /** Number of connections currently leased. */
+    private final AtomicInteger leasedConnections;
+
+    /** Number of connections leased. */
+    private final AtomicLong leaseCount;
+
+    /** Number of leases that timed out waiting for a connection. */
+    private final AtomicLong poolTimeoutCount;
+
+    /** Number of connections opened. */
+    private final AtomicLong connectCount;
+
+    /** Number of full TLS handshakes. */
+    private final AtomicLong handshakeCount;
+
+    /** Number of resumed TLS handshakes. */
+    private final AtomicLong resumedHandshakeCount;
+
+    /**
+     * Constructor. Idle connections are only closed by calls to {@link #closeIdleConnections(long)}.
+     * 
+     * @param maxConnectionsPerHost maximum number of connections to a single host
+     * @param maxTotalConnections maximum number of connections to all hosts
+     */
+    public HttpClientPool(int maxConnectionsPerHost, int maxTotalConnections) {
+        this(maxConnectionsPerHost, maxTotalConnections, null, 0);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxConnectionsPerHost maximum number of connections to a single host
+     * @param maxTotalConnections maximum number of connections to all hosts
+     * @param taskTimer timer used to periodically close idle connections
+     * @param idleTimeout time, in milliseconds, after which an idle connection is closed
+     */
+    public HttpClientPool(int maxConnectionsPerHost, int maxTotalConnections, Timer taskTimer, long idleTimeout) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("Maximum number of connections per host must be greater than 0");
+        }
+        if (maxTotalConnections < maxConnectionsPerHost) {
+            throw new IllegalArgumentException(
+                    "Maximum number of connections may not be less than the maximum number of connections per host");
+        }
+
+        connectionManager = new CountingConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setStaleCheckingEnabled(true);
+
+        httpProtocol = new Protocol("http", (ProtocolSocketFactory) new CountingSocketFactory(
+                new DefaultProtocolSocketFactory()), 80);
+        httpsProtocol = new Protocol("https", (ProtocolSocketFactory) new CountingSecureSocketFactory(
+                new EasySSLProtocolSocketFactory()), 443);
+
+        negotiatedSessions = Collections.synchronizedMap(new WeakHashMap<SSLSession, Boolean>());
+        leasedConnections = new AtomicInteger();
+        leaseCount = new AtomicLong();
+        poolTimeoutCount = new AtomicLong();
+        connectCount = new AtomicLong();
+        handshakeCount = new AtomicLong();
+        resumedHandshakeCount = new AtomicLong();
+
+        if (taskTimer == null) {
+            idleConnectionTask = null;
+        } else {
+            if (idleTimeout <= 0) {
+                throw new IllegalArgumentException("Idle timeout must be greater than 0");
+            }
+            idleConnectionTask = new IdleConnectionTask(idleTimeout);
+            taskTimer.schedule(idleConnectionTask, idleTimeout, idleTimeout);
+        }
+    }
+
+    /**
+     * Leases a connection to the host of the given location. The connection may already be open.
+     * 
+     * @param location absolute HTTP or HTTPS URL the connection is for
+     * @param poolTimeout time, in milliseconds, to wait for a connection if the pool is exhausted, 0 to wait
+     *            indefinitely
+     * 
+     * @return the leased connection
+     * 
+     * @throws URIException thrown if the location is not a valid HTTP or HTTPS URL
+     * @throws ConnectionPoolTimeoutException thrown if no connection became available in time
+     */
+    public HttpConnection getConnection(String location, long poolTimeout) throws URIException,
+            ConnectionPoolTimeoutException {
+        URI uri = new URI(location, true);
+        Protocol protocol;
+        if ("https".equalsIgnoreCase(uri.getScheme())) {
+            protocol = httpsProtocol;
+        } else if ("http".equalsIgnoreCase(uri.getScheme())) {
+            protocol = httpProtocol;
+        } else {
+            throw new URIException("Unsupported scheme in " + location);
+        }
+
+        int port = uri.getPort();
+        if (port < 0) {
+            port = protocol.getDefaultPort();
+        }
+        HostConfiguration hostConfig = new HostConfiguration();
+        hostConfig.setHost(uri.getHost(), port, protocol);
+
+        return connectionManager.getConnectionWithTimeout(hostConfig, poolTimeout);
+    }
+
+    /**
+     * Closes the connections that have been idle for at least the given time.
+     * 
+     * @param idleTime time, in milliseconds, a connection must have been idle for to be closed
+     */
+    public void closeIdleConnections(long idleTime) {
+        connectionManager.closeIdleConnections(idleTime);
+    }
+
+    /** Closes all connections and stops closing idle ones. The pool may not be used afterwards. */
+    public void shutdown() {
+        if (idleConnectionTask != null) {
+            idleConnectionTask.cancel();
+        }
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Gets the maximum number of connections to a single host.
+     * 
+     * @return maximum number of connections to a single host
+     */
+    public int getMaxConnectionsPerHost() {
+        return connectionManager.getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    /**
+     * Gets the maximum number of connections to all hosts.
+     * 
+     * @return maximum number of connections to all hosts
+     */
+    public int getMaxTotalConnections() {
+        return connectionManager.getParams().getMaxTotalConnections();
+    }
+
+    /**
+     * Gets the number of connections in the pool, whether leased or idle.
+     * 
+     * @return number of connections in the pool
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * Gets the number of connections currently leased.
+     * 
+     * @return number of connections currently leased
+     */
+    public int getLeasedConnections() {
+        return leasedConnections.get();
+    }
+
+    /**
+     * Gets the number of connections leased.
+     * 
+     * @return number of connections leased
+     */
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    /**
+     * Gets the number of leases that timed out waiting for a connection.
+     * 
+     * @return number of leases that timed out
+     */
+    public long getPoolTimeoutCount() {
+        return poolTimeoutCount.get();
+    }
+
+    /**
+     * Gets the number of connections opened. The difference to the number of leases is the number of times an open
+     * connection was reused.
+     * 
+     * @return number of connections opened
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * Gets the number of full TLS handshakes.
+     * 
+     * @return number of full TLS handshakes
+     */
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * Gets the number of TLS handshakes that resumed a previously negotiated session.
+     * 
+     * @return number of resumed TLS handshakes
+     */
+    public long getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    /**
+     * Records a socket opened for a pooled connection.
+     * 
+     * @param socket the socket
+     * 
+     * @return the socket
+     */
+    private Socket opened(Socket socket) {
+        connectCount.incrementAndGet();
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCounter());
+        }
+        return socket;
+    }
+
+    /** Connection manager keeping track of leases. */
+    private class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+
+        /** {@inheritDoc} */
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+                throws ConnectionPoolTimeoutException {
+            HttpConnection connection;
+            try {
+                connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+            } catch (ConnectionPoolTimeoutException e) {
+                poolTimeoutCount.incrementAndGet();
+                throw e;
+            }
+            leaseCount.incrementAndGet();
+            leasedConnections.incrementAndGet();
+            return connection;
+        }
+
+        /** {@inheritDoc} */
+        public void releaseConnection(HttpConnection conn) {
+            leasedConnections.decrementAndGet();
+            super.releaseConnection(conn);
+        }
+    }
+
+    /** Counts the completed TLS handshakes of a socket. */
+    private class HandshakeCounter implements HandshakeCompletedListener {
+
+        /** {@inheritDoc} */
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            if (negotiatedSessions.put(event.getSession(), Boolean.TRUE) == null) {
+                handshakeCount.incrementAndGet();
+            } else {
+                resumedHandshakeCount.incrementAndGet();
+            }
+        }
+    }
+
+    /** Socket factory recording the sockets opened by another one. */
+    private class CountingSocketFactory implements ProtocolSocketFactory {
+
+        /** Factory opening the sockets. */
+        private final ProtocolSocketFactory factory;
+
+        /**
+         * Constructor.
+         * 
+         * @param wrappedFactory factory opening the sockets
+         */
+        CountingSocketFactory(ProtocolSocketFactory wrappedFactory) {
+            factory = wrappedFactory;
+        }
+
+        /**
+         * Gets the factory opening the sockets.
+         * 
+         * @return factory opening the sockets
+         */
+        ProtocolSocketFactory getFactory() {
+            return factory;
+        }
+
+        /** {@inheritDoc} */
+        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+            return opened(factory.createSocket(host, port));
+        }
+
+        /** {@inheritDoc} */
+        public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+                throws IOException, UnknownHostException {
+            return opened(factory.createSocket(host, port, localAddress, localPort));
+        }
+
+        /** {@inheritDoc} */
+        public Socket createSocket(String host, int port, InetAddress localAddress, int localPort,
+                HttpConnectionParams params) throws IOException, UnknownHostException, ConnectTimeoutException {
+            return opened(factory.createSocket(host, port, localAddress, localPort, params));
+        }
+    }
+
+    /** Secure socket factory recording the sockets opened by another one. */
+    private class CountingSecureSocketFactory extends CountingSocketFactory implements SecureProtocolSocketFactory {
+
+        /**
+         * Constructor.
+         * 
+         * @param wrappedFactory factory opening the sockets
+         */
+        CountingSecureSocketFactory(SecureProtocolSocketFactory wrappedFactory) {
+            super(wrappedFactory);
+        }
+
+        /** {@inheritDoc} */
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException,
+                UnknownHostException {
+            return opened(((SecureProtocolSocketFactory) getFactory()).createSocket(socket, host, port, autoClose));
+        }
+    }
+
+    /** Timer task closing idle connections. */
+    private class IdleConnectionTask extends TimerTask {
+
+        /** Time, in milliseconds, after which an idle connection is closed. */
+        private final long idleTimeout;
+
+        /**
+         * Constructor.
+         * 
+         * @param timeout time, in milliseconds, after which an idle connection is closed
+         */
+        IdleConnectionTask(long timeout) {
+            idleTimeout = timeout;
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                closeIdleConnections(idleTimeout);
+            } catch (Throwable t) {
+                log.error("Caught exception while closing idle HTTP connections", t);
+            }
+        }
+    }
+}
@@ -41,6 +41,7 @@ import edu.internet2.middleware.shibboleth.common.relyingparty.provider.SAMLMDRe
 import edu.internet2.middleware.shibboleth.common.session.SessionManager;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
 import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntry;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextTokenCodec;
 import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
 import edu.internet2.middleware.shibboleth.idp.session.Session;
 
@@ -68,6 +69,11 @@ public class HttpServletHelper {
      */
     public static final String LOGIN_CTX_PARTITION_CTX_PARAM = "loginContextPartitionName";
 
+    /**
+     * {@link ServletContext} parameter name bearing the ID of the {@link LoginContextTokenCodec} service: {@value} .
+     */
+    public static final String LOGIN_CTX_TOKEN_CODEC_SID_CTX_PARAM = "LoginContextTokenCodecId";
+
     /** {@link ServletContext} parameter name bearing the ID of the {@link IdPProfileHandlerManager} service: {@value} . */
     public static final String PROFILE_HANDLER_MNGR_SID_CTX_PARAM = "ProfileHandlerMngrId";
 
@@ -98,6 +104,9 @@ public class HttpServletHelper {
     /** Default name for the {@link StorageService} partition which holds {@link LoginContext}s: {@value} . */
     public static final String DEFAULT_LOGIN_CTX_PARITION = "loginContexts";
 
+    /** Default ID by which the {@link LoginContextTokenCodec} is know within the Servlet context: {@value} . */
+    public static final String DEFAULT_LOGIN_CTX_TOKEN_CODEC_SID = "shibboleth.LoginContextTokenCodec";
+
     /** Default ID by which the {@link IdPProfileHandlerManager} is know within the Servlet context: {@value} . */
     public static final String DEFAULT_PROFILE_HANDLER_MNGR_SID = "shibboleth.HandlerManager";
 
@@ -116,6 +125,9 @@ public class HttpServletHelper {
     /** Default ID by which the {@link StorageService} is know within the Servlet context: {@value} . */
     public static final String DEFAULT_STORAGE_SERVICE_SID = "shibboleth.StorageService";
 
+    /** Name of the request attribute holding the login context token bound to the request. */
+    private static final String LOGIN_CTX_TOKEN_ATTRIBUTE = LOGIN_CTX_KEY_NAME + ".token";
+
     /** Class logger. */
     private static final Logger log = LoggerFactory.getLogger(HttpServletHelper.class);
 
@@ -138,6 +150,9 @@ public class HttpServletHelper {
      * Binds a {@link LoginContext} to the issuer of the current request. The binding is done by creating a random UUID,
      * placing that in a cookie in the request, and storing the context in to the storage service under that key.
      * 
+     * If a {@link LoginContextTokenCodec} is bound to the Servlet context, the login context itself is instead placed,
+     * encrypted, in the cookie, and nothing is stored unless the context is too large for a cookie.
+     * 
      * @param loginContext the login context to be bound
      * @param storageService the storage service which will hold the context
      * @param context the Servlet context
@@ -156,6 +171,34 @@ public class HttpServletHelper {
             return;
         }
 
+        LoginContextTokenCodec tokenCodec = getLoginContextTokenCodec(context);
+        if (tokenCodec != null) {
+            LoginContextTokenCodec.Token token = tokenCodec.newToken(loginContext, httpRequest.getRemoteAddr());
+            String tokenValue = tokenCodec.encode(token);
+            if (tokenValue != null) {
+                log.debug("Storing LoginContext in login context token {}", token.getNonce());
+                addLoginContextCookie(tokenValue, context, httpRequest, httpResponse);
+                httpRequest.setAttribute(LOGIN_CTX_TOKEN_ATTRIBUTE, token);
+                httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, loginContext);
+                return;
+            }
+            log.debug("LoginContext can not be placed in a login context token, storing it in the StorageService");
+        }
+
+        storeLoginContext(loginContext, storageService, context, httpRequest, httpResponse);
+    }
+
+    /**
+     * Stores a {@link LoginContext} in the storage service under a random UUID and places that key in a cookie.
+     * 
+     * @param loginContext the login context to be stored
+     * @param storageService the storage service which will hold the context
+     * @param context the Servlet context
+     * @param httpRequest the current HTTP request
+     * @param httpResponse the current HTTP response
+     */
+    private static void storeLoginContext(LoginContext loginContext, StorageService storageService,
+            ServletContext context, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
         String parition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM, DEFAULT_LOGIN_CTX_PARITION);
 
         String contextKey = UUID.randomUUID().toString();
@@ -167,9 +210,24 @@ public class HttpServletHelper {
         log.debug("Storing LoginContext to StorageService partition {}, key {}", parition, contextKey);
         storageService.put(parition, contextKey, entry);
 
+        addLoginContextCookie(contextKey, context, httpRequest, httpResponse);
+        httpRequest.removeAttribute(LOGIN_CTX_TOKEN_ATTRIBUTE);
+        httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, loginContext);
+    }
+
+    /**
+     * Sets the login context cookie.
+     * 
+     * @param value value of the cookie, a storage service key or a login context token
+     * @param context the Servlet context
+     * @param httpRequest the current HTTP request
+     * @param httpResponse the current HTTP response
+     */
+    private static void addLoginContextCookie(String value, ServletContext context, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
         String cookieDomain = getCookieDomain(context);
 
-        Cookie contextKeyCookie = new Cookie(LOGIN_CTX_KEY_NAME, contextKey);
+        Cookie contextKeyCookie = new Cookie(LOGIN_CTX_KEY_NAME, value);
         contextKeyCookie.setVersion(1);
         if (cookieDomain != null) {
             contextKeyCookie.setDomain(cookieDomain);
@@ -177,8 +235,48 @@ public class HttpServletHelper {
         contextKeyCookie.setPath("".equals(httpRequest.getContextPath()) ? "/" : httpRequest.getContextPath());
         contextKeyCookie.setSecure(httpRequest.isSecure());
         httpResponse.addCookie(contextKeyCookie);
-        
-        httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, loginContext);
+    }
+
+    /**
+     * Records the changes made to the {@link LoginContext} bound to the current request, so that they are seen by later
+     * requests of the login. Must be called before the response is committed.
+     * 
+     * Login contexts held by the storage service are changed in place, so only a login context carried in a login
+     * context token needs to be recorded: the token is re-issued, keeping its nonce and expiration instant. If the
+     * changed login context no longer fits in a token, it is moved to the storage service.
+     * 
+     * @param loginContext the changed login context
+     * @param storageService the storage service which holds login contexts too large for a token
+     * @param context the Servlet context
+     * @param httpRequest the current HTTP request
+     * @param httpResponse the current HTTP response
+     */
+    public static void updateLoginContext(LoginContext loginContext, StorageService storageService,
+            ServletContext context, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        if (loginContext == null || httpRequest == null) {
+            return;
+        }
+
+        LoginContextTokenCodec.Token token = (LoginContextTokenCodec.Token) httpRequest
+                .getAttribute(LOGIN_CTX_TOKEN_ATTRIBUTE);
+        LoginContextTokenCodec tokenCodec = getLoginContextTokenCodec(context);
+        if (token == null || token.getLoginContext() != loginContext || tokenCodec == null) {
+            return;
+        }
+
+        if (httpResponse.isCommitted()) {
+            log.warn("HTTP response already committed, unable to re-issue login context token {}", token.getNonce());
+            return;
+        }
+
+        String tokenValue = tokenCodec.encode(token);
+        if (tokenValue != null) {
+            log.debug("Re-issuing login context token {}", token.getNonce());
+            addLoginContextCookie(tokenValue, context, httpRequest, httpResponse);
+        } else {
+            log.debug("LoginContext no longer fits in a login context token, storing it in the StorageService");
+            storeLoginContext(loginContext, storageService, context, httpRequest, httpResponse);
+        }
     }
 
     /**
@@ -302,6 +400,9 @@ public class HttpServletHelper {
      * Gets the {@link LoginContext} for the user issuing the HTTP request. Note, login contexts are only available
      * during the authentication process.
      * 
+     * The login context is looked up in the storage service only once per request; it is then bound to the request and
+     * returned by later calls, including those made by the components the request is forwarded to.
+     * 
      * @param context the Servlet context
      * @param storageService storage service to use when retrieving the login context
      * @param httpRequest current HTTP request
@@ -320,6 +421,12 @@ public class HttpServletHelper {
             throw new IllegalArgumentException("HTTP request may not be null");
         }
 
+        Object boundContext = httpRequest.getAttribute(LOGIN_CTX_KEY_NAME);
+        if (boundContext instanceof LoginContext) {
+            log.trace("Using LoginContext already bound to the request");
+            return (LoginContext) boundContext;
+        }
+
         Cookie loginContextKeyCookie = getCookie(httpRequest, LOGIN_CTX_KEY_NAME);
         if (loginContextKeyCookie == null) {
             log.debug("LoginContext key cookie was not present in request");
@@ -331,6 +438,19 @@ public class HttpServletHelper {
             log.warn("Corrupted LoginContext Key cookie, it did not contain a value");
         }
 
+        LoginContextTokenCodec tokenCodec = getLoginContextTokenCodec(context);
+        if (tokenCodec != null && tokenCodec.isToken(loginContextKey)) {
+            LoginContextTokenCodec.Token token = tokenCodec.decode(loginContextKey, httpRequest.getRemoteAddr());
+            if (token == null) {
+                log.debug("Login context token was not valid");
+                return null;
+            }
+            log.trace("Retrieved LoginContext from login context token {}", token.getNonce());
+            httpRequest.setAttribute(LOGIN_CTX_TOKEN_ATTRIBUTE, token);
+            httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, token.getLoginContext());
+            return token.getLoginContext();
+        }
+
         String partition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM, DEFAULT_LOGIN_CTX_PARITION);
         log.trace("Looking up LoginContext with key {} from StorageService parition: {}", loginContextKey, partition);
         LoginContextEntry entry = (LoginContextEntry) storageService.get(partition, loginContextKey);
@@ -340,6 +460,7 @@ public class HttpServletHelper {
             } else {
                 log.trace("Retrieved LoginContext with key {} from StorageService parition: {}", loginContextKey,
                         partition);
+                httpRequest.setAttribute(LOGIN_CTX_KEY_NAME, entry.getLoginContext());
                 return entry.getLoginContext();
             }
         } else {
@@ -349,6 +470,30 @@ public class HttpServletHelper {
         return null;
     }
 
+    /**
+     * Gets the {@link LoginContextTokenCodec} service bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * 
+     * @return the service or null if login contexts are not carried in tokens
+     */
+    public static LoginContextTokenCodec getLoginContextTokenCodec(ServletContext context) {
+        return getLoginContextTokenCodec(context,
+                getContextParam(context, LOGIN_CTX_TOKEN_CODEC_SID_CTX_PARAM, DEFAULT_LOGIN_CTX_TOKEN_CODEC_SID));
+    }
+
+    /**
+     * Gets the {@link LoginContextTokenCodec} bound to the Servlet context.
+     * 
+     * @param context the Servlet context
+     * @param serviceId the ID under which the service bound
+     * 
+     * @return the service or null if there is no such service bound to the context
+     */
+    public static LoginContextTokenCodec getLoginContextTokenCodec(ServletContext context, String serviceId) {
+        return (LoginContextTokenCodec) context.getAttribute(serviceId);
+    }
+
     /**
      * Gets the {@link IdPProfileHandlerManager} service bound to the Servlet context.
      * 
@@ -560,7 +705,8 @@ public class HttpServletHelper {
 
     /**
      * Unbinds a {@link LoginContext} from the current request. The unbinding results in the destruction of the
-     * associated context key cookie and removes the context from the storage service.
+     * associated context key cookie and removes the context from the storage service and from the request. A login
+     * context token is consumed, so that it can not be used again.
      * 
      * @param storageService storage service holding the context
      * @param context the Servlet context
@@ -585,6 +731,11 @@ public class HttpServletHelper {
             throw new IllegalArgumentException("HTTP request may not be null");
         }
 
+        LoginContextTokenCodec.Token boundToken = (LoginContextTokenCodec.Token) httpRequest
+                .getAttribute(LOGIN_CTX_TOKEN_ATTRIBUTE);
+        httpRequest.removeAttribute(LOGIN_CTX_KEY_NAME);
+        httpRequest.removeAttribute(LOGIN_CTX_TOKEN_ATTRIBUTE);
+
         Cookie loginContextKeyCookie = getCookie(httpRequest, LOGIN_CTX_KEY_NAME);
         if (loginContextKeyCookie == null) {
             log.debug("No LoginContext cookie available, no unbinding necessary.");
@@ -603,6 +754,19 @@ public class HttpServletHelper {
         loginContextKeyCookie.setVersion(1);
         httpResponse.addCookie(loginContextKeyCookie);
 
+        LoginContextTokenCodec tokenCodec = getLoginContextTokenCodec(context);
+        if (tokenCodec != null && tokenCodec.isToken(loginContextKey)) {
+            LoginContextTokenCodec.Token token = boundToken;
+            if (token == null) {
+                token = tokenCodec.decode(loginContextKey, httpRequest.getRemoteAddr());
+            }
+            if (token != null && tokenCodec.consume(token)) {
+                log.debug("Consumed login context token {}", token.getNonce());
+                return token.getLoginContext();
+            }
+            return null;
+        }
+
         String storageServicePartition = getContextParam(context, LOGIN_CTX_PARTITION_CTX_PARAM,
                 DEFAULT_LOGIN_CTX_PARITION);
 
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import org.apache.commons.ssl.util.Hex;
+import org.opensaml.common.IdentifierGenerator;
+
+/**
+ * Generates random identifiers, in the same form as {@link org.opensaml.common.impl.SecureRandomIdentifierGenerator},
+ * using a {@link PerThreadRandomSource} so that concurrent callers do not contend for a single PRNG.
+ */
+public class PerThreadRandomIdentifierGenerator implements IdentifierGenerator {
+
+    /** Default number of random bytes within an identifier. */
+    private static final int DEFAULT_SIZE = 16;
+
+    /** Source of random bytes. */
+    private final PerThreadRandomSource randomSource;
+
+    /**
+     * Constructor.
+     *
+     * @param source source of random bytes
+     */
+    public PerThreadRandomIdentifierGenerator(PerThreadRandomSource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Random source may not be null");
+        }
+        randomSource = source;
+    }
+
+    /** {@inheritDoc} */
+    public String generateIdentifier() {
+        return generateIdentifier(DEFAULT_SIZE);
+    }
+
+    /** {@inheritDoc} */
+    public String generateIdentifier(int size) {
+        // identifiers must be valid xsd:ID values, which may not start with a digit
+        return "_" + Hex.encode(randomSource.nextBytes(size));
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Source of cryptographically strong random bytes that does not serialize concurrent callers.
+ *
+ * Each thread has its own PRNG, seeded from a shared {@link SecureRandom}, which generates random bytes a block at a
+ * time into a thread-local buffer. Callers are served from the buffer, which is only refilled once exhausted, so the
+ * PRNG is invoked once per block rather than once per request. Bytes are cleared from the buffer as they are handed
+ * out, and each thread's PRNG is reseeded from the shared source after a configurable number of bytes.
+ *
+ * The per-thread blocks are not removed when the random source is discarded: a thread local can only be removed by
+ * its own thread, and the threads using the source belong to the container's pool. The blocks hold no reference back
+ * to the random source, so once it is unreachable its thread local is collected and each pooled thread drops its
+ * block the next time it expunges stale thread locals, or when it ends. A block holds at most one block of random
+ * bytes not yet handed out.
+ */
+public class PerThreadRandomSource {
+
+    /** Default PRNG algorithm. */
+    public static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+
+    /** Default size, in bytes, of the per-thread block. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    /** Default number of bytes generated by a thread's PRNG before it is reseeded. */
+    public static final long DEFAULT_RESEED_INTERVAL = 1024 * 1024;
+
+    /** Size, in bytes, of the seeds given to per-thread PRNGs. */
+    private static final int SEED_SIZE = 32;
+
+    /** PRNG algorithm used by each thread. */
+    private final String algorithm;
+
+    /** Size, in bytes, of the per-thread block. */
+    private final int blockSize;
+
+    /** Number of bytes generated by a thread's PRNG before it is reseeded. */
+    private final long reseedInterval;
+
+    /** Shared source of seeds for the per-thread PRNGs. */
+    private final SecureRandom seedSource;
+
+    /** Per-thread PRNG and block. */
+    private final ThreadLocal<RandomBlock> blocks;
+
+    /** Constructor. Uses the default algorithm, block size and reseed interval. */
+    public PerThreadRandomSource() {
+        this(DEFAULT_ALGORITHM, DEFAULT_BLOCK_SIZE, DEFAULT_RESEED_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param prngAlgorithm PRNG algorithm used by each thread
+     * @param size size, in bytes, of the per-thread block
+     * @param interval number of bytes generated by a thread's PRNG before it is reseeded
+     */
+    public PerThreadRandomSource(String prngAlgorithm, int size, long interval) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1 byte");
+        }
+        if (interval < size) {
+            throw new IllegalArgumentException("Reseed interval may not be smaller than the block size");
+        }
+        try {
+            SecureRandom.getInstance(prngAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("PRNG algorithm " + prngAlgorithm + " is not supported", e);
+        }
+
+        algorithm = prngAlgorithm;
+        blockSize = size;
+        reseedInterval = interval;
+        seedSource = new SecureRandom();
+        blocks = new RandomBlockThreadLocal(algorithm, blockSize, reseedInterval, seedSource);
+    }
+
+    /**
+     * Gets the PRNG algorithm used by each thread.
+     *
+     * @return PRNG algorithm used by each thread
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Gets the size, in bytes, of the per-thread block.
+     *
+     * @return size of the per-thread block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Fills the given array with random bytes.
+     *
+     * @param bytes array to fill
+     */
+    public void nextBytes(byte[] bytes) {
+        blocks.get().nextBytes(bytes);
+    }
+
+    /**
+     * Generates random bytes.
+     *
+     * @param size number of bytes to generate
+     *
+     * @return the random bytes
+     */
+    public byte[] nextBytes(int size) {
+        byte[] bytes = new byte[size];
+        nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Thread local creating the PRNG and block of each thread. */
+    private static class RandomBlockThreadLocal extends ThreadLocal<RandomBlock> {
+
+        /** PRNG algorithm used by each thread. */
+        private final String algorithm;
+
+        /** Size, in bytes, of the per-thread block. */
+        private final int blockSize;
+
+        /** Number of bytes generated by a thread's PRNG before it is reseeded. */
+        private final long reseedInterval;
+
+        /** Shared source of seeds for the per-thread PRNGs. */
+        private final SecureRandom seedSource;
+
+        /**
+         * Constructor.
+         *
+         * @param prngAlgorithm PRNG algorithm used by each thread
+         * @param size size, in bytes, of the per-thread block
+         * @param interval number of bytes generated by a thread's PRNG before it is reseeded
+         * @param seeds shared source of seeds for the per-thread PRNGs
+         */
+        public RandomBlockThreadLocal(String prngAlgorithm, int size, long interval, SecureRandom seeds) {
+            algorithm = prngAlgorithm;
+            blockSize = size;
+            reseedInterval = interval;
+            seedSource = seeds;
+        }
+
+        /** {@inheritDoc} */
+        protected RandomBlock initialValue() {
+            return new RandomBlock(algorithm, blockSize, reseedInterval, seedSource);
+        }
+    }
+
+    /**
+     * A thread's PRNG and block of random bytes. It holds no reference to the random source, so that the thread local
+     * holding it may be collected once the random source is discarded.
+     */
+    private static class RandomBlock {
+
+        /** Number of bytes generated by the PRNG before it is reseeded. */
+        private final long reseedInterval;
+
+        /** Shared source of seeds for the PRNG. */
+        private final SecureRandom seedSource;
+
+        /** The thread's PRNG. */
+        private final SecureRandom prng;
+
+        /** Block of generated random bytes. */
+        private final byte[] block;
+
+        /** Position of the next unused byte in the block. */
+        private int position;
+
+        /** Number of bytes generated since the PRNG was last seeded. */
+        private long generated;
+
+        /**
+         * Constructor.
+         *
+         * @param algorithm PRNG algorithm
+         * @param size size, in bytes, of the block
+         * @param interval number of bytes generated by the PRNG before it is reseeded
+         * @param seeds shared source of seeds for the PRNG
+         */
+        public RandomBlock(String algorithm, int size, long interval, SecureRandom seeds) {
+            reseedInterval = interval;
+            seedSource = seeds;
+            try {
+                prng = SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // checked when the random source was created
+                throw new IllegalStateException(e);
+            }
+            // seeding before first use replaces the PRNG's self-seeding
+            prng.setSeed(nextSeed());
+            block = new byte[size];
+            position = size;
+        }
+
+        /**
+         * Fills the given array with random bytes from the block, refilling the block as needed.
+         *
+         * @param bytes array to fill
+         */
+        public void nextBytes(byte[] bytes) {
+            int filled = 0;
+            int length;
+            while (filled < bytes.length) {
+                if (position == block.length) {
+                    refill();
+                }
+                length = Math.min(bytes.length - filled, block.length - position);
+                System.arraycopy(block, position, bytes, filled, length);
+                Arrays.fill(block, position, position + length, (byte) 0);
+                position += length;
+                filled += length;
+            }
+        }
+
+        /** Refills the block, reseeding the PRNG first if it has generated enough bytes. */
+        private void refill() {
+            if (generated >= reseedInterval) {
+                prng.setSeed(nextSeed());
+                generated = 0;
+            }
+            prng.nextBytes(block);
+            generated += block.length;
+            position = 0;
+        }
+
+        /**
+         * Generates a seed for the PRNG.
+         *
+         * @return the seed
+         */
+        private byte[] nextSeed() {
+            byte[] seed = new byte[SEED_SIZE];
+            seedSource.nextBytes(seed);
+            return seed;
+        }
+    }
+}
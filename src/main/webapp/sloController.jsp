@@ -20,8 +20,37 @@ Boolean sloAttempted = false;
             <!--
             var timer = 0;
             var timeout;
+            var finished = false;
             
             var xhr = new XMLHttpRequest();
+            var events = null;
+            var statuses = {};
+
+            function listen() {
+                if (typeof(EventSource) == "undefined") {
+                    return;
+                }
+                events = new EventSource("<%= contextPath %>/SLOServlet?events");
+                events.onmessage = function(event) {
+                    var status = eval("(" + event.data + ")");
+                    statuses[status.entityID] = status.logoutStatus;
+                    var resp = [];
+                    for (var entity in statuses) {
+                        resp.push({"entityID" : entity, "logoutStatus" : statuses[entity]});
+                    }
+                    showStatus(resp);
+                };
+                events.addEventListener("done", function() {
+                    //any participant still pending is polled for
+                    events.close();
+                    events = null;
+                }, false);
+                events.onerror = function() {
+                    //the stream has ended or failed, fall back to status queries
+                    events.close();
+                    events = null;
+                };
+            }
 
             function checkStatus() {
                 xhr.onreadystatechange = updateStatus;
@@ -34,8 +63,11 @@ Boolean sloAttempted = false;
                     return;
                 }
 
+                showStatus(eval("(" + xhr.responseText + ")"));
+            }
+
+            function showStatus(resp) {
                 var sloFailed = false;
-                var resp = eval("(" + xhr.responseText + ")");
                 var ready = true;
 
                 for (var service in resp) {
@@ -75,6 +107,13 @@ Boolean sloAttempted = false;
             }
 
             function finish(sloFailed) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                if (events != null) {
+                    events.close();
+                }
                 var str = "You have successfully logged out";
                 var className = "success";
                 if (sloFailed){
@@ -89,7 +128,8 @@ Boolean sloAttempted = false;
 
             function tick() {
                 timer += 1;
-                if (timer  == 1 || timer  == 2 || timer  == 4 || timer  == 8) {
+                //status queries are only made when no event stream is open
+                if (events == null && (timer  == 1 || timer  == 2 || timer  == 4 || timer  == 8)) {
                     checkStatus();
                 }
                 if (timer > 8) {
@@ -99,6 +139,7 @@ Boolean sloAttempted = false;
                 }
             }
 
+            listen();
             timeout = setTimeout("tick()", 1000);
             //-->
         </script>
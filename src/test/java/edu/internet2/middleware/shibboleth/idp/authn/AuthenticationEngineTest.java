@@ -0,0 +1,294 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.AuthnContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+
+import edu.internet2.middleware.shibboleth.idp.authn.provider.PreviousSessionLoginHandler;
+import edu.internet2.middleware.shibboleth.idp.authn.provider.RemoteUserLoginHandler;
+import edu.internet2.middleware.shibboleth.idp.profile.IdPProfileHandlerManager;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerEntry;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerImpl;
+import edu.internet2.middleware.shibboleth.idp.storage.ExpiryIndexedStorageService;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
+
+/** Unit test for the previous session shortcut of {@link AuthenticationEngine}. */
+public class AuthenticationEngineTest extends TestCase {
+
+    /** Password protected transport authentication method. */
+    private static final String PPT = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /** Kerberos authentication method. */
+    private static final String KERBEROS = "urn:oasis:names:tc:SAML:2.0:ac:classes:Kerberos";
+
+    /** Relying party of the login contexts. */
+    private static final String RELYING_PARTY = "https://sp.example.org/shibboleth";
+
+    /** Login handlers of the handler manager, by authentication method. */
+    private Map<String, LoginHandler> loginHandlers;
+
+    /** Previous session login handler. */
+    private PreviousSessionLoginHandler previousSession;
+
+    /** Session manager of the engine. */
+    private SessionManagerImpl sessionManager;
+
+    /** Engine being tested. */
+    private AuthenticationEngine engine;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        previousSession = new PreviousSessionLoginHandler();
+        previousSession.getSupportedAuthenticationMethods().add(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+        RemoteUserLoginHandler password = new RemoteUserLoginHandler();
+        password.getSupportedAuthenticationMethods().add(PPT);
+        password.setSupportsForceAuthentication(true);
+        RemoteUserLoginHandler kerberos = new RemoteUserLoginHandler();
+        kerberos.getSupportedAuthenticationMethods().add(KERBEROS);
+
+        loginHandlers = new LinkedHashMap<String, LoginHandler>();
+        loginHandlers.put(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX, previousSession);
+        loginHandlers.put(PPT, password);
+        loginHandlers.put(KERBEROS, kerberos);
+
+        sessionManager = new SessionManagerImpl(new ExpiryIndexedStorageService<String, SessionManagerEntry>(),
+                1800000);
+        engine = createEngine();
+    }
+
+    /** Tests that an active session authenticates the user within the profile handler request. */
+    public void testPreviousSession() {
+        Session session = createSession(30);
+        AuthenticationMethodInformation active = session.getAuthenticationMethods().get(PPT);
+        MockHttpServletRequest request = createRequest(session);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        LoginContext loginContext = createLoginContext(false, false);
+
+        assertTrue(AuthenticationEngine.authenticateWithPreviousSession(loginContext, request, response));
+        assertTrue(loginContext.getAuthenticationAttempted());
+        assertTrue(loginContext.isPrincipalAuthenticated());
+        assertNull(loginContext.getAuthenticationFailure());
+        assertEquals("jdoe", loginContext.getPrincipalName());
+        assertEquals(PPT, loginContext.getAuthenticationMethod());
+        assertSame(active, loginContext.getAuthenticationMethodInformation());
+        assertSame(session, request.getAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE));
+        assertSame(active, session.getServicesInformation().get(RELYING_PARTY).getAuthenticationMethod());
+        assertNull("User was sent to the engine", response.getForwardedUrl());
+        assertNull("User was sent to the profile handler", response.getRedirectedUrl());
+    }
+
+    /** Tests that the shortcut leaves the login context and session just as the authentication engine servlet does. */
+    public void testMatchesServletPath() throws Exception {
+        Session shortcutSession = createSession(30);
+        LoginContext shortcutContext = createLoginContext(false, false);
+        assertTrue(AuthenticationEngine.authenticateWithPreviousSession(shortcutContext,
+                createRequest(shortcutSession), new MockHttpServletResponse()));
+
+        Session servletSession = createSession(30);
+        LoginContext servletContext = createLoginContext(false, false);
+        MockHttpServletRequest request = createRequest(servletSession);
+        request.setRequestURI("/AuthnEngine");
+        request.setAttribute(HttpServletHelper.LOGIN_CTX_KEY_NAME, servletContext);
+
+        // the login handler forwards back to the engine within the same request
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        engine.service(request, response);
+        assertEquals("/AuthnEngine", response.getForwardedUrl());
+        response = new MockHttpServletResponse();
+        engine.service(request, response);
+        assertTrue(response.getRedirectedUrl().endsWith("/profile/SAML2/POST/SSO"));
+
+        assertEquals(servletContext.getAuthenticationAttempted(), shortcutContext.getAuthenticationAttempted());
+        assertEquals(servletContext.isPrincipalAuthenticated(), shortcutContext.isPrincipalAuthenticated());
+        assertEquals(servletContext.getPrincipalName(), shortcutContext.getPrincipalName());
+        assertEquals(servletContext.getAttemptedAuthnMethod(), shortcutContext.getAttemptedAuthnMethod());
+        assertEquals(servletContext.getAuthenticationMethod(), shortcutContext.getAuthenticationMethod());
+        assertNull(servletContext.getSessionID());
+        assertNull(shortcutContext.getSessionID());
+
+        assertEquals(servletSession.getAuthenticationMethods().keySet(),
+                shortcutSession.getAuthenticationMethods().keySet());
+        assertEquals(servletSession.getServicesInformation().keySet(),
+                shortcutSession.getServicesInformation().keySet());
+        ServiceInformation servletService = servletSession.getServicesInformation().get(RELYING_PARTY);
+        ServiceInformation shortcutService = shortcutSession.getServicesInformation().get(RELYING_PARTY);
+        assertEquals(servletService.getAuthenticationMethod().getAuthenticationMethod(),
+                shortcutService.getAuthenticationMethod().getAuthenticationMethod());
+        assertEquals(servletSession.getPrincipalName(), shortcutSession.getPrincipalName());
+    }
+
+    /** Tests that forced authentication is never satisfied by the previous session. */
+    public void testForceAuthn() {
+        Session session = createSession(30);
+        LoginContext loginContext = createLoginContext(true, false);
+
+        assertFalse(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertFalse(loginContext.getAuthenticationAttempted());
+        assertFalse(session.getServicesInformation().containsKey(RELYING_PARTY));
+    }
+
+    /** Tests that passive authentication is completed by the previous session and otherwise left to the engine. */
+    public void testIsPassive() {
+        Session session = createSession(30);
+        LoginContext loginContext = createLoginContext(false, true);
+        assertTrue(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertTrue(loginContext.isPrincipalAuthenticated());
+
+        // no login handler can authenticate passively, the engine reports the failure
+        loginContext = createLoginContext(false, true);
+        loginContext.getRequestedAuthenticationMethods().add(KERBEROS);
+        assertFalse(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertFalse(loginContext.getAuthenticationAttempted());
+        assertNull(loginContext.getAuthenticationFailure());
+    }
+
+    /** Tests that the shortcut is skipped when the previous session login handler is not configured. */
+    public void testPreviousSessionNotConfigured() throws Exception {
+        loginHandlers.remove(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+        engine = createEngine();
+        Session session = createSession(30);
+        LoginContext loginContext = createLoginContext(false, false);
+
+        assertFalse(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertFalse(loginContext.getAuthenticationAttempted());
+    }
+
+    /** Tests that the shortcut is skipped when the requested method is not the one of the session. */
+    public void testRequestedMethodMismatch() {
+        Session session = createSession(30);
+        LoginContext loginContext = createLoginContext(false, false);
+        loginContext.getRequestedAuthenticationMethods().add(KERBEROS);
+
+        assertFalse(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertFalse(loginContext.getAuthenticationAttempted());
+
+        // a handler reporting the PreviousSession method only satisfies requests for it
+        previousSession.setReportPreviousSessionAuthnMethod(true);
+        loginContext = createLoginContext(false, false);
+        loginContext.getRequestedAuthenticationMethods().add(PPT);
+        assertFalse(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertFalse(loginContext.getAuthenticationAttempted());
+    }
+
+    /** Tests that an expired authentication method does not authenticate the user. */
+    public void testExpiredMethod() {
+        Session session = createSession(5);
+        LoginContext loginContext = createLoginContext(false, false);
+
+        assertFalse(AuthenticationEngine.authenticateWithPreviousSession(loginContext, createRequest(session),
+                new MockHttpServletResponse()));
+        assertFalse(loginContext.getAuthenticationAttempted());
+        assertFalse(session.getServicesInformation().containsKey(RELYING_PARTY));
+    }
+
+    /**
+     * Creates an engine, initialized with the test login handlers and session manager.
+     *
+     * @return the engine
+     *
+     * @throws Exception thrown if the engine can not be initialized
+     */
+    private AuthenticationEngine createEngine() throws Exception {
+        final LoginHandlerIndex index = new LoginHandlerIndex(loginHandlers);
+        IdPProfileHandlerManager handlerManager = new IdPProfileHandlerManager() {
+            public LoginHandlerIndex getLoginHandlerIndex() {
+                return index;
+            }
+        };
+        handlerManager.getLoginHandlers().putAll(loginHandlers);
+
+        MockServletContext context = new MockServletContext();
+        context.setAttribute(HttpServletHelper.DEFAULT_PROFILE_HANDLER_MNGR_SID, handlerManager);
+        context.setAttribute(HttpServletHelper.DEFAULT_SESSION_MNGR_SID, sessionManager);
+        context.setAttribute(HttpServletHelper.DEFAULT_STORAGE_SERVICE_SID,
+                new ExpiryIndexedStorageService<String, LoginContextEntry>());
+
+        AuthenticationEngine authenticationEngine = new AuthenticationEngine();
+        authenticationEngine.init(new MockServletConfig(context));
+        return authenticationEngine;
+    }
+
+    /**
+     * Creates a session of jdoe, who authenticated with the password method 10 minutes ago.
+     *
+     * @param minutes duration of the password method, in minutes
+     *
+     * @return the session
+     */
+    private Session createSession(int minutes) {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal("jdoe"));
+        Session session = sessionManager.createSession();
+        session.setSubject(subject);
+        session.getAuthenticationMethods().put(PPT, new AuthenticationMethodInformationImpl(subject,
+                subject.getPrincipals().iterator().next(), PPT, new DateTime().minusMinutes(10), minutes * 60000L));
+        return session;
+    }
+
+    /**
+     * Creates a login context for the test relying party.
+     *
+     * @param forceAuthn whether authentication must be forced
+     * @param isPassive whether authentication must be passive
+     *
+     * @return the login context
+     */
+    private LoginContext createLoginContext(boolean forceAuthn, boolean isPassive) {
+        LoginContext loginContext = new LoginContext(forceAuthn, isPassive);
+        loginContext.setRelyingParty(RELYING_PARTY);
+        loginContext.setAuthenticationEngineURL("/AuthnEngine");
+        loginContext.setProfileHandlerURL("/profile/SAML2/POST/SSO");
+        return loginContext;
+    }
+
+    /**
+     * Creates a request bound to a session.
+     *
+     * @param session the session
+     *
+     * @return the request
+     */
+    private MockHttpServletRequest createRequest(Session session) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute(Session.HTTP_SESSION_BINDING_ATTRIBUTE, session);
+        return request;
+    }
+}
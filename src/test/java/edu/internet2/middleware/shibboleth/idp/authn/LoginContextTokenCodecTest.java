@@ -0,0 +1,139 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.Base64;
+
+import edu.internet2.middleware.shibboleth.idp.storage.ExpiryIndexedStorageService;
+
+/** Unit test for {@link LoginContextTokenCodec}. */
+public class LoginContextTokenCodecTest extends TestCase {
+
+    /** Token key used by the tests. */
+    private static final String TOKEN_KEY = Base64.encodeBytes("secretsecretsecr".getBytes());
+
+    /** Client address used by the tests. */
+    private static final String CLIENT_ADDRESS = "192.0.2.10";
+
+    /** Storage service holding the nonces of consumed tokens. */
+    private ExpiryIndexedStorageService<String, ConsumedLoginContextEntry> nonceStorage;
+
+    /** Codec being tested. */
+    private LoginContextTokenCodec codec;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        nonceStorage = new ExpiryIndexedStorageService<String, ConsumedLoginContextEntry>();
+        codec = new LoginContextTokenCodec(nonceStorage, TOKEN_KEY);
+    }
+
+    /** Tests that a token decodes to its nonce, expiration, client address and login context. */
+    public void testRoundTrip() {
+        LoginContextTokenCodec.Token token = codec.newToken(createLoginContext(), CLIENT_ADDRESS);
+        String value = codec.encode(token);
+        assertTrue(codec.isToken(value));
+
+        LoginContextTokenCodec.Token decoded = codec.decode(value, CLIENT_ADDRESS);
+        assertNotNull(decoded);
+        assertEquals(token.getNonce(), decoded.getNonce());
+        assertEquals(token.getExpiration(), decoded.getExpiration());
+        assertEquals(CLIENT_ADDRESS, decoded.getClientAddress());
+        assertEquals("https://sp.example.org", decoded.getLoginContext().getRelyingPartyId());
+        assertEquals("/profile/SAML2/Redirect/SSO", decoded.getLoginContext().getProfileHandlerURL());
+        assertTrue(decoded.getLoginContext().isForceAuthRequired());
+    }
+
+    /** Tests that a token whose MAC or cipher text has been changed is refused. */
+    public void testTamperedToken() {
+        String value = codec.encode(codec.newToken(createLoginContext(), CLIENT_ADDRESS));
+        byte[] bytes = Base64.decode(HTTPTransportUtils.urlDecode(value.substring(1)));
+
+        byte[] tamperedMac = bytes.clone();
+        tamperedMac[tamperedMac.length - 1] ^= 1;
+        assertNull(codec.decode(toTokenValue(tamperedMac), CLIENT_ADDRESS));
+
+        byte[] tamperedCipherText = bytes.clone();
+        tamperedCipherText[20] ^= 1;
+        assertNull(codec.decode(toTokenValue(tamperedCipherText), CLIENT_ADDRESS));
+
+        assertNull(codec.decode("_notatoken", CLIENT_ADDRESS));
+        assertNotNull(codec.decode(toTokenValue(bytes), CLIENT_ADDRESS));
+    }
+
+    /** Tests that an expired token is refused. */
+    public void testExpiredToken() {
+        LoginContextTokenCodec.Token token = new LoginContextTokenCodec.Token("0123456789abcdef",
+                System.currentTimeMillis() - 1, CLIENT_ADDRESS, createLoginContext());
+        assertNull(codec.decode(codec.encode(token), CLIENT_ADDRESS));
+        assertFalse(codec.consume(token));
+    }
+
+    /** Tests that a consumed token can not be used again. */
+    public void testReplayedToken() {
+        LoginContextTokenCodec.Token token = codec.newToken(createLoginContext(), CLIENT_ADDRESS);
+        String value = codec.encode(token);
+
+        assertTrue(codec.consume(codec.decode(value, CLIENT_ADDRESS)));
+        assertNull(codec.decode(value, CLIENT_ADDRESS));
+        assertFalse(codec.consume(token));
+
+        // a re-issued token keeps the nonce of its login
+        assertNull(codec.decode(codec.encode(token), CLIENT_ADDRESS));
+    }
+
+    /** Tests that a token is refused by a codec with another key and when presented by another client. */
+    public void testKeyAndClientMismatch() {
+        String value = codec.encode(codec.newToken(createLoginContext(), CLIENT_ADDRESS));
+
+        LoginContextTokenCodec otherCodec = new LoginContextTokenCodec(nonceStorage,
+                Base64.encodeBytes("othersecretother".getBytes()));
+        assertNull(otherCodec.decode(value, CLIENT_ADDRESS));
+
+        assertNull(codec.decode(value, "192.0.2.11"));
+        assertNull(codec.decode(value, null));
+        assertNotNull(codec.decode(value, CLIENT_ADDRESS));
+    }
+
+    /**
+     * Creates a login context with some of its properties set.
+     * 
+     * @return the login context
+     */
+    private LoginContext createLoginContext() {
+        LoginContext loginContext = new LoginContext(true, false);
+        loginContext.setRelyingParty("https://sp.example.org");
+        loginContext.setProfileHandlerURL("/profile/SAML2/Redirect/SSO");
+        return loginContext;
+    }
+
+    /**
+     * Builds a token value from its raw bytes.
+     * 
+     * @param bytes the raw token bytes
+     * 
+     * @return the token value
+     */
+    private String toTokenValue(byte[] bytes) {
+        return LoginContextTokenCodec.TOKEN_PREFIX
+                + HTTPTransportUtils.urlEncode(Base64.encodeBytes(bytes, Base64.DONT_BREAK_LINES));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.AuthnContext;
+
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImpl;
+
+public class LoginHandlerIndexTest extends TestCase {
+
+    /** Password protected transport authentication method. */
+    private static final String PPT = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /** Kerberos authentication method. */
+    private static final String KERBEROS = "urn:oasis:names:tc:SAML:2.0:ac:classes:Kerberos";
+
+    /** Unspecified authentication method. */
+    private static final String UNSPECIFIED = "urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified";
+
+    /** Previous session login handler. */
+    private TestLoginHandler previousSession;
+
+    /** Username and password login handler. */
+    private TestLoginHandler password;
+
+    /** Kerberos login handler, which also provides the unspecified method. */
+    private TestLoginHandler kerberos;
+
+    /** Index of the login handlers. */
+    private LoginHandlerIndex index;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        previousSession = new TestLoginHandler(true, false, AuthnContext.PREVIOUS_SESSION_AUTHN_CTX);
+        password = new TestLoginHandler(false, true, PPT);
+        kerberos = new TestLoginHandler(true, false, KERBEROS, UNSPECIFIED);
+
+        Map<String, LoginHandler> handlers = new LinkedHashMap<String, LoginHandler>();
+        handlers.put(AuthnContext.PREVIOUS_SESSION_AUTHN_CTX, previousSession);
+        handlers.put(PPT, password);
+        handlers.put(KERBEROS, kerberos);
+        handlers.put(UNSPECIFIED, kerberos);
+        index = new LoginHandlerIndex(handlers);
+    }
+
+    /** Tests that, without a session, the default method or else the first configured method is selected. */
+    public void testSelectionWithoutSession() throws Exception {
+        LoginContext loginContext = new LoginContext(false, false);
+        assertSame(password, index.selectLoginHandler(loginContext, null));
+        assertEquals(PPT, loginContext.getAttemptedAuthnMethod());
+
+        loginContext = new LoginContext(false, false);
+        loginContext.setDefaultAuthenticationMethod(UNSPECIFIED);
+        assertSame(kerberos, index.selectLoginHandler(loginContext, null));
+        assertEquals(UNSPECIFIED, loginContext.getAttemptedAuthnMethod());
+
+        loginContext = new LoginContext(false, false);
+        loginContext.getRequestedAuthenticationMethods().add(KERBEROS);
+        loginContext.setDefaultAuthenticationMethod(PPT);
+        assertSame(kerberos, index.selectLoginHandler(loginContext, null));
+        assertEquals(KERBEROS, loginContext.getAttemptedAuthnMethod());
+
+        loginContext = new LoginContext(false, false);
+        loginContext.getRequestedAuthenticationMethods().add("urn:example:unsupported");
+        try {
+            index.selectLoginHandler(loginContext, null);
+            fail("Unsupported method selected");
+        } catch (AuthenticationException e) {
+            // expected
+        }
+    }
+
+    /** Tests that an active, acceptable, session method selects the previous session login handler. */
+    public void testPreviousSession() throws Exception {
+        SessionImpl session = buildSession();
+        AuthenticationMethodInformation active = session.getAuthenticationMethods().get(PPT);
+
+        LoginContext loginContext = new LoginContext(false, false);
+        assertSame(previousSession, index.selectLoginHandler(loginContext, session));
+        assertEquals(PPT, loginContext.getAttemptedAuthnMethod());
+        assertSame(active, loginContext.getAuthenticationMethodInformation());
+        assertFalse("Expired method not removed", session.getAuthenticationMethods().containsKey(KERBEROS));
+
+        loginContext = new LoginContext(false, false);
+        loginContext.getRequestedAuthenticationMethods().add(KERBEROS);
+        assertSame(kerberos, index.selectLoginHandler(loginContext, session));
+        assertEquals(KERBEROS, loginContext.getAttemptedAuthnMethod());
+    }
+
+    /** Tests the filtering of login handlers for forced authentication. */
+    public void testForcedAuthentication() throws Exception {
+        SessionImpl session = buildSession();
+        session.getAuthenticationMethods().put(KERBEROS, buildMethod(session, KERBEROS, 30));
+
+        LoginContext loginContext = new LoginContext(true, false);
+        assertSame(password, index.selectLoginHandler(loginContext, session));
+
+        loginContext = new LoginContext(true, false);
+        loginContext.getRequestedAuthenticationMethods().add(KERBEROS);
+        try {
+            index.selectLoginHandler(loginContext, session);
+            fail("Login handler without forced authentication selected");
+        } catch (ForceAuthenticationException e) {
+            // expected
+        }
+    }
+
+    /** Tests the filtering of login handlers for passive authentication. */
+    public void testPassiveAuthentication() throws Exception {
+        LoginContext loginContext = new LoginContext(false, true);
+        assertSame(kerberos, index.selectLoginHandler(loginContext, null));
+
+        loginContext = new LoginContext(false, true);
+        loginContext.getRequestedAuthenticationMethods().add(PPT);
+        try {
+            index.selectLoginHandler(loginContext, null);
+            fail("Login handler without passive authentication selected");
+        } catch (PassiveAuthenticationException e) {
+            // expected
+        }
+
+        loginContext = new LoginContext(false, true);
+        loginContext.getRequestedAuthenticationMethods().add(PPT);
+        assertSame(previousSession, index.selectLoginHandler(loginContext, buildSession()));
+    }
+
+    /**
+     * Builds a session with an active password method and an expired Kerberos method.
+     * 
+     * @return the session
+     */
+    private SessionImpl buildSession() {
+        SessionImpl session = new SessionImpl("c2Vzc2lvbi1pZGVudGlmaWVy", new byte[] {1, 2, 3, 4, 5, 6, 7, 8},
+                1800000);
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal("jdoe"));
+        session.setSubject(subject);
+
+        session.getAuthenticationMethods().put(PPT, buildMethod(session, PPT, 30));
+        session.getAuthenticationMethods().put(KERBEROS, buildMethod(session, KERBEROS, 0));
+        return session;
+    }
+
+    /**
+     * Builds an authentication method of a session, performed 10 minutes ago.
+     * 
+     * @param session the session
+     * @param method the authentication method
+     * @param minutes duration of the authentication method, in minutes
+     * 
+     * @return the authentication method information
+     */
+    private AuthenticationMethodInformation buildMethod(SessionImpl session, String method, int minutes) {
+        return new AuthenticationMethodInformationImpl(session.getSubject(), session.getSubject().getPrincipals()
+                .iterator().next(), method, new DateTime().minusMinutes(10), minutes * 60000L);
+    }
+
+    /** Login handler that only describes its capabilities. */
+    private static class TestLoginHandler implements LoginHandler {
+
+        /** Supported authentication methods. */
+        private final List<String> methods;
+
+        /** Whether passive authentication is supported. */
+        private final boolean passive;
+
+        /** Whether forced authentication is supported. */
+        private final boolean force;
+
+        /**
+         * Constructor.
+         * 
+         * @param supportsPassive whether passive authentication is supported
+         * @param supportsForce whether forced authentication is supported
+         * @param supportedMethods supported authentication methods
+         */
+        public TestLoginHandler(boolean supportsPassive, boolean supportsForce, String... supportedMethods) {
+            methods = Arrays.asList(supportedMethods);
+            passive = supportsPassive;
+            force = supportsForce;
+        }
+
+        /** {@inheritDoc} */
+        public List<String> getSupportedAuthenticationMethods() {
+            return methods;
+        }
+
+        /** {@inheritDoc} */
+        public long getAuthenticationDuration() {
+            return 1800000;
+        }
+
+        /** {@inheritDoc} */
+        public boolean supportsPassive() {
+            return passive;
+        }
+
+        /** {@inheritDoc} */
+        public boolean supportsForceAuthentication() {
+            return force;
+        }
+
+        /** {@inheritDoc} */
+        public void login(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn;
+
+import java.io.StreamCorruptedException;
+
+import javax.security.auth.Subject;
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
+import org.opensaml.saml2.core.AuthnContextDeclRef;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.NameIDPolicy;
+import org.opensaml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml2.core.Scoping;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.schema.XSBooleanValue;
+
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodecRegistry;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryInput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryOutput;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.DefaultBinaryCodecRegistry;
+
+/** Unit test for {@link Saml2LoginContextCodec}. */
+public class Saml2LoginContextCodecTest extends TestCaseBase {
+
+    /** Password protected transport authentication method. */
+    private static final String PPT = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /** Entity ID of the relying party. */
+    private static final String SP = "https://sp.example.org/shibboleth";
+
+    /** Registry holding the login context codecs. */
+    private BinaryCodecRegistry registry;
+
+    /** Codec being tested. */
+    private Saml2LoginContextCodec codec;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        registry = new DefaultBinaryCodecRegistry();
+        codec = new Saml2LoginContextCodec();
+    }
+
+    /** Tests that a request written as its fields decodes to an equal request, without being parsed again. */
+    public void testRoundTripRequestFields() throws Exception {
+        AuthnRequest request = buildRequest();
+        Saml2LoginContext loginContext = buildLoginContext(request);
+
+        Saml2LoginContext decoded = (Saml2LoginContext) registry.decode(registry.encode(loginContext));
+        AuthnRequest decodedRequest = decoded.getAvailableAuthenticationRequest();
+        assertNotNull("Request was not rebuilt from its fields", decodedRequest);
+        assertEquals(request.getID(), decodedRequest.getID());
+        assertEquals(SAMLVersion.VERSION_20, decodedRequest.getVersion());
+        assertEquals(request.getIssueInstant().getMillis(), decodedRequest.getIssueInstant().getMillis());
+        assertEquals(SP, decodedRequest.getIssuer().getValue());
+        assertEquals(Integer.valueOf(2), decodedRequest.getAssertionConsumerServiceIndex());
+        assertNull(decodedRequest.getAttributeConsumingServiceIndex());
+        assertTrue(decodedRequest.isForceAuthnXSBoolean().isNumeric());
+        assertEquals(Boolean.TRUE, decodedRequest.isForceAuthn());
+        assertNull(decodedRequest.isPassiveXSBoolean());
+        assertEquals(Boolean.TRUE, decodedRequest.getNameIDPolicy().getAllowCreate());
+        assertEquals(AuthnContextComparisonTypeEnumeration.EXACT,
+                decodedRequest.getRequestedAuthnContext().getComparison());
+        assertEquals("jdoe", decodedRequest.getSubject().getNameID().getValue());
+
+        // the serialized form is only created when asked for, and holds every field of the request
+        assertXMLEqual(loginContext.getAuthenticationRequest(), decoded.getAuthenticationRequest());
+        assertLoginContextEquals(loginContext, decoded);
+    }
+
+    /** Tests that a request which can not be written as its fields is only parsed again when it is asked for. */
+    public void testRoundTripSerializedRequest() throws Exception {
+        AuthnRequest request = buildRequest();
+        Scoping scoping = buildObject(Scoping.DEFAULT_ELEMENT_NAME);
+        scoping.setProxyCount(1);
+        request.setScoping(scoping);
+        Saml2LoginContext loginContext = buildLoginContext(request);
+
+        Saml2LoginContext decoded = (Saml2LoginContext) registry.decode(registry.encode(loginContext));
+        assertNull("Serialized request was parsed eagerly", decoded.getAvailableAuthenticationRequest());
+        assertXMLEqual(loginContext.getAuthenticationRequest(), decoded.getAuthenticationRequest());
+
+        AuthnRequest decodedRequest = decoded.getAuthenticiationRequestXmlObject();
+        assertEquals(request.getID(), decodedRequest.getID());
+        assertEquals(Integer.valueOf(1), decodedRequest.getScoping().getProxyCount());
+        assertSame(decodedRequest, decoded.getAvailableAuthenticationRequest());
+        assertLoginContextEquals(loginContext, decoded);
+    }
+
+    /** Tests that version 1 encodings, holding the serialized request, are still decoded. */
+    public void testVersion1() throws Exception {
+        Saml2LoginContext loginContext = buildLoginContext(buildRequest());
+        BinaryOutput out = new BinaryOutput(registry);
+        out.writeString(loginContext.getRelayState());
+        out.writeString(loginContext.getAuthenticationRequest());
+        out.writeBoolean(loginContext.isUnsolicited());
+        LoginContextCodec.encodeLoginContext(loginContext, out);
+        byte[] encoded = out.toByteArray();
+
+        Saml2LoginContext decoded = codec.decode(new BinaryInput(registry, encoded, 0, encoded.length), 1);
+        assertNull(decoded.getAvailableAuthenticationRequest());
+        assertXMLEqual(loginContext.getAuthenticationRequest(), decoded.getAuthenticationRequest());
+        assertEquals("_a7c3f9", decoded.getAuthenticiationRequestXmlObject().getID());
+        assertLoginContextEquals(loginContext, decoded);
+    }
+
+    /** Tests that an encoding of an unknown version is refused. */
+    public void testUnsupportedVersion() throws Exception {
+        BinaryOutput out = new BinaryOutput(registry);
+        codec.encode(buildLoginContext(buildRequest()), out);
+        byte[] encoded = out.toByteArray();
+        try {
+            codec.decode(new BinaryInput(registry, encoded, 0, encoded.length), 3);
+            fail("Unsupported version decoded");
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Asserts that a decoded login context has the properties of the encoded one.
+     * 
+     * @param expected the encoded login context
+     * @param actual the decoded login context
+     */
+    private void assertLoginContextEquals(Saml2LoginContext expected, Saml2LoginContext actual) {
+        assertEquals(expected.getRelayState(), actual.getRelayState());
+        assertEquals(expected.isUnsolicited(), actual.isUnsolicited());
+        assertEquals(expected.getRelyingPartyId(), actual.getRelyingPartyId());
+        assertEquals(expected.isForceAuthRequired(), actual.isForceAuthRequired());
+        assertEquals(expected.isPassiveAuthRequired(), actual.isPassiveAuthRequired());
+        assertEquals(expected.getAuthenticationAttempted(), actual.getAuthenticationAttempted());
+        assertEquals(expected.isPrincipalAuthenticated(), actual.isPrincipalAuthenticated());
+        assertEquals(expected.getProfileHandlerURL(), actual.getProfileHandlerURL());
+        assertEquals(expected.getAuthenticationEngineURL(), actual.getAuthenticationEngineURL());
+        assertEquals(expected.getAttemptedAuthnMethod(), actual.getAttemptedAuthnMethod());
+        assertEquals(expected.getDefaultAuthenticationMethod(), actual.getDefaultAuthenticationMethod());
+        assertEquals(expected.getSessionID(), actual.getSessionID());
+        assertEquals(expected.getRequestedAuthenticationMethods(), actual.getRequestedAuthenticationMethods());
+
+        AuthenticationMethodInformation method = actual.getAuthenticationMethodInformation();
+        assertEquals(PPT, method.getAuthenticationMethod());
+        assertEquals("jdoe", method.getAuthenticationPrincipal().getName());
+        assertEquals(expected.getAuthenticationMethodInformation().getAuthenticationInstant().getMillis(), method
+                .getAuthenticationInstant().getMillis());
+        assertEquals(1500, method.getAuthenticationDuration());
+
+        assertEquals(expected.getAuthenticationFailure().getMessage(), actual.getAuthenticationFailure().getMessage());
+        assertEquals(expected.getProperty("retries"), actual.getProperty("retries"));
+    }
+
+    /**
+     * Builds a login context with all of its properties set.
+     * 
+     * @param request authentication request of the login context
+     * 
+     * @return the login context
+     * 
+     * @throws Exception thrown if the login context can not be built
+     */
+    private Saml2LoginContext buildLoginContext(AuthnRequest request) throws Exception {
+        Saml2LoginContext loginContext = new Saml2LoginContext(SP, "relay-state-1", request);
+        loginContext.setUnsolicited(true);
+        loginContext.setProfileHandlerURL("/profile/SAML2/Redirect/SSO");
+        loginContext.setAuthenticationEngineURL("/AuthnEngine");
+        loginContext.setAttemptedAuthnMethod(PPT);
+        loginContext.setDefaultAuthenticationMethod(PPT);
+        loginContext.setSessionID("c2Vzc2lvbi1pZGVudGlmaWVy");
+        loginContext.setAuthenticationAttempted();
+        loginContext.setPrincipalAuthenticated(true);
+
+        UsernamePrincipal principal = new UsernamePrincipal("jdoe");
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        loginContext.setAuthenticationMethodInformation(new AuthenticationMethodInformationImpl(subject, principal,
+                PPT, new DateTime().minusSeconds(2), 1500));
+        loginContext.setAuthenticationFailure(new AuthenticationException("Password expired"));
+        loginContext.setProperty("retries", Integer.valueOf(2));
+        return loginContext;
+    }
+
+    /**
+     * Builds an authentication request holding every field written by the codec.
+     * 
+     * @return the authentication request
+     */
+    private AuthnRequest buildRequest() {
+        AuthnRequest request = buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID("_a7c3f9");
+        request.setVersion(SAMLVersion.VERSION_20);
+        request.setIssueInstant(new DateTime());
+        request.setDestination("https://idp.example.org/idp/profile/SAML2/Redirect/SSO");
+        request.setConsent("urn:oasis:names:tc:SAML:2.0:consent:obtained");
+        request.setProviderName("Example SP");
+
+        Issuer issuer = buildObject(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(SP);
+        issuer.setFormat(Issuer.ENTITY);
+        request.setIssuer(issuer);
+
+        request.setAssertionConsumerServiceIndex(2);
+        request.setProtocolBinding("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST");
+        request.setForceAuthn(new XSBooleanValue(Boolean.TRUE, true));
+
+        NameIDPolicy nameIDPolicy = buildObject(NameIDPolicy.DEFAULT_ELEMENT_NAME);
+        nameIDPolicy.setFormat(NameID.TRANSIENT);
+        nameIDPolicy.setSPNameQualifier(SP);
+        nameIDPolicy.setAllowCreate(Boolean.TRUE);
+        request.setNameIDPolicy(nameIDPolicy);
+
+        RequestedAuthnContext authnContext = buildObject(RequestedAuthnContext.DEFAULT_ELEMENT_NAME);
+        authnContext.setComparison(AuthnContextComparisonTypeEnumeration.EXACT);
+        AuthnContextClassRef classRef = buildObject(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setAuthnContextClassRef(PPT);
+        authnContext.getAuthnContextClassRefs().add(classRef);
+        AuthnContextDeclRef declRef = buildObject(AuthnContextDeclRef.DEFAULT_ELEMENT_NAME);
+        declRef.setAuthnContextDeclRef("urn:example:decl");
+        authnContext.getAuthnContextDeclRefs().add(declRef);
+        request.setRequestedAuthnContext(authnContext);
+
+        org.opensaml.saml2.core.Subject subject = buildObject(org.opensaml.saml2.core.Subject.DEFAULT_ELEMENT_NAME);
+        NameID nameID = buildObject(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue("jdoe");
+        nameID.setFormat(NameID.UNSPECIFIED);
+        nameID.setNameQualifier("https://idp.example.org/idp/shibboleth");
+        nameID.setSPProvidedID("john");
+        subject.setNameID(nameID);
+        request.setSubject(subject);
+        return request;
+    }
+
+    /**
+     * Builds a SAML object.
+     * 
+     * @param <T> type of the object
+     * @param elementName element name of the object
+     * 
+     * @return the object
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends XMLObject> T buildObject(QName elementName) {
+        XMLObjectBuilder<T> builder = builderFactory.getBuilder(elementName);
+        return builder.buildObject(elementName);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests {@link JAASLoginExecutor}. */
+public class JAASLoginExecutorTest extends TestCase {
+
+    /** Latch on which logins of the user "blocked" wait. */
+    private static volatile CountDownLatch blockedLogins;
+
+    /** JAAS configuration in place before the test. */
+    private Configuration previousConfiguration;
+
+    /** Executor under test. */
+    private JAASLoginExecutor executor;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        blockedLogins = new CountDownLatch(1);
+        previousConfiguration = Configuration.getConfiguration();
+        Configuration.setConfiguration(new TestConfiguration());
+        executor = new JAASLoginExecutor(1, 1, 500);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        blockedLogins.countDown();
+        executor.shutdown();
+        Configuration.setConfiguration(previousConfiguration);
+        super.tearDown();
+    }
+
+    /** Tests successful and failed logins. */
+    public void testLogin() throws Exception {
+        Subject subject = executor.login("test", new TestCallbackHandler("jdoe"));
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("jdoe")));
+
+        try {
+            executor.login("test", new TestCallbackHandler("nobody"));
+            fail("Login of unknown user succeeded");
+        } catch (FailedLoginException e) {
+            // expected
+        }
+
+        assertEquals(1, executor.getSuccessCount());
+        assertEquals(1, executor.getFailureCount());
+    }
+
+    /** Tests that an attempt times out, and its login is interrupted, when the login does not complete in time. */
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            executor.login("test", new TestCallbackHandler("blocked"));
+            fail("Blocked login succeeded");
+        } catch (LoginException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, executor.getTimeoutCount());
+
+        // the interrupted login frees the login thread for the next attempt
+        executor.login("test", new TestCallbackHandler("jdoe"));
+        assertEquals(1, executor.getSuccessCount());
+    }
+
+    /** Tests that attempts are rejected once the login thread is busy and the queue is full. */
+    public void testRejection() throws Exception {
+        executor.shutdown();
+        executor = new JAASLoginExecutor(1, 1, 10000);
+
+        Thread[] blocked = new Thread[2];
+        for (int i = 0; i < blocked.length; i++) {
+            blocked[i] = new Thread() {
+                public void run() {
+                    try {
+                        executor.login("test", new TestCallbackHandler("blocked"));
+                    } catch (LoginException e) {
+                        // expected
+                    }
+                }
+            };
+            blocked[i].start();
+        }
+        for (int i = 0; i < 500 && (executor.getActiveCount() == 0 || executor.getQueueDepth() == 0); i++) {
+            Thread.sleep(10);
+        }
+
+        try {
+            executor.login("test", new TestCallbackHandler("jdoe"));
+            fail("Login beyond the queue size was accepted");
+        } catch (LoginException e) {
+            // expected
+        }
+        assertEquals(1, executor.getRejectedCount());
+
+        blockedLogins.countDown();
+        for (Thread thread : blocked) {
+            thread.join();
+        }
+        assertEquals(2, executor.getFailureCount());
+    }
+
+    /** JAAS configuration using {@link TestLoginModule} for every application. */
+    private static class TestConfiguration extends Configuration {
+
+        /** {@inheritDoc} */
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+            return new AppConfigurationEntry[] {new AppConfigurationEntry(TestLoginModule.class.getName(),
+                    AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, new java.util.HashMap<String, Object>()),};
+        }
+
+        /** {@inheritDoc} */
+        public void refresh() {
+        }
+    }
+
+    /** Callback handler providing a user name. */
+    private static class TestCallbackHandler implements CallbackHandler {
+
+        /** The user name. */
+        private final String username;
+
+        /**
+         * Constructor.
+         * 
+         * @param name the user name
+         */
+        public TestCallbackHandler(String name) {
+            username = name;
+        }
+
+        /** {@inheritDoc} */
+        public void handle(Callback[] callbacks) {
+            for (Callback callback : callbacks) {
+                ((NameCallback) callback).setName(username);
+            }
+        }
+    }
+
+    /** Login module accepting the user "jdoe" and blocking logins of the user "blocked". */
+    public static class TestLoginModule implements LoginModule {
+
+        /** Subject being authenticated. */
+        private Subject subject;
+
+        /** Handler providing the user name. */
+        private CallbackHandler handler;
+
+        /** Name of the authenticated user. */
+        private String username;
+
+        /** {@inheritDoc} */
+        public void initialize(Subject loginSubject, CallbackHandler callbackHandler, Map<String, ?> sharedState,
+                Map<String, ?> options) {
+            subject = loginSubject;
+            handler = callbackHandler;
+        }
+
+        /** {@inheritDoc} */
+        public boolean login() throws LoginException {
+            NameCallback nameCallback = new NameCallback("username");
+            try {
+                handler.handle(new Callback[] {nameCallback,});
+                if ("blocked".equals(nameCallback.getName())) {
+                    blockedLogins.await(10, TimeUnit.SECONDS);
+                }
+            } catch (Exception e) {
+                throw new LoginException(e.getMessage());
+            }
+            if (!"jdoe".equals(nameCallback.getName())) {
+                throw new FailedLoginException("Unknown user");
+            }
+            username = nameCallback.getName();
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean commit() {
+            subject.getPrincipals().add(new UsernamePrincipal(username));
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean abort() {
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean logout() {
+            return true;
+        }
+    }
+}
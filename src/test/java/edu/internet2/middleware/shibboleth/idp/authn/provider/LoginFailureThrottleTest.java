@@ -0,0 +1,138 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/** Tests {@link LoginFailureThrottle}. */
+public class LoginFailureThrottleTest extends TestCase {
+
+    /** Tests throttling by username. */
+    public void testUsernameThrottling() {
+        LoginFailureThrottle throttle = new LoginFailureThrottle(60000, 3, 0, 100);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(throttle.isThrottled("jdoe", "192.168.1.1", 1000));
+            throttle.loginFailed("jdoe", "192.168.1.1", 1000 + i);
+        }
+        assertTrue(throttle.isThrottled("JDoe", "192.168.1.2", 2000));
+        assertFalse(throttle.isThrottled("alice", "192.168.1.1", 2000));
+
+        assertFalse("Failures outlived the window", throttle.isThrottled("jdoe", "192.168.1.1", 70000));
+
+        throttle.loginFailed("jdoe", null, 80000);
+        throttle.loginFailed("jdoe", null, 80000);
+        throttle.loginSucceeded("JDOE");
+        throttle.loginFailed("jdoe", null, 80000);
+        assertFalse("Success did not clear failures", throttle.isThrottled("jdoe", null, 80000));
+
+        assertEquals(1, throttle.getThrottledCount());
+        assertEquals(0, throttle.getTrackedAddressCount());
+    }
+
+    /** Tests throttling by client address. */
+    public void testAddressThrottling() {
+        LoginFailureThrottle throttle = new LoginFailureThrottle(60000, 0, 5, 100);
+        for (int i = 0; i < 5; i++) {
+            throttle.loginFailed("user" + i, "192.168.1.1", 1000);
+        }
+        assertTrue(throttle.isThrottled("someone", "192.168.1.1", 2000));
+        assertFalse(throttle.isThrottled("someone", "192.168.1.2", 2000));
+
+        throttle.loginSucceeded("user1");
+        assertTrue(throttle.isThrottled("user1", "192.168.1.1", 2000));
+        assertEquals(0, throttle.getTrackedUsernameCount());
+    }
+
+    /** Tests that the number of tracked keys is bounded, idle keys being dropped first. */
+    public void testBound() {
+        LoginFailureThrottle throttle = new LoginFailureThrottle(60000, 2, 0, 3);
+        throttle.loginFailed("idle", null, 0);
+        throttle.loginFailed("active1", null, 50000);
+        throttle.loginFailed("active1", null, 50000);
+        throttle.loginFailed("active2", null, 50000);
+        throttle.loginFailed("new", null, 70000);
+        assertEquals(3, throttle.getTrackedUsernameCount());
+        assertTrue(throttle.isThrottled("active1", null, 70000));
+
+        for (int i = 0; i < 10; i++) {
+            throttle.loginFailed("other" + i, null, 70000);
+        }
+        assertTrue(throttle.getTrackedUsernameCount() <= 3);
+        assertTrue("Throttled key was dropped", throttle.isThrottled("active1", null, 70000));
+    }
+
+    /** Tests that flooding the throttle with new keys does not lift a lockout. */
+    public void testLockoutSurvivesFlood() {
+        LoginFailureThrottle throttle = new LoginFailureThrottle(60000, 0, 2, 4);
+        throttle.loginFailed("jdoe", "10.0.0.1", 1000);
+        throttle.loginFailed("jdoe", "10.0.0.1", 1000);
+        assertTrue(throttle.isThrottled("jdoe", "10.0.0.1", 1000));
+
+        for (int i = 0; i < 1000; i++) {
+            throttle.loginFailed("jdoe", "192.168.0." + i, 2000);
+        }
+        assertTrue("Flood lifted the lockout", throttle.isThrottled("jdoe", "10.0.0.1", 2000));
+        assertTrue(throttle.getTrackedAddressCount() <= 4);
+
+        for (int i = 1; i <= 4; i++) {
+            throttle.loginFailed("jdoe", "10.0.1." + i, 3000);
+            throttle.loginFailed("jdoe", "10.0.1." + i, 3000);
+        }
+        throttle.loginFailed("jdoe", "10.0.2.1", 3000);
+        assertTrue(throttle.isThrottled("jdoe", "10.0.0.1", 3000));
+        assertEquals(4, throttle.getTrackedAddressCount());
+    }
+
+    /** Tests that no concurrently counted failure is lost. */
+    public void testConcurrentFailures() throws Exception {
+        final LoginFailureThrottle throttle = new LoginFailureThrottle(60000, 80000, 0, 100);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long now = 1000000;
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        throttle.loginFailed("jdoe", null, now + (i % 3) * 6000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(throttle.isThrottled("jdoe", null, now + 12000));
+
+        throttle.loginSucceeded("jdoe");
+        for (int i = 0; i < 79999; i++) {
+            throttle.loginFailed("jdoe", null, now + 12000);
+        }
+        assertFalse(throttle.isThrottled("jdoe", null, now + 12000));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+
+/** Tests {@link VerifiedCredentialCache}. */
+public class VerifiedCredentialCacheTest extends TestCase {
+
+    /** Tests hits, misses, expiration and invalidation by a different password. */
+    public void testCache() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(60000, 10, 100);
+        assertNull(cache.getSubject("jdoe", "secret", 0));
+
+        cache.add("jdoe", "secret", buildSubject("jdoe"), 0);
+        Subject subject = cache.getSubject("jdoe", "secret", 1000);
+        assertNotNull(subject);
+        assertTrue(subject.getPrincipals().contains(new UsernamePrincipal("jdoe")));
+        assertTrue(subject.getPrivateCredentials().isEmpty());
+        assertNotSame(subject, cache.getSubject("jdoe", "secret", 1000));
+
+        assertNull("Cached credential outlived its time to live", cache.getSubject("jdoe", "secret", 60000));
+        assertEquals(0, cache.getSize());
+
+        cache.add("jdoe", "secret", buildSubject("jdoe"), 0);
+        assertNull(cache.getSubject("jdoe", "guess", 1000));
+        assertNull("Different password did not invalidate", cache.getSubject("jdoe", "secret", 1000));
+
+        cache.add("jdoe", "secret", buildSubject("jdoe"), 0);
+        cache.invalidate("jdoe");
+        assertNull(cache.getSubject("jdoe", "secret", 1000));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getInvalidationCount());
+    }
+
+    /** Tests that the number of entries is bounded, expired entries being dropped first. */
+    public void testBound() {
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(60000, 3, 100);
+        cache.add("expired", "secret", buildSubject("expired"), 0);
+        cache.add("user1", "secret", buildSubject("user1"), 30000);
+        cache.add("user2", "secret", buildSubject("user2"), 30000);
+        cache.add("user3", "secret", buildSubject("user3"), 70000);
+        assertEquals(3, cache.getSize());
+        assertNotNull(cache.getSubject("user1", "secret", 70000));
+        assertNotNull(cache.getSubject("user3", "secret", 70000));
+
+        for (int i = 0; i < 10; i++) {
+            cache.add("other" + i, "secret", buildSubject("other" + i), 70000);
+        }
+        assertEquals(3, cache.getSize());
+    }
+
+    /** Tests concurrent lookups, additions and invalidations. */
+    public void testConcurrentUse() throws Exception {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache(60000, 8, 10);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger wrongSubjects = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int threadNumber = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        String username;
+                        Subject subject;
+                        for (int i = 0; i < 500; i++) {
+                            username = "user" + ((threadNumber + i) % 12);
+                            subject = cache.getSubject(username, "pw-" + username);
+                            if (subject != null
+                                    && !subject.getPrincipals().contains(new UsernamePrincipal(username))) {
+                                wrongSubjects.incrementAndGet();
+                            }
+                            if (i % 7 == 0) {
+                                cache.getSubject(username, "wrong");
+                            } else if (subject == null) {
+                                cache.add(username, "pw-" + username, buildSubject(username));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertEquals(0, wrongSubjects.get());
+        assertTrue(cache.getSize() <= 8 + threads.length);
+        assertTrue(cache.getHitCount() > 0);
+        assertEquals(8 * 500, cache.getHitCount() + cache.getMissCount() - countWrongLookups(threads.length));
+    }
+
+    /**
+     * Counts the lookups with a wrong password made by {@link #testConcurrentUse()}.
+     * 
+     * @param threadCount number of threads
+     * 
+     * @return number of lookups with a wrong password
+     */
+    private long countWrongLookups(int threadCount) {
+        long count = 0;
+        for (int i = 0; i < 500; i++) {
+            if (i % 7 == 0) {
+                count++;
+            }
+        }
+        return count * threadCount;
+    }
+
+    /**
+     * Builds an authenticated subject.
+     * 
+     * @param username name of the user
+     * 
+     * @return the subject
+     */
+    private static Subject buildSubject(String username) {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal(username));
+        subject.getPrivateCredentials().add(new UsernamePasswordCredential(username, "pw-" + username));
+        return subject;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import junit.framework.TestCase;
+
+import org.opensaml.saml2.metadata.provider.AbstractObservableMetadataProvider;
+import org.opensaml.xml.XMLObject;
+
+import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
+
+/** Unit test for {@link RelyingPartyBundleCache}. */
+public class RelyingPartyBundleCacheTest extends TestCase {
+
+    /** Entity ID of the asserting party. */
+    private static final String IDP = "https://idp.example.org/idp/shibboleth";
+
+    /** Metadata provider of the cached bundles. */
+    private RefreshableMetadataProvider metadataProvider;
+
+    /** Anonymous relying party configuration of the cached bundles. */
+    private RelyingPartyConfiguration anonymous;
+
+    /** Cache being tested. */
+    private RelyingPartyBundleCache cache;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        metadataProvider = new RefreshableMetadataProvider();
+        anonymous = new RelyingPartyConfiguration(IDP);
+        cache = new RelyingPartyBundleCache(60000, 3);
+    }
+
+    /** Tests that cached bundles are returned until they are older than the maximum age. */
+    public void testGetAndMaxAge() throws Exception {
+        long generation = cache.getGeneration(metadataProvider, anonymous);
+        assertNull(cache.get("https://sp1.example.org"));
+        assertNull(cache.get(null));
+
+        RelyingPartyBundle bundle = buildBundle("https://sp1.example.org");
+        cache.put(bundle, generation);
+        assertEquals(generation, cache.getGeneration(metadataProvider, anonymous));
+        assertSame(bundle, cache.get("https://sp1.example.org"));
+
+        cache = new RelyingPartyBundleCache(1, 3);
+        generation = cache.getGeneration(metadataProvider, anonymous);
+        cache.put(bundle, generation);
+        Thread.sleep(5);
+        assertNull(cache.get("https://sp1.example.org"));
+        assertEquals(0, cache.getSize());
+    }
+
+    /** Tests that the number of cached bundles is bounded, preferring to drop expired bundles. */
+    public void testMaximumEntries() throws Exception {
+        long generation = cache.getGeneration(metadataProvider, anonymous);
+        for (int i = 0; i < 10; i++) {
+            cache.put(buildBundle("https://sp" + i + ".example.org"), generation);
+            assertTrue(cache.getSize() <= 3);
+        }
+        assertNotNull("Latest bundle dropped", cache.get("https://sp9.example.org"));
+
+        // replacing a cached bundle needs no room
+        RelyingPartyBundle bundle = buildBundle("https://sp9.example.org");
+        cache.put(bundle, generation);
+        assertEquals(3, cache.getSize());
+        assertSame(bundle, cache.get("https://sp9.example.org"));
+    }
+
+    /** Tests that a bundle built before the cache was cleared is not cached. */
+    public void testGeneration() throws Exception {
+        long generation = cache.getGeneration(metadataProvider, anonymous);
+        cache.put(buildBundle("https://sp1.example.org"), generation);
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        cache.put(buildBundle("https://sp2.example.org"), generation);
+        assertNull(cache.get("https://sp2.example.org"));
+
+        long nextGeneration = cache.getGeneration(metadataProvider, anonymous);
+        assertTrue(nextGeneration != generation);
+        cache.put(buildBundle("https://sp2.example.org"), nextGeneration);
+        assertNotNull(cache.get("https://sp2.example.org"));
+    }
+
+    /** Tests that replacing the metadata provider or the relying party configurations clears the cache. */
+    public void testReload() throws Exception {
+        long generation = cache.getGeneration(metadataProvider, anonymous);
+        cache.put(buildBundle("https://sp1.example.org"), generation);
+
+        RelyingPartyConfiguration reloaded = new RelyingPartyConfiguration(IDP);
+        generation = cache.getGeneration(metadataProvider, reloaded);
+        assertNull(cache.get("https://sp1.example.org"));
+        cache.put(buildBundle("https://sp1.example.org"), generation);
+
+        RefreshableMetadataProvider replaced = new RefreshableMetadataProvider();
+        cache.getGeneration(replaced, reloaded);
+        assertNull(cache.get("https://sp1.example.org"));
+        assertTrue("Replaced provider still observed", metadataProvider.getObservers().isEmpty());
+        assertEquals(1, replaced.getObservers().size());
+    }
+
+    /** Tests that a metadata refresh drops the bundles built from the previous metadata. */
+    public void testMetadataRefresh() throws Exception {
+        long generation = cache.getGeneration(metadataProvider, anonymous);
+        cache.put(buildBundle("https://sp1.example.org"), generation);
+        cache.put(buildBundle("https://sp2.example.org"), generation);
+        assertEquals(2, cache.getSize());
+
+        metadataProvider.refresh();
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get("https://sp1.example.org"));
+
+        // a bundle built from the metadata before the refresh is not cached
+        cache.put(buildBundle("https://sp1.example.org"), generation);
+        assertNull(cache.get("https://sp1.example.org"));
+
+        generation = cache.getGeneration(metadataProvider, anonymous);
+        cache.put(buildBundle("https://sp1.example.org"), generation);
+        assertNotNull(cache.get("https://sp1.example.org"));
+    }
+
+    /**
+     * Builds a bundle of a relying party without metadata.
+     *
+     * @param relyingPartyId entity ID of the relying party
+     *
+     * @return the bundle
+     */
+    private RelyingPartyBundle buildBundle(String relyingPartyId) {
+        return new RelyingPartyBundle(relyingPartyId, null, anonymous, null);
+    }
+
+    /** Metadata provider without metadata, which signals a refresh on demand. */
+    private static class RefreshableMetadataProvider extends AbstractObservableMetadataProvider {
+
+        /** Signals a metadata refresh to the observers. */
+        public void refresh() {
+            emitChangeEvent();
+        }
+
+        /** {@inheritDoc} */
+        protected XMLObject doGetMetadata() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+
+/** Unit test for {@link SignatureTemplateCache}. */
+public class SignatureTemplateCacheTest extends TestCaseBase {
+
+    /** Key pair of the signing credentials. */
+    private KeyPair keyPair;
+
+    /** Credential signing assertions. */
+    private Credential signingCredential;
+
+    /** Cache being tested. */
+    private SignatureTemplateCache cache;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        keyPair = SecurityHelper.generateKeyPair("RSA", 1024, null);
+        signingCredential = SecurityHelper.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+        cache = new SignatureTemplateCache();
+    }
+
+    /** Tests that a signature prepared from a cached template is the one prepared without the cache. */
+    public void testCachedSignature() throws Exception {
+        Assertion uncached = buildAssertion();
+        Signature signature = buildSignature();
+        SecurityHelper.prepareSignatureParams(signature, signingCredential, null, null);
+        sign(uncached, signature);
+
+        // the first assertion derives the template, the second one uses the cached template
+        for (int i = 0; i < 2; i++) {
+            Assertion cached = buildAssertion();
+            signature = buildSignature();
+            cache.prepare(signature);
+            assertEquals(uncached.getSignature().getSignatureAlgorithm(), signature.getSignatureAlgorithm());
+            assertEquals(uncached.getSignature().getCanonicalizationAlgorithm(),
+                    signature.getCanonicalizationAlgorithm());
+            assertEquals(uncached.getSignature().getHMACOutputLength(), signature.getHMACOutputLength());
+            assertNotNull(signature.getKeyInfo());
+            sign(cached, signature);
+
+            assertXMLEqual(XMLHelper.nodeToString(uncached.getDOM()), XMLHelper.nodeToString(cached.getDOM()));
+        }
+        assertEquals(1, cache.getSize());
+    }
+
+    /** Tests that the cache is cleared once it holds the maximum number of templates. */
+    public void testMaximumTemplates() throws Exception {
+        for (int i = 0; i < 64; i++) {
+            Signature signature = buildSignature();
+            signature.setSigningCredential(SecurityHelper.getSimpleCredential(keyPair.getPublic(),
+                    keyPair.getPrivate()));
+            cache.prepare(signature);
+        }
+        assertEquals(64, cache.getSize());
+
+        cache.prepare(buildSignature());
+        assertEquals(1, cache.getSize());
+    }
+
+    /** Tests that concurrent threads sign with a shared credential, each signature getting its own key info. */
+    public void testConcurrentSigning() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Signature>>> results = new ArrayList<Future<List<Signature>>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<List<Signature>>() {
+                    public List<Signature> call() throws Exception {
+                        List<Signature> signatures = new ArrayList<Signature>();
+                        for (int j = 0; j < 25; j++) {
+                            Signature signature = buildSignature();
+                            cache.prepare(signature);
+                            sign(buildAssertion(), signature);
+                            signatures.add(signature);
+                        }
+                        return signatures;
+                    }
+                }));
+            }
+
+            SignatureValidator validator = new SignatureValidator(signingCredential);
+            List<Object> keyInfos = new ArrayList<Object>();
+            for (Future<List<Signature>> result : results) {
+                for (Signature signature : result.get()) {
+                    validator.validate(signature);
+                    for (Object keyInfo : keyInfos) {
+                        assertNotSame("Key info shared by two signatures", keyInfo, signature.getKeyInfo());
+                    }
+                    keyInfos.add(signature.getKeyInfo());
+                }
+            }
+            assertEquals(100, keyInfos.size());
+            assertEquals(1, cache.getSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds a signature whose signing credential is the shared credential.
+     * 
+     * @return the signature
+     */
+    @SuppressWarnings("unchecked")
+    private Signature buildSignature() {
+        Signature signature = ((XMLObjectBuilder<Signature>) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME))
+                .buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        return signature;
+    }
+
+    /**
+     * Builds an assertion, the same each time.
+     * 
+     * @return the assertion
+     */
+    @SuppressWarnings("unchecked")
+    private Assertion buildAssertion() {
+        Assertion assertion = ((SAMLObjectBuilder<Assertion>) builderFactory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME))
+                .buildObject();
+        assertion.setID("_assertion");
+        assertion.setIssueInstant(new DateTime(2010, 1, 1, 0, 0, 0, 0, ISOChronology.getInstanceUTC()));
+        return assertion;
+    }
+
+    /**
+     * Signs an assertion.
+     * 
+     * @param assertion assertion to sign
+     * @param signature prepared signature of the assertion
+     * 
+     * @throws Exception thrown if the assertion can not be signed
+     */
+    private void sign(Assertion assertion, Signature signature) throws Exception {
+        assertion.setSignature(signature);
+        marshallerFactory.getMarshaller(assertion).marshall(assertion);
+        Signer.signObject(signature);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile.saml2;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.encryption.Decrypter;
+import org.opensaml.saml2.encryption.Encrypter;
+import org.opensaml.xml.encryption.EncryptedData;
+import org.opensaml.xml.encryption.InlineEncryptedKeyResolver;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
+
+import edu.internet2.middleware.shibboleth.common.relyingparty.RelyingPartyConfiguration;
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+import edu.internet2.middleware.shibboleth.idp.profile.RelyingPartyBundle;
+
+/** Unit test for the encryption support of {@link AbstractSAML2ProfileHandler}. */
+public class AbstractSAML2ProfileHandlerTest extends TestCaseBase {
+
+    /** Entity ID of the relying party. */
+    private static final String SP = "https://sp.example.org/shibboleth";
+
+    /** Key encryption credential of the relying party. */
+    private Credential keyEncryptionCredential;
+
+    /** Profile handler being tested. */
+    private EncryptingProfileHandler profileHandler;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        KeyPair keyPair = SecurityHelper.generateKeyPair("RSA", 1024, null);
+        keyEncryptionCredential = SecurityHelper.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+        profileHandler = new EncryptingProfileHandler();
+    }
+
+    /** Tests that assertions encrypted to the same relying party both decrypt, each with its own data key. */
+    public void testEncryptToSameRelyingParty() throws Exception {
+        Encrypter encrypter = profileHandler.getEncrypter(SP);
+        EncryptedAssertion first = encrypter.encrypt(buildAssertion("_assertion1"));
+        EncryptedAssertion second = profileHandler.getEncrypter(SP).encrypt(buildAssertion("_assertion2"));
+
+        // the key encryption parameters are kept with the relying party bundle
+        assertEquals(1, profileHandler.resolutions);
+
+        Decrypter decrypter = new Decrypter(null, new StaticKeyInfoCredentialResolver(keyEncryptionCredential),
+                new InlineEncryptedKeyResolver());
+        assertEquals("_assertion1", decrypter.decrypt(first).getID());
+        assertEquals("_assertion2", decrypter.decrypt(second).getID());
+
+        Key firstKey = decryptDataKey(decrypter, first);
+        Key secondKey = decryptDataKey(decrypter, second);
+        assertEquals(firstKey.getEncoded().length, secondKey.getEncoded().length);
+        assertFalse("Data key reused", Arrays.equals(firstKey.getEncoded(), secondKey.getEncoded()));
+    }
+
+    /**
+     * Decrypts the data key of an encrypted assertion.
+     * 
+     * @param decrypter decrypter holding the key encryption credential
+     * @param encryptedAssertion the encrypted assertion
+     * 
+     * @return the data key
+     * 
+     * @throws Exception thrown if the key can not be decrypted
+     */
+    private Key decryptDataKey(Decrypter decrypter, EncryptedAssertion encryptedAssertion) throws Exception {
+        EncryptedData encryptedData = encryptedAssertion.getEncryptedData();
+        return decrypter.decryptKey(encryptedData.getKeyInfo().getEncryptedKeys().get(0), encryptedData
+                .getEncryptionMethod().getAlgorithm());
+    }
+
+    /**
+     * Builds an assertion.
+     * 
+     * @param id ID of the assertion
+     * 
+     * @return the assertion
+     */
+    @SuppressWarnings("unchecked")
+    private Assertion buildAssertion(String id) {
+        Assertion assertion = ((SAMLObjectBuilder<Assertion>) builderFactory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME))
+                .buildObject();
+        assertion.setID(id);
+        assertion.setIssueInstant(new DateTime());
+        return assertion;
+    }
+
+    /** Profile handler encrypting to a single relying party, whose key encryption credential is given. */
+    private class EncryptingProfileHandler extends AttributeQueryProfileHandler {
+
+        /** Bundle of the relying party. */
+        private final RelyingPartyBundle bundle = new RelyingPartyBundle(SP, null, new RelyingPartyConfiguration(
+                "https://idp.example.org/idp/shibboleth"), null);
+
+        /** Number of times the key encryption credential was resolved. */
+        private int resolutions;
+
+        /** {@inheritDoc} */
+        protected RelyingPartyBundle getRelyingPartyBundle(String relyingPartyId) {
+            return SP.equals(relyingPartyId) ? bundle : null;
+        }
+
+        /** {@inheritDoc} */
+        protected Credential getKeyEncryptionCredential(String peerEntityId) {
+            resolutions++;
+            return keyEncryptionCredential;
+        }
+    }
+}
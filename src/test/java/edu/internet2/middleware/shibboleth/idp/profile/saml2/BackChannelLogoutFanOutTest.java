@@ -0,0 +1,203 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile.saml2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/** Unit test for {@link BackChannelLogoutFanOut}. */
+public class BackChannelLogoutFanOutTest extends TestCase {
+
+    /** Executor running the tasks. */
+    private ExecutorService executor;
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /** Tests that logouts are issued concurrently. */
+    public void testConcurrentLogouts() {
+        executor = createExecutor(4);
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        List<TestTask> tasks = new ArrayList<TestTask>();
+        for (int i = 0; i < 4; i++) {
+            // a task only completes once all four run at the same time
+            tasks.add(new TestTask(barrier, null));
+        }
+
+        assertTrue(BackChannelLogoutFanOut.run(executor, tasks, 5000).isEmpty());
+        for (TestTask task : tasks) {
+            assertTrue(task.completed);
+            assertFalse(task.aborted);
+            assertFalse(task.thread == Thread.currentThread());
+        }
+    }
+
+    /** Tests that logouts still running at the deadline are aborted and reported, without waiting for them. */
+    public void testDeadline() throws Exception {
+        executor = createExecutor(2);
+        CountDownLatch release = new CountDownLatch(1);
+        TestTask fast = new TestTask(null, null);
+        TestTask slow = new TestTask(null, release);
+        List<TestTask> tasks = new ArrayList<TestTask>();
+        tasks.add(slow);
+        tasks.add(fast);
+
+        long start = System.currentTimeMillis();
+        List<TestTask> unfinished = BackChannelLogoutFanOut.run(executor, tasks, 200);
+        long elapsed = System.currentTimeMillis() - start;
+        release.countDown();
+
+        assertTrue("Waited " + elapsed + "ms past the deadline", elapsed < 2000);
+        assertEquals(1, unfinished.size());
+        assertSame(slow, unfinished.get(0));
+        assertTrue(slow.aborted);
+        assertFalse(slow.completed);
+        assertTrue(fast.completed);
+        assertFalse(fast.aborted);
+    }
+
+    /** Tests that a logout failing unexpectedly neither stops the wait for nor aborts the other logouts. */
+    public void testFailedLogout() throws Exception {
+        executor = createExecutor(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        TestTask failing = new TestTask(null, null) {
+            public void run() {
+                super.run();
+                throw new IllegalStateException("Logout failed");
+            }
+        };
+        TestTask slow = new TestTask(null, release);
+        List<TestTask> tasks = new ArrayList<TestTask>();
+        tasks.add(failing);
+        tasks.add(slow);
+
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // release right away
+                }
+                release.countDown();
+            }
+        };
+        releaser.start();
+        List<TestTask> unfinished = BackChannelLogoutFanOut.run(executor, tasks, 5000);
+        releaser.join();
+
+        assertTrue(unfinished.isEmpty());
+        assertFalse(failing.aborted);
+        assertTrue(slow.completed);
+        assertFalse(slow.aborted);
+    }
+
+    /** Tests that logouts the executor refuses are reported rather than run on the calling thread. */
+    public void testRejectedLogouts() {
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadPoolExecutor.AbortPolicy());
+        CountDownLatch release = new CountDownLatch(1);
+        TestTask running = new TestTask(null, release);
+        TestTask refused = new TestTask(null, null);
+        List<TestTask> tasks = new ArrayList<TestTask>();
+        tasks.add(running);
+        tasks.add(refused);
+
+        List<TestTask> unfinished = BackChannelLogoutFanOut.run(executor, tasks, 100);
+        release.countDown();
+
+        assertEquals(2, unfinished.size());
+        assertSame(refused, unfinished.get(0));
+        assertNull("Refused logout was run", refused.thread);
+        assertFalse(refused.aborted);
+        assertTrue(running.aborted);
+    }
+
+    /**
+     * Creates an executor with a fixed number of threads.
+     *
+     * @param threads number of threads
+     *
+     * @return the executor
+     */
+    private ExecutorService createExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** Task standing in for a back-channel logout. */
+    private static class TestTask implements BackChannelLogoutFanOut.Task {
+
+        /** Barrier the task waits at, may be null. */
+        private final CyclicBarrier barrier;
+
+        /** Latch the task waits for, may be null. */
+        private final CountDownLatch latch;
+
+        /** Thread the task ran on, null if it has not run. */
+        private volatile Thread thread;
+
+        /** Whether the task completed. */
+        private volatile boolean completed;
+
+        /** Whether the task was aborted. */
+        private volatile boolean aborted;
+
+        /**
+         * Constructor.
+         *
+         * @param taskBarrier barrier the task waits at, may be null
+         * @param taskLatch latch the task waits for, may be null
+         */
+        TestTask(CyclicBarrier taskBarrier, CountDownLatch taskLatch) {
+            barrier = taskBarrier;
+            latch = taskLatch;
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                if (barrier != null) {
+                    barrier.await(5, TimeUnit.SECONDS);
+                }
+                if (latch != null) {
+                    latch.await();
+                }
+            } catch (Exception e) {
+                return;
+            }
+            completed = !aborted;
+        }
+
+        /** {@inheritDoc} */
+        public void abort() {
+            aborted = true;
+        }
+    }
+}
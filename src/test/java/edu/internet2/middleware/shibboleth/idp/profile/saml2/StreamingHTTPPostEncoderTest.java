@@ -0,0 +1,242 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.profile.saml2;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.saml2.binding.encoding.HTTPPostEncoder;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.Signer;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import edu.internet2.middleware.shibboleth.idp.TestCaseBase;
+
+/** Tests that {@link StreamingHTTPPostEncoder} produces the same output as {@link HTTPPostEncoder}. */
+public class StreamingHTTPPostEncoderTest extends TestCaseBase {
+
+    /** Template of the form. */
+    private static final String TEMPLATE = "/templates/saml2-post-binding.vm";
+
+    /** Velocity engine rendering the form. */
+    private VelocityEngine velocityEngine;
+
+    /** Credential signing assertions. */
+    private Credential signingCredential;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        velocityEngine = new VelocityEngine();
+        velocityEngine.setProperty(RuntimeConstants.ENCODING_DEFAULT, "UTF-8");
+        velocityEngine.setProperty(RuntimeConstants.OUTPUT_ENCODING, "UTF-8");
+        velocityEngine.setProperty(RuntimeConstants.RESOURCE_LOADER, "classpath");
+        velocityEngine.setProperty("classpath.resource.loader.class",
+                "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        velocityEngine.init();
+
+        KeyPair keyPair = SecurityHelper.generateKeyPair("RSA", 1024, null);
+        signingCredential = SecurityHelper.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+    }
+
+    /** Tests a response carrying a signed assertion, posted with relay state that must be escaped. */
+    public void testResponseWithSignedAssertion() throws Exception {
+        String relayState = "https://sp.example.org/app?a=1&b=\"<2>\"";
+
+        MockHttpServletResponse expected = encode(new HTTPPostEncoder(velocityEngine, TEMPLATE), buildResponse(),
+                AssertionConsumerService.DEFAULT_ELEMENT_NAME, relayState);
+        RecordingEncoder streamingEncoder = new RecordingEncoder();
+        Response response = buildResponse();
+        MockHttpServletResponse actual = encode(streamingEncoder, response,
+                AssertionConsumerService.DEFAULT_ELEMENT_NAME, relayState);
+
+        assertTrue("Message was not streamed", streamingEncoder.streamed(response));
+        assertTrue(expected.getContentAsString().contains("SAMLResponse"));
+        assertEquals(expected.getContentAsString(), actual.getContentAsString());
+        assertEquals(expected.getContentType(), actual.getContentType());
+        assertEquals(expected.getHeader("Cache-control"), actual.getHeader("Cache-control"));
+        assertEquals(expected.getHeader("Pragma"), actual.getHeader("Pragma"));
+    }
+
+    /** Tests a request posted without relay state. */
+    public void testRequest() throws Exception {
+        MockHttpServletResponse expected = encode(new HTTPPostEncoder(velocityEngine, TEMPLATE), buildLogoutRequest(),
+                SingleLogoutService.DEFAULT_ELEMENT_NAME, null);
+        RecordingEncoder streamingEncoder = new RecordingEncoder();
+        LogoutRequest request = buildLogoutRequest();
+        MockHttpServletResponse actual = encode(streamingEncoder, request, SingleLogoutService.DEFAULT_ELEMENT_NAME,
+                null);
+
+        assertTrue("Message was not streamed", streamingEncoder.streamed(request));
+        assertTrue(expected.getContentAsString().contains("SAMLRequest"));
+        assertEquals(expected.getContentAsString(), actual.getContentAsString());
+    }
+
+    /**
+     * Encodes a message to an endpoint.
+     * 
+     * @param encoder the encoder
+     * @param message the message
+     * @param endpointName element name of the endpoint
+     * @param relayState relay state, may be null
+     * 
+     * @return the HTTP response the message was encoded to
+     * 
+     * @throws Exception thrown if the message can not be encoded
+     */
+    @SuppressWarnings("unchecked")
+    private MockHttpServletResponse encode(HTTPPostEncoder encoder, SAMLObject message, QName endpointName,
+            String relayState) throws Exception {
+        SAMLObjectBuilder<Endpoint> endpointBuilder = (SAMLObjectBuilder<Endpoint>) builderFactory
+                .getBuilder(endpointName);
+        Endpoint endpoint = endpointBuilder.buildObject();
+        endpoint.setBinding("urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST");
+        endpoint.setLocation("https://sp.example.org/SAML2/POST?x=1&y=2");
+
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        BasicSAMLMessageContext<SAMLObject, SAMLObject, SAMLObject> messageContext =
+                new BasicSAMLMessageContext<SAMLObject, SAMLObject, SAMLObject>();
+        messageContext.setOutboundMessageTransport(new HttpServletResponseAdapter(servletResponse, false));
+        messageContext.setOutboundSAMLMessage(message);
+        messageContext.setPeerEntityEndpoint(endpoint);
+        messageContext.setRelayState(relayState);
+
+        encoder.encode(messageContext);
+        return servletResponse;
+    }
+
+    /**
+     * Builds a response carrying a signed assertion.
+     * 
+     * @return the response
+     * 
+     * @throws Exception thrown if the assertion can not be signed
+     */
+    @SuppressWarnings("unchecked")
+    private Response buildResponse() throws Exception {
+        DateTime issueInstant = new DateTime(2010, 1, 1, 0, 0, 0, 0, ISOChronology.getInstanceUTC());
+
+        Assertion assertion = ((SAMLObjectBuilder<Assertion>) builderFactory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME))
+                .buildObject();
+        assertion.setID("_assertion");
+        assertion.setIssueInstant(issueInstant);
+        assertion.setIssuer(buildIssuer());
+
+        Signature signature = ((XMLObjectBuilder<Signature>) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME))
+                .buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        SecurityHelper.prepareSignatureParams(signature, signingCredential, null, null);
+        assertion.setSignature(signature);
+        marshallerFactory.getMarshaller(assertion).marshall(assertion);
+        Signer.signObject(signature);
+
+        Response response = ((SAMLObjectBuilder<Response>) builderFactory.getBuilder(Response.DEFAULT_ELEMENT_NAME))
+                .buildObject();
+        response.setID("_response");
+        response.setIssueInstant(issueInstant);
+        response.setIssuer(buildIssuer());
+        response.getAssertions().add(assertion);
+        return response;
+    }
+
+    /**
+     * Builds a logout request.
+     * 
+     * @return the logout request
+     */
+    @SuppressWarnings("unchecked")
+    private LogoutRequest buildLogoutRequest() {
+        LogoutRequest request = ((SAMLObjectBuilder<LogoutRequest>) builderFactory
+                .getBuilder(LogoutRequest.DEFAULT_ELEMENT_NAME)).buildObject();
+        request.setID("_request");
+        request.setIssueInstant(new DateTime(2010, 1, 1, 0, 0, 0, 0, ISOChronology.getInstanceUTC()));
+        request.setIssuer(buildIssuer());
+        return request;
+    }
+
+    /**
+     * Builds the issuer of the messages.
+     * 
+     * @return the issuer
+     */
+    @SuppressWarnings("unchecked")
+    private Issuer buildIssuer() {
+        Issuer issuer = ((SAMLObjectBuilder<Issuer>) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME))
+                .buildObject();
+        issuer.setValue("https://idp.example.org/idp/shibboleth");
+        return issuer;
+    }
+
+    /**
+     * Streaming encoder recording the messages the form is rendered from. The streaming path renders the form from a
+     * placeholder message only, while falling back to the standard encoding renders it from the actual message.
+     */
+    private class RecordingEncoder extends StreamingHTTPPostEncoder {
+
+        /** Messages the form was rendered from. */
+        private final List<SAMLObject> renderedMessages = new ArrayList<SAMLObject>();
+
+        /** Constructor. */
+        public RecordingEncoder() {
+            super(velocityEngine, TEMPLATE);
+        }
+
+        /**
+         * Gets whether a message was streamed rather than encoded by the standard encoder.
+         * 
+         * @param message the message
+         * 
+         * @return true if the form was rendered once, and not from the message
+         */
+        public boolean streamed(SAMLObject message) {
+            return renderedMessages.size() == 1 && renderedMessages.get(0) != message;
+        }
+
+        /** {@inheritDoc} */
+        protected void populateVelocityContext(VelocityContext velocityContext, SAMLMessageContext messageContext,
+                String endpointURL) throws MessageEncodingException {
+            renderedMessages.add(messageContext.getOutboundSAMLMessage());
+            super.populateVelocityContext(velocityContext, messageContext, endpointURL);
+        }
+    }
+}
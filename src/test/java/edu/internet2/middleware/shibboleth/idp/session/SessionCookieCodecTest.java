@@ -0,0 +1,62 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session;
+
+import junit.framework.TestCase;
+
+/** Unit test for {@link SessionCookieCodec}. */
+public class SessionCookieCodecTest extends TestCase {
+
+    /** Session ID used by the tests. */
+    private static final String SESSION_ID = "0123456789abcdef0123456789abcdef";
+
+    /** Session secret used by the tests. */
+    private static final byte[] SECRET = "secretsecretsecr".getBytes();
+
+    /** Tests that an encoded value is valid for the client it was issued to. */
+    public void testRoundTrip() {
+        String value = SessionCookieCodec.encode("192.0.2.10", SESSION_ID, SECRET);
+        assertEquals(SESSION_ID, SessionCookieCodec.getSessionID(value));
+        assertTrue(SessionCookieCodec.isValid(value, "192.0.2.10", SECRET));
+        assertTrue(SessionCookieCodec.isValid(value, null, SECRET));
+
+        String ipv6Value = SessionCookieCodec.encode("2001:db8::1", SESSION_ID, SECRET);
+        assertTrue(SessionCookieCodec.isValid(ipv6Value, "2001:db8::1", SECRET));
+    }
+
+    /** Tests that malformed, tampered and misdirected values are refused. */
+    public void testInvalidValues() {
+        assertNull(SessionCookieCodec.getSessionID(null));
+        assertNull(SessionCookieCodec.getSessionID(SESSION_ID));
+        assertNull(SessionCookieCodec.getSessionID(SESSION_ID + ".abc.00"));
+
+        String value = SessionCookieCodec.encode("192.0.2.10", SESSION_ID, SECRET);
+        assertFalse(SessionCookieCodec.isValid(value, "192.0.2.11", SECRET));
+        assertFalse(SessionCookieCodec.isValid(value, null, "othersecretother".getBytes()));
+
+        char last = value.charAt(value.length() - 1);
+        String tampered = value.substring(0, value.length() - 1) + (last == '0' ? '1' : '0');
+        assertFalse(SessionCookieCodec.isValid(tampered, null, SECRET));
+
+        String otherSession = "f" + value.substring(1);
+        assertFalse(SessionCookieCodec.isValid(otherSession, null, SECRET));
+
+        String nonHex = value.substring(0, value.length() - 2) + "zz";
+        assertFalse(SessionCookieCodec.isValid(nonHex, null, SECRET));
+    }
+}
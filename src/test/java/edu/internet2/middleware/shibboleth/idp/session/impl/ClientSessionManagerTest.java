@@ -0,0 +1,128 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
+import org.opensaml.xml.util.Base64;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.storage.ExpiryIndexedStorageService;
+
+/** Unit test for {@link ClientSessionManager}. */
+public class ClientSessionManagerTest extends TestCase {
+
+    /** Client address used by the tests. */
+    private static final String CLIENT_ADDRESS = "192.0.2.10";
+
+    /** Session manager being tested. */
+    private ClientSessionManager sessionManager;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        sessionManager = new ClientSessionManager(new ExpiryIndexedStorageService<String, RevokedSessionEntry>(),
+                1800000, Base64.encodeBytes("0123456789abcdef0123456789abcdef".getBytes()));
+        sessionManager.setMaxServices(2);
+    }
+
+    /** Tests that a session survives being encoded into, and decoded from, a cookie value. */
+    public void testRoundTrip() {
+        Session session = createSession();
+        byte[] state = sessionManager.serializeSession(session, CLIENT_ADDRESS);
+
+        Session decoded = sessionManager.decodeSession(sessionManager.encodeSession(state), CLIENT_ADDRESS);
+        assertNotNull(decoded);
+        assertEquals(session.getSessionID(), decoded.getSessionID());
+        assertTrue(Arrays.equals(session.getSessionSecret(), decoded.getSessionSecret()));
+        assertEquals("jdoe", decoded.getPrincipalName());
+
+        AuthenticationMethodInformation method = decoded.getAuthenticationMethods().get("urn:password");
+        assertNotNull(method);
+        assertEquals("jdoe", method.getAuthenticationPrincipal().getName());
+
+        // only the two most recent services are kept
+        assertEquals(2, decoded.getServicesInformation().size());
+        assertNull(decoded.getServicesInformation().get("https://sp1.example.org"));
+        ServiceInformation service = decoded.getServicesInformation().get("https://sp3.example.org");
+        assertEquals("nameid", service.getNameIdentifier());
+        assertEquals("https://sp3.example.org", service.getSPNameQualifier());
+        assertSame(method, service.getAuthenticationMethod());
+
+        assertTrue(Arrays.equals(state, sessionManager.serializeSession(decoded, CLIENT_ADDRESS)));
+    }
+
+    /** Tests that tampered, misdirected, timed out and revoked sessions are refused. */
+    public void testRefusedSessions() {
+        Session session = createSession();
+        String cookieValue = sessionManager.encodeSession(sessionManager.serializeSession(session, CLIENT_ADDRESS));
+
+        byte[] value = Base64.decode(HTTPTransportUtils.urlDecode(cookieValue));
+        value[20] ^= 1;
+        assertNull(sessionManager.decodeSession(HTTPTransportUtils.urlEncode(Base64.encodeBytes(value)),
+                CLIENT_ADDRESS));
+        assertNull(sessionManager.decodeSession("garbage", CLIENT_ADDRESS));
+
+        assertNull(sessionManager.decodeSession(cookieValue, "192.0.2.11"));
+        assertNotNull(sessionManager.decodeSession(cookieValue, null));
+
+        session.setLastActivityInstant(new DateTime().minusHours(1));
+        assertNull(sessionManager.decodeSession(sessionManager.encodeSession(sessionManager.serializeSession(
+                session, CLIENT_ADDRESS)), CLIENT_ADDRESS));
+
+        sessionManager.destroySession(session.getSessionID());
+        assertTrue(sessionManager.isRevoked(session.getSessionID()));
+        assertNull(sessionManager.decodeSession(cookieValue, CLIENT_ADDRESS));
+    }
+
+    /**
+     * Creates a session with one authentication method and three services.
+     *
+     * @return the created session
+     */
+    private Session createSession() {
+        Subject subject = new Subject();
+        UsernamePrincipal principal = new UsernamePrincipal("jdoe");
+        subject.getPrincipals().add(principal);
+
+        Session session = sessionManager.createSession();
+        session.setSubject(subject);
+
+        AuthenticationMethodInformation method = new AuthenticationMethodInformationImpl(subject, principal,
+                "urn:password", new DateTime(), 3600000);
+        session.getAuthenticationMethods().put(method.getAuthenticationMethod(), method);
+
+        ServiceInformationImpl service;
+        for (int i = 1; i <= 3; i++) {
+            service = new ServiceInformationImpl("https://sp" + i + ".example.org", new DateTime().plusSeconds(i),
+                    method);
+            service.setNameIdentifier("nameid", "urn:format", null, service.getEntityID());
+            session.getServicesInformation().put(service.getEntityID(), service);
+        }
+        return session;
+    }
+}
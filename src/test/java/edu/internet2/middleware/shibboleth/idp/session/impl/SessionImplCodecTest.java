@@ -0,0 +1,143 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.ServiceInformation;
+import edu.internet2.middleware.shibboleth.idp.storage.codec.BinaryCodecRegistry;
+
+/** Unit test for {@link SessionImplCodec} and the codecs of the values held by a session. */
+public class SessionImplCodecTest extends TestCase {
+
+    /** Password protected transport authentication method. */
+    private static final String PPT = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /** Registry holding the session codecs. */
+    private BinaryCodecRegistry registry;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        registry = new BinaryCodecRegistry();
+        registry.register(16, SessionManagerEntry.class, new SessionManagerEntryCodec());
+        registry.register(17, SessionImpl.class, new SessionImplCodec());
+        registry.register(18, AuthenticationMethodInformationImpl.class, new AuthenticationMethodInformationCodec());
+        registry.register(19, ServiceInformationImpl.class, new ServiceInformationCodec());
+    }
+
+    /** Tests that an encoded session decodes to an equal session, sharing its subject and methods. */
+    public void testRoundTrip() throws Exception {
+        SessionImpl session = buildSession();
+        SessionManagerEntry entry = new SessionManagerEntry(session, session.getInactivityTimeout());
+        entry.getSessionIndexes().add("jdoe");
+
+        SessionManagerEntry decodedEntry = (SessionManagerEntry) registry.decode(registry.encode(entry));
+        assertEquals(entry.getSessionIndexes(), decodedEntry.getSessionIndexes());
+
+        SessionImpl decoded = (SessionImpl) decodedEntry.getSession();
+        assertEquals(session.getSessionID(), decoded.getSessionID());
+        assertTrue(Arrays.equals(session.getSessionSecret(), decoded.getSessionSecret()));
+        assertEquals(session.getInactivityTimeout(), decoded.getInactivityTimeout());
+        assertEquals(session.getLastActivityInstant().getMillis(), decoded.getLastActivityInstant().getMillis());
+        assertEquals(session.getSubject().getPrincipals(), decoded.getSubject().getPrincipals());
+
+        AuthenticationMethodInformation method = decoded.getAuthenticationMethods().get(PPT);
+        assertSame(decoded.getSubject(), method.getAuthenticationSubject());
+        assertEquals("jdoe", method.getAuthenticationPrincipal().getName());
+        assertEquals(1500, method.getAuthenticationDuration());
+
+        assertEquals(3, decoded.getServicesInformation().size());
+        ServiceInformation service = decoded.getServiceInformation("https://sp2.example.org/shibboleth");
+        assertSame(method, service.getAuthenticationMethod());
+        assertEquals("_8d4e2f", service.getNameIdentifier());
+        assertEquals("urn:oasis:names:tc:SAML:2.0:nameid-format:transient", service.getNameIdentifierFormat());
+    }
+
+    /** Tests that the encoding is much smaller than Java serialization. */
+    public void testSize() throws Exception {
+        SessionImpl session = buildSession();
+        SessionManagerEntry entry = new SessionManagerEntry(session, session.getInactivityTimeout());
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(entry);
+        out.close();
+
+        int encodedSize = registry.encode(entry).length;
+        assertTrue("encoded " + encodedSize + " bytes, serialized " + serialized.size() + " bytes",
+                encodedSize * 4 < serialized.size());
+    }
+
+    /** Tests that values stored with Java serialization can still be read. */
+    public void testLegacySerialization() throws Exception {
+        SessionImpl session = buildSession();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(session);
+        out.close();
+
+        SessionImpl decoded = (SessionImpl) registry.decode(serialized.toByteArray());
+        assertEquals(session.getSessionID(), decoded.getSessionID());
+        assertEquals(3, decoded.getServicesInformation().size());
+    }
+
+    /**
+     * Builds a session with two authentication methods and three services.
+     * 
+     * @return the session
+     */
+    private SessionImpl buildSession() {
+        SessionImpl session = new SessionImpl("c2Vzc2lvbi1pZGVudGlmaWVy", new byte[] {1, 2, 3, 4, 5, 6, 7, 8},
+                1800000);
+        session.setLastActivityInstant(new DateTime());
+
+        UsernamePrincipal principal = new UsernamePrincipal("jdoe");
+        Subject subject = new Subject();
+        subject.getPrincipals().add(principal);
+        session.setSubject(subject);
+
+        DateTime instant = new DateTime().minusMinutes(5);
+        AuthenticationMethodInformation ppt = new AuthenticationMethodInformationImpl(subject, principal, PPT,
+                instant, 1500);
+        AuthenticationMethodInformation previous = new AuthenticationMethodInformationImpl(subject, principal,
+                "urn:oasis:names:tc:SAML:2.0:ac:classes:PreviousSession", instant.plusMinutes(1), 0);
+        session.getAuthenticationMethods().put(ppt.getAuthenticationMethod(), ppt);
+        session.getAuthenticationMethods().put(previous.getAuthenticationMethod(), previous);
+
+        for (int i = 1; i <= 3; i++) {
+            ServiceInformationImpl service = new ServiceInformationImpl("https://sp" + i + ".example.org/shibboleth",
+                    instant.plusMinutes(i), ppt);
+            service.setNameIdentifier("_8d4e2" + Integer.toHexString(i + 13),
+                    "urn:oasis:names:tc:SAML:2.0:nameid-format:transient", "https://idp.example.org/idp/shibboleth",
+                    service.getEntityID());
+            session.getServicesInformation().put(service.getEntityID(), service);
+        }
+        return session;
+    }
+}
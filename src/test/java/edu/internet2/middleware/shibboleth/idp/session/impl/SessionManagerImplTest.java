@@ -0,0 +1,338 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.session.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.storage.ExpiryIndexedStorageService;
+import edu.internet2.middleware.shibboleth.idp.storage.OffHeapStorageService;
+
+/** Unit test for {@link SessionManagerImpl}. */
+public class SessionManagerImplTest extends TestCase {
+
+    /** Storage service backing the session manager. */
+    private ExpiryIndexedStorageService<String, SessionManagerEntry> storageService;
+
+    /** Session manager being tested. */
+    private SessionManagerImpl sessionManager;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        storageService = new ExpiryIndexedStorageService<String, SessionManagerEntry>();
+        sessionManager = new SessionManagerImpl(storageService, 1800000);
+    }
+
+    /** Tests that a principal may index several sessions and that destroying them clears the index. */
+    public void testPrincipalIndex() {
+        Session session1 = createSession("jdoe");
+        Session session2 = createSession("jdoe");
+        assertTrue(sessionManager.indexSession(session1, "jdoe"));
+        assertTrue(sessionManager.indexSession(session2, "jdoe"));
+
+        session1.setLastActivityInstant(new DateTime().minusMinutes(1));
+        assertSame(session2, sessionManager.getSession("jdoe"));
+
+        sessionManager.destroySession(session2.getSessionID());
+        assertSame(session1, sessionManager.getSession("jdoe"));
+        assertNull(sessionManager.getSession(session2.getSessionID()));
+
+        sessionManager.destroySession(session1.getSessionID());
+        assertNull(sessionManager.getSession("jdoe"));
+        assertEquals(0, sessionManager.getSessionStore().getIndexedPrincipalCount());
+        assertEquals(0, storageService.getEntryCount("session"));
+    }
+
+    /** Tests that a non-principal index may only index one session and may be removed. */
+    public void testUniqueIndex() {
+        Session session1 = createSession("jdoe");
+        Session session2 = createSession("jsmith");
+        assertTrue(sessionManager.indexSession(session1, "nameid|format"));
+        assertTrue(sessionManager.indexSession(session1, "nameid|format"));
+        assertFalse(sessionManager.indexSession(session2, "nameid|format"));
+        assertSame(session1, sessionManager.getSession("nameid|format"));
+
+        sessionManager.removeSessionIndex("nameid|format");
+        assertNull(sessionManager.getSession("nameid|format"));
+        assertNotNull(sessionManager.getSession(session1.getSessionID()));
+        assertTrue(sessionManager.indexSession(session2, "nameid|format"));
+        assertEquals(1, sessionManager.getSessionStore().getIndexCount());
+
+        // only the session entries themselves are put in the storage service
+        assertEquals(2, storageService.getEntryCount("session"));
+    }
+
+    /** Tests that the indexes of a session are removed when the storage service expires the session. */
+    public void testExpiredSessionIndexesRemoved() {
+        Session session = createSession("jdoe");
+        sessionManager.indexSession(session, "jdoe");
+        sessionManager.indexSession(session, "nameid|format");
+
+        session.setLastActivityInstant(new DateTime().minusHours(1));
+        assertEquals(1, storageService.sweep(System.currentTimeMillis() + 3600000));
+
+        assertEquals(0, sessionManager.getSessionStore().getIndexedPrincipalCount());
+        assertEquals(0, sessionManager.getSessionStore().getIndexCount());
+        assertNull(sessionManager.getSession("jdoe"));
+    }
+
+    /** Tests that updated sessions are found by service and authentication method until they are destroyed. */
+    public void testServiceAndAuthenticationMethodIndexes() {
+        Session session1 = createSession("jdoe");
+        Session session2 = createSession("jsmith");
+        addService(session1, "https://sp1.example.org", "urn:password");
+        addService(session2, "https://sp1.example.org", "urn:kerberos");
+        addService(session2, "https://sp2.example.org", "urn:kerberos");
+
+        // sessions are indexed from their information when they are updated
+        assertTrue(sessionManager.getSessionStore().getSessionIDsByService("https://sp1.example.org").isEmpty());
+        sessionManager.updateSession(session1);
+        sessionManager.updateSession(session2);
+        sessionManager.indexSession(session1, "jdoe");
+
+        SessionStore store = sessionManager.getSessionStore();
+        assertEquals(2, store.getSessionIDsByService("https://sp1.example.org").size());
+        assertEquals(1, store.getSessionIDsByService("https://sp2.example.org").size());
+        assertEquals(session2.getSessionID(), store.getSessionIDsByAuthenticationMethod("urn:kerberos").get(0));
+        assertEquals(session1.getSessionID(), store.getSessionIDsByPrincipal("jdoe").get(0));
+
+        sessionManager.destroySession(session2.getSessionID());
+        assertEquals(1, store.getSessionIDsByService("https://sp1.example.org").size());
+        assertTrue(store.getSessionIDsByService("https://sp2.example.org").isEmpty());
+        assertTrue(store.getSessionIDsByAuthenticationMethod("urn:kerberos").isEmpty());
+
+        sessionManager.destroySession(session1.getSessionID());
+        assertEquals(0, store.getIndexedServiceCount());
+        assertTrue(store.getSessionIDsByPrincipal("jdoe").isEmpty());
+    }
+
+    /** Tests that buffered activity delays expiration and is written to the session when flushed. */
+    public void testBufferedActivity() {
+        SessionActivityTracker tracker = new SessionActivityTracker(30000);
+        sessionManager.setActivityTracker(tracker);
+
+        Session session = createSession("jdoe");
+        long created = session.getLastActivityInstant().getMillis();
+        tracker.touch(session, created + 10000);
+        assertEquals(created, session.getLastActivityInstant().getMillis());
+        assertEquals(created + 10000, tracker.getLastActivity(session));
+        assertEquals(1, tracker.getPendingCount());
+
+        // the buffered touch keeps the session alive past the stored activity's expiration
+        assertEquals(0, storageService.sweep(created + 1800000 + 5000));
+        assertNotNull(sessionManager.getSession(session.getSessionID()));
+
+        assertEquals(1, tracker.flush());
+        assertEquals(created + 10000, session.getLastActivityInstant().getMillis());
+        assertEquals(0, tracker.getPendingCount());
+
+        tracker.touch(session, created + 50000);
+        assertEquals(created + 50000, session.getLastActivityInstant().getMillis());
+        assertEquals(0, tracker.getPendingCount());
+        assertEquals(2, tracker.getWriteCount());
+        assertEquals(1, tracker.getCoalescedCount());
+    }
+
+    /**
+     * Tests that touches made while the buffer is being flushed are not lost.
+     *
+     * @throws Exception thrown if a worker thread is interrupted
+     */
+    public void testConcurrentTouchAndFlush() throws Exception {
+        final SessionActivityTracker tracker = new SessionActivityTracker(Long.MAX_VALUE / 2);
+        sessionManager.setActivityTracker(tracker);
+        final Session session = createSession("jdoe");
+        final long created = session.getLastActivityInstant().getMillis();
+        final int rounds = 5000;
+        final int touches = 8;
+
+        for (int i = 1; i <= rounds; i++) {
+            final long base = created + i * touches;
+            final CyclicBarrier start = new CyclicBarrier(2);
+            Thread toucher = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    for (int j = 1; j <= touches; j++) {
+                        tracker.touch(session, base + j);
+                    }
+                }
+            };
+            toucher.start();
+            start.await();
+            for (int j = 0; j < touches; j++) {
+                tracker.flush();
+            }
+            toucher.join();
+            tracker.flush();
+
+            assertEquals(base + touches, session.getLastActivityInstant().getMillis());
+        }
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    /** Tests that changes to sessions kept by a storage service handing out copies are written back. */
+    public void testWriteBack() {
+        OffHeapStorageService<String, SessionManagerEntry> offHeapStorage =
+                new OffHeapStorageService<String, SessionManagerEntry>(64 * 1024, 1);
+        sessionManager = new SessionManagerImpl(offHeapStorage, 1800000);
+        SessionActivityTracker tracker = new SessionActivityTracker(30000);
+        sessionManager.setActivityTracker(tracker);
+
+        Session session = createSession("jdoe");
+        assertNull(sessionManager.getSession(session.getSessionID()).getPrincipalName());
+        AbstractSessionManager.writeBack(sessionManager, session);
+        assertEquals("jdoe", sessionManager.getSession(session.getSessionID()).getPrincipalName());
+
+        assertTrue(sessionManager.indexSession(session, "jdoe"));
+        assertTrue(sessionManager.indexSession(session, "nameid|format"));
+        assertEquals(3, sessionManager.getSessionStore().get(session.getSessionID()).getSessionIndexes().size());
+        sessionManager.removeSessionIndex("nameid|format");
+        assertEquals(2, sessionManager.getSessionStore().get(session.getSessionID()).getSessionIndexes().size());
+
+        long created = session.getLastActivityInstant().getMillis();
+        tracker.touch(session, created + 10000);
+        tracker.flush();
+        assertEquals(created + 10000,
+                sessionManager.getSession("jdoe").getLastActivityInstant().getMillis());
+
+        // the sweep reads back the expired entry with its store, so its indexes are removed
+        assertEquals(1, offHeapStorage.sweep(created + 3600000));
+        assertEquals(0, sessionManager.getSessionStore().getIndexedPrincipalCount());
+        assertEquals(0, offHeapStorage.getAllocatedBytes());
+    }
+
+    /** Tests that sessions updated from two copies keep the services added to each. */
+    public void testWriteBackMergesServices() {
+        sessionManager = new SessionManagerImpl(new OffHeapStorageService<String, SessionManagerEntry>(64 * 1024, 1),
+                1800000);
+        Session session = createSession("jdoe");
+        AbstractSessionManager.writeBack(sessionManager, session);
+
+        Session copy1 = sessionManager.getSession(session.getSessionID());
+        Session copy2 = sessionManager.getSession(session.getSessionID());
+        addService(copy1, "https://sp1.example.org", "urn:password");
+        addService(copy2, "https://sp2.example.org", "urn:kerberos");
+        sessionManager.updateSession(copy1);
+        sessionManager.updateSession(copy2);
+
+        Session stored = sessionManager.getSession(session.getSessionID());
+        assertEquals(2, stored.getServicesInformation().size());
+        assertEquals(2, stored.getAuthenticationMethods().size());
+        assertEquals(1, sessionManager.getSessionStore().getSessionIDsByService("https://sp1.example.org").size());
+        assertEquals(1, sessionManager.getSessionStore().getSessionIDsByService("https://sp2.example.org").size());
+    }
+
+    /**
+     * Tests concurrent indexing and destruction of sessions for the same principal.
+     *
+     * @throws Exception thrown if a worker thread is interrupted
+     */
+    public void testConcurrentIndexing() throws Exception {
+        final int threadCount = 8;
+        final int iterations = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final int worker = i;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            Session session = createSession("jdoe");
+                            String index = "nameid-" + worker + "-" + j;
+                            if (!sessionManager.indexSession(session, "jdoe")
+                                    || !sessionManager.indexSession(session, index)
+                                    || sessionManager.getSession(index) != session
+                                    || sessionManager.getSession("jdoe") == null) {
+                                failures.incrementAndGet();
+                            }
+                            sessionManager.destroySession(session.getSessionID());
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            workers.add(thread);
+            thread.start();
+        }
+
+        start.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertNull(sessionManager.getSession("jdoe"));
+        assertEquals(0, sessionManager.getSessionStore().getIndexedPrincipalCount());
+        assertEquals(0, sessionManager.getSessionStore().getIndexCount());
+        assertEquals(0, storageService.getEntryCount("session"));
+    }
+
+    /**
+     * Records that a session was used with a service after authenticating with the given method.
+     *
+     * @param session the session
+     * @param entityID entity ID of the service
+     * @param authenticationMethod the authentication method
+     */
+    private void addService(Session session, String entityID, String authenticationMethod) {
+        AuthenticationMethodInformation authnMethodInfo = new AuthenticationMethodInformationImpl(
+                session.getSubject(), new UsernamePrincipal(session.getPrincipalName()), authenticationMethod,
+                new DateTime(), 3600000);
+        session.getAuthenticationMethods().put(authenticationMethod, authnMethodInfo);
+        session.getServicesInformation().put(entityID, new ServiceInformationImpl(entityID, new DateTime(),
+                authnMethodInfo));
+    }
+
+    /**
+     * Creates a session for the given principal.
+     *
+     * @param principalName name of the principal
+     *
+     * @return the created session
+     */
+    private Session createSession(String principalName) {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal(principalName));
+
+        Session session = sessionManager.createSession();
+        session.setSubject(subject);
+        return session;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.common.relyingparty.provider.saml2.LogoutRequestConfiguration;
+import edu.internet2.middleware.shibboleth.idp.authn.UsernamePrincipal;
+import edu.internet2.middleware.shibboleth.idp.profile.saml2.SLOProfileHandler;
+import edu.internet2.middleware.shibboleth.idp.session.AuthenticationMethodInformation;
+import edu.internet2.middleware.shibboleth.idp.session.Session;
+import edu.internet2.middleware.shibboleth.idp.session.impl.AuthenticationMethodInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerEntry;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionManagerImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionStore;
+import edu.internet2.middleware.shibboleth.idp.slo.BulkLogoutService.Criterion;
+import edu.internet2.middleware.shibboleth.idp.slo.BulkLogoutService.RevocationResult;
+import edu.internet2.middleware.shibboleth.idp.storage.ExpiryIndexedStorageService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import javax.security.auth.Subject;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+/**
+ * Tests for {@link BulkLogoutService}.
+ */
+public class BulkLogoutServiceTest extends TestCase {
+
+    /** Manager of the sessions to revoke. */
+    private SessionManagerImpl sessionManager;
+    /** Handler recording the issued logouts. */
+    private RecordingProfileHandler profileHandler;
+    /** Service under test. */
+    private BulkLogoutService service;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        sessionManager = new SessionManagerImpl(new ExpiryIndexedStorageService<String, SessionManagerEntry>(),
+                1800000);
+        profileHandler = new RecordingProfileHandler();
+        service = new BulkLogoutService(sessionManager, profileHandler, 10);
+        service.setMaxLogoutsPerSecond(1000);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        service.destroy();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that all the sessions of a principal are destroyed and that
+     * only those with participants are logged out.
+     */
+    public void testRevokeByPrincipal() throws Exception {
+        Session session1 = createSession("jdoe", "https://sp1.example.org", "urn:password");
+        Session session2 = createSession("jdoe", null, null);
+        Session session3 = createSession("jsmith", "https://sp1.example.org", "urn:password");
+
+        assertEquals(2, service.revoke(Criterion.PRINCIPAL, "jdoe").getRevokedCount());
+        assertNull(sessionManager.getSession(session1.getSessionID()));
+        assertNull(sessionManager.getSession(session2.getSessionID()));
+        assertNotNull(sessionManager.getSession(session3.getSessionID()));
+        awaitDispatched(1);
+        assertEquals(session1.getSessionID(), profileHandler.done.get(0).getIdpSessionID());
+    }
+
+    /**
+     * Tests that all the sessions used with an SP are destroyed and logged
+     * out.
+     */
+    public void testRevokeByService() throws Exception {
+        Session session1 = createSession("jdoe", "https://sp1.example.org", "urn:password");
+        Session session2 = createSession("jsmith", "https://sp1.example.org", "urn:kerberos");
+        Session session3 = createSession("jsmith", "https://sp2.example.org", "urn:kerberos");
+
+        assertEquals(2, service.revoke(Criterion.SERVICE, "https://sp1.example.org").getRevokedCount());
+        assertNull(sessionManager.getSession(session1.getSessionID()));
+        assertNull(sessionManager.getSession(session2.getSessionID()));
+        assertNotNull(sessionManager.getSession(session3.getSessionID()));
+        awaitDispatched(2);
+        assertEquals(0, service.revoke(Criterion.SERVICE, "https://sp1.example.org").getRevokedCount());
+        assertEquals(2, service.getRevokedCount());
+    }
+
+    /**
+     * Tests that the sessions holding an authentication method are destroyed,
+     * but not those whose method has expired, which are unmapped from it
+     * instead.
+     */
+    public void testRevokeByAuthenticationMethod() throws Exception {
+        Session session1 = createSession("jdoe", "https://sp1.example.org", "urn:kerberos");
+        Session session2 = createSession("jsmith", "https://sp1.example.org", "urn:password");
+        Session session3 = createSession("jroe", "https://sp2.example.org", "urn:kerberos");
+        AuthenticationMethodInformation expired = new AuthenticationMethodInformationImpl(session3.getSubject(),
+                new UsernamePrincipal("jroe"), "urn:kerberos", new DateTime().minusHours(2), 3600000);
+        session3.getAuthenticationMethods().put("urn:kerberos", expired);
+
+        SessionStore store = sessionManager.getSessionStore();
+        assertEquals(2, store.getSessionIDsByAuthenticationMethod("urn:kerberos").size());
+        assertEquals(1, service.revoke(Criterion.AUTHENTICATION_METHOD, "urn:kerberos").getRevokedCount());
+        assertNull(sessionManager.getSession(session1.getSessionID()));
+        assertNotNull(sessionManager.getSession(session2.getSessionID()));
+        assertNotNull(sessionManager.getSession(session3.getSessionID()));
+        assertTrue(store.getSessionIDsByAuthenticationMethod("urn:kerberos").isEmpty());
+        awaitDispatched(1);
+        assertEquals(session1.getSessionID(), profileHandler.done.get(0).getIdpSessionID());
+    }
+
+    /**
+     * Tests that a revocation stops, leaving sessions alive, once the queue
+     * of logouts is full, and that it may be repeated as the queue drains.
+     */
+    public void testQueueFull() throws Exception {
+        service.destroy();
+        service = new BulkLogoutService(sessionManager, profileHandler, 2);
+        service.setMaxLogoutsPerSecond(1000);
+        profileHandler.release = new CountDownLatch(1);
+        List<Session> sessions = new ArrayList<Session>();
+        for (int i = 0; i < 5; i++) {
+            sessions.add(createSession("jdoe", "https://sp1.example.org", "urn:password"));
+        }
+
+        RevocationResult result = service.revoke(Criterion.PRINCIPAL, "jdoe");
+        assertEquals(2, result.getRevokedCount());
+        assertEquals(3, result.getDeferredCount());
+        int alive = 0;
+        for (Session session : sessions) {
+            if (sessionManager.getSession(session.getSessionID()) != null) {
+                alive++;
+            }
+        }
+        assertEquals(3, alive);
+
+        profileHandler.release.countDown();
+        awaitDispatched(2);
+        result = service.revoke(Criterion.PRINCIPAL, "jdoe");
+        assertEquals(2, result.getRevokedCount());
+        assertEquals(1, result.getDeferredCount());
+        awaitDispatched(4);
+        result = service.revoke(Criterion.PRINCIPAL, "jdoe");
+        assertEquals(1, result.getRevokedCount());
+        assertEquals(0, result.getDeferredCount());
+        awaitDispatched(5);
+    }
+
+    /**
+     * Creates a session, used with an SP if one is given, and indexes it by
+     * its principal.
+     *
+     * @param principalName name of the principal
+     * @param entityID entity ID of the SP, may be null
+     * @param authenticationMethod method the principal authenticated to the SP with
+     * @return the session
+     */
+    private Session createSession(String principalName, String entityID, String authenticationMethod) {
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new UsernamePrincipal(principalName));
+        Session session = sessionManager.createSession();
+        session.setSubject(subject);
+        if (entityID != null) {
+            AuthenticationMethodInformation authnMethodInfo = new AuthenticationMethodInformationImpl(subject,
+                    new UsernamePrincipal(principalName), authenticationMethod, new DateTime(), 3600000);
+            session.getAuthenticationMethods().put(authenticationMethod, authnMethodInfo);
+            session.getServicesInformation().put(entityID,
+                    new ServiceInformationImpl(entityID, new DateTime(), authnMethodInfo));
+            sessionManager.updateSession(session);
+        }
+        sessionManager.indexSession(session, principalName);
+        return session;
+    }
+
+    /**
+     * Waits for a number of logouts to be issued.
+     *
+     * @param count number of logouts
+     */
+    private void awaitDispatched(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getDispatchedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, service.getDispatchedCount());
+        assertEquals(count, profileHandler.done.size());
+    }
+
+    /** Profile handler recording the logouts it is asked to issue. */
+    private static class RecordingProfileHandler extends SLOProfileHandler {
+
+        /** Contexts of the issued logouts. */
+        private final List<SingleLogoutContext> done =
+                Collections.synchronizedList(new ArrayList<SingleLogoutContext>());
+        /** Latch logouts wait on before being issued, may be null. */
+        private volatile CountDownLatch release;
+
+        /** {@inheritDoc} */
+        public SingleLogoutContext createAdministrativeLogoutContext(Session idpSession) {
+            InitialLogoutRequestContext initialRequest = new InitialLogoutRequestContext();
+            initialRequest.setProfileConfiguration(new LogoutRequestConfiguration());
+            return SingleLogoutContext.createInstance(null, initialRequest, idpSession);
+        }
+
+        /** {@inheritDoc} */
+        public void administrativeLogout(SingleLogoutContext sloContext) {
+            CountDownLatch latch = release;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            done.add(sloContext);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.session.impl.ServiceInformationImpl;
+import edu.internet2.middleware.shibboleth.idp.session.impl.SessionImpl;
+import edu.internet2.middleware.shibboleth.idp.slo.LogoutRetryQueue.PendingLogout;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+/**
+ * Tests for {@link LogoutRetryQueue}.
+ */
+public class LogoutRetryQueueTest extends TestCase {
+
+    /** Journal file of the queues under test. */
+    private File journalFile;
+    /** Queue under test. */
+    private LogoutRetryQueue queue;
+    /** Entity IDs of the dispatched logouts. */
+    private List<String> dispatched;
+    /** Whether dispatched logouts succeed. */
+    private boolean succeed;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        journalFile = File.createTempFile("logout-retry", ".journal");
+        journalFile.delete();
+        dispatched = new ArrayList<String>();
+        queue = createQueue();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        queue.destroy();
+        journalFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that delivered logouts are removed and undelivered ones are
+     * replayed from the journal.
+     */
+    public void testJournalReplay() throws Exception {
+        queue.enqueue("https://idp.example.org", createLogoutInformation("https://sp1.example.org"));
+        queue.enqueue("https://idp.example.org", createLogoutInformation("https://sp2.example.org"));
+        assertEquals(2, queue.getPendingCount());
+
+        Thread.sleep(5);
+        succeed = true;
+        assertEquals(2, queue.dispatch());
+        assertEquals(0, queue.getPendingCount());
+
+        queue.enqueue("https://idp.example.org", createLogoutInformation("https://sp3.example.org"));
+        queue.destroy();
+
+        queue = createQueue();
+        assertEquals(1, queue.getPendingCount());
+        dispatched.clear();
+        assertEquals(1, queue.dispatch());
+        assertEquals("https://sp3.example.org", dispatched.get(0));
+    }
+
+    /**
+     * Tests that logouts are still queued after the journal failed to be
+     * compacted.
+     */
+    public void testFailedCompaction() throws Exception {
+        queue.setBatchSize(2000);
+        for (int i = 0; i < 1000; i++) {
+            queue.enqueue("https://idp.example.org", createLogoutInformation("https://sp" + i + ".example.org"));
+        }
+        Thread.sleep(5);
+
+        // a directory in the way of the compacted journal makes the compaction fail
+        File blocker = new File(journalFile.getPath() + ".tmp");
+        File blockerContent = new File(blocker, "content");
+        assertTrue(blocker.mkdir());
+        assertTrue(blockerContent.createNewFile());
+        try {
+            succeed = true;
+            assertEquals(1000, queue.dispatch());
+
+            queue.enqueue("https://idp.example.org", createLogoutInformation("https://late.example.org"));
+            assertEquals(1, queue.getPendingCount());
+        } finally {
+            blockerContent.delete();
+            blocker.delete();
+        }
+        queue.destroy();
+
+        queue = createQueue();
+        assertEquals(1, queue.getPendingCount());
+        dispatched.clear();
+        assertEquals(1, queue.dispatch());
+        assertEquals("https://late.example.org", dispatched.get(0));
+    }
+
+    /**
+     * Tests that failed logouts are retried with backoff and that the
+     * circuit of a failing SP opens.
+     */
+    public void testBackoffAndCircuitBreaker() throws Exception {
+        queue.setCircuitBreakerThreshold(2);
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue("https://idp.example.org", createLogoutInformation("https://sp.example.org"));
+        }
+        Thread.sleep(5);
+
+        assertEquals(0, queue.dispatch());
+        assertEquals(2, dispatched.size());
+        assertEquals(2, queue.getFailedAttemptCount());
+        assertEquals(1, queue.getOpenCircuitCount());
+        assertEquals(3, queue.getPendingCount());
+
+        // the third logout is due, but the circuit is open
+        assertEquals(0, queue.dispatch());
+        assertEquals(2, dispatched.size());
+    }
+
+    /**
+     * Tests that logouts not delivered in time are dropped.
+     */
+    public void testExpiry() throws Exception {
+        queue.setMaxAge(1);
+        queue.enqueue("https://idp.example.org", createLogoutInformation("https://sp.example.org"));
+        Thread.sleep(5);
+
+        assertEquals(0, queue.dispatch());
+        assertEquals(0, dispatched.size());
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    /**
+     * Tests that logouts queued by concurrent threads are all journaled.
+     */
+    public void testConcurrentEnqueue() throws Exception {
+        queue.setSyncJournal(true);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        queue.enqueue("https://idp.example.org",
+                                createLogoutInformation("https://sp" + thread + "-" + j + ".example.org"));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, queue.getPendingCount());
+        queue.destroy();
+
+        queue = createQueue();
+        assertEquals(100, queue.getPendingCount());
+    }
+
+    /**
+     * Tests that a logout is superseded only by a session in which the
+     * principal authenticated to the SP again after it was queued.
+     */
+    public void testSupersededBySession() {
+        long queued = System.currentTimeMillis() - 60000;
+        PendingLogout logout = new PendingLogout(1, queued, "https://sp.example.org", null, "principal", null,
+                null, null);
+        SessionImpl session = new SessionImpl("c2Vzc2lvbi1pZGVudGlmaWVy", new byte[] {1, 2, 3, 4}, 1800000);
+        assertFalse(logout.isSupersededBy(null));
+        assertFalse(logout.isSupersededBy(session));
+
+        session.getServicesInformation().put("https://sp.example.org",
+                new ServiceInformationImpl("https://sp.example.org", new DateTime(queued - 1000), null));
+        assertFalse(logout.isSupersededBy(session));
+
+        session.getServicesInformation().put("https://sp.example.org",
+                new ServiceInformationImpl("https://sp.example.org", new DateTime(), null));
+        assertTrue(logout.isSupersededBy(session));
+    }
+
+    /**
+     * Creates an initialized queue backed by the test journal.
+     *
+     * @return the queue
+     */
+    private LogoutRetryQueue createQueue() {
+        LogoutRetryQueue retryQueue = new LogoutRetryQueue(journalFile.getPath(), 3600000);
+        retryQueue.setInitialBackoff(1);
+        retryQueue.setSyncJournal(false);
+        retryQueue.setDispatcher(new LogoutRetryQueue.Dispatcher() {
+            public boolean dispatch(PendingLogout logout) {
+                dispatched.add(logout.getEntityID());
+                return succeed;
+            }
+        });
+        retryQueue.initialize();
+        return retryQueue;
+    }
+
+    /**
+     * Creates the logout information of a session participant.
+     *
+     * @param entityID entityID of the session participant
+     * @return logout information
+     */
+    private LogoutInformation createLogoutInformation(String entityID) {
+        return new PendingLogout(0, System.currentTimeMillis(), entityID, null, "principal", null, null, null)
+                .createSingleLogoutContext().getServiceInformation().get(entityID);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2009 NIIF Institute.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package edu.internet2.middleware.shibboleth.idp.slo;
+
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutInformation;
+import edu.internet2.middleware.shibboleth.idp.slo.SingleLogoutContext.LogoutStatus;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Tests for the status queries and the status event stream of
+ * {@link SLOServlet}.
+ */
+public class SLOServletTest extends TestCase {
+
+    /** Servlet under test. */
+    private SLOServlet servlet;
+    /** Single logout context the requests are made for. */
+    private SingleLogoutContext sloContext;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        servlet = new SLOServlet();
+        Map<String, LogoutInformation> serviceInfo = new LinkedHashMap<String, LogoutInformation>();
+        sloContext = new SingleLogoutContext(null, null, "https://idp.example.org", null, null, "session",
+                5000, serviceInfo);
+        addParticipant(serviceInfo, "https://sp1.example.org");
+        addParticipant(serviceInfo, "https://sp2.example.org");
+    }
+
+    /**
+     * Tests that the stream sends the current statuses and ends at once
+     * when no logout is pending.
+     */
+    public void testEventStreamOfFinishedLogout() throws Exception {
+        participant("https://sp1.example.org").setLogoutAttempted();
+        participant("https://sp1.example.org").setLogoutSucceeded();
+        participant("https://sp2.example.org").setLogoutUnsupported();
+
+        MockHttpServletResponse response = request("events");
+        assertEquals("text/event-stream", response.getContentType());
+        assertEquals("data: {\"entityID\":\"https://sp1.example.org\",\"logoutStatus\":\"LOGOUT_SUCCEEDED\"}\n\n"
+                + "data: {\"entityID\":\"https://sp2.example.org\",\"logoutStatus\":\"LOGOUT_UNSUPPORTED\"}\n\n"
+                + "event: done\ndata: \n\n", response.getContentAsString());
+    }
+
+    /**
+     * Tests that transitions made while the stream is open are sent as
+     * they happen and that the stream ends once the last logout completes.
+     */
+    public void testEventStreamOfPendingLogout() throws Exception {
+        participant("https://sp1.example.org").setLogoutAttempted();
+        participant("https://sp2.example.org").setLogoutAttempted();
+
+        Thread responder = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    participant("https://sp2.example.org").setLogoutFailed();
+                    Thread.sleep(100);
+                    participant("https://sp1.example.org").setLogoutSucceeded();
+                } catch (InterruptedException e) {
+                    // test fails on the missing transitions
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        responder.start();
+        MockHttpServletResponse response = request("events");
+        responder.join();
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        String content = response.getContentAsString();
+        int failed = content.indexOf("\"https://sp2.example.org\",\"logoutStatus\":\"LOGOUT_FAILED\"");
+        int succeeded = content.indexOf("\"https://sp1.example.org\",\"logoutStatus\":\"LOGOUT_SUCCEEDED\"");
+        assertTrue(content.indexOf("LOGOUT_ATTEMPTED") < failed);
+        assertTrue(failed < succeeded);
+        assertTrue(content.endsWith("event: done\ndata: \n\n"));
+    }
+
+    /**
+     * Tests that attempted logouts that do not complete are published as
+     * timed out and end the stream.
+     */
+    public void testEventStreamOfTimedOutLogout() throws Exception {
+        Map<String, LogoutInformation> serviceInfo = new LinkedHashMap<String, LogoutInformation>();
+        sloContext = new SingleLogoutContext(null, null, "https://idp.example.org", null, null, "session",
+                100, serviceInfo);
+        addParticipant(serviceInfo, "https://sp1.example.org");
+        participant("https://sp1.example.org").setLogoutAttempted();
+
+        String content = request("events").getContentAsString();
+        assertTrue(content.indexOf("LOGOUT_TIMED_OUT") > content.indexOf("LOGOUT_ATTEMPTED"));
+        assertTrue(content.endsWith("event: done\ndata: \n\n"));
+    }
+
+    /**
+     * Tests the status query clients fall back to without an event stream.
+     */
+    public void testStatusQuery() throws Exception {
+        participant("https://sp1.example.org").setLogoutAttempted();
+
+        assertEquals("[{\"entityID\":\"https://sp1.example.org\",\"logoutStatus\":\"LOGOUT_ATTEMPTED\"},"
+                + "{\"entityID\":\"https://sp2.example.org\",\"logoutStatus\":\"LOGGED_IN\"}]",
+                request("status").getContentAsString());
+    }
+
+    /**
+     * Makes a request to the servlet for the single logout context.
+     *
+     * @param parameter name of the parameter selecting the response
+     * @return the response
+     */
+    private MockHttpServletResponse request(String parameter) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute(SingleLogoutContextStorageHelper.SLO_CTX_KEY_NAME, sloContext);
+        request.addParameter(parameter, "");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.service(request, response);
+        return response;
+    }
+
+    /**
+     * Adds a logged in participant to the single logout context.
+     *
+     * @param serviceInfo logout information of the participants, by entityID
+     * @param entityID entityID of the participant
+     */
+    private void addParticipant(Map<String, LogoutInformation> serviceInfo, String entityID) {
+        serviceInfo.put(entityID, sloContext.new LogoutInformation(entityID, "principal", null, null, null,
+                LogoutStatus.LOGGED_IN));
+    }
+
+    /**
+     * Returns the logout information of a participant.
+     *
+     * @param entityID entityID of the participant
+     * @return logout information
+     */
+    private LogoutInformation participant(String entityID) {
+        return sloContext.getServiceInformation().get(entityID);
+    }
+}
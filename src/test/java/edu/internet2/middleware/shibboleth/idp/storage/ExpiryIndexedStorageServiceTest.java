@@ -0,0 +1,163 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.AbstractExpiringObject;
+
+/** Unit test for {@link ExpiryIndexedStorageService}. */
+public class ExpiryIndexedStorageServiceTest extends TestCase {
+
+    /** Storage service being tested. */
+    private ExpiryIndexedStorageService<String, Object> storageService;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        storageService = new ExpiryIndexedStorageService<String, Object>();
+    }
+
+    /** Tests that only expired entries are swept. */
+    public void testSweep() {
+        TestEntry expired = new TestEntry(new DateTime().minusMinutes(1));
+        TestEntry active = new TestEntry(new DateTime().plusMinutes(5));
+
+        storageService.put("test", "expired", expired);
+        storageService.put("test", "active", active);
+        storageService.put("test", "plain", "never expires");
+
+        assertEquals(1, storageService.sweep());
+        assertFalse(storageService.contains("test", "expired"));
+        assertTrue(expired.wasExpired);
+        assertTrue(storageService.contains("test", "active"));
+        assertFalse(active.wasExpired);
+        assertTrue(storageService.contains("test", "plain"));
+
+        assertEquals(1, storageService.getSweepCount());
+        assertEquals(1, storageService.getLastSweepReclaimed());
+        assertEquals(1, storageService.getTotalReclaimed());
+        assertEquals(2, storageService.getEntryCount("test"));
+    }
+
+    /** Tests that an entry whose expiration was extended after it was stored is not swept. */
+    public void testExtendedExpiration() {
+        TestEntry entry = new TestEntry(new DateTime().minusMinutes(1));
+        storageService.put("test", "entry", entry);
+
+        entry.expiration = new DateTime().plusMinutes(5);
+        assertEquals(0, storageService.sweep());
+        assertTrue(storageService.contains("test", "entry"));
+        assertEquals(1, storageService.getDeadlineCount("test"));
+
+        entry.expiration = new DateTime().minusMinutes(1);
+        storageService.getPartition("test").sweep(entry.expiration.plusMinutes(10).getMillis());
+        assertFalse(storageService.contains("test", "entry"));
+    }
+
+    /** Tests that deadlines for removed or replaced entries are discarded. */
+    public void testRemovedAndReplacedEntries() {
+        TestEntry removed = new TestEntry(new DateTime().minusMinutes(1));
+        storageService.put("test", "removed", removed);
+        assertSame(removed, storageService.remove("test", "removed"));
+
+        TestEntry replaced = new TestEntry(new DateTime().minusMinutes(1));
+        TestEntry replacement = new TestEntry(new DateTime().plusMinutes(5));
+        storageService.put("test", "replaced", replaced);
+        storageService.put("test", "replaced", replacement);
+
+        assertEquals(0, storageService.sweep());
+        assertFalse(removed.wasExpired);
+        assertFalse(replaced.wasExpired);
+        assertSame(replacement, storageService.get("test", "replaced"));
+        assertEquals(1, storageService.getDeadlineCount("test"));
+    }
+
+    /** Tests that storing an entry again, or extending it, keeps a single deadline per key. */
+    public void testOneDeadlinePerKey() {
+        TestEntry entry = new TestEntry(new DateTime().plusMinutes(5));
+        TestEntry other = new TestEntry(new DateTime().plusMinutes(10));
+        storageService.put("test", "other", other);
+        for (int i = 0; i < 100; i++) {
+            entry.expiration = entry.expiration.plusSeconds(1);
+            storageService.put("test", "entry", entry);
+        }
+        assertEquals(2, storageService.getDeadlineCount("test"));
+
+        // a sweep moves the deadline of an extended entry instead of adding one
+        entry.expiration = new DateTime().plusMinutes(20);
+        assertEquals(0, storageService.getPartition("test").sweep(new DateTime().plusMinutes(7).getMillis()));
+        assertEquals(2, storageService.getDeadlineCount("test"));
+
+        // the earlier deadline of the other entry is still found first
+        assertEquals(1, storageService.getPartition("test").sweep(new DateTime().plusMinutes(15).getMillis()));
+        assertTrue(other.wasExpired);
+        assertFalse(entry.wasExpired);
+        assertEquals(1, storageService.getDeadlineCount("test"));
+    }
+
+    /** Tests that removing entries, or replacing them with values that never expire, removes their deadlines. */
+    public void testRemovedEntryDeadlines() {
+        for (int i = 0; i < 10; i++) {
+            storageService.put("test", "entry" + i, new TestEntry(new DateTime().plusMinutes(i)));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            storageService.remove("test", "entry" + i);
+        }
+        storageService.put("test", "entry1", "never expires");
+        assertEquals(4, storageService.getDeadlineCount("test"));
+
+        assertEquals(4, storageService.getPartition("test").sweep(new DateTime().plusMinutes(10).getMillis()));
+        assertEquals(0, storageService.getDeadlineCount("test"));
+        assertTrue(storageService.contains("test", "entry1"));
+    }
+
+    /** Expiring entry whose expiration time may be changed. */
+    private static class TestEntry extends AbstractExpiringObject {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 4567205838290157458L;
+
+        /** Current expiration time. */
+        private DateTime expiration;
+
+        /** Whether {@link #onExpire()} was called. */
+        private boolean wasExpired;
+
+        /**
+         * Constructor.
+         *
+         * @param expirationTime expiration time of the entry
+         */
+        public TestEntry(DateTime expirationTime) {
+            super(expirationTime);
+            expiration = expirationTime;
+        }
+
+        /** {@inheritDoc} */
+        public DateTime getExpirationTime() {
+            return expiration;
+        }
+
+        /** {@inheritDoc} */
+        public void onExpire() {
+            wasExpired = true;
+        }
+    }
+}
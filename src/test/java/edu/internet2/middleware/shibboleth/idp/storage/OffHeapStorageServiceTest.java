@@ -0,0 +1,170 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.AbstractExpiringObject;
+
+/** Unit test for {@link OffHeapStorageService}. */
+public class OffHeapStorageServiceTest extends TestCase {
+
+    /** Storage service being tested. */
+    private OffHeapStorageService<String, Object> storage;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        storage = new OffHeapStorageService<String, Object>(64 * 1024, 2);
+    }
+
+    /** Tests that values are handed out as copies and that changes are only seen once the value is stored again. */
+    public void testValuesAreCopies() {
+        TestEntry entry = new TestEntry("first", new DateTime().plusMinutes(5));
+        assertNull(storage.put("session", "key", entry));
+
+        TestEntry copy = (TestEntry) storage.get("session", "key");
+        assertNotSame(entry, copy);
+        assertEquals("first", copy.name);
+
+        copy.name = "second";
+        assertEquals("first", ((TestEntry) storage.get("session", "key")).name);
+        assertEquals("first", ((TestEntry) storage.put("session", "key", copy)).name);
+        assertEquals("second", ((TestEntry) storage.get("session", "key")).name);
+
+        assertEquals("second", ((TestEntry) storage.remove("session", "key")).name);
+        assertNull(storage.get("session", "key"));
+        assertEquals(0, storage.getAllocatedBytes());
+    }
+
+    /** Tests that storing over a value frees its chunk without reading it back. */
+    public void testStoreDoesNotReadReplaced() {
+        final int[] reads = new int[1];
+        storage.setValueInitializer("session", new OffHeapStorageService.ValueInitializer<Object>() {
+            public void initialize(Object value) {
+                reads[0]++;
+            }
+        });
+
+        storage.store("session", "key", "first");
+        long allocated = storage.getAllocatedBytes();
+        storage.store("session", "key", "other");
+        assertEquals(0, reads[0]);
+        assertEquals(allocated, storage.getAllocatedBytes());
+
+        assertEquals("other", storage.put("session", "key", "third"));
+        assertEquals(1, reads[0]);
+    }
+
+    /** Tests that freed chunks are reused rather than new slabs allocated. */
+    public void testChunksReused() {
+        for (int i = 0; i < 1000; i++) {
+            storage.put("session", "key", "value " + i);
+        }
+        assertEquals(1, storage.getSlabCount());
+        assertEquals(256, storage.getAllocatedBytes());
+
+        try {
+            storage.put("session", "large", new byte[128 * 1024]);
+            fail("value larger than a slab was stored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Tests that a sweep removes expired entries and keeps those whose expiration was pushed back. */
+    public void testSweep() {
+        TestEntry renewed = new TestEntry("renewed", new DateTime().minusMinutes(5));
+        storage.put("session", "expired", new TestEntry("expired", new DateTime().minusMinutes(5)));
+        storage.put("session", "renewed", renewed);
+        storage.put("session", "active", new TestEntry("active", new DateTime().plusMinutes(5)));
+        storage.put("loginContexts", "plain", "value");
+
+        storage.setValueInitializer("session", new OffHeapStorageService.ValueInitializer<Object>() {
+            public void initialize(Object value) {
+                if ("renewed".equals(((TestEntry) value).name)) {
+                    ((TestEntry) value).renewal = new DateTime().plusMinutes(5);
+                }
+            }
+        });
+
+        assertEquals(1, storage.sweep());
+        assertFalse(storage.contains("session", "expired"));
+        assertTrue(storage.contains("session", "renewed"));
+        assertEquals(2, storage.getEntryCount("session"));
+        assertEquals("value", storage.get("loginContexts", "plain"));
+    }
+
+    /** Tests that an entry which can not be read back is removed without stopping the sweep. */
+    public void testSweepSkipsUnreadableEntry() {
+        storage = new OffHeapStorageService<String, Object>(64 * 1024, 2) {
+            protected Object deserializeValue(byte[] record) throws IOException {
+                Object value = super.deserializeValue(record);
+                if ("corrupt".equals(((TestEntry) value).name)) {
+                    throw new IOException("Corrupt entry");
+                }
+                return value;
+            }
+        };
+        storage.put("a", "corrupt", new TestEntry("corrupt", new DateTime().minusMinutes(5)));
+        storage.put("a", "expired", new TestEntry("expired", new DateTime().minusMinutes(5)));
+        storage.put("b", "corrupt", new TestEntry("corrupt", new DateTime().minusMinutes(5)));
+        storage.put("b", "expired", new TestEntry("expired", new DateTime().minusMinutes(5)));
+        storage.put("b", "active", new TestEntry("active", new DateTime().plusMinutes(5)));
+
+        assertEquals(4, storage.sweep());
+        assertEquals(0, storage.getEntryCount("a"));
+        assertEquals(1, storage.getEntryCount("b"));
+        assertTrue(storage.contains("b", "active"));
+    }
+
+    /** Serializable expiring entry. */
+    private static class TestEntry extends AbstractExpiringObject {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 4467226781651473211L;
+
+        /** Name of the entry. */
+        private String name;
+
+        /** Expiration time replacing the stored one, may be null. */
+        private transient DateTime renewal;
+
+        /**
+         * Constructor.
+         *
+         * @param entryName name of the entry
+         * @param expiration expiration time of the entry
+         */
+        public TestEntry(String entryName, DateTime expiration) {
+            super(expiration);
+            name = entryName;
+        }
+
+        /** {@inheritDoc} */
+        public DateTime getExpirationTime() {
+            if (renewal != null) {
+                return renewal;
+            }
+            return super.getExpirationTime();
+        }
+    }
+}
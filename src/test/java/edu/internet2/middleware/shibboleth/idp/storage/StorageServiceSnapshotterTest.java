@@ -0,0 +1,97 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.storage;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.opensaml.util.storage.AbstractExpiringObject;
+
+/** Unit test for {@link StorageServiceSnapshotter}. */
+public class StorageServiceSnapshotterTest extends TestCase {
+
+    /** File holding the snapshot. */
+    private File snapshotFile;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        snapshotFile = File.createTempFile("storage", ".snapshot");
+        snapshotFile.delete();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        snapshotFile.delete();
+        super.tearDown();
+    }
+
+    /** Tests that unexpired entries of the snapshotted partitions survive a snapshot and restore. */
+    public void testSnapshotAndRestore() {
+        ExpiryIndexedStorageService<String, Object> storage = new ExpiryIndexedStorageService<String, Object>();
+        storage.put("session", "active", new TestEntry("active", new DateTime().plusMinutes(5)));
+        storage.put("session", "expired", new TestEntry("expired", new DateTime().minusMinutes(5)));
+        storage.put("loginContexts", "plain", "value");
+        storage.put("replayCache", "ignored", "value");
+
+        StorageServiceSnapshotter snapshotter = new StorageServiceSnapshotter(storage, snapshotFile.getPath(),
+                Arrays.asList("session", "loginContexts"));
+        assertEquals(2, snapshotter.snapshot());
+
+        ExpiryIndexedStorageService<String, Object> restoredStorage = new ExpiryIndexedStorageService<String, Object>();
+        StorageServiceSnapshotter restorer = new StorageServiceSnapshotter(restoredStorage, snapshotFile.getPath(),
+                Arrays.asList("session", "loginContexts"));
+        assertEquals(2, restorer.restore());
+
+        assertEquals("active", ((TestEntry) restoredStorage.get("session", "active")).name);
+        assertFalse(restoredStorage.contains("session", "expired"));
+        assertEquals("value", restoredStorage.get("loginContexts", "plain"));
+        assertFalse(restoredStorage.contains("replayCache", "ignored"));
+    }
+
+    /** Tests that a missing or corrupt snapshot restores nothing. */
+    public void testMissingSnapshot() {
+        StorageServiceSnapshotter restorer = new StorageServiceSnapshotter(
+                new ExpiryIndexedStorageService<String, Object>(), snapshotFile.getPath(), Arrays.asList("session"));
+        assertEquals(0, restorer.restore());
+    }
+
+    /** Serializable expiring entry. */
+    private static class TestEntry extends AbstractExpiringObject {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = -2201418406532440214L;
+
+        /** Name of the entry. */
+        private String name;
+
+        /**
+         * Constructor.
+         *
+         * @param entryName name of the entry
+         * @param expiration expiration time of the entry
+         */
+        public TestEntry(String entryName, DateTime expiration) {
+            super(expiration);
+            name = entryName;
+        }
+    }
+}
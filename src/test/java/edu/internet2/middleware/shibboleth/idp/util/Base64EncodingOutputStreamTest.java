@@ -0,0 +1,70 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.opensaml.xml.util.Base64;
+
+/** Tests for {@link Base64EncodingOutputStream}. */
+public class Base64EncodingOutputStreamTest extends TestCase {
+
+    /** Tests that every input length, written at once or byte by byte, is encoded as by {@link Base64}. */
+    public void testEncoding() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String expected = Base64.encodeBytes(bytes, Base64.DONT_BREAK_LINES);
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            Base64EncodingOutputStream stream = new Base64EncodingOutputStream(encoded, new byte[8]);
+            stream.write(bytes);
+            stream.finish();
+            assertEquals(expected, encoded.toString("US-ASCII"));
+
+            encoded = new ByteArrayOutputStream();
+            stream = new Base64EncodingOutputStream(encoded, new byte[4]);
+            for (int i = 0; i < length; i++) {
+                stream.write(bytes[i]);
+                if (i % 5 == 0) {
+                    stream.flush();
+                }
+            }
+            stream.finish();
+            assertEquals(expected, encoded.toString("US-ASCII"));
+        }
+    }
+
+    /** Tests that nothing may be written once the encoding is finished. */
+    public void testFinished() throws Exception {
+        Base64EncodingOutputStream stream = new Base64EncodingOutputStream(new ByteArrayOutputStream(), new byte[4]);
+        stream.write(1);
+        stream.finish();
+        stream.finish();
+        try {
+            stream.write(2);
+            fail("Write after finish must fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
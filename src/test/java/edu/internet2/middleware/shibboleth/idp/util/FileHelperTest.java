@@ -0,0 +1,49 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/** Unit test for {@link FileHelper}. */
+public class FileHelperTest extends TestCase {
+
+    /** Tests that a private file is created empty and that an existing file is not reused. */
+    public void testCreatePrivateFile() throws Exception {
+        File file = File.createTempFile("private", ".dat");
+        assertTrue(file.delete());
+        try {
+            FileHelper.createPrivateFile(file);
+            assertTrue(file.isFile());
+            assertEquals(0, file.length());
+            assertTrue(file.canRead());
+            assertTrue(file.canWrite());
+
+            try {
+                FileHelper.createPrivateFile(file);
+                fail("existing file was reused");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+
+/** Tests for {@link HttpClientPool} against a local mock SP that keeps connections alive. */
+public class HttpClientPoolTest extends TestCase {
+
+    /** Mock SP. */
+    private MockServiceProvider serviceProvider;
+
+    /** Pool being tested. */
+    private HttpClientPool pool;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        serviceProvider = new MockServiceProvider();
+        serviceProvider.start();
+        pool = new HttpClientPool(2, 4);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        pool.shutdown();
+        serviceProvider.close();
+        super.tearDown();
+    }
+
+    /** Tests that consecutive requests to the same host are issued over one connection. */
+    public void testConnectionReuse() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            post(true);
+        }
+
+        assertEquals(10, pool.getLeaseCount());
+        assertEquals(1, pool.getConnectCount());
+        assertEquals(1, serviceProvider.getAcceptCount());
+        assertEquals(0, pool.getLeasedConnections());
+        assertEquals(1, pool.getConnectionsInPool());
+    }
+
+    /** Tests that a connection closed before its release is reopened on its next lease. */
+    public void testClosedConnectionReopened() throws Exception {
+        post(false);
+        post(false);
+
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(2, serviceProvider.getAcceptCount());
+        assertEquals(0, pool.getLeasedConnections());
+    }
+
+    /** Tests that idle connections are closed and reopened on their next lease. */
+    public void testIdleConnectionsClosed() throws Exception {
+        post(true);
+        Thread.sleep(20);
+        pool.closeIdleConnections(10);
+        post(true);
+
+        assertEquals(2, pool.getConnectCount());
+    }
+
+    /** Tests the per-host cap on connections. */
+    public void testPoolTimeout() throws Exception {
+        HttpConnection first = pool.getConnection(serviceProvider.getLocation(), 0);
+        HttpConnection second = pool.getConnection(serviceProvider.getLocation(), 0);
+        try {
+            pool.getConnection(serviceProvider.getLocation(), 50);
+            fail("Connection leased beyond the per-host cap");
+        } catch (ConnectionPoolTimeoutException e) {
+            // expected
+        }
+        assertEquals(1, pool.getPoolTimeoutCount());
+        assertEquals(2, pool.getLeasedConnections());
+
+        first.releaseConnection();
+        pool.getConnection(serviceProvider.getLocation(), 50).releaseConnection();
+        second.releaseConnection();
+        assertEquals(0, pool.getLeasedConnections());
+    }
+
+    /** Tests that unsupported locations are rejected. */
+    public void testUnsupportedScheme() throws Exception {
+        try {
+            pool.getConnection("ftp://localhost/SLO", 0);
+            fail("Connection leased for an unsupported scheme");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Issues a POST to the mock SP over a pooled connection.
+     * 
+     * @param keepAlive whether the connection is handed back to the pool open
+     * 
+     * @throws Exception thrown if the request fails
+     */
+    private void post(boolean keepAlive) throws Exception {
+        HttpConnection connection = pool.getConnection(serviceProvider.getLocation(), 1000);
+        PostMethod method = new PostMethod(serviceProvider.getLocation());
+        try {
+            connection.closeIfStale();
+            if (!connection.isOpen()) {
+                connection.open();
+            }
+            method.setRequestEntity(new StringRequestEntity("<LogoutRequest/>", "text/xml", "UTF-8"));
+            assertEquals(HttpStatus.SC_OK, method.execute(new HttpState(), connection));
+            assertEquals("<LogoutResponse/>", method.getResponseBodyAsString());
+            if (!keepAlive) {
+                connection.close();
+            }
+        } finally {
+            method.releaseConnection();
+            connection.releaseConnection();
+        }
+    }
+
+    /** Mock SP answering every request on a connection with the same response, keeping connections alive. */
+    private static class MockServiceProvider extends Thread {
+
+        /** Canned response. */
+        private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\n"
+                + "Content-Length: 17\r\n\r\n<LogoutResponse/>").getBytes();
+
+        /** Socket accepting connections. */
+        private final ServerSocket serverSocket;
+
+        /** Number of connections accepted. */
+        private volatile int acceptCount;
+
+        /**
+         * Constructor.
+         * 
+         * @throws IOException thrown if the server socket cannot be bound
+         */
+        MockServiceProvider() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        /**
+         * Gets the location of the SP's logout endpoint.
+         * 
+         * @return location of the logout endpoint
+         */
+        String getLocation() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/SLO";
+        }
+
+        /**
+         * Gets the number of connections accepted.
+         * 
+         * @return number of connections accepted
+         */
+        int getAcceptCount() {
+            return acceptCount;
+        }
+
+        /**
+         * Stops accepting connections.
+         * 
+         * @throws IOException thrown if the server socket cannot be closed
+         */
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    acceptCount++;
+                    Thread handler = new Thread() {
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Answers the requests made on a connection until the client closes it.
+         * 
+         * @param socket the connection
+         */
+        private void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                while (skipRequest(in)) {
+                    out.write(RESPONSE);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // connection closed by the client
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /**
+         * Reads a request, headers and body.
+         * 
+         * @param in stream the request is read from
+         * 
+         * @return false if the connection was closed before a request was read
+         * 
+         * @throws IOException thrown if the request cannot be read
+         */
+        private boolean skipRequest(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int contentLength = 0;
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    if (line.length() == 0) {
+                        for (int i = 0; i < contentLength; i++) {
+                            if (in.read() == -1) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                    if (line.toString().toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+                    }
+                    line.setLength(0);
+                } else if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.shibboleth.idp.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/** Unit test for {@link PerThreadRandomSource}. */
+public class PerThreadRandomSourceTest extends TestCase {
+
+    /** Tests that invalid parameters are refused. */
+    public void testInvalidParameters() {
+        try {
+            new PerThreadRandomSource("SHA1PRNG", 0, 1024);
+            fail("Empty block accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new PerThreadRandomSource("SHA1PRNG", 64, 32);
+            fail("Reseed interval smaller than the block accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new PerThreadRandomSource("NOSUCHPRNG", 64, 1024);
+            fail("Unknown algorithm accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Tests that requests smaller than, equal to and spanning several blocks are filled with distinct bytes. */
+    public void testNextBytes() {
+        PerThreadRandomSource source = new PerThreadRandomSource("SHA1PRNG", 16, 64);
+        assertEquals(0, source.nextBytes(0).length);
+
+        Set<String> seen = new HashSet<String>();
+        int[] sizes = {1, 15, 16, 17, 50, 100};
+        for (int size : sizes) {
+            // enough requests to reseed the PRNG several times
+            for (int i = 0; i < 20; i++) {
+                byte[] bytes = source.nextBytes(size);
+                assertEquals(size, bytes.length);
+                if (size >= 15) {
+                    assertTrue("Repeated bytes", seen.add(Arrays.toString(bytes)));
+                }
+            }
+        }
+    }
+
+    /** Tests that concurrent threads each get their own bytes. */
+    public void testConcurrentThreads() throws Exception {
+        final PerThreadRandomSource source = new PerThreadRandomSource();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<List<String>>() {
+                    public List<String> call() {
+                        List<String> values = new ArrayList<String>();
+                        for (int j = 0; j < 100; j++) {
+                            values.add(Arrays.toString(source.nextBytes(32)));
+                        }
+                        return values;
+                    }
+                }));
+            }
+
+            Set<String> seen = new HashSet<String>();
+            for (Future<List<String>> result : results) {
+                for (String value : result.get()) {
+                    assertTrue("Bytes handed out twice", seen.add(value));
+                }
+            }
+            assertEquals(400, seen.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Tests that a discarded random source is not kept alive by the block of a thread which used it. */
+    public void testDiscardedSource() throws Exception {
+        PerThreadRandomSource source = new PerThreadRandomSource();
+        source.nextBytes(16);
+        WeakReference<PerThreadRandomSource> reference = new WeakReference<PerThreadRandomSource>(source);
+        source = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("Random source kept alive by this thread's block", reference.get());
+    }
+}